@@ -0,0 +1,140 @@
+/*
+ * Copyright 2011 Tyler Blair. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are
+ * permitted provided that the following conditions are met:
+ *
+ *    1. Redistributions of source code must retain the above copyright notice, this list of
+ *       conditions and the following disclaimer.
+ *
+ *    2. Redistributions in binary form must reproduce the above copyright notice, this list
+ *       of conditions and the following disclaimer in the documentation and/or other materials
+ *       provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ''AS IS'' AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND
+ * FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE AUTHOR OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * The views and conclusions contained in the software and documentation are those of the
+ * authors and contributors and should not be interpreted as representing official policies,
+ * either expressed or implied, of anybody else.
+ */
+
+package com.griefcraft.cache;
+
+/**
+ * Packs block coordinates into a single long so they can be used as a primitive cache key.
+ * <p/>
+ * Regular block coordinates use the same layout as Minecraft itself: 26 bits for x, 26 bits for z and 12 bits for y.
+ * Entity protections store the entity hash in all three coordinates, which does not fit that layout, so those are
+ * stored with a reserved y value and the hash in the lower bits instead.
+ */
+public final class BlockKey {
+
+    /**
+     * Returned for coordinates that cannot be packed without losing information
+     */
+    public static final long INVALID = 0xFFFFFFFFFFFFF800L;
+
+    /**
+     * The y value reserved to mark packed entity hashes
+     */
+    private static final int ENTITY_MARKER = 0x800;
+
+    private static final int XZ_BITS = 26;
+    private static final int Y_BITS = 12;
+
+    private static final int XZ_MIN = -(1 << (XZ_BITS - 1));
+    private static final int XZ_MAX = (1 << (XZ_BITS - 1)) - 1;
+
+    // the lowest y value is reserved for ENTITY_MARKER
+    private static final int Y_MIN = -(1 << (Y_BITS - 1)) + 1;
+    private static final int Y_MAX = (1 << (Y_BITS - 1)) - 1;
+
+    private static final long XZ_MASK = (1L << XZ_BITS) - 1;
+    private static final long Y_MASK = (1L << Y_BITS) - 1;
+
+    private BlockKey() {
+    }
+
+    /**
+     * Pack the given coordinates
+     *
+     * @param x
+     * @param y
+     * @param z
+     * @return the packed key, or {@link #INVALID} if the coordinates cannot be packed
+     */
+    public static long pack(int x, int y, int z) {
+        if (x >= XZ_MIN && x <= XZ_MAX && z >= XZ_MIN && z <= XZ_MAX && y >= Y_MIN && y <= Y_MAX) {
+            return ((x & XZ_MASK) << (XZ_BITS + Y_BITS)) | ((z & XZ_MASK) << Y_BITS) | (y & Y_MASK);
+        }
+
+        // entity protections (see EntityBlock)
+        if (x == y && y == z) {
+            return ((x & 0xFFFFFFFFL) << Y_BITS) | ENTITY_MARKER;
+        }
+
+        return INVALID;
+    }
+
+    /**
+     * Pack the given chunk coordinates
+     *
+     * @param chunkX
+     * @param chunkZ
+     * @return
+     */
+    public static long packChunk(int chunkX, int chunkZ) {
+        return ((long) chunkX << 32) | (chunkZ & 0xFFFFFFFFL);
+    }
+
+    /**
+     * Get the x coordinate of a packed key
+     *
+     * @param key
+     * @return
+     */
+    public static int getX(long key) {
+        if ((key & Y_MASK) == ENTITY_MARKER) {
+            return (int) (key >>> Y_BITS);
+        }
+
+        return (int) (key >> (XZ_BITS + Y_BITS));
+    }
+
+    /**
+     * Get the y coordinate of a packed key
+     *
+     * @param key
+     * @return
+     */
+    public static int getY(long key) {
+        if ((key & Y_MASK) == ENTITY_MARKER) {
+            return (int) (key >>> Y_BITS);
+        }
+
+        return (int) (key << (64 - Y_BITS) >> (64 - Y_BITS));
+    }
+
+    /**
+     * Get the z coordinate of a packed key
+     *
+     * @param key
+     * @return
+     */
+    public static int getZ(long key) {
+        if ((key & Y_MASK) == ENTITY_MARKER) {
+            return (int) (key >>> Y_BITS);
+        }
+
+        return (int) (key << XZ_BITS >> (XZ_BITS + Y_BITS));
+    }
+
+}
@@ -0,0 +1,320 @@
+/*
+ * Copyright 2011 Tyler Blair. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are
+ * permitted provided that the following conditions are met:
+ *
+ *    1. Redistributions of source code must retain the above copyright notice, this list of
+ *       conditions and the following disclaimer.
+ *
+ *    2. Redistributions in binary form must reproduce the above copyright notice, this list
+ *       of conditions and the following disclaimer in the documentation and/or other materials
+ *       provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ''AS IS'' AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND
+ * FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE AUTHOR OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * The views and conclusions contained in the software and documentation are those of the
+ * authors and contributors and should not be interpreted as representing official policies,
+ * either expressed or implied, of anybody else.
+ */
+
+package com.griefcraft.cache;
+
+import java.util.Arrays;
+
+/**
+ * An open-addressing hash map keyed by an interned world id and a packed block or chunk position (see {@link BlockKey}).
+ * Lookups do not allocate. Null values are not supported.
+ *
+ * @param <V>
+ */
+public class BlockMap<V> {
+
+    /**
+     * The minimum amount of slots in the table
+     */
+    private static final int MIN_CAPACITY = 16;
+
+    /**
+     * The world id of each slot
+     */
+    private int[] worlds;
+
+    /**
+     * The packed position of each slot
+     */
+    private long[] keys;
+
+    /**
+     * The value of each slot; null marks an empty slot
+     */
+    private Object[] values;
+
+    /**
+     * The amount of mappings in the map
+     */
+    private int size = 0;
+
+    /**
+     * The size at which the table is grown
+     */
+    private int threshold;
+
+    public BlockMap(int expectedSize) {
+        allocate(tableSizeFor(expectedSize));
+    }
+
+    /**
+     * @return the amount of mappings in the map
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @return true if the map is empty
+     */
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    /**
+     * Remove every mapping
+     */
+    public void clear() {
+        if (size == 0) {
+            return;
+        }
+
+        Arrays.fill(values, null);
+        size = 0;
+    }
+
+    /**
+     * Check if the given position is mapped
+     *
+     * @param world
+     * @param key
+     * @return
+     */
+    public boolean containsKey(int world, long key) {
+        return indexOf(world, key) >= 0;
+    }
+
+    /**
+     * Get the value mapped to the given position
+     *
+     * @param world
+     * @param key
+     * @return the value, or null if there is none
+     */
+    @SuppressWarnings("unchecked")
+    public V get(int world, long key) {
+        int index = indexOf(world, key);
+        return index >= 0 ? (V) values[index] : null;
+    }
+
+    /**
+     * Map a position to a value
+     *
+     * @param world
+     * @param key
+     * @param value
+     * @return the previous value, if any
+     */
+    @SuppressWarnings("unchecked")
+    public V put(int world, long key, V value) {
+        if (value == null) {
+            throw new IllegalArgumentException("BlockMap does not support null values");
+        }
+
+        int mask = values.length - 1;
+        int index = hash(world, key) & mask;
+
+        while (values[index] != null) {
+            if (keys[index] == key && worlds[index] == world) {
+                V old = (V) values[index];
+                values[index] = value;
+                return old;
+            }
+
+            index = (index + 1) & mask;
+        }
+
+        worlds[index] = world;
+        keys[index] = key;
+        values[index] = value;
+
+        if (++size > threshold) {
+            allocate(values.length << 1);
+        }
+
+        return null;
+    }
+
+    /**
+     * Remove the mapping for a position
+     *
+     * @param world
+     * @param key
+     * @return the removed value, if any
+     */
+    @SuppressWarnings("unchecked")
+    public V remove(int world, long key) {
+        int index = indexOf(world, key);
+
+        if (index < 0) {
+            return null;
+        }
+
+        V old = (V) values[index];
+        removeAt(index);
+        return old;
+    }
+
+    /**
+     * Remove the mapping for a position only if it currently maps to the given value
+     *
+     * @param world
+     * @param key
+     * @param value
+     * @return true if the mapping was removed
+     */
+    public boolean remove(int world, long key, V value) {
+        int index = indexOf(world, key);
+
+        if (index < 0 || values[index] != value) {
+            return false;
+        }
+
+        removeAt(index);
+        return true;
+    }
+
+    /**
+     * Find the slot for a position
+     *
+     * @param world
+     * @param key
+     * @return the slot, or -1 if it is not mapped
+     */
+    private int indexOf(int world, long key) {
+        int mask = values.length - 1;
+        int index = hash(world, key) & mask;
+
+        while (values[index] != null) {
+            if (keys[index] == key && worlds[index] == world) {
+                return index;
+            }
+
+            index = (index + 1) & mask;
+        }
+
+        return -1;
+    }
+
+    /**
+     * Empty a slot and shift back any entries that were displaced past it so probing stays correct
+     *
+     * @param index
+     */
+    private void removeAt(int index) {
+        int mask = values.length - 1;
+        int hole = index;
+        int next = (index + 1) & mask;
+
+        while (values[next] != null) {
+            int ideal = hash(worlds[next], keys[next]) & mask;
+
+            // can the entry at next be moved into the hole?
+            if (((next - ideal) & mask) >= ((next - hole) & mask)) {
+                worlds[hole] = worlds[next];
+                keys[hole] = keys[next];
+                values[hole] = values[next];
+                hole = next;
+            }
+
+            next = (next + 1) & mask;
+        }
+
+        values[hole] = null;
+        size--;
+    }
+
+    /**
+     * (Re)allocate the table with the given amount of slots, moving over any existing entries
+     *
+     * @param capacity
+     */
+    private void allocate(int capacity) {
+        int[] oldWorlds = worlds;
+        long[] oldKeys = keys;
+        Object[] oldValues = values;
+
+        worlds = new int[capacity];
+        keys = new long[capacity];
+        values = new Object[capacity];
+        threshold = capacity >> 1;
+
+        if (oldValues == null) {
+            return;
+        }
+
+        int mask = capacity - 1;
+
+        for (int i = 0; i < oldValues.length; i++) {
+            if (oldValues[i] == null) {
+                continue;
+            }
+
+            int index = hash(oldWorlds[i], oldKeys[i]) & mask;
+
+            while (values[index] != null) {
+                index = (index + 1) & mask;
+            }
+
+            worlds[index] = oldWorlds[i];
+            keys[index] = oldKeys[i];
+            values[index] = oldValues[i];
+        }
+    }
+
+    /**
+     * Get the table size to use for an expected amount of entries
+     *
+     * @param expectedSize
+     * @return
+     */
+    private static int tableSizeFor(int expectedSize) {
+        int capacity = MIN_CAPACITY;
+
+        while (capacity < (1 << 30) && (capacity >> 1) < expectedSize) {
+            capacity <<= 1;
+        }
+
+        return capacity;
+    }
+
+    /**
+     * Mix the world id and packed position into a table hash
+     *
+     * @param world
+     * @param key
+     * @return
+     */
+    private static int hash(int world, long key) {
+        long h = key * 0x9E3779B97F4A7C15L + world;
+        h ^= h >>> 32;
+        h *= 0xC2B2AE3D27D4EB4FL;
+        return (int) (h ^ (h >>> 29));
+    }
+
+}
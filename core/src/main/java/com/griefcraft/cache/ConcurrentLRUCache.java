@@ -0,0 +1,376 @@
+/*
+ * Copyright 2011 Tyler Blair. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are
+ * permitted provided that the following conditions are met:
+ *
+ *    1. Redistributions of source code must retain the above copyright notice, this list of
+ *       conditions and the following disclaimer.
+ *
+ *    2. Redistributions in binary form must reproduce the above copyright notice, this list
+ *       of conditions and the following disclaimer in the documentation and/or other materials
+ *       provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ''AS IS'' AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND
+ * FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE AUTHOR OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * The views and conclusions contained in the software and documentation are those of the
+ * authors and contributors and should not be interpreted as representing official policies,
+ * either expressed or implied, of anybody else.
+ */
+
+package com.griefcraft.cache;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A thread safe cache with approximately least recently used eviction. Entries are spread over lock-striped
+ * segments, and each segment evicts with the CLOCK algorithm: a read only sets the entry's referenced bit instead of
+ * reordering anything, and eviction skips (and clears) referenced entries until it finds one that was not used since
+ * the last pass.
+ */
+public class ConcurrentLRUCache<K, V> {
+
+    /**
+     * The number of segments. Must be a power of two.
+     */
+    private static final int SEGMENTS = 16;
+
+    /**
+     * The segments entries are spread over by their hash
+     */
+    private final Segment[] segments;
+
+    /**
+     * The number of entries in all segments
+     */
+    private final AtomicInteger size = new AtomicInteger();
+
+    /**
+     * The max number of entries allowed
+     */
+    private volatile int maxCapacity;
+
+    /**
+     * Amount of reads performed on the cache
+     */
+    private final AtomicLong reads = new AtomicLong();
+
+    /**
+     * Amount of writes performed on the cache
+     */
+    private final AtomicLong writes = new AtomicLong();
+
+    @SuppressWarnings("unchecked")
+    public ConcurrentLRUCache(int maxCapacity) {
+        this.maxCapacity = maxCapacity;
+        this.segments = new ConcurrentLRUCache.Segment[SEGMENTS];
+
+        for (int i = 0; i < SEGMENTS; i++) {
+            segments[i] = new Segment(Math.max(16, maxCapacity / SEGMENTS));
+        }
+    }
+
+    /**
+     * Called when an entry is evicted to make room for another one, while the entry's segment is locked
+     *
+     * @param key
+     * @param value
+     */
+    protected void onEviction(K key, V value) {
+    }
+
+    /**
+     * Get a value and mark it as recently used
+     *
+     * @param key
+     * @return
+     */
+    public V get(Object key) {
+        reads.incrementAndGet();
+        return segmentFor(key).get(key);
+    }
+
+    /**
+     * Check if the cache contains a key. Does not mark it as recently used.
+     *
+     * @param key
+     * @return
+     */
+    public boolean containsKey(Object key) {
+        return segmentFor(key).containsKey(key);
+    }
+
+    /**
+     * Mark a key as recently used if it is in the cache
+     *
+     * @param key
+     */
+    public void touch(Object key) {
+        segmentFor(key).get(key);
+    }
+
+    /**
+     * Add a value to the cache, evicting another entry if the cache is full
+     *
+     * @param key
+     * @param value
+     * @return the previous value
+     */
+    public V put(K key, V value) {
+        writes.incrementAndGet();
+        return segmentFor(key).put(key, value);
+    }
+
+    /**
+     * Remove a key from the cache
+     *
+     * @param key
+     * @return the removed value
+     */
+    public V remove(Object key) {
+        return segmentFor(key).remove(key);
+    }
+
+    /**
+     * Remove every entry from the cache
+     */
+    public void clear() {
+        for (Segment segment : segments) {
+            segment.clear();
+        }
+    }
+
+    /**
+     * @return the number of entries in the cache
+     */
+    public int size() {
+        return size.get();
+    }
+
+    /**
+     * @return true if the cache is empty
+     */
+    public boolean isEmpty() {
+        return size.get() == 0;
+    }
+
+    /**
+     * Get a snapshot of the keys in the cache
+     *
+     * @return
+     */
+    public Set<K> keySet() {
+        Set<K> keys = new HashSet<K>(size.get());
+
+        for (Segment segment : segments) {
+            segment.addKeysTo(keys);
+        }
+
+        return keys;
+    }
+
+    /**
+     * @return the max number of entries allowed
+     */
+    public int getMaxCapacity() {
+        return maxCapacity;
+    }
+
+    /**
+     * Change the max number of entries allowed. Shrinking the cache evicts entries as new ones are added.
+     *
+     * @param maxCapacity
+     */
+    public void setMaxCapacity(int maxCapacity) {
+        this.maxCapacity = maxCapacity;
+    }
+
+    /**
+     * @return amount of reads on the cache
+     */
+    public long getReads() {
+        return reads.get();
+    }
+
+    /**
+     * @return amount of writes on the cache
+     */
+    public long getWrites() {
+        return writes.get();
+    }
+
+    private Segment segmentFor(Object key) {
+        int hash = key == null ? 0 : key.hashCode();
+        hash ^= hash >>> 16;
+        return segments[hash & (SEGMENTS - 1)];
+    }
+
+    /**
+     * A cached entry
+     */
+    private final class Node {
+
+        private final K key;
+        private V value;
+
+        /**
+         * Set when the entry is used, cleared when the clock hand passes it
+         */
+        private boolean referenced;
+
+        /**
+         * The entry's position in the segment's clock
+         */
+        private int index;
+
+        private Node(K key, V value) {
+            this.key = key;
+            this.value = value;
+        }
+
+    }
+
+    /**
+     * A lock stripe: the entries whose hash maps to it and the clock they are evicted with
+     */
+    private final class Segment {
+
+        private final Map<Object, Node> entries;
+        private final List<Node> clock;
+        private int hand = 0;
+
+        private Segment(int expectedSize) {
+            entries = new HashMap<Object, Node>(expectedSize);
+            clock = new ArrayList<Node>(expectedSize);
+        }
+
+        private synchronized V get(Object key) {
+            Node node = entries.get(key);
+
+            if (node == null) {
+                return null;
+            }
+
+            node.referenced = true;
+            return node.value;
+        }
+
+        private synchronized boolean containsKey(Object key) {
+            return entries.containsKey(key);
+        }
+
+        private synchronized V put(K key, V value) {
+            Node node = entries.get(key);
+
+            if (node != null) {
+                V old = node.value;
+                node.value = value;
+                node.referenced = true;
+                return old;
+            }
+
+            node = new Node(key, value);
+            node.index = clock.size();
+            entries.put(key, node);
+            clock.add(node);
+
+            size.incrementAndGet();
+
+            while (size.get() > maxCapacity && evict(node)) {
+                // keep evicting until the cache fits again, e.g. after it was shrunk
+            }
+
+            return null;
+        }
+
+        private synchronized V remove(Object key) {
+            Node node = entries.remove(key);
+
+            if (node == null) {
+                return null;
+            }
+
+            unlink(node);
+            size.decrementAndGet();
+            return node.value;
+        }
+
+        private synchronized void clear() {
+            size.addAndGet(-entries.size());
+            entries.clear();
+            clock.clear();
+            hand = 0;
+        }
+
+        private synchronized void addKeysTo(Set<K> keys) {
+            for (Node node : clock) {
+                keys.add(node.key);
+            }
+        }
+
+        /**
+         * Evict the first entry the clock hand finds that was not used since it last passed
+         *
+         * @param added the entry being added, which is never evicted
+         * @return false if there was nothing to evict
+         */
+        private boolean evict(Node added) {
+            if (clock.size() < 2) {
+                // nothing else to evict in this segment; the next addition to another segment makes up for it
+                return false;
+            }
+
+            while (true) {
+                if (hand >= clock.size()) {
+                    hand = 0;
+                }
+
+                Node node = clock.get(hand);
+
+                if (node == added || node.referenced) {
+                    node.referenced = false;
+                    hand++;
+                    continue;
+                }
+
+                entries.remove(node.key);
+                unlink(node);
+                size.decrementAndGet();
+                onEviction(node.key, node.value);
+                return true;
+            }
+        }
+
+        /**
+         * Remove a node from the clock by moving the last node into its place
+         *
+         * @param node
+         */
+        private void unlink(Node node) {
+            int last = clock.size() - 1;
+            Node moved = clock.remove(last);
+
+            if (moved != node) {
+                moved.index = node.index;
+                clock.set(node.index, moved);
+            }
+        }
+
+    }
+
+}
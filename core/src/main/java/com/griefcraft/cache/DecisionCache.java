@@ -0,0 +1,98 @@
+/*
+ * Copyright 2011 Tyler Blair. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are
+ * permitted provided that the following conditions are met:
+ *
+ *    1. Redistributions of source code must retain the above copyright notice, this list of
+ *       conditions and the following disclaimer.
+ *
+ *    2. Redistributions in binary form must reproduce the above copyright notice, this list
+ *       of conditions and the following disclaimer in the documentation and/or other materials
+ *       provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ''AS IS'' AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND
+ * FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE AUTHOR OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * The views and conclusions contained in the software and documentation are those of the
+ * authors and contributors and should not be interpreted as representing official policies,
+ * either expressed or implied, of anybody else.
+ */
+
+package com.griefcraft.cache;
+
+/**
+ * Base of the caches that remember decisions made about protections, e.g. whether a hopper may move items. A decision
+ * is cheap to make again, so a full cache is simply emptied instead of tracking which decisions are the oldest.
+ * <p/>
+ * Subclasses synchronize on themselves.
+ */
+public abstract class DecisionCache {
+
+    /**
+     * The max number of decisions to remember
+     */
+    private final int capacity;
+
+    private long hits = 0;
+    private long misses = 0;
+
+    protected DecisionCache(int capacity) {
+        this.capacity = Math.max(1, capacity);
+    }
+
+    /**
+     * @return the number of cached decisions
+     */
+    public abstract int size();
+
+    /**
+     * Forget every decision, e.g. when the configuration is reloaded
+     */
+    public abstract void clear();
+
+    /**
+     * Make room for a new decision, emptying the cache if it is full
+     */
+    protected void makeRoom() {
+        if (size() >= capacity) {
+            clear();
+        }
+    }
+
+    /**
+     * Count a lookup that found a decision
+     */
+    protected void hit() {
+        hits++;
+    }
+
+    /**
+     * Count a lookup that did not find a decision
+     */
+    protected void miss() {
+        misses++;
+    }
+
+    /**
+     * @return the number of lookups that found a decision
+     */
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    /**
+     * @return the number of lookups that did not find a decision
+     */
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+}
@@ -0,0 +1,292 @@
+/*
+ * Copyright 2011 Tyler Blair. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are
+ * permitted provided that the following conditions are met:
+ *
+ *    1. Redistributions of source code must retain the above copyright notice, this list of
+ *       conditions and the following disclaimer.
+ *
+ *    2. Redistributions in binary form must reproduce the above copyright notice, this list
+ *       of conditions and the following disclaimer in the documentation and/or other materials
+ *       provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ''AS IS'' AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND
+ * FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE AUTHOR OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * The views and conclusions contained in the software and documentation are those of the
+ * authors and contributors and should not be interpreted as representing official policies,
+ * either expressed or implied, of anybody else.
+ */
+
+package com.griefcraft.cache;
+
+import java.util.Arrays;
+
+/**
+ * An open-addressing set of protection ids where each id expires at a given time. Lookups do not allocate; expired
+ * ids are dropped when they are looked up or the set grows.
+ */
+public class ExpiringIdSet {
+
+    /**
+     * The minimum amount of slots in the table
+     */
+    private static final int MIN_CAPACITY = 8;
+
+    /**
+     * Marks an id that never expires
+     */
+    public static final long NEVER = Long.MAX_VALUE;
+
+    /**
+     * The id of each slot
+     */
+    private int[] ids;
+
+    /**
+     * When the id in each slot expires, in milliseconds; 0 marks an empty slot
+     */
+    private long[] expires;
+
+    /**
+     * The amount of ids in the set, including ones that expired but were not dropped yet
+     */
+    private int size = 0;
+
+    /**
+     * The size at which the table is grown
+     */
+    private int threshold;
+
+    public ExpiringIdSet() {
+        allocate(MIN_CAPACITY);
+    }
+
+    /**
+     * @return the amount of ids in the set, including ones that expired but were not dropped yet
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Remove every id
+     */
+    public void clear() {
+        if (size == 0) {
+            return;
+        }
+
+        Arrays.fill(expires, 0L);
+        size = 0;
+    }
+
+    /**
+     * Check if an id is in the set and has not expired
+     *
+     * @param id
+     * @param now the current time in milliseconds
+     * @return
+     */
+    public boolean contains(int id, long now) {
+        int index = indexOf(id);
+
+        if (index < 0) {
+            return false;
+        }
+
+        if (expires[index] <= now) {
+            removeAt(index);
+            return false;
+        }
+
+        return true;
+    }
+
+    /**
+     * Add an id to the set, or change when it expires if it is already in it
+     *
+     * @param id
+     * @param expiry when the id expires in milliseconds, or {@link #NEVER}
+     * @return true if the id was not in the set yet
+     */
+    public boolean add(int id, long expiry) {
+        int mask = ids.length - 1;
+        int index = hash(id) & mask;
+
+        while (expires[index] != 0L) {
+            if (ids[index] == id) {
+                expires[index] = expiry;
+                return false;
+            }
+
+            index = (index + 1) & mask;
+        }
+
+        ids[index] = id;
+        expires[index] = expiry;
+
+        if (++size > threshold) {
+            purge(System.currentTimeMillis());
+
+            if (size > threshold) {
+                allocate(ids.length << 1);
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * Remove an id from the set
+     *
+     * @param id
+     * @return true if the id was in the set
+     */
+    public boolean remove(int id) {
+        int index = indexOf(id);
+
+        if (index < 0) {
+            return false;
+        }
+
+        removeAt(index);
+        return true;
+    }
+
+    /**
+     * Get the ids in the set that have not expired
+     *
+     * @param now the current time in milliseconds
+     * @return
+     */
+    public int[] toArray(long now) {
+        int[] result = new int[size];
+        int count = 0;
+
+        for (int i = 0; i < ids.length; i++) {
+            if (expires[i] > now) {
+                result[count++] = ids[i];
+            }
+        }
+
+        return count == result.length ? result : Arrays.copyOf(result, count);
+    }
+
+    /**
+     * Drop every id that has expired
+     *
+     * @param now the current time in milliseconds
+     */
+    public void purge(long now) {
+        for (int i = 0; i < ids.length; i++) {
+            // removing shifts entries back into this slot, so check it again
+            while (expires[i] != 0L && expires[i] <= now) {
+                removeAt(i);
+            }
+        }
+    }
+
+    /**
+     * Find the slot for an id
+     *
+     * @param id
+     * @return the slot, or -1 if it is not in the set
+     */
+    private int indexOf(int id) {
+        int mask = ids.length - 1;
+        int index = hash(id) & mask;
+
+        while (expires[index] != 0L) {
+            if (ids[index] == id) {
+                return index;
+            }
+
+            index = (index + 1) & mask;
+        }
+
+        return -1;
+    }
+
+    /**
+     * Empty a slot and shift back any entries that were displaced past it so probing stays correct
+     *
+     * @param index
+     */
+    private void removeAt(int index) {
+        int mask = ids.length - 1;
+        int hole = index;
+        int next = (index + 1) & mask;
+
+        while (expires[next] != 0L) {
+            int ideal = hash(ids[next]) & mask;
+
+            // can the entry at next be moved into the hole?
+            if (((next - ideal) & mask) >= ((next - hole) & mask)) {
+                ids[hole] = ids[next];
+                expires[hole] = expires[next];
+                hole = next;
+            }
+
+            next = (next + 1) & mask;
+        }
+
+        expires[hole] = 0L;
+        size--;
+    }
+
+    /**
+     * (Re)allocate the table with the given amount of slots, moving over any existing entries
+     *
+     * @param capacity
+     */
+    private void allocate(int capacity) {
+        int[] oldIds = ids;
+        long[] oldExpires = expires;
+
+        ids = new int[capacity];
+        expires = new long[capacity];
+        threshold = capacity >> 1;
+
+        if (oldIds == null) {
+            return;
+        }
+
+        int mask = capacity - 1;
+
+        for (int i = 0; i < oldIds.length; i++) {
+            if (oldExpires[i] == 0L) {
+                continue;
+            }
+
+            int index = hash(oldIds[i]) & mask;
+
+            while (expires[index] != 0L) {
+                index = (index + 1) & mask;
+            }
+
+            ids[index] = oldIds[i];
+            expires[index] = oldExpires[i];
+        }
+    }
+
+    /**
+     * Mix an id into a table hash
+     *
+     * @param id
+     * @return
+     */
+    private static int hash(int id) {
+        int h = id * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+
+}
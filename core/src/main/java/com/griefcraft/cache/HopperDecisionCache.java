@@ -0,0 +1,263 @@
+/*
+ * Copyright 2011 Tyler Blair. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are
+ * permitted provided that the following conditions are met:
+ *
+ *    1. Redistributions of source code must retain the above copyright notice, this list of
+ *       conditions and the following disclaimer.
+ *
+ *    2. Redistributions in binary form must reproduce the above copyright notice, this list
+ *       of conditions and the following disclaimer in the documentation and/or other materials
+ *       provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ''AS IS'' AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND
+ * FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE AUTHOR OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * The views and conclusions contained in the software and documentation are those of the
+ * authors and contributors and should not be interpreted as representing official policies,
+ * either expressed or implied, of anybody else.
+ */
+
+package com.griefcraft.cache;
+
+import org.bukkit.Location;
+
+/**
+ * Remembers whether items may be moved between a container and the hopper moving them, so hoppers that keep moving
+ * items between the same blocks only need a single lookup.
+ * <p/>
+ * Decisions are keyed by the container's block and the offset of the hopper from it, which must be within two
+ * blocks on each axis (double chests are located at their middle). A decision only depends on the protections around
+ * those blocks, so changing a protection or a block forgets the decisions of the containers around it, see
+ * {@link #invalidate(String, int, int, int, int)}.
+ */
+public class HopperDecisionCache extends DecisionCache {
+
+    /**
+     * No decision is cached
+     */
+    public static final int UNKNOWN = 0;
+
+    /**
+     * The move is allowed
+     */
+    public static final int ALLOW = 1;
+
+    /**
+     * The move is denied
+     */
+    public static final int DENY = 2;
+
+    /**
+     * The max distance between a container and a hopper on each axis
+     */
+    private static final int MAX_OFFSET = 2;
+
+    /**
+     * The offset code used when the item is not moved by a hopper block (e.g. a dropper or hopper minecart)
+     */
+    private static final int NO_HOPPER = 125;
+
+    /**
+     * The decisions of each container
+     */
+    private final BlockMap<Decisions> bySource = new BlockMap<Decisions>(1024);
+
+    public HopperDecisionCache(int capacity) {
+        super(capacity);
+    }
+
+    /**
+     * Get the cached decision for moving items between a container and a hopper
+     *
+     * @param source the location of the container
+     * @param hopper the location of the hopper, or null if it isn't a hopper block
+     * @return {@link #UNKNOWN}, {@link #ALLOW} or {@link #DENY}
+     */
+    public synchronized int get(Location source, Location hopper) {
+        int world = WorldIds.get(source.getWorld().getName());
+        int code = offsetCode(source, hopper);
+
+        if (world == -1 || code < 0) {
+            miss();
+            return UNKNOWN;
+        }
+
+        Decisions decisions = bySource.get(world, BlockKey.pack(source.getBlockX(), source.getBlockY(), source.getBlockZ()));
+
+        if (decisions == null || !decisions.isKnown(code)) {
+            miss();
+            return UNKNOWN;
+        }
+
+        hit();
+        return decisions.isDenied(code) ? DENY : ALLOW;
+    }
+
+    /**
+     * Cache the decision for moving items between a container and a hopper
+     *
+     * @param source the location of the container
+     * @param hopper the location of the hopper, or null if it isn't a hopper block
+     * @param deny
+     */
+    public synchronized void put(Location source, Location hopper, boolean deny) {
+        int code = offsetCode(source, hopper);
+        long key = BlockKey.pack(source.getBlockX(), source.getBlockY(), source.getBlockZ());
+
+        if (code < 0 || key == BlockKey.INVALID) {
+            return;
+        }
+
+        int world = WorldIds.intern(source.getWorld().getName());
+        Decisions decisions = bySource.get(world, key);
+
+        if (decisions == null) {
+            makeRoom();
+            decisions = new Decisions();
+            bySource.put(world, key, decisions);
+        }
+
+        decisions.set(code, deny);
+    }
+
+    /**
+     * Forget the decisions that involve any block within the given radius of a block
+     *
+     * @param world
+     * @param x
+     * @param y
+     * @param z
+     * @param radius
+     */
+    public synchronized void invalidate(String world, int x, int y, int z, int radius) {
+        int worldId = WorldIds.get(world);
+
+        if (worldId == -1 || bySource.isEmpty()) {
+            return;
+        }
+
+        // the hopper can be up to MAX_OFFSET blocks away from the container
+        int reach = radius + MAX_OFFSET;
+
+        for (int dx = -reach; dx <= reach; dx++) {
+            for (int dy = -reach; dy <= reach; dy++) {
+                for (int dz = -reach; dz <= reach; dz++) {
+                    long key = BlockKey.pack(x + dx, y + dy, z + dz);
+                    Decisions decisions = bySource.get(worldId, key);
+
+                    if (decisions == null) {
+                        continue;
+                    }
+
+                    // the container itself is in range
+                    if (Math.abs(dx) <= radius && Math.abs(dy) <= radius && Math.abs(dz) <= radius) {
+                        bySource.remove(worldId, key);
+                        continue;
+                    }
+
+                    // forget the hoppers in range
+                    for (int ox = -MAX_OFFSET; ox <= MAX_OFFSET; ox++) {
+                        for (int oy = -MAX_OFFSET; oy <= MAX_OFFSET; oy++) {
+                            for (int oz = -MAX_OFFSET; oz <= MAX_OFFSET; oz++) {
+                                if (Math.abs(dx + ox) <= radius && Math.abs(dy + oy) <= radius && Math.abs(dz + oz) <= radius) {
+                                    decisions.clear(offsetCode(ox, oy, oz));
+                                }
+                            }
+                        }
+                    }
+
+                    if (decisions.isEmpty()) {
+                        bySource.remove(worldId, key);
+                    }
+                }
+            }
+        }
+    }
+
+    @Override
+    public synchronized void clear() {
+        bySource.clear();
+    }
+
+    @Override
+    public synchronized int size() {
+        return bySource.size();
+    }
+
+    /**
+     * @param source
+     * @param hopper
+     * @return the offset code of the hopper from the container, or -1 if they are too far apart
+     */
+    private static int offsetCode(Location source, Location hopper) {
+        if (hopper == null) {
+            return NO_HOPPER;
+        }
+
+        if (hopper.getWorld() != source.getWorld()) {
+            return -1;
+        }
+
+        int dx = hopper.getBlockX() - source.getBlockX();
+        int dy = hopper.getBlockY() - source.getBlockY();
+        int dz = hopper.getBlockZ() - source.getBlockZ();
+
+        if (Math.abs(dx) > MAX_OFFSET || Math.abs(dy) > MAX_OFFSET || Math.abs(dz) > MAX_OFFSET) {
+            return -1;
+        }
+
+        return offsetCode(dx, dy, dz);
+    }
+
+    private static int offsetCode(int dx, int dy, int dz) {
+        int size = MAX_OFFSET * 2 + 1;
+        return ((dx + MAX_OFFSET) * size + (dy + MAX_OFFSET)) * size + (dz + MAX_OFFSET);
+    }
+
+    /**
+     * The decisions of one container, as bit sets indexed by offset code
+     */
+    private static final class Decisions {
+
+        private final long[] known = new long[2];
+        private final long[] denied = new long[2];
+
+        boolean isKnown(int code) {
+            return (known[code >>> 6] & (1L << code)) != 0;
+        }
+
+        boolean isDenied(int code) {
+            return (denied[code >>> 6] & (1L << code)) != 0;
+        }
+
+        void set(int code, boolean deny) {
+            known[code >>> 6] |= 1L << code;
+
+            if (deny) {
+                denied[code >>> 6] |= 1L << code;
+            } else {
+                denied[code >>> 6] &= ~(1L << code);
+            }
+        }
+
+        void clear(int code) {
+            known[code >>> 6] &= ~(1L << code);
+            denied[code >>> 6] &= ~(1L << code);
+        }
+
+        boolean isEmpty() {
+            return known[0] == 0 && known[1] == 0;
+        }
+
+    }
+
+}
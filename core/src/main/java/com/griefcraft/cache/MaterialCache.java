@@ -42,12 +42,12 @@ public class MaterialCache {
     /**
      * Map numeric IDs to types
      */
-    private final LRUCache<Integer, Material> idToType;
+    private final ConcurrentLRUCache<Integer, Material> idToType;
 
     /**
      * Map numeric types to numeric Ids
      */
-    private final LRUCache<Material, Integer> typeToId;
+    private final ConcurrentLRUCache<Material, Integer> typeToId;
 
     /**
      * The capacity of the cache
@@ -58,8 +58,8 @@ public class MaterialCache {
         this.lwc = lwc;
         this.capacity = lwc.getConfiguration().getInt("core.cacheSize", 10000);
 
-        this.idToType = new LRUCache<>(capacity);
-        this.typeToId = new LRUCache<>(capacity);
+        this.idToType = new ConcurrentLRUCache<>(capacity);
+        this.typeToId = new ConcurrentLRUCache<>(capacity);
     }
 
     /**
@@ -7,13 +7,17 @@ import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class MethodCounter {
 
     /**
-     * A map of the counts
+     * A map of the counts. The counts are mutable so incrementing does not box a new Integer each time, and atomic
+     * as methods may be counted from async tasks.
      */
-    private final Map<String, Integer> counts = new HashMap<String, Integer>();
+    private final ConcurrentMap<String, AtomicInteger> counts = new ConcurrentHashMap<String, AtomicInteger>();
 
     /**
      * Increment a method in the counts
@@ -40,7 +44,8 @@ public class MethodCounter {
      * @return
      */
     public int get(String method) {
-        return counts.containsKey(method) ? counts.get(method) : 0;
+        AtomicInteger count = counts.get(method);
+        return count != null ? count.get() : 0;
     }
 
     /**
@@ -49,7 +54,13 @@ public class MethodCounter {
      * @return
      */
     public Map<String, Integer> sortByValue() {
-        return Collections.unmodifiableMap(sortByComparator(counts, false));
+        Map<String, Integer> snapshot = new HashMap<String, Integer>();
+
+        for (Map.Entry<String, AtomicInteger> entry : counts.entrySet()) {
+            snapshot.put(entry.getKey(), entry.getValue().get());
+        }
+
+        return Collections.unmodifiableMap(sortByComparator(snapshot, false));
     }
 
     /**
@@ -59,12 +70,17 @@ public class MethodCounter {
      * @param delta
      */
     private void deltaMethod(String method, int delta) {
-        if (!counts.containsKey(method)) {
-            counts.put(method, delta);
-            return;
+        AtomicInteger count = counts.get(method);
+
+        if (count == null) {
+            AtomicInteger existing = counts.putIfAbsent(method, count = new AtomicInteger());
+
+            if (existing != null) {
+                count = existing;
+            }
         }
 
-        counts.put(method, counts.get(method) + delta);
+        count.addAndGet(delta);
     }
 
     /**
@@ -0,0 +1,245 @@
+/*
+ * Copyright 2011 Tyler Blair. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are
+ * permitted provided that the following conditions are met:
+ *
+ *    1. Redistributions of source code must retain the above copyright notice, this list of
+ *       conditions and the following disclaimer.
+ *
+ *    2. Redistributions in binary form must reproduce the above copyright notice, this list
+ *       of conditions and the following disclaimer in the documentation and/or other materials
+ *       provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ''AS IS'' AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND
+ * FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE AUTHOR OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * The views and conclusions contained in the software and documentation are those of the
+ * authors and contributors and should not be interpreted as representing official policies,
+ * either expressed or implied, of anybody else.
+ */
+package com.griefcraft.cache;
+
+import org.bukkit.Location;
+import org.bukkit.entity.Player;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * Keeps the block position of every online player, bucketed by world and chunk, so players standing in a small area
+ * can be found without going through every online player.
+ * <p/>
+ * Positions are updated when a player moves to another block, teleports, respawns, joins or quits.
+ */
+public class PlayerPositionIndex {
+
+    /**
+     * The players in each chunk
+     */
+    private final BlockMap<List<Position>> byChunk = new BlockMap<List<Position>>(256);
+
+    /**
+     * The position of each player
+     */
+    private final Map<UUID, Position> byPlayer = new HashMap<UUID, Position>();
+
+    /**
+     * Update the position of a player
+     *
+     * @param player
+     * @param location
+     */
+    public synchronized void update(Player player, Location location) {
+        if (location == null || location.getWorld() == null) {
+            return;
+        }
+
+        int world = WorldIds.intern(location.getWorld().getName());
+        int x = location.getBlockX();
+        int y = location.getBlockY();
+        int z = location.getBlockZ();
+        Position position = byPlayer.get(player.getUniqueId());
+
+        if (position == null) {
+            position = new Position(player);
+            byPlayer.put(player.getUniqueId(), position);
+        } else if (position.world == world && position.x == x && position.y == y && position.z == z) {
+            position.player = player;
+            return;
+        } else if (position.world != world || (position.x >> 4) != (x >> 4) || (position.z >> 4) != (z >> 4)) {
+            unlink(position);
+        } else {
+            // moved within the same chunk
+            position.player = player;
+            position.x = x;
+            position.y = y;
+            position.z = z;
+            return;
+        }
+
+        position.player = player;
+        position.world = world;
+        position.x = x;
+        position.y = y;
+        position.z = z;
+
+        long key = BlockKey.packChunk(x >> 4, z >> 4);
+        List<Position> players = byChunk.get(world, key);
+
+        if (players == null) {
+            players = new ArrayList<Position>(2);
+            byChunk.put(world, key, players);
+        }
+
+        players.add(position);
+    }
+
+    /**
+     * Stop tracking a player, e.g. when they quit
+     *
+     * @param player
+     */
+    public synchronized void remove(Player player) {
+        Position position = byPlayer.remove(player.getUniqueId());
+
+        if (position != null) {
+            unlink(position);
+        }
+    }
+
+    /**
+     * Find a player standing within the given bounds (inclusive)
+     *
+     * @param world
+     * @param minX
+     * @param maxX
+     * @param minY
+     * @param maxY
+     * @param minZ
+     * @param maxZ
+     * @return the player found, or null if there is nobody
+     */
+    public synchronized Player find(String world, int minX, int maxX, int minY, int maxY, int minZ, int maxZ) {
+        int worldId = WorldIds.get(world);
+
+        if (worldId == -1) {
+            return null;
+        }
+
+        return find(worldId, minX, maxX, minY, maxY, minZ, maxZ);
+    }
+
+    /**
+     * Find a player standing within the given bounds (inclusive) in any world
+     *
+     * @param minX
+     * @param maxX
+     * @param minY
+     * @param maxY
+     * @param minZ
+     * @param maxZ
+     * @return the player found, or null if there is nobody
+     */
+    public synchronized Player find(int minX, int maxX, int minY, int maxY, int minZ, int maxZ) {
+        for (int world = 0; world < WorldIds.size(); world++) {
+            Player player = find(world, minX, maxX, minY, maxY, minZ, maxZ);
+
+            if (player != null) {
+                return player;
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * Forget every player
+     */
+    public synchronized void clear() {
+        byChunk.clear();
+        byPlayer.clear();
+    }
+
+    /**
+     * @return the number of players tracked
+     */
+    public synchronized int size() {
+        return byPlayer.size();
+    }
+
+    private Player find(int world, int minX, int maxX, int minY, int maxY, int minZ, int maxZ) {
+        if (byChunk.isEmpty()) {
+            return null;
+        }
+
+        for (int chunkX = minX >> 4; chunkX <= maxX >> 4; chunkX++) {
+            for (int chunkZ = minZ >> 4; chunkZ <= maxZ >> 4; chunkZ++) {
+                List<Position> players = byChunk.get(world, BlockKey.packChunk(chunkX, chunkZ));
+
+                if (players == null) {
+                    continue;
+                }
+
+                for (int i = 0; i < players.size(); i++) {
+                    Position position = players.get(i);
+
+                    if (position.x >= minX && position.x <= maxX && position.y >= minY && position.y <= maxY
+                            && position.z >= minZ && position.z <= maxZ) {
+                        return position.player;
+                    }
+                }
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * Remove a position from the chunk it is in
+     *
+     * @param position
+     */
+    private void unlink(Position position) {
+        long key = BlockKey.packChunk(position.x >> 4, position.z >> 4);
+        List<Position> players = byChunk.get(position.world, key);
+
+        if (players == null) {
+            return;
+        }
+
+        players.remove(position);
+
+        if (players.isEmpty()) {
+            byChunk.remove(position.world, key);
+        }
+    }
+
+    /**
+     * The block position of a player
+     */
+    private static final class Position {
+
+        Player player;
+        int world = -1;
+        int x;
+        int y;
+        int z;
+
+        Position(Player player) {
+            this.player = player;
+        }
+
+    }
+
+}
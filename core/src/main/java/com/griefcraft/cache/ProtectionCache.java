@@ -25,7 +25,6 @@
  * authors and contributors and should not be interpreted as representing official policies,
  * either expressed or implied, of anybody else.
  */
-
 package com.griefcraft.cache;
 
 
@@ -35,6 +34,18 @@ import org.bukkit.Location;
 import org.bukkit.block.Block;
 import org.bukkit.block.BlockState;
 
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Caches protections and the blocks they are on. The cache is thread safe, so protections may be looked up and cached
+ * from async tasks as well as the main thread. The block indexes are split into segments by chunk, each with its own
+ * read/write lock, so lookups and chunk loads in different parts of the world do not wait on each other.
+ * <p/>
+ * At most one segment is locked at a time, and the references cache is never used while a segment is locked: it
+ * locks segments itself when it evicts a protection.
+ */
 public class ProtectionCache {
 
     /**
@@ -48,19 +59,20 @@ public class ProtectionCache {
     private final static int ADAPTIVE_CACHE_MAX = 100000;
 
     /**
-     * The LWC instance this set belongs to
+     * The number of segments the block indexes are split into. Must be a power of two.
      */
-    private final LWC lwc;
+    private final static int SEGMENTS = 16;
 
     /**
-     * Hard references to protections still cached
+     * The LWC instance this set belongs to
      */
-    private final LRUCache<Protection, Object> references;
+    private final LWC lwc;
 
     /**
-     * Weak references to protections and their cache key (protection.getCacheKey())
+     * Hard references to protections still cached. Evicting a protection from here also removes it from the
+     * block indexes.
      */
-    private final WeakLRUCache<String, Protection> byCacheKey;
+    private final ConcurrentLRUCache<Protection, Object> references;
 
     /**
      * Weak references to protections and their protection id
@@ -68,14 +80,9 @@ public class ProtectionCache {
     private final WeakLRUCache<Integer, Protection> byId;
 
     /**
-     * A block that isn't the protected block itself but matches it in a protection matcher
+     * The block indexes, selected by the chunk a block is in
      */
-    private final WeakLRUCache<String, Protection> byKnownBlock;
-
-    /**
-     * A cache of blocks that are known to not have a protection
-     */
-    private final LRUCache<String, Object> byKnownNulls;
+    private final Segment[] segments;
 
     /**
      * The capacity of the cache
@@ -85,7 +92,7 @@ public class ProtectionCache {
     /**
      * The number of protections that were added via adaptive cache
      */
-    private int adaptiveCapacity = 0;
+    private volatile int adaptiveCapacity = 0;
 
     /**
      * The method counter
@@ -101,18 +108,26 @@ public class ProtectionCache {
         this.lwc = lwc;
         this.capacity = lwc.getConfiguration().getInt("core.cacheSize", 10000);
 
-        this.references = new LRUCache<Protection, Object>(capacity);
-        this.byCacheKey = new WeakLRUCache<String, Protection>(capacity);
+        this.references = new ConcurrentLRUCache<Protection, Object>(capacity) {
+            @Override
+            protected void onEviction(Protection protection, Object value) {
+                unindex(protection);
+            }
+        };
         this.byId = new WeakLRUCache<Integer, Protection>(capacity);
-        this.byKnownBlock = new WeakLRUCache<String, Protection>(capacity);
-        this.byKnownNulls = new LRUCache<String, Object>(Math.min(10000, capacity)); // enforce a min size so we have a known buffer
+        this.segments = new Segment[SEGMENTS];
+
+        for (int i = 0; i < SEGMENTS; i++) {
+            // enforce a min size for the known nulls so we have a known buffer
+            segments[i] = new Segment(perSegment(capacity), perSegment(Math.min(10000, capacity)));
+        }
     }
 
     /**
      * Called from specific potentially high-intensity access areas. These areas preferably need(!) free space in the
      * cache and otherwise could cause "lag" or other oddities.
      */
-    public void increaseIfNecessary() {
+    public synchronized void increaseIfNecessary() {
         if (isFull() && adaptiveCapacity < ADAPTIVE_CACHE_MAX) {
             adaptiveCapacity += ADAPTIVE_CACHE_TICK;
             adjustCacheSizes();
@@ -124,7 +139,7 @@ public class ProtectionCache {
      *
      * @return
      */
-    public LRUCache<Protection, Object> getReferences() {
+    public ConcurrentLRUCache<Protection, Object> getReferences() {
         return references;
     }
 
@@ -172,10 +187,21 @@ public class ProtectionCache {
         references.clear();
 
         // remove weak refs
-        byCacheKey.clear();
         byId.clear();
-        byKnownBlock.clear();
-        byKnownNulls.clear();
+
+        for (Segment segment : segments) {
+            segment.lock.writeLock().lock();
+
+            try {
+                segment.byCacheKey.clear();
+                segment.byKnownBlock.clear();
+                segment.byKnownNulls.clear();
+                segment.knownNullQueue.clear();
+                segment.byChunk.clear();
+            } finally {
+                segment.lock.writeLock().unlock();
+            }
+        }
     }
 
     /**
@@ -208,24 +234,22 @@ public class ProtectionCache {
 
         counter.increment("addProtection");
 
-        // Add the hard reference
-        references.put(protection, null);
+        int world = WorldIds.intern(protection.getWorld());
+        Segment segment = segment(world, protection.getX(), protection.getZ());
 
-        // Add weak references which are used to lookup protections
-        byCacheKey.put(protection.getCacheKey(), protection);
-        byId.put(protection.getId(), protection);
-
-        // get the protection's finder if it was found via that
-        if (protection.getProtectionFinder() != null) {
-            Block protectedBlock = protection.getBlock();
+        segment.lock.writeLock().lock();
 
-            for (BlockState state : protection.getProtectionFinder().getBlocks()) {
-                if (!protectedBlock.equals(state.getBlock())) {
-                    String cacheKey = cacheKey(state.getLocation());
-                    byKnownBlock.put(cacheKey, protection);
-                }
-            }
+        try {
+            segment.index(world, protection);
+        } finally {
+            segment.lock.writeLock().unlock();
         }
+
+        byId.put(protection.getId(), protection);
+        indexRelatedBlocks(protection);
+
+        // Add the hard reference last: making room for it may evict another protection, which locks its segment
+        references.put(protection, null);
     }
 
     /**
@@ -239,10 +263,492 @@ public class ProtectionCache {
         references.remove(protection);
         byId.remove(protection.getId());
 
-        if (protection.getProtectionFinder() != null) {
-            for (BlockState state : protection.getProtectionFinder().getBlocks()) {
-                remove(cacheKey(state.getLocation()));
+        int world = WorldIds.get(protection.getWorld());
+
+        if (world != -1) {
+            Segment segment = segment(world, protection.getX(), protection.getZ());
+
+            segment.lock.writeLock().lock();
+
+            try {
+                // a removed protection is also gone from the database, but anything else is simply no longer cached
+                segment.unindex(world, protection, !protection.isRemoved());
+            } finally {
+                segment.lock.writeLock().unlock();
+            }
+        }
+
+        int[] related = protection.getRelatedBlocks();
+
+        if (related != null) {
+            for (int i = 0; i < related.length; i += 3) {
+                remove(protection.getWorld(), protection.getX() + related[i], protection.getY() + related[i + 1],
+                        protection.getZ() + related[i + 2]);
+            }
+        }
+    }
+
+    /**
+     * Remove the block indexes pointing at a protection that was evicted from the cache
+     *
+     * @param protection
+     */
+    private void unindex(Protection protection) {
+        int world = WorldIds.get(protection.getWorld());
+
+        if (world == -1) {
+            return;
+        }
+
+        Segment segment = segment(world, protection.getX(), protection.getZ());
+
+        segment.lock.writeLock().lock();
+
+        try {
+            segment.unindex(world, protection, true);
+        } finally {
+            segment.lock.writeLock().unlock();
+        }
+
+        unindexRelatedBlocks(protection);
+    }
+
+    /**
+     * Index the other blocks a protection is made of, see {@link Protection#getRelatedBlocks()}
+     *
+     * @param protection
+     */
+    private void indexRelatedBlocks(Protection protection) {
+        int[] related = protection.getRelatedBlocks();
+
+        if (related == null || related.length == 0) {
+            return;
+        }
+
+        int world = WorldIds.intern(protection.getWorld());
+
+        for (int i = 0; i < related.length; i += 3) {
+            int x = protection.getX() + related[i];
+            int y = protection.getY() + related[i + 1];
+            int z = protection.getZ() + related[i + 2];
+            long key = BlockKey.pack(x, y, z);
+
+            if (key == BlockKey.INVALID) {
+                continue;
+            }
+
+            Segment segment = segment(world, x, z);
+
+            segment.lock.writeLock().lock();
+
+            try {
+                segment.byKnownBlock.put(world, key, protection);
+            } finally {
+                segment.lock.writeLock().unlock();
+            }
+        }
+    }
+
+    /**
+     * Remove the other blocks a protection is made of from the known blocks, unless they point at another protection
+     *
+     * @param protection
+     */
+    private void unindexRelatedBlocks(Protection protection) {
+        int[] related = protection.getRelatedBlocks();
+        int world = WorldIds.get(protection.getWorld());
+
+        if (related == null || world == -1) {
+            return;
+        }
+
+        for (int i = 0; i < related.length; i += 3) {
+            int x = protection.getX() + related[i];
+            int y = protection.getY() + related[i + 1];
+            int z = protection.getZ() + related[i + 2];
+            long key = BlockKey.pack(x, y, z);
+
+            if (key == BlockKey.INVALID) {
+                continue;
+            }
+
+            Segment segment = segment(world, x, z);
+
+            segment.lock.writeLock().lock();
+
+            try {
+                segment.byKnownBlock.remove(world, key, protection);
+            } finally {
+                segment.lock.writeLock().unlock();
+            }
+        }
+    }
+
+    /**
+     * Check if every protection in the given chunk is known to be in the cache. If it is, a cache miss for a block in
+     * the chunk means there is no protection there.
+     *
+     * @param world
+     * @param chunkX
+     * @param chunkZ
+     * @return
+     */
+    public boolean isChunkComplete(String world, int chunkX, int chunkZ) {
+        counter.increment("isChunkComplete");
+
+        int worldId = WorldIds.get(world);
+
+        if (worldId == -1) {
+            return false;
+        }
+
+        Segment segment = chunkSegment(worldId, chunkX, chunkZ);
+
+        segment.lock.readLock().lock();
+
+        try {
+            CachedChunk chunk = segment.byChunk.get(worldId, BlockKey.packChunk(chunkX, chunkZ));
+            return chunk != null && chunk.isComplete();
+        } finally {
+            segment.lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Get the cached protections in a chunk
+     *
+     * @param world
+     * @param chunkX
+     * @param chunkZ
+     * @param requireComplete true to only return the protections if every protection in the chunk is cached
+     * @return a copy of the protections, or null if the chunk is required to be complete and isn't
+     */
+    public List<Protection> getChunkProtections(String world, int chunkX, int chunkZ, boolean requireComplete) {
+        int worldId = WorldIds.get(world);
+
+        if (worldId == -1) {
+            return requireComplete ? null : new ArrayList<Protection>(0);
+        }
+
+        Segment segment = chunkSegment(worldId, chunkX, chunkZ);
+
+        segment.lock.readLock().lock();
+
+        try {
+            CachedChunk chunk = segment.byChunk.get(worldId, BlockKey.packChunk(chunkX, chunkZ));
+
+            if (chunk == null) {
+                return requireComplete ? null : new ArrayList<Protection>(0);
+            }
+
+            if (requireComplete && !chunk.isComplete()) {
+                return null;
+            }
+
+            return new ArrayList<Protection>(chunk.protections);
+        } finally {
+            segment.lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Get the cached protections inside of a box. The chunk index is used, so only the chunks the box covers are
+     * looked at.
+     *
+     * @param world
+     * @param x1 the lowest x coordinate
+     * @param x2 the highest x coordinate
+     * @param y1 the lowest y coordinate
+     * @param y2 the highest y coordinate
+     * @param z1 the lowest z coordinate
+     * @param z2 the highest z coordinate
+     * @param requireComplete true to only return the protections if every protection in the box is cached
+     * @return the protections in the box, or null if the box is required to be complete and isn't
+     */
+    public List<Protection> getProtections(String world, int x1, int x2, int y1, int y2, int z1, int z2, boolean requireComplete) {
+        counter.increment("getProtections");
+
+        int worldId = WorldIds.get(world);
+        List<Protection> protections = new ArrayList<Protection>();
+
+        if (worldId == -1) {
+            return requireComplete ? null : protections;
+        }
+
+        for (int chunkX = x1 >> 4; chunkX <= x2 >> 4; chunkX++) {
+            for (int chunkZ = z1 >> 4; chunkZ <= z2 >> 4; chunkZ++) {
+                Segment segment = chunkSegment(worldId, chunkX, chunkZ);
+
+                segment.lock.readLock().lock();
+
+                try {
+                    CachedChunk chunk = segment.byChunk.get(worldId, BlockKey.packChunk(chunkX, chunkZ));
+
+                    if (chunk == null || (requireComplete && !chunk.isComplete())) {
+                        if (requireComplete) {
+                            return null;
+                        }
+
+                        continue;
+                    }
+
+                    for (Protection protection : chunk.protections) {
+                        int x = protection.getX();
+                        int y = protection.getY();
+                        int z = protection.getZ();
+
+                        if (x >= x1 && x <= x2 && y >= y1 && y <= y2 && z >= z1 && z <= z2) {
+                            protections.add(protection);
+                        }
+                    }
+                } finally {
+                    segment.lock.readLock().unlock();
+                }
+            }
+        }
+
+        return protections;
+    }
+
+    /**
+     * Mark a chunk as being loaded from the database
+     *
+     * @param world
+     * @param chunkX
+     * @param chunkZ
+     * @return false if the chunk is already completely cached or being loaded
+     */
+    public boolean beginChunkLoad(String world, int chunkX, int chunkZ) {
+        int worldId = WorldIds.intern(world);
+        Segment segment = chunkSegment(worldId, chunkX, chunkZ);
+
+        segment.lock.writeLock().lock();
+
+        try {
+            long key = BlockKey.packChunk(chunkX, chunkZ);
+            CachedChunk chunk = segment.byChunk.get(worldId, key);
+
+            if (chunk == null) {
+                chunk = new CachedChunk();
+                segment.byChunk.put(worldId, key, chunk);
+            } else if (chunk.isComplete() || chunk.loading) {
+                return false;
+            }
+
+            chunk.loading = true;
+            return true;
+        } finally {
+            segment.lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Check if a chunk is currently being loaded from the database
+     *
+     * @param world
+     * @param chunkX
+     * @param chunkZ
+     * @return
+     */
+    public boolean isChunkLoading(String world, int chunkX, int chunkZ) {
+        int worldId = WorldIds.get(world);
+
+        if (worldId == -1) {
+            return false;
+        }
+
+        Segment segment = chunkSegment(worldId, chunkX, chunkZ);
+
+        segment.lock.readLock().lock();
+
+        try {
+            CachedChunk chunk = segment.byChunk.get(worldId, BlockKey.packChunk(chunkX, chunkZ));
+            return chunk != null && chunk.loading;
+        } finally {
+            segment.lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Abandon loading a chunk, e.g. because the query failed. The chunk can be loaded again later.
+     *
+     * @param world
+     * @param chunkX
+     * @param chunkZ
+     */
+    public void cancelChunkLoad(String world, int chunkX, int chunkZ) {
+        int worldId = WorldIds.get(world);
+
+        if (worldId == -1) {
+            return;
+        }
+
+        Segment segment = chunkSegment(worldId, chunkX, chunkZ);
+
+        segment.lock.writeLock().lock();
+
+        try {
+            long key = BlockKey.packChunk(chunkX, chunkZ);
+            CachedChunk chunk = segment.byChunk.get(worldId, key);
+
+            if (chunk == null) {
+                return;
+            }
+
+            chunk.loading = false;
+
+            if (chunk.isUnused()) {
+                segment.byChunk.remove(worldId, key);
+            }
+        } finally {
+            segment.lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Cache every protection in a chunk that was loaded from the database. If the chunk was unloaded or one of its
+     * protections was removed since {@link #beginChunkLoad(String, int, int)} the protections are discarded.
+     *
+     * @param world
+     * @param chunkX
+     * @param chunkZ
+     * @param protections every protection in the chunk
+     * @return true if the protections were cached
+     */
+    public boolean completeChunkLoad(String world, int chunkX, int chunkZ, List<Protection> protections) {
+        counter.increment("completeChunkLoad");
+
+        int worldId = WorldIds.get(world);
+
+        if (worldId == -1) {
+            return false;
+        }
+
+        List<Protection> cached = new ArrayList<Protection>(protections.size());
+
+        for (Protection protection : protections) {
+            // keep the instance that is already in memory, it may have changes that have not been saved yet
+            Protection existing = byId.get(protection.getId());
+            cached.add(existing != null ? existing : protection);
+        }
+
+        Segment segment = chunkSegment(worldId, chunkX, chunkZ);
+
+        segment.lock.writeLock().lock();
+
+        try {
+            CachedChunk chunk = segment.byChunk.get(worldId, BlockKey.packChunk(chunkX, chunkZ));
+
+            if (chunk == null || !chunk.loading) {
+                return false;
+            }
+
+            chunk.loading = false;
+            chunk.complete = true;
+            chunk.dropped.clear();
+
+            // the chunk's protections are indexed together with the chunk, so it is never seen complete without them
+            for (Protection protection : cached) {
+                segment.index(worldId, protection);
+            }
+        } finally {
+            segment.lock.writeLock().unlock();
+        }
+
+        for (Protection protection : cached) {
+            byId.put(protection.getId(), protection);
+            indexRelatedBlocks(protection);
+            references.put(protection, null);
+        }
+
+        // protections evicted to make room for the rest of the chunk are dropped from it again
+        return isChunkComplete(world, chunkX, chunkZ);
+    }
+
+    /**
+     * Evict the protections in a chunk from the cache
+     *
+     * @param world
+     * @param chunkX
+     * @param chunkZ
+     * @param keep protections that must stay cached, e.g. because they have changes that have not been saved yet.
+     *             May be null.
+     */
+    public void removeChunk(String world, int chunkX, int chunkZ, ProtectionFilter keep) {
+        counter.increment("removeChunk");
+
+        int worldId = WorldIds.get(world);
+
+        if (worldId == -1) {
+            return;
+        }
+
+        Segment segment = chunkSegment(worldId, chunkX, chunkZ);
+        List<Protection> evicted = new ArrayList<Protection>();
+
+        segment.lock.writeLock().lock();
+
+        try {
+            long key = BlockKey.packChunk(chunkX, chunkZ);
+            CachedChunk chunk = segment.byChunk.get(worldId, key);
+
+            if (chunk == null) {
+                return;
+            }
+
+            for (Protection protection : chunk.protections.toArray(new Protection[0])) {
+                if (keep != null && keep.matches(protection)) {
+                    continue;
+                }
+
+                segment.unindex(worldId, protection, true);
+                evicted.add(protection);
+            }
+
+            chunk.complete = false;
+            chunk.loading = false;
+            chunk.dropped.clear();
+
+            if (chunk.isUnused()) {
+                segment.byChunk.remove(worldId, key);
             }
+        } finally {
+            segment.lock.writeLock().unlock();
+        }
+
+        for (Protection protection : evicted) {
+            references.remove(protection);
+            byId.remove(protection.getId());
+            unindexRelatedBlocks(protection);
+        }
+    }
+
+    /**
+     * Remove the given block from any caches
+     *
+     * @param world
+     * @param x
+     * @param y
+     * @param z
+     */
+    public void remove(String world, int x, int y, int z) {
+        int worldId = WorldIds.get(world);
+        long key = BlockKey.pack(x, y, z);
+
+        if (worldId == -1 || key == BlockKey.INVALID) {
+            return;
+        }
+
+        Segment segment = segment(worldId, x, z);
+
+        segment.lock.writeLock().lock();
+
+        try {
+            segment.byCacheKey.remove(worldId, key);
+            segment.byKnownBlock.remove(worldId, key);
+            segment.byKnownNulls.remove(worldId, key);
+        } finally {
+            segment.lock.writeLock().unlock();
         }
     }
 
@@ -250,21 +756,91 @@ public class ProtectionCache {
      * Remove the given cache key from any caches
      *
      * @param cacheKey
+     * @deprecated use {@link #remove(String, int, int, int)}
      */
+    @Deprecated
     public void remove(String cacheKey) {
-        byCacheKey.remove(cacheKey);
-        byKnownBlock.remove(cacheKey);
-        byKnownNulls.remove(cacheKey);
+        CacheKey key = CacheKey.parse(cacheKey);
+
+        if (key != null) {
+            remove(key.world, key.x, key.y, key.z);
+        }
+    }
+
+    /**
+     * Make a block known as null in the cache
+     *
+     * @param world
+     * @param x
+     * @param y
+     * @param z
+     */
+    public void addKnownNull(String world, int x, int y, int z) {
+        counter.increment("addKnownNull");
+
+        long key = BlockKey.pack(x, y, z);
+
+        if (key == BlockKey.INVALID) {
+            return;
+        }
+
+        int worldId = WorldIds.intern(world);
+        Segment segment = segment(worldId, x, z);
+
+        segment.lock.writeLock().lock();
+
+        try {
+            if (segment.byKnownNulls.put(worldId, key, FAKE_VALUE) == null) {
+                segment.knownNullQueue.push(worldId, key);
+            }
+        } finally {
+            segment.lock.writeLock().unlock();
+        }
     }
 
     /**
      * Make a cache key known as null in the cache
      *
      * @param cacheKey
+     * @deprecated use {@link #addKnownNull(String, int, int, int)}
      */
+    @Deprecated
     public void addKnownNull(String cacheKey) {
-        counter.increment("addKnownNull");
-        byKnownNulls.put(cacheKey, FAKE_VALUE);
+        CacheKey key = CacheKey.parse(cacheKey);
+
+        if (key != null) {
+            addKnownNull(key.world, key.x, key.y, key.z);
+        }
+    }
+
+    /**
+     * Check if a block is known to not exist in the database
+     *
+     * @param world
+     * @param x
+     * @param y
+     * @param z
+     * @return
+     */
+    public boolean isKnownNull(String world, int x, int y, int z) {
+        counter.increment("isKnownNull");
+
+        int worldId = WorldIds.get(world);
+        long key = BlockKey.pack(x, y, z);
+
+        if (worldId == -1 || key == BlockKey.INVALID) {
+            return false;
+        }
+
+        Segment segment = segment(worldId, x, z);
+
+        segment.lock.readLock().lock();
+
+        try {
+            return segment.byKnownNulls.containsKey(worldId, key);
+        } finally {
+            segment.lock.readLock().unlock();
+        }
     }
 
     /**
@@ -272,30 +848,68 @@ public class ProtectionCache {
      *
      * @param cacheKey
      * @return
+     * @deprecated use {@link #isKnownNull(String, int, int, int)}
      */
+    @Deprecated
     public boolean isKnownNull(String cacheKey) {
-        counter.increment("isKnownNull");
-        return byKnownNulls.containsKey(cacheKey);
+        CacheKey key = CacheKey.parse(cacheKey);
+
+        return key != null && isKnownNull(key.world, key.x, key.y, key.z);
     }
 
     /**
-     * Get a protection in the cache via its cache key
+     * Get a protection in the cache via its location
      *
-     * @param cacheKey
+     * @param world
+     * @param x
+     * @param y
+     * @param z
      * @return
      */
-    public Protection getProtection(String cacheKey) {
+    public Protection getProtection(String world, int x, int y, int z) {
         counter.increment("getProtection");
 
+        int worldId = WorldIds.get(world);
+        long key = BlockKey.pack(x, y, z);
+
+        if (worldId == -1 || key == BlockKey.INVALID) {
+            return null;
+        }
+
+        Segment segment = segment(worldId, x, z);
         Protection protection;
 
-        // Check the direct cache first
-        if ((protection = byCacheKey.get(cacheKey)) != null) {
-            return protection;
+        segment.lock.readLock().lock();
+
+        try {
+            // Check the direct cache first, then the 'others' cache
+            if ((protection = segment.byCacheKey.get(worldId, key)) == null) {
+                protection = segment.byKnownBlock.get(worldId, key);
+            }
+        } finally {
+            segment.lock.readLock().unlock();
+        }
+
+        if (protection != null) {
+            // keeps protections that are in use from being evicted
+            references.touch(protection);
         }
 
-        // now use the 'others' cache
-        return byKnownBlock.get(cacheKey);
+        return protection;
+    }
+
+    /**
+     * Get a protection in the cache via its cache key
+     *
+     * @param cacheKey
+     * @return
+     * @deprecated use {@link #getProtection(String, int, int, int)}
+     */
+    @Deprecated
+    public Protection getProtection(String cacheKey) {
+        CacheKey key = CacheKey.parse(cacheKey);
+
+        return key != null ? getProtection(key.world, key.x, key.y, key.z) : null;
     }
 
     /**
@@ -305,7 +919,7 @@ public class ProtectionCache {
      * @return
      */
     public Protection getProtection(Block block) {
-        return getProtection(cacheKey(block.getWorld().getName(), block.getX(), block.getY(), block.getZ()));
+        return getProtection(block.getWorld().getName(), block.getX(), block.getY(), block.getZ());
     }
 
     /**
@@ -315,7 +929,7 @@ public class ProtectionCache {
      * @return
      */
     public Protection getProtection(BlockState block) {
-        return getProtection(cacheKey(block.getWorld().getName(), block.getX(), block.getY(), block.getZ()));
+        return getProtection(block.getWorld().getName(), block.getX(), block.getY(), block.getZ());
     }
 
     /**
@@ -326,7 +940,23 @@ public class ProtectionCache {
      */
     public boolean isKnownBlock(Block block) {
         counter.increment("isKnownBlock");
-        return byKnownBlock.containsKey(cacheKey(block.getWorld().getName(), block.getX(), block.getY(), block.getZ()));
+
+        int worldId = WorldIds.get(block.getWorld().getName());
+        long key = BlockKey.pack(block.getX(), block.getY(), block.getZ());
+
+        if (worldId == -1 || key == BlockKey.INVALID) {
+            return false;
+        }
+
+        Segment segment = segment(worldId, block.getX(), block.getZ());
+
+        segment.lock.readLock().lock();
+
+        try {
+            return segment.byKnownBlock.containsKey(worldId, key);
+        } finally {
+            segment.lock.readLock().unlock();
+        }
     }
 
     /**
@@ -345,33 +975,365 @@ public class ProtectionCache {
      *
      * @param location
      * @return
+     * @deprecated cache keys are no longer strings; use the coordinate methods instead
      */
+    @Deprecated
     public String cacheKey(Location location) {
-        return cacheKey(location.getWorld().getName(), location.getBlockX(), location.getBlockY(), location.getBlockZ());
+        return location.getWorld().getName() + ":" + location.getBlockX() + ":" + location.getBlockY() + ":" + location.getBlockZ();
     }
 
     /**
-     * Generate a cache key using the given data
+     * Fixes the internal caches and adjusts them to the new cache total capacity
+     */
+    private void adjustCacheSizes() {
+        references.setMaxCapacity(totalCapacity());
+        byId.maxCapacity = totalCapacity();
+
+        for (Segment segment : segments) {
+            segment.lock.writeLock().lock();
+
+            try {
+                segment.knownNullQueue.resize(perSegment(totalCapacity()));
+            } finally {
+                segment.lock.writeLock().unlock();
+            }
+        }
+    }
+
+    /**
+     * Get the segment that indexes a block
      *
      * @param world
      * @param x
-     * @param y
      * @param z
      * @return
      */
-    private String cacheKey(String world, int x, int y, int z) {
-        return world + ":" + x + ":" + y + ":" + z;
+    private Segment segment(int world, int x, int z) {
+        return chunkSegment(world, x >> 4, z >> 4);
     }
 
     /**
-     * Fixes the internal caches and adjusts them to the new cache total capacity
+     * Get the segment that indexes a chunk and the blocks in it
+     *
+     * @param world
+     * @param chunkX
+     * @param chunkZ
+     * @return
      */
-    private void adjustCacheSizes() {
-        references.maxCapacity = totalCapacity();
-        byCacheKey.maxCapacity = totalCapacity();
-        byId.maxCapacity = totalCapacity();
-        byKnownBlock.maxCapacity = totalCapacity();
-        byKnownNulls.maxCapacity = totalCapacity();
+    private Segment chunkSegment(int world, int chunkX, int chunkZ) {
+        int hash = world * 31 + chunkX * 0x9E3779B1 + chunkZ * 0x85EBCA6B;
+        return segments[(hash ^ (hash >>> 16)) & (SEGMENTS - 1)];
+    }
+
+    /**
+     * Split a capacity of the whole cache over the segments
+     *
+     * @param capacity
+     * @return
+     */
+    private static int perSegment(int capacity) {
+        return (capacity + SEGMENTS - 1) / SEGMENTS;
+    }
+
+    /**
+     * The block indexes of the chunks that hash to the same segment, and the lock guarding them
+     */
+    private static final class Segment {
+
+        private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+
+        /**
+         * Protections indexed by the block they are on
+         */
+        private final BlockMap<Protection> byCacheKey;
+
+        /**
+         * A block that isn't the protected block itself but matches it in a protection matcher
+         */
+        private final BlockMap<Protection> byKnownBlock;
+
+        /**
+         * A cache of blocks that are known to not have a protection
+         */
+        private final BlockMap<Object> byKnownNulls;
+
+        /**
+         * The order blocks were added to byKnownNulls in, used to evict the oldest entries
+         */
+        private final KnownNullQueue knownNullQueue;
+
+        /**
+         * The cached protections in each chunk, and whether every protection in the chunk is cached
+         */
+        private final BlockMap<CachedChunk> byChunk;
+
+        private Segment(int capacity, int knownNulls) {
+            byCacheKey = new BlockMap<Protection>(capacity);
+            byKnownBlock = new BlockMap<Protection>(capacity);
+            byKnownNulls = new BlockMap<Object>(knownNulls);
+            knownNullQueue = new KnownNullQueue(byKnownNulls, knownNulls);
+            byChunk = new BlockMap<CachedChunk>(16);
+        }
+
+        /**
+         * Index a protection's block and add it to the chunk it is located in. Requires the write lock.
+         *
+         * @param world
+         * @param protection
+         */
+        private void index(int world, Protection protection) {
+            long key = BlockKey.pack(protection.getX(), protection.getY(), protection.getZ());
+
+            if (key != BlockKey.INVALID) {
+                byCacheKey.put(world, key, protection);
+            }
+
+            long chunkKey = BlockKey.packChunk(protection.getX() >> 4, protection.getZ() >> 4);
+            CachedChunk chunk = byChunk.get(world, chunkKey);
+
+            if (chunk == null) {
+                chunk = new CachedChunk();
+                byChunk.put(world, chunkKey, chunk);
+            }
+
+            chunk.add(protection);
+        }
+
+        /**
+         * Remove a protection's block and remove it from the chunk it is located in. Requires the write lock.
+         *
+         * @param world
+         * @param protection
+         * @param stillExists true if the protection may still be in the database, in which case the chunk is not
+         *                    completely cached until it is added again
+         */
+        private void unindex(int world, Protection protection, boolean stillExists) {
+            long key = BlockKey.pack(protection.getX(), protection.getY(), protection.getZ());
+
+            if (key != BlockKey.INVALID) {
+                byCacheKey.remove(world, key, protection);
+            }
+
+            long chunkKey = BlockKey.packChunk(protection.getX() >> 4, protection.getZ() >> 4);
+            CachedChunk chunk = byChunk.get(world, chunkKey);
+
+            if (chunk == null) {
+                return;
+            }
+
+            chunk.remove(protection);
+
+            if (stillExists) {
+                chunk.drop(protection.getId());
+            } else {
+                // a load that is still in flight may have read the protection before it was removed
+                chunk.loading = false;
+            }
+
+            if (chunk.isUnused()) {
+                byChunk.remove(world, chunkKey);
+            }
+        }
+
+    }
+
+    /**
+     * A ring of the blocks added to a known nulls map, oldest first. When the ring is full the oldest block is dropped
+     * from the map to make room.
+     */
+    private static final class KnownNullQueue {
+
+        private final BlockMap<Object> knownNulls;
+        private int[] worlds;
+        private long[] keys;
+        private int head = 0;
+        private int count = 0;
+
+        private KnownNullQueue(BlockMap<Object> knownNulls, int capacity) {
+            this.knownNulls = knownNulls;
+            worlds = new int[capacity];
+            keys = new long[capacity];
+        }
+
+        /**
+         * Add a block to the queue, evicting the oldest block if the queue is full
+         *
+         * @param world
+         * @param key
+         */
+        private void push(int world, long key) {
+            if (worlds.length == 0) {
+                knownNulls.remove(world, key);
+                return;
+            }
+
+            if (count == worlds.length) {
+                knownNulls.remove(worlds[head], keys[head]);
+                head = (head + 1) % worlds.length;
+                count--;
+            }
+
+            int tail = (head + count) % worlds.length;
+            worlds[tail] = world;
+            keys[tail] = key;
+            count++;
+        }
+
+        /**
+         * Grow the queue to the given capacity. The queue is never shrunk.
+         *
+         * @param capacity
+         */
+        private void resize(int capacity) {
+            if (capacity <= worlds.length) {
+                return;
+            }
+
+            int[] newWorlds = new int[capacity];
+            long[] newKeys = new long[capacity];
+
+            for (int i = 0; i < count; i++) {
+                int index = (head + i) % worlds.length;
+                newWorlds[i] = worlds[index];
+                newKeys[i] = keys[index];
+            }
+
+            worlds = newWorlds;
+            keys = newKeys;
+            head = 0;
+        }
+
+        private void clear() {
+            head = 0;
+            count = 0;
+        }
+
+    }
+
+    /**
+     * Selects protections in bulk cache operations
+     */
+    public interface ProtectionFilter {
+
+        /**
+         * @param protection
+         * @return
+         */
+        boolean matches(Protection protection);
+
+    }
+
+    /**
+     * The cached protections located in a single chunk
+     */
+    private static final class CachedChunk {
+
+        /**
+         * The cached protections in the chunk. Compared by identity as a protection's hash code changes when it is
+         * moved.
+         */
+        private final List<Protection> protections = new ArrayList<Protection>(4);
+
+        /**
+         * If every protection in the chunk was loaded from the database
+         */
+        private boolean complete = false;
+
+        /**
+         * Ids of protections in the chunk that were dropped from the cache but still exist in the database
+         */
+        private final List<Integer> dropped = new ArrayList<Integer>(0);
+
+        /**
+         * If the chunk is currently being loaded from the database
+         */
+        private boolean loading = false;
+
+        private void add(Protection protection) {
+            dropped.remove((Integer) protection.getId());
+
+            for (Protection other : protections) {
+                if (other == protection) {
+                    return;
+                }
+            }
+
+            protections.add(protection);
+        }
+
+        private void remove(Protection protection) {
+            for (int i = 0; i < protections.size(); i++) {
+                if (protections.get(i) == protection) {
+                    protections.remove(i);
+                    return;
+                }
+            }
+        }
+
+        private void drop(int id) {
+            if (complete && !dropped.contains(id)) {
+                dropped.add(id);
+            }
+        }
+
+        /**
+         * @return true if every protection in the chunk is cached
+         */
+        private boolean isComplete() {
+            return complete && dropped.isEmpty();
+        }
+
+        /**
+         * @return true if the chunk holds no information worth keeping
+         */
+        private boolean isUnused() {
+            return protections.isEmpty() && !complete && !loading;
+        }
+
+    }
+
+    /**
+     * A legacy world:x:y:z cache key
+     */
+    private static final class CacheKey {
+
+        private final String world;
+        private final int x;
+        private final int y;
+        private final int z;
+
+        private CacheKey(String world, int x, int y, int z) {
+            this.world = world;
+            this.x = x;
+            this.y = y;
+            this.z = z;
+        }
+
+        /**
+         * Parse a legacy cache key
+         *
+         * @param cacheKey
+         * @return the parsed key, or null if it is malformed
+         */
+        private static CacheKey parse(String cacheKey) {
+            int zIndex = cacheKey.lastIndexOf(':');
+            int yIndex = zIndex > 0 ? cacheKey.lastIndexOf(':', zIndex - 1) : -1;
+            int xIndex = yIndex > 0 ? cacheKey.lastIndexOf(':', yIndex - 1) : -1;
+
+            if (xIndex < 0) {
+                return null;
+            }
+
+            try {
+                return new CacheKey(cacheKey.substring(0, xIndex),
+                        Integer.parseInt(cacheKey.substring(xIndex + 1, yIndex)),
+                        Integer.parseInt(cacheKey.substring(yIndex + 1, zIndex)),
+                        Integer.parseInt(cacheKey.substring(zIndex + 1)));
+            } catch (NumberFormatException e) {
+                return null;
+            }
+        }
+
     }
 
 }
@@ -0,0 +1,349 @@
+/*
+ * Copyright 2011 Tyler Blair. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are
+ * permitted provided that the following conditions are met:
+ *
+ *    1. Redistributions of source code must retain the above copyright notice, this list of
+ *       conditions and the following disclaimer.
+ *
+ *    2. Redistributions in binary form must reproduce the above copyright notice, this list
+ *       of conditions and the following disclaimer in the documentation and/or other materials
+ *       provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ''AS IS'' AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND
+ * FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE AUTHOR OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * The views and conclusions contained in the software and documentation are those of the
+ * authors and contributors and should not be interpreted as representing official policies,
+ * either expressed or implied, of anybody else.
+ */
+
+package com.griefcraft.cache;
+
+import com.griefcraft.lwc.LWC;
+import com.griefcraft.util.AsyncProtectionLoader;
+import org.bukkit.Bukkit;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Counts the protections of each owner, in total and per block id, so protection limits can be checked without
+ * querying the database. The counts of a player are loaded in the background when they join and are kept up to date
+ * as protections are registered, removed or change owner, until they leave.
+ * <p/>
+ * The server thread never queries or waits for the database: counts that are asked for before they were loaded are
+ * loaded in the background, and the protections known so far are counted until then. Anything that must not go by
+ * incomplete counts (e.g. enforcing a limit) checks {@link #isLoaded(String)} first. Other threads read them from the
+ * database directly. Only the counts of players that joined are kept.
+ */
+public class ProtectionCountCache {
+
+    /**
+     * How many times loading an owner's counts is retried if the counts changed while they were read
+     */
+    private static final int LOAD_ATTEMPTS = 3;
+
+    /**
+     * The LWC instance
+     */
+    private final LWC lwc;
+
+    /**
+     * The counts of each owner, by the owner as it is stored in the protections table
+     */
+    private final Map<String, Counts> owners = new ConcurrentHashMap<String, Counts>();
+
+    public ProtectionCountCache(LWC lwc) {
+        this.lwc = lwc;
+    }
+
+    /**
+     * Get the amount of protections an owner has
+     *
+     * @param owner
+     * @return
+     */
+    public int getCount(String owner) {
+        Counts counts = get(owner);
+
+        synchronized (counts) {
+            return counts.total;
+        }
+    }
+
+    /**
+     * Get the amount of protections an owner has of a block id
+     *
+     * @param owner
+     * @param blockId
+     * @return
+     */
+    public int getCount(String owner, int blockId) {
+        Counts counts = get(owner);
+
+        synchronized (counts) {
+            Integer count = counts.byBlockId.get(blockId);
+            return count == null ? 0 : count;
+        }
+    }
+
+    /**
+     * Check if the counts of an owner were read from the database. If they were not, they are loaded in the background
+     * and kept, so this should only be used for online players.
+     *
+     * @param owner
+     * @return
+     */
+    public boolean isLoaded(String owner) {
+        Counts counts = owners.get(owner);
+
+        if (counts == null) {
+            load(owner);
+            return false;
+        }
+
+        synchronized (counts) {
+            if (!counts.loaded && (counts.loading == null || counts.loading.isDone())) {
+                // loading them failed before
+                counts.loading = loadAsync(owner, counts);
+            }
+
+            return counts.loaded;
+        }
+    }
+
+    /**
+     * Load the counts of an owner in the background if they are not loaded yet. The counts are kept until
+     * {@link #unload(String)} is called.
+     *
+     * @param owner
+     */
+    public void load(String owner) {
+        Counts counts = new Counts();
+
+        if (owners.putIfAbsent(owner, counts) != null) {
+            return;
+        }
+
+        synchronized (counts) {
+            counts.loading = loadAsync(owner, counts);
+        }
+    }
+
+    /**
+     * Forget the counts of an owner, e.g. when the player leaves
+     *
+     * @param owner
+     */
+    public void unload(String owner) {
+        owners.remove(owner);
+    }
+
+    /**
+     * Change the amount of protections an owner has of a block id. Nothing happens if the owner's counts aren't
+     * cached.
+     *
+     * @param owner
+     * @param blockId
+     * @param delta
+     */
+    public void add(String owner, int blockId, int delta) {
+        if (owner == null) {
+            return;
+        }
+
+        Counts counts = owners.get(owner);
+
+        if (counts == null) {
+            return;
+        }
+
+        synchronized (counts) {
+            counts.version++;
+
+            if (!counts.loaded) {
+                return;
+            }
+
+            Integer count = counts.byBlockId.get(blockId);
+            int updated = Math.max(0, (count == null ? 0 : count) + delta);
+
+            if (updated == 0) {
+                counts.byBlockId.remove(blockId);
+            } else {
+                counts.byBlockId.put(blockId, updated);
+            }
+
+            counts.total = Math.max(0, counts.total + delta);
+        }
+    }
+
+    /**
+     * Forget every count, e.g. after protections were changed directly in the database. The counts of the owners that
+     * are kept are loaded again in the background.
+     */
+    public void clear() {
+        for (String owner : owners.keySet()) {
+            Counts counts = new Counts();
+
+            // the owner may have been unloaded in the meantime
+            if (owners.replace(owner, counts) != null) {
+                synchronized (counts) {
+                    counts.loading = loadAsync(owner, counts);
+                }
+            }
+        }
+    }
+
+    /**
+     * @return the amount of owners whose counts are cached
+     */
+    public int size() {
+        return owners.size();
+    }
+
+    /**
+     * Get the counts of an owner. On the server thread counts that are not loaded yet are loaded in the background
+     * and returned as they are, and the counts of an owner that was not loaded with {@link #load(String)} are unknown;
+     * other threads read them from the database.
+     *
+     * @param owner
+     * @return
+     */
+    private Counts get(String owner) {
+        Counts counts = owners.get(owner);
+
+        if (!Bukkit.isPrimaryThread()) {
+            if (counts == null) {
+                counts = new Counts();
+            }
+
+            fill(owner, counts);
+            return counts;
+        }
+
+        if (counts == null) {
+            // not an online player, nothing is known about them
+            return new Counts();
+        }
+
+        synchronized (counts) {
+            // start loading them again if that failed before
+            if (!counts.loaded && (counts.loading == null || counts.loading.isDone())) {
+                counts.loading = loadAsync(owner, counts);
+            }
+        }
+
+        return counts;
+    }
+
+    /**
+     * Read the counts of an owner on the database thread
+     *
+     * @param owner
+     * @param counts
+     * @return completes on the database thread once the counts were read, or null if the background loader is not
+     *         running
+     */
+    private CompletableFuture<Void> loadAsync(final String owner, final Counts counts) {
+        AsyncProtectionLoader loader = lwc.getAsyncProtectionLoader();
+
+        if (loader == null) {
+            return null;
+        }
+
+        return loader.submitAsync(new Callable<Void>() {
+            public Void call() {
+                fill(owner, counts);
+                return null;
+            }
+        });
+    }
+
+    /**
+     * Read the counts of an owner from the database unless they were already read. If they change while being read
+     * it is unknown if the read includes the change, so they are read again.
+     *
+     * @param owner
+     * @param counts
+     */
+    private void fill(String owner, Counts counts) {
+        for (int attempt = 1; attempt <= LOAD_ATTEMPTS; attempt++) {
+            int version;
+
+            synchronized (counts) {
+                if (counts.loaded) {
+                    return;
+                }
+
+                version = counts.version;
+            }
+
+            Map<Integer, Integer> loaded = lwc.getPhysicalDatabase().loadProtectionCounts(owner);
+
+            if (loaded == null) {
+                return;
+            }
+
+            synchronized (counts) {
+                if (counts.loaded || (counts.version != version && attempt < LOAD_ATTEMPTS)) {
+                    continue;
+                }
+
+                counts.byBlockId.putAll(loaded);
+
+                for (int count : loaded.values()) {
+                    counts.total += count;
+                }
+
+                counts.loaded = true;
+                return;
+            }
+        }
+    }
+
+    /**
+     * The protection counts of one owner
+     */
+    private static final class Counts {
+
+        /**
+         * If the counts were read from the database
+         */
+        private boolean loaded = false;
+
+        /**
+         * Changed whenever the counts are changed, to notice changes made while the counts are being read
+         */
+        private int version = 0;
+
+        /**
+         * The background load of the counts, if one was started
+         */
+        private CompletableFuture<Void> loading;
+
+        /**
+         * The total amount of protections
+         */
+        private int total = 0;
+
+        /**
+         * The amount of protections of each block id
+         */
+        private final Map<Integer, Integer> byBlockId = new HashMap<Integer, Integer>();
+
+    }
+
+}
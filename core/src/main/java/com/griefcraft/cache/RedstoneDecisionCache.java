@@ -0,0 +1,154 @@
+/*
+ * Copyright 2011 Tyler Blair. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are
+ * permitted provided that the following conditions are met:
+ *
+ *    1. Redistributions of source code must retain the above copyright notice, this list of
+ *       conditions and the following disclaimer.
+ *
+ *    2. Redistributions in binary form must reproduce the above copyright notice, this list
+ *       of conditions and the following disclaimer in the documentation and/or other materials
+ *       provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ''AS IS'' AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND
+ * FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE AUTHOR OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * The views and conclusions contained in the software and documentation are those of the
+ * authors and contributors and should not be interpreted as representing official policies,
+ * either expressed or implied, of anybody else.
+ */
+package com.griefcraft.cache;
+
+import com.griefcraft.model.Protection;
+import com.griefcraft.util.ProtectionFinder;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Remembers how redstone acting on a protection is handled, so a protection powered by a redstone clock does not
+ * need its flags and blocks checked on every pulse.
+ * <p/>
+ * A decision is forgotten when the protection's flags change or it is removed, and it is only used while the
+ * protection still has the same matched blocks it was made for.
+ */
+public class RedstoneDecisionCache extends DecisionCache {
+
+    /**
+     * The decision of each protection
+     */
+    private final Map<Integer, Decision> byProtection = new HashMap<Integer, Decision>();
+
+    public RedstoneDecisionCache(int capacity) {
+        super(capacity);
+    }
+
+    /**
+     * Get the cached decision for a protection
+     *
+     * @param protection
+     * @return the decision, or null if none is cached or the protection's blocks changed since
+     */
+    public synchronized Decision get(Protection protection) {
+        Decision decision = byProtection.get(protection.getId());
+
+        if (decision == null || !decision.isValidFor(protection)) {
+            miss();
+            return null;
+        }
+
+        hit();
+        return decision;
+    }
+
+    /**
+     * Cache the decision for a protection
+     *
+     * @param protection
+     * @param decision
+     */
+    public synchronized void put(Protection protection, Decision decision) {
+        if (!byProtection.containsKey(protection.getId())) {
+            makeRoom();
+        }
+
+        byProtection.put(protection.getId(), decision);
+    }
+
+    /**
+     * Forget the decision of a protection, e.g. when its flags change
+     *
+     * @param protectionId
+     */
+    public synchronized void invalidate(int protectionId) {
+        byProtection.remove(protectionId);
+    }
+
+    @Override
+    public synchronized void clear() {
+        byProtection.clear();
+    }
+
+    @Override
+    public synchronized int size() {
+        return byProtection.size();
+    }
+
+    /**
+     * How redstone acting on a protection is handled
+     */
+    public static final class Decision {
+
+        /**
+         * The finder the decision was made with, and how many blocks it had matched
+         */
+        private final ProtectionFinder finder;
+        private final int matched;
+
+        /**
+         * The x, y and z coordinates of each pressure plate in the protection
+         */
+        private final int[] pressurePlates;
+
+        /**
+         * If redstone is denied unless a player who can access the protection is on a pressure plate
+         */
+        private final boolean denied;
+
+        public Decision(Protection protection, int[] pressurePlates, boolean denied) {
+            this.finder = protection.getProtectionFinder();
+            this.matched = finder != null ? finder.getMatchedBlocks().size() : 0;
+            this.pressurePlates = pressurePlates;
+            this.denied = denied;
+        }
+
+        /**
+         * @return the x, y and z coordinates of each pressure plate in the protection, one after the other
+         */
+        public int[] getPressurePlates() {
+            return pressurePlates;
+        }
+
+        /**
+         * @return true if redstone is denied unless a player who can access the protection is on a pressure plate
+         */
+        public boolean isDenied() {
+            return denied;
+        }
+
+        private boolean isValidFor(Protection protection) {
+            ProtectionFinder current = protection.getProtectionFinder();
+            return current == finder && (current == null || current.getMatchedBlocks().size() == matched);
+        }
+
+    }
+
+}
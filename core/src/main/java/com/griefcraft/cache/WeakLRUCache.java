@@ -31,13 +31,15 @@ package com.griefcraft.cache;
 import java.lang.ref.ReferenceQueue;
 import java.lang.ref.WeakReference;
 import java.util.Collection;
+import java.util.HashSet;
 import java.util.LinkedHashMap;
 import java.util.Map;
 import java.util.Set;
 
 /**
  * Similar to LRUCache but instead uses WeakReferences.
- * The key must be a hard ref, while the value will be a weak reference
+ * The key must be a hard ref, while the value will be a weak reference. Every operation is synchronized so it can be
+ * shared with async tasks.
  */
 public class WeakLRUCache<K, V> implements Map<K, V> {
 
@@ -54,7 +56,7 @@ public class WeakLRUCache<K, V> implements Map<K, V> {
     /**
      * The cache's max capacity
      */
-    protected int maxCapacity;
+    protected volatile int maxCapacity;
 
     /**
      * Amount of reads performed on the cache
@@ -80,14 +82,14 @@ public class WeakLRUCache<K, V> implements Map<K, V> {
     /**
      * @return amount of reads on the cache
      */
-    public long getReads() {
+    public synchronized long getReads() {
         return reads;
     }
 
     /**
      * @return amount of writes on the cache
      */
-    public long getWrites() {
+    public synchronized long getWrites() {
         return writes;
     }
 
@@ -107,37 +109,37 @@ public class WeakLRUCache<K, V> implements Map<K, V> {
      *
      * @return
      */
-    public int size() {
+    public synchronized int size() {
         processQueue();
         return weakCache.size();
     }
 
-    public boolean isEmpty() {
+    public synchronized boolean isEmpty() {
         processQueue();
         return weakCache.isEmpty();
     }
 
-    public boolean containsKey(Object key) {
+    public synchronized boolean containsKey(Object key) {
         processQueue();
         return weakCache.containsKey(key);
     }
 
-    public boolean containsValue(Object value) {
+    public synchronized boolean containsValue(Object value) {
         processQueue();
         return weakCache.containsValue(value);
     }
 
-    public void clear() {
+    public synchronized void clear() {
         processQueue();
         weakCache.clear();
     }
 
-    public Set<K> keySet() {
+    public synchronized Set<K> keySet() {
         processQueue();
-        return weakCache.keySet();
+        return new HashSet<K>(weakCache.keySet());
     }
 
-    public V get(Object key) {
+    public synchronized V get(Object key) {
         reads++;
         processQueue();
 
@@ -156,7 +158,7 @@ public class WeakLRUCache<K, V> implements Map<K, V> {
         return result;
     }
 
-    public V put(K key, V value) {
+    public synchronized V put(K key, V value) {
         writes++;
         processQueue();
 
@@ -164,7 +166,7 @@ public class WeakLRUCache<K, V> implements Map<K, V> {
         return oldRef != null ? oldRef.get() : null;
     }
 
-    public V remove(Object key) {
+    public synchronized V remove(Object key) {
         WeakValue<V, K> old = weakCache.remove(key);
         return old != null ? old.get() : null;
     }
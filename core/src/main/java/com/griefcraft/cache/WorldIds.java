@@ -0,0 +1,91 @@
+/*
+ * Copyright 2011 Tyler Blair. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are
+ * permitted provided that the following conditions are met:
+ *
+ *    1. Redistributions of source code must retain the above copyright notice, this list of
+ *       conditions and the following disclaimer.
+ *
+ *    2. Redistributions in binary form must reproduce the above copyright notice, this list
+ *       of conditions and the following disclaimer in the documentation and/or other materials
+ *       provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ''AS IS'' AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND
+ * FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE AUTHOR OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * The views and conclusions contained in the software and documentation are those of the
+ * authors and contributors and should not be interpreted as representing official policies,
+ * either expressed or implied, of anybody else.
+ */
+
+package com.griefcraft.cache;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Interns world names as small ids, so the blocks of every world can share one {@link BlockMap}. Ids are shared by
+ * every cache and never reused; there are only ever a handful of worlds. Thread safe.
+ */
+public final class WorldIds {
+
+    /**
+     * The id of each world name
+     */
+    private static final Map<String, Integer> ids = new ConcurrentHashMap<String, Integer>();
+
+    private WorldIds() {
+    }
+
+    /**
+     * Get the id of a world, giving it one if it has not been seen yet
+     *
+     * @param world
+     * @return
+     */
+    public static int intern(String world) {
+        Integer id = ids.get(world);
+
+        if (id != null) {
+            return id;
+        }
+
+        synchronized (ids) {
+            id = ids.get(world);
+
+            if (id == null) {
+                id = ids.size();
+                ids.put(world, id);
+            }
+
+            return id;
+        }
+    }
+
+    /**
+     * Get the id of a world without giving it one
+     *
+     * @param world
+     * @return the id, or -1 if the world has not been seen yet
+     */
+    public static int get(String world) {
+        Integer id = ids.get(world);
+        return id != null ? id : -1;
+    }
+
+    /**
+     * @return the amount of worlds that have an id; ids range from 0 up to this
+     */
+    public static int size() {
+        return ids.size();
+    }
+
+}
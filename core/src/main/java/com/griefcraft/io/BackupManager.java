@@ -30,8 +30,8 @@ package com.griefcraft.io;
 
 import com.griefcraft.lwc.LWC;
 import com.griefcraft.model.Protection;
-import com.griefcraft.sql.Database;
 import com.griefcraft.sql.PhysDB;
+import com.griefcraft.sql.PooledConnection;
 import org.bukkit.Bukkit;
 import org.bukkit.Server;
 import org.bukkit.block.Block;
@@ -243,18 +243,10 @@ public class BackupManager {
                         // Write the header
                         backup.writeHeader();
 
-                        // TODO separate stream logic to somewhere else :)
-                        // Create a new database connection, we are just reading
-                        PhysDB database = new PhysDB();
-                        database.connect();
-                        database.load();
-
-                        // TODO separate stream logic to somewhere else :)
-                        Statement resultStatement = database.getConnection().createStatement(ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
-
-                        if (lwc.getPhysicalDatabase().getType() == Database.Type.MySQL) {
-                            resultStatement.setFetchSize(Integer.MIN_VALUE);
-                        }
+                        // Read on a dedicated connection so the scan doesn't hold up anything else
+                        PhysDB database = lwc.getPhysicalDatabase();
+                        PooledConnection stream = database.openStreamingConnection();
+                        Statement resultStatement = stream.createStreamingStatement();
 
                         String prefix = lwc.getPhysicalDatabase().getPrefix();
                         ResultSet result = resultStatement.executeQuery("SELECT id, owner, type, x, y, z, data, blockId, world, password, date, last_accessed FROM " + prefix + "protections");
@@ -324,6 +316,7 @@ public class BackupManager {
                         // close the sql statements
                         result.close();
                         resultStatement.close();
+                        stream.close();
 
                         // close the backup file
                         backup.close();
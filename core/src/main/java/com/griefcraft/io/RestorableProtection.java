@@ -123,7 +123,7 @@ public class RestorableProtection implements Restorable {
             rprotection.x = protection.getX();
             rprotection.y = protection.getY();
             rprotection.z = protection.getZ();
-            rprotection.data = protection.getData().toJSONString();
+            rprotection.data = protection.getEncodedData();
             rprotection.created = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss").parse(protection.getCreation()).getTime() / 1000;
             rprotection.updated = protection.getLastAccessed();
 
@@ -157,6 +157,19 @@ public class LWCBlockListener implements Listener {
         }
     }
 
+    /**
+     * Forget the hopper decisions involving a block once it is broken
+     */
+    @EventHandler(ignoreCancelled = true, priority = EventPriority.MONITOR)
+    public void onBlockBreakMonitor(BlockBreakEvent event) {
+        if (!LWC.ENABLED) {
+            return;
+        }
+
+        Block block = event.getBlock();
+        plugin.getLWC().getHopperDecisionCache().invalidate(block.getWorld().getName(), block.getX(), block.getY(), block.getZ(), 1);
+    }
+
     @EventHandler
     public void onBlockBreak(BlockBreakEvent event) {
         if (!LWC.ENABLED || event.isCancelled()) {
@@ -167,18 +180,18 @@ public class LWCBlockListener implements Listener {
         Player player = event.getPlayer();
         Block block = event.getBlock();
 
-        boolean ignoreBlockDestruction = Boolean.parseBoolean(lwc.resolveProtectionConfiguration(block, "ignoreBlockDestruction"));
+        boolean ignoreBlockDestruction = lwc.getProtectionConfiguration(block).isIgnoreBlockDestruction();
 
         if (ignoreBlockDestruction) {
             return;
         }
 
         ProtectionCache cache = lwc.getProtectionCache();
-        String cacheKey = cache.cacheKey(block.getLocation());
+        String world = block.getWorld().getName();
 
         // In the event they place a block, remove any known nulls there
-        if (cache.isKnownNull(cacheKey)) {
-            cache.remove(cacheKey);
+        if (cache.isKnownNull(world, block.getX(), block.getY(), block.getZ())) {
+            cache.remove(world, block.getX(), block.getY(), block.getZ());
         }
 
         Protection protection = lwc.findProtection(block.getLocation());
@@ -215,7 +228,11 @@ public class LWCBlockListener implements Listener {
                 protection.radiusRemoveCache();
 
                 if (protection.getProtectionFinder() != null) {
-                    protection.getProtectionFinder().removeBlock(block.getState());
+                    protection.getProtectionFinder().removeBlock(block);
+
+                    if (protection.updateRelatedBlocks()) {
+                        protection.save();
+                    }
                 }
 
                 lwc.getProtectionCache().addProtection(protection);
@@ -293,11 +310,11 @@ public class LWCBlockListener implements Listener {
         Block block = event.getBlockPlaced();
 
         ProtectionCache cache = lwc.getProtectionCache();
-        String cacheKey = cache.cacheKey(block.getLocation());
+        String world = block.getWorld().getName();
 
         // In the event they place a block, remove any known nulls there
-        if (cache.isKnownNull(cacheKey)) {
-            cache.remove(cacheKey);
+        if (cache.isKnownNull(world, block.getX(), block.getY(), block.getZ())) {
+            cache.remove(world, block.getX(), block.getY(), block.getZ());
         }
 
         // check if the block is blacklisted
@@ -371,7 +388,7 @@ public class LWCBlockListener implements Listener {
             LWC lwc = plugin.getLWC();
             Protection protection = lwc.findProtection(block.getLocation());
             if (protection != null) { // found protection
-                boolean denyHoppers = Boolean.parseBoolean(lwc.resolveProtectionConfiguration(block, "denyHoppers"));
+                boolean denyHoppers = lwc.getProtectionConfiguration(block).isDenyHoppers();
                 if (!lwc.canAccessProtection(player, protection) || (denyHoppers != protection.hasFlag(Flag.Type.HOPPER) && !lwc.canAdminProtection(player, protection))) {
                     // player can't access the protection and hoppers aren't enabled for it
                     lwc.enforceAccess(player, protection, block, false);
@@ -411,6 +428,9 @@ public class LWCBlockListener implements Listener {
         LWC lwc = plugin.getLWC();
         Player player = event.getPlayer();
         Block block = event.getBlockPlaced();
+
+        // the block may be a new container or join a double chest
+        lwc.getHopperDecisionCache().invalidate(block.getWorld().getName(), block.getX(), block.getY(), block.getZ(), 1);
 		
         // Update the cache if a protection is matched here
         Protection current = lwc.findProtection(block.getLocation());
@@ -440,7 +460,7 @@ public class LWCBlockListener implements Listener {
             return;
         }
 
-        String autoRegisterType = lwc.resolveProtectionConfiguration(block, "autoRegister");
+        String autoRegisterType = lwc.getProtectionConfiguration(block).getAutoRegister();
         // is it auto protectable?
         if (!autoRegisterType.equalsIgnoreCase("private") && !autoRegisterType.equalsIgnoreCase("public")) {
             return;
@@ -494,7 +514,7 @@ public class LWCBlockListener implements Listener {
             // All good!
             Protection protection = lwc.getPhysicalDatabase().registerProtection(block.getType(), type, block.getWorld().getName(), player.getUniqueId().toString(), "", block.getX(), block.getY(), block.getZ());
 
-            if (!Boolean.parseBoolean(lwc.resolveProtectionConfiguration(block, "quiet"))) {
+            if (!lwc.getProtectionConfiguration(block).isQuiet()) {
                 lwc.sendLocale(player, "protection.onplace.create.finalize", "type", lwc.getPlugin().getMessageParser().parseMessage(autoRegisterType.toLowerCase()), "block", LWC.materialToString(block));
             }
 
@@ -28,8 +28,10 @@
 
 package com.griefcraft.listeners;
 
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
 
 import com.griefcraft.bukkit.EntityBlock;
@@ -64,6 +66,13 @@ public class LWCEntityListener implements Listener {
 
     private final Map<String, Location> playerCreatedEntities = new HashMap<>();
 
+    /**
+     * The last explosion checked, its blocks and the protections it will destroy
+     */
+    private EntityExplodeEvent explosion;
+    private List<Block> explosionBlocks;
+    private List<Protection> explosionRemovals;
+
     /**
      * The plugin instance
      */
@@ -80,7 +89,7 @@ public class LWCEntityListener implements Listener {
         Protection protection = plugin.getLWC().findProtection(block.getLocation());
 
         if (protection != null) {
-            boolean allowEntityInteract = Boolean.parseBoolean(plugin.getLWC().resolveProtectionConfiguration(block, "allowEntityInteract"));
+            boolean allowEntityInteract = plugin.getLWC().getProtectionConfiguration(block).isAllowEntityInteract();
             if (!allowEntityInteract) {
                 event.setCancelled(true);
             }
@@ -95,7 +104,7 @@ public class LWCEntityListener implements Listener {
         Protection protection = plugin.getLWC().findProtection(block.getLocation());
         if (protection != null) {
             // protections.allowEntityBreakDoor
-            boolean allowEntityBreakDoor = Boolean.parseBoolean(plugin.getLWC().resolveProtectionConfiguration(block, "allowEntityBreakDoor"));
+            boolean allowEntityBreakDoor = plugin.getLWC().getProtectionConfiguration(block).isAllowEntityBreakDoor();
             if (!allowEntityBreakDoor) {
                 event.setCancelled(true);
             }
@@ -108,36 +117,76 @@ public class LWCEntityListener implements Listener {
             return;
         }
 
-        LWC lwc = plugin.getLWC();
+        explosion = null;
+        List<Block> blocks = event.blockList();
+        Protection[] protections = plugin.getLWC().findProtections(blocks);
+        List<Protection> removals = explodableProtections(protections);
 
-        for (Block block : event.blockList()) {
-            Protection protection = lwc.findProtection(block.getLocation());
-            if (protection != null) {
-                boolean ignoreExplosions = Boolean.parseBoolean(lwc.resolveProtectionConfiguration(protection.getBlock(), "ignoreExplosions"));
-                if (!(ignoreExplosions || protection.hasFlag(Flag.Type.ALLOWEXPLOSIONS))) {
-                    event.setCancelled(true);
-                }
-            }
+        if (removals == null) {
+            event.setCancelled(true);
+            return;
         }
+
+        // remember the outcome so the monitor doesn't have to look the blocks up again
+        explosion = event;
+        explosionBlocks = new ArrayList<>(blocks);
+        explosionRemovals = removals;
     }
 
     @EventHandler(priority = EventPriority.MONITOR)
     public void onEntityExplodeMonitor(EntityExplodeEvent event) {
+        List<Protection> removals = null;
+
+        if (event == explosion && event.blockList().equals(explosionBlocks)) {
+            removals = explosionRemovals;
+        }
+
+        explosion = null;
+        explosionBlocks = null;
+        explosionRemovals = null;
+
         if (!LWC.ENABLED || event.isCancelled()) {
             return;
         }
 
+        if (removals == null) {
+            // another plugin changed the explosion after we checked it
+            removals = explodableProtections(plugin.getLWC().findProtections(event.blockList()));
+
+            if (removals == null) {
+                return;
+            }
+        }
+
+        for (Protection protection : removals) {
+            protection.remove();
+        }
+    }
+
+    /**
+     * Get the protections an explosion may destroy
+     *
+     * @param protections the protections of the exploded blocks
+     * @return the distinct protections that allow explosions, or null if any of the protections does not
+     */
+    private List<Protection> explodableProtections(Protection[] protections) {
         LWC lwc = plugin.getLWC();
+        List<Protection> explodable = new ArrayList<>();
 
-        for (Block block : event.blockList()) {
-            Protection protection = lwc.findProtection(block.getLocation());
-            if (protection != null) {
-                boolean ignoreExplosions = Boolean.parseBoolean(lwc.resolveProtectionConfiguration(protection.getBlock(), "ignoreExplosions"));
-                if (ignoreExplosions || protection.hasFlag(Flag.Type.ALLOWEXPLOSIONS)) {
-                    protection.remove();
-                }
+        for (Protection protection : protections) {
+            if (protection == null || explodable.contains(protection)) {
+                continue;
+            }
+
+            boolean ignoreExplosions = lwc.getProtectionConfiguration(protection.getBlock()).isIgnoreExplosions();
+            if (!(ignoreExplosions || protection.hasFlag(Flag.Type.ALLOWEXPLOSIONS))) {
+                return null;
             }
+
+            explodable.add(protection);
         }
+
+        return explodable;
     }
 
     @EventHandler(ignoreCancelled = true, priority = EventPriority.MONITOR)
@@ -218,6 +267,11 @@ public class LWCEntityListener implements Listener {
             } else {
                 if (current.getProtectionFinder() != null) {
                     current.getProtectionFinder().fullMatchBlocks();
+
+                    if (current.updateRelatedBlocks()) {
+                        current.save();
+                    }
+
                     lwc.getProtectionCache().addProtection(current);
                 }
                 return;
@@ -228,7 +282,7 @@ public class LWCEntityListener implements Listener {
             return;
         }
 
-        String autoRegisterType = lwc.resolveProtectionConfiguration(entity.getType(), "autoRegister");
+        String autoRegisterType = lwc.getProtectionConfiguration(entity.getType()).getAutoRegister();
 
         if ((!autoRegisterType.equalsIgnoreCase("private"))
             && (!autoRegisterType.equalsIgnoreCase("public"))) {
@@ -262,7 +316,7 @@ public class LWCEntityListener implements Listener {
                     entity.getWorld().getName(),
                     player.getUniqueId().toString(), "", hash, hash, hash);
 
-            if (!Boolean.parseBoolean(lwc.resolveProtectionConfiguration(entity.getType(), "quiet"))) {
+            if (!lwc.getProtectionConfiguration(entity.getType()).isQuiet()) {
                 lwc.sendLocale(player, "protection.onplace.create.finalize",
                         "type", lwc.getPlugin().getMessageParser().parseMessage(autoRegisterType.toLowerCase()),
                         "block", LWC.entityToString(entity.getType()));
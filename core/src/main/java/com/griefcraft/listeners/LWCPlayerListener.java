@@ -29,6 +29,7 @@
 package com.griefcraft.listeners;
 
 import com.griefcraft.bukkit.EntityBlock;
+import com.griefcraft.cache.HopperDecisionCache;
 import com.griefcraft.lwc.LWC;
 import com.griefcraft.lwc.LWCPlugin;
 import com.griefcraft.model.Flag;
@@ -68,7 +69,10 @@ import org.bukkit.event.player.PlayerInteractEntityEvent;
 import org.bukkit.event.player.PlayerDropItemEvent;
 import org.bukkit.event.player.PlayerInteractEvent;
 import org.bukkit.event.player.PlayerJoinEvent;
+import org.bukkit.event.player.PlayerMoveEvent;
 import org.bukkit.event.player.PlayerQuitEvent;
+import org.bukkit.event.player.PlayerRespawnEvent;
+import org.bukkit.event.player.PlayerTeleportEvent;
 import org.bukkit.event.player.PlayerArmorStandManipulateEvent;
 import org.bukkit.event.entity.EntityDamageByEntityEvent;
 import org.bukkit.event.entity.EntityDamageEvent;
@@ -79,11 +83,13 @@ import org.bukkit.event.hanging.HangingBreakEvent;
 import org.bukkit.event.hanging.HangingBreakEvent.RemoveCause;
 import org.bukkit.event.vehicle.VehicleDamageEvent;
 import org.bukkit.event.vehicle.VehicleDestroyEvent;
+import org.bukkit.event.vehicle.VehicleMoveEvent;
 import org.bukkit.inventory.Inventory;
 import org.bukkit.inventory.InventoryHolder;
 import org.bukkit.inventory.ItemStack;
 import org.bukkit.projectiles.ProjectileSource;
 
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.Set;
@@ -103,6 +109,54 @@ public class LWCPlayerListener implements Listener {
     public void onPlayerJoin(PlayerJoinEvent event) {
         Player player = event.getPlayer();
         UUIDRegistry.updateCache(player.getUniqueId(), player.getName());
+        plugin.getLWC().getPlayerPositionIndex().update(player, player.getLocation());
+
+        // count their protections for limits before they start protecting anything
+        plugin.getLWC().getProtectionCountCache().load(player.getUniqueId().toString());
+
+        // load the protections around the player before they start interacting with them
+        if (plugin.getLWC().getAsyncProtectionLoader() != null) {
+            plugin.getLWC().prewarm(Collections.singletonList(player.getLocation()));
+        }
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+    public void onPlayerMove(PlayerMoveEvent event) {
+        Location from = event.getFrom();
+        Location to = event.getTo();
+
+        // only the block the player is in is tracked
+        if (to != null && (from.getBlockX() != to.getBlockX() || from.getBlockY() != to.getBlockY()
+                || from.getBlockZ() != to.getBlockZ() || from.getWorld() != to.getWorld())) {
+            plugin.getLWC().getPlayerPositionIndex().update(event.getPlayer(), to);
+        }
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+    public void onPlayerTeleport(PlayerTeleportEvent event) {
+        plugin.getLWC().getPlayerPositionIndex().update(event.getPlayer(), event.getTo());
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR)
+    public void onPlayerRespawn(PlayerRespawnEvent event) {
+        plugin.getLWC().getPlayerPositionIndex().update(event.getPlayer(), event.getRespawnLocation());
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+    public void onVehicleMove(VehicleMoveEvent event) {
+        Location from = event.getFrom();
+        Location to = event.getTo();
+
+        if (from.getBlockX() == to.getBlockX() && from.getBlockY() == to.getBlockY() && from.getBlockZ() == to.getBlockZ()) {
+            return;
+        }
+
+        // players riding a vehicle do not fire move events of their own
+        for (Entity passenger : event.getVehicle().getPassengers()) {
+            if (passenger instanceof Player) {
+                plugin.getLWC().getPlayerPositionIndex().update((Player) passenger, to);
+            }
+        }
     }
 
     @EventHandler(ignoreCancelled = true)
@@ -177,6 +231,37 @@ public class LWCPlayerListener implements Listener {
 
         LWC lwc = LWC.getInstance();
 
+        // hoppers keep moving items between the same blocks, so reuse the decision until a protection near them changes
+        HopperDecisionCache decisions = lwc.getHopperDecisionCache();
+        boolean cacheable = !(holder instanceof Minecart);
+
+        if (cacheable) {
+            int decision = decisions.get(location, hopperLocation);
+
+            if (decision != HopperDecisionCache.UNKNOWN) {
+                return decision == HopperDecisionCache.DENY;
+            }
+        }
+
+        boolean deny = isMoveDenied(lwc, location, protectionSource, hopperLocation);
+
+        if (cacheable) {
+            decisions.put(location, hopperLocation, deny);
+        }
+
+        return deny;
+    }
+
+    /**
+     * Check if items may not be moved in or out of a protection by a hopper
+     *
+     * @param lwc
+     * @param location the location of the inventory
+     * @param protectionSource the block of the inventory
+     * @param hopperLocation the location of the hopper, or null if it isn't a hopper block
+     * @return
+     */
+    private boolean isMoveDenied(LWC lwc, Location location, Block protectionSource, Location hopperLocation) {
         // High-intensity zone: increase protection cache if it's full, otherwise
         // the database will be getting rammed
         lwc.getProtectionCache().increaseIfNecessary();
@@ -189,7 +274,7 @@ public class LWCPlayerListener implements Listener {
             return false;
         }
 
-        if (hopperLocation != null && Boolean.parseBoolean(lwc.resolveProtectionConfiguration(Material.HOPPER, "enabled"))) {
+        if (hopperLocation != null && lwc.getProtectionConfiguration(Material.HOPPER).isEnabled()) {
             Protection hopperProtection = lwc.findProtection(hopperLocation);
 
             if (hopperProtection != null) {
@@ -200,7 +285,7 @@ public class LWCPlayerListener implements Listener {
             }
         }
 
-        boolean denyHoppers = Boolean.parseBoolean(lwc.resolveProtectionConfiguration(protectionSource, "denyHoppers"));
+        boolean denyHoppers = lwc.getProtectionConfiguration(protectionSource).isDenyHoppers();
 
         // xor = (a && !b) || (!a && b)
         return denyHoppers ^ protection.hasFlag(Flag.Type.HOPPER);
@@ -298,13 +383,13 @@ public class LWCPlayerListener implements Listener {
             boolean hasPendingAction = (hasInteracted && actionCount > 1) || (!hasInteracted && actionCount > 0);
 
             if (event.getAction() == Action.LEFT_CLICK_BLOCK) {
-                boolean ignoreLeftClick = Boolean.parseBoolean(lwc.resolveProtectionConfiguration(block, "ignoreLeftClick"));
+                boolean ignoreLeftClick = lwc.getProtectionConfiguration(block).isIgnoreLeftClick();
 
                 if (ignoreLeftClick) {
                     return;
                 }
             } else if (event.getAction() == Action.RIGHT_CLICK_BLOCK) {
-                boolean ignoreRightClick = Boolean.parseBoolean(lwc.resolveProtectionConfiguration(block, "ignoreRightClick"));
+                boolean ignoreRightClick = lwc.getProtectionConfiguration(block).isIgnoreRightClick();
 
                 if (ignoreRightClick) {
                     return;
@@ -395,6 +480,8 @@ public class LWCPlayerListener implements Listener {
 
         // remove the place from the player cache and reset anything they can access
         LWCPlayer.removePlayer(event.getPlayer());
+        plugin.getLWC().getPlayerPositionIndex().remove(event.getPlayer());
+        plugin.getLWC().getProtectionCountCache().unload(event.getPlayer().getUniqueId().toString());
     }
 
     @EventHandler(ignoreCancelled = true)
@@ -28,19 +28,24 @@
 package com.griefcraft.lwc;
 
 import java.io.IOException;
-import java.sql.ResultSet;
-import java.sql.SQLException;
-import java.sql.Statement;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
-import java.util.Iterator;
-import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.UUID;
-
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.function.Function;
+
+import com.griefcraft.cache.BlockKey;
+import com.griefcraft.cache.BlockMap;
+import com.griefcraft.cache.HopperDecisionCache;
+import com.griefcraft.cache.PlayerPositionIndex;
+import com.griefcraft.cache.RedstoneDecisionCache;
+import com.griefcraft.cache.ProtectionCountCache;
 import com.griefcraft.cache.MaterialCache;
 import org.apache.commons.lang.StringUtils;
 import org.apache.commons.lang.WordUtils;
@@ -78,8 +83,6 @@ import com.griefcraft.listeners.LWCMCPCSupport;
 import com.griefcraft.migration.ConfigPost300;
 import com.griefcraft.migration.DatabaseUpgradeManager;
 import com.griefcraft.migration.MySQLPost200;
-import com.griefcraft.model.Flag;
-import com.griefcraft.model.History;
 import com.griefcraft.model.LWCPlayer;
 import com.griefcraft.model.Permission;
 import com.griefcraft.model.Protection;
@@ -139,6 +142,7 @@ import com.griefcraft.sql.Database;
 import com.griefcraft.sql.PhysDB;
 import com.griefcraft.util.*;
 import com.griefcraft.util.config.Configuration;
+import com.griefcraft.util.config.ResolvedBlockConfig;
 import com.griefcraft.util.locale.LocaleUtil;
 import com.griefcraft.util.matchers.DoubleChestMatcher;
 import org.bukkit.entity.Entity;
@@ -176,6 +180,47 @@ public class LWC {
      */
     private final ProtectionCache protectionCache;
 
+    /**
+     * Cached decisions for hoppers moving items in and out of protections
+     */
+    private final HopperDecisionCache hopperDecisionCache;
+
+    /**
+     * Cached decisions for redstone acting on protections
+     */
+    private final RedstoneDecisionCache redstoneDecisionCache;
+
+    /**
+     * The block position of every online player
+     */
+    private final PlayerPositionIndex playerPositionIndex;
+
+    /**
+     * The amount of protections each owner has, for protection limits
+     */
+    private final ProtectionCountCache protectionCountCache;
+
+    /**
+     * Resolves player names and UUIDs without blocking
+     */
+    private final UUIDResolver uuidResolver;
+
+    /**
+     * The protection finder reused for lookups on the main thread, see {@link #findProtection(Block, BlockState)}
+     */
+    private final ProtectionFinder protectionFinder = new ProtectionFinder(this, true);
+    private boolean finderInUse = false;
+
+    /**
+     * How far a block can be from the protection it belongs to, e.g. the block under a door
+     */
+    private static final int RELATED_BLOCK_REACH = 2;
+
+    /**
+     * Removes protections in bulk
+     */
+    private ProtectionRemover protectionRemover;
+
     /**
      * The type id mapping cache
      */
@@ -196,6 +241,16 @@ public class LWC {
      */
     private DatabaseThread databaseThread;
 
+    /**
+     * Runs protection queries off the main thread
+     */
+    private AsyncProtectionLoader asyncProtectionLoader;
+
+    /**
+     * Loads the protections in chunks as they are loaded. Null if chunk prefetching is disabled
+     */
+    private ChunkPrefetcher chunkPrefetcher;
+
     /**
      * The permissions handler
      */
@@ -207,9 +262,10 @@ public class LWC {
     private ICurrency currency;
 
     /**
-     * Protection configuration cache
+     * The protection configuration of each material and entity type, see {@link #compileProtectionConfiguration()}
      */
-    private final Map<String, String> protectionConfigurationCache = new HashMap<String, String>();
+    private volatile Map<Material, ResolvedBlockConfig> blockConfiguration;
+    private volatile Map<EntityType, ResolvedBlockConfig> entityConfiguration;
 
     /**
      * Whether fast-hopper-protection is enabled
@@ -228,6 +284,11 @@ public class LWC {
         fastHoppers = configuration.getBoolean("optional.fastHopperProtection", false);
         alternativeHoppers = configuration.getBoolean("optional.alternativeHopperProtection", false);
         protectionCache = new ProtectionCache(this);
+        hopperDecisionCache = new HopperDecisionCache(configuration.getInt("core.hopperCacheSize", 10000));
+        redstoneDecisionCache = new RedstoneDecisionCache(configuration.getInt("core.redstoneCacheSize", 10000));
+        playerPositionIndex = new PlayerPositionIndex();
+        protectionCountCache = new ProtectionCountCache(this);
+        uuidResolver = new UUIDResolver(this);
         materialCache = new MaterialCache(this);
         backupManager = new BackupManager();
         moduleLoader = new ModuleLoader(this);
@@ -445,7 +506,7 @@ public class LWC {
                 break;
 
             case PASSWORD:
-                if (protection.isOwner(player) && wrapPlayer(player).getAccessibleProtections().contains(protection)) {
+                if (protection.isOwner(player) && wrapPlayer(player).hasAccessibleProtection(protection.getId())) {
                     return true;
                 }
 
@@ -475,10 +536,13 @@ public class LWC {
         }
 
         // call the canAccessProtection hook
-        LWCAccessEvent event = new LWCAccessEvent(player, protection, access);
-        moduleLoader.dispatchEvent(event);
+        if (moduleLoader.hasListeners(ModuleLoader.Event.ACCESS_REQUEST)) {
+            LWCAccessEvent event = new LWCAccessEvent(player, protection, access);
+            moduleLoader.dispatchEvent(event);
+            access = event.getAccess();
+        }
 
-        return event.getAccess() == Permission.Access.ADMIN;
+        return access == Permission.Access.ADMIN;
     }
 
     /**
@@ -625,6 +689,20 @@ public class LWC {
         // destroy the modules
         moduleLoader.shutdown();
 
+        chunkPrefetcher = null;
+
+        if (asyncProtectionLoader != null) {
+            asyncProtectionLoader.stop();
+            asyncProtectionLoader = null;
+        }
+
+        uuidResolver.stop();
+
+        if (protectionRemover != null) {
+            protectionRemover.stop();
+            protectionRemover = null;
+        }
+
         log("Flushing protection updates (" + databaseThread.size() + ")");
 
         if (databaseThread != null) {
@@ -701,7 +779,7 @@ public class LWC {
 
         boolean permShowNotices = hasPermission(player, "lwc.shownotices");
         if ((permShowNotices && configuration.getBoolean("core.showNotices", true))
-                && !Boolean.parseBoolean(resolveProtectionConfiguration(block, "quiet"))) {
+                && !getProtectionConfiguration(block).isQuiet()) {
             boolean isOwner = protection.isOwner(player);
             boolean showMyNotices = configuration.getBoolean("core.showMyNotices", true);
 
@@ -793,7 +871,7 @@ public class LWC {
                 return true;
 
             case PASSWORD:
-                if (wrapPlayer(player).getAccessibleProtections().contains(protection)) {
+                if (wrapPlayer(player).hasAccessibleProtection(protection.getId())) {
                     return true;
                 }
 
@@ -846,10 +924,13 @@ public class LWC {
         }
 
         // call the canAccessProtection hook
-        LWCAccessEvent event = new LWCAccessEvent(player, protection, access);
-        moduleLoader.dispatchEvent(event);
+        if (moduleLoader.hasListeners(ModuleLoader.Event.ACCESS_REQUEST)) {
+            LWCAccessEvent event = new LWCAccessEvent(player, protection, access);
+            moduleLoader.dispatchEvent(event);
+            access = event.getAccess();
+        }
 
-        return event.getAccess() == Permission.Access.PLAYER || event.getAccess() == Permission.Access.ADMIN;
+        return access == Permission.Access.PLAYER || access == Permission.Access.ADMIN;
     }
 
     /**
@@ -924,19 +1005,23 @@ public class LWC {
      * @return
      */
     public Player findPlayer(int minX, int maxX, int minY, int maxY, int minZ, int maxZ) {
-        for (Player player : plugin.getServer().getOnlinePlayers()) {
-            Location location = player.getLocation();
-            int plrX = location.getBlockX();
-            int plrY = location.getBlockY();
-            int plrZ = location.getBlockZ();
-
-            // simple check of the ranges
-            if (plrX >= minX && plrX <= maxX && plrY >= plrY && plrY <= maxY && plrZ >= minZ && plrZ <= maxZ) {
-                return player;
-            }
-        }
+        return playerPositionIndex.find(minX, maxX, minY, maxY, minZ, maxZ);
+    }
 
-        return null;
+    /**
+     * Find a player in the given ranges of a world
+     *
+     * @param world
+     * @param minX
+     * @param maxX
+     * @param minY
+     * @param maxY
+     * @param minZ
+     * @param maxZ
+     * @return
+     */
+    public Player findPlayer(String world, int minX, int maxX, int minY, int maxY, int minZ, int maxZ) {
+        return playerPositionIndex.find(world, minX, maxX, minY, maxY, minZ, maxZ);
     }
 
     /**
@@ -959,7 +1044,7 @@ public class LWC {
         message = StringUtils.split(parsed, '\n');
 
         // broadcast an event if they are a player
-        if (sender instanceof Player) {
+        if (sender instanceof Player && moduleLoader.hasListeners(ModuleLoader.Event.SEND_LOCALE)) {
             LWCSendLocaleEvent evt = new LWCSendLocaleEvent((Player) sender, key);
             moduleLoader.dispatchEvent(evt);
 
@@ -991,16 +1076,32 @@ public class LWC {
      * @param sender
      * @param player
      * @param shouldRemoveBlocks
-     * @return
+     * @return the amount of removed protections. Called from the main thread the protections are removed in the
+     *         background and 0 is returned.
+     * @deprecated use {@link #fastRemoveProtectionsByPlayerAsync(CommandSender, String, boolean)}
      */
+    @Deprecated
     public int fastRemoveProtectionsByPlayer(CommandSender sender, String player, boolean shouldRemoveBlocks) {
-        // remove their protections first
-        int ret = fastRemoveProtections(sender, "Lower(owner) = Lower('" + player + "')", shouldRemoveBlocks);
-
-        // invalid any history objects associated with the player
-        physicalDatabase.invalidateHistory(player);
+        return awaitRemoval(fastRemoveProtectionsByPlayerAsync(sender, player, shouldRemoveBlocks));
+    }
 
-        return ret;
+    /**
+     * Fast remove all protections for a player. ~100k protections / second.
+     *
+     * @param sender
+     * @param player
+     * @param shouldRemoveBlocks
+     * @return completes on the main thread with the amount of removed protections
+     */
+    public CompletableFuture<Integer> fastRemoveProtectionsByPlayerAsync(CommandSender sender, final String player, boolean shouldRemoveBlocks) {
+        // remove their protections first
+        return fastRemoveProtectionsAsync(sender, "Lower(owner) = Lower('" + player + "')", shouldRemoveBlocks).thenApply(new Function<Integer, Integer>() {
+            public Integer apply(Integer removed) {
+                // invalid any history objects associated with the player
+                physicalDatabase.invalidateHistory(player);
+                return removed;
+            }
+        });
     }
 
     /**
@@ -1009,181 +1110,76 @@ public class LWC {
      * @param sender
      * @param where
      * @param shouldRemoveBlocks
-     * @return
+     * @return the amount of removed protections. Called from the main thread the protections are removed in the
+     *         background and 0 is returned.
+     * @deprecated use {@link #fastRemoveProtectionsAsync(CommandSender, String, boolean)}
      */
+    @Deprecated
     public int fastRemoveProtections(CommandSender sender, String where, boolean shouldRemoveBlocks) {
-        List<Integer> exemptedBlocks = configuration.getIntList("optional.exemptBlocks", new ArrayList<Integer>());
-        List<Integer> toRemove = new LinkedList<Integer>();
-        List<Block> removeBlocks = null;
-        int totalProtections = physicalDatabase.getProtectionCount();
-        int completed = 0;
-        int count = 0;
-
-        // flush all changes to the database before working on the live database
-        databaseThread.flush();
-
-        if (shouldRemoveBlocks) {
-            removeBlocks = new LinkedList<Block>();
-        }
-
-        if (where != null && !where.trim().isEmpty()) {
-            where = " WHERE " + where.trim();
-        }
-
-        sender.sendMessage("Loading protections via STREAM mode");
-
-        try (Closer closer = new Closer()) {
-            Statement resultStatement = closer.register(physicalDatabase.getConnection()
-                    .createStatement(ResultSet.TYPE_FORWARD_ONLY,
-                            ResultSet.CONCUR_READ_ONLY));
-
-            if (physicalDatabase.getType() == Database.Type.MySQL) {
-                resultStatement.setFetchSize(Integer.MIN_VALUE);
-            }
-
-            String prefix = physicalDatabase.getPrefix();
-
-            ResultSet result = closer.register(resultStatement.executeQuery(
-                    "SELECT id, owner, type, x, y, z, data, blockId, world, password, date, last_accessed FROM "
-                    + prefix + "protections" + where));
-            while (result.next()) {
-                Protection protection = physicalDatabase.resolveProtection(result);
-                World world = protection.getBukkitWorld();
-
-                // check if the protection is exempt from being removed
-                if (protection.hasFlag(Flag.Type.EXEMPTION) || exemptedBlocks.contains(protection.getBlockId())) {
-                    continue;
-                }
-
-                count++;
-
-                if (count % 100000 == 0 || count == totalProtections || count == 1) {
-                    sender.sendMessage(Colors.Red + count + " / " + totalProtections);
-                }
-
-                if (world == null) {
-                    continue;
-                }
-
-                // remove the protection
-                toRemove.add(protection.getId());
-
-                // remove the block ?
-                if (shouldRemoveBlocks) {
-                    removeBlocks.add(protection.getBlock());
-                }
-
-                // Remove it from the cache if it's in there
-                Protection cached = protectionCache.getProtection(protection.getCacheKey());
-                if (cached != null) {
-                    cached.removeCache();
-                }
-
-                completed++;
-            }
-        } catch (SQLException ex) {
-            ex.printStackTrace();
-        }
-
-        // flush all of the queries
-        fullRemoveProtections(sender, toRemove);
-
-        if (shouldRemoveBlocks) {
-            removeBlocks(sender, removeBlocks);
-        }
-
-        return completed;
+        return awaitRemoval(fastRemoveProtectionsAsync(sender, where, shouldRemoveBlocks));
     }
 
     /**
-     * Push removal changes to the database
+     * Remove protections very quickly with raw SQL calls. The protections are removed in the background, see
+     * {@link ProtectionRemover}.
      *
      * @param sender
-     * @param toRemove
+     * @param where
+     * @param shouldRemoveBlocks
+     * @return completes on the main thread with the amount of removed protections
      */
-    private void fullRemoveProtections(CommandSender sender, List<Integer> toRemove) {
-        StringBuilder deleteProtectionsQuery = new StringBuilder();
-        StringBuilder deleteHistoryQuery = new StringBuilder();
-        int total = toRemove.size();
-        int count = 0;
-
-        // iterate over the items to remove
-        Iterator<Integer> iter = toRemove.iterator();
-
-        // the database prefix
-        String prefix = getPhysicalDatabase().getPrefix();
-
-        try (Closer closer = new Closer()) {
-            // create the statement to use
-            Statement statement = closer.register(getPhysicalDatabase().getConnection().createStatement());
-
-            while (iter.hasNext()) {
-                int protectionId = iter.next();
-
-                if (count % 10000 == 0) {
-                    deleteProtectionsQuery.append("DELETE FROM ").append(prefix).append("protections WHERE id IN (")
-                            .append(protectionId);
-                    deleteHistoryQuery.append("UPDATE ").append(prefix)
-                            .append("history SET status = " + History.Status.INACTIVE.ordinal()
-                                    + " WHERE protectionId IN(").append(protectionId);
-                } else {
-                    deleteProtectionsQuery.append(",").append(protectionId);
-                    deleteHistoryQuery.append(",").append(protectionId);
-                }
-
-                if (count % 10000 == 9999 || count == (total - 1)) {
-                    deleteProtectionsQuery.append(")");
-                    deleteHistoryQuery.append(")");
-                    statement.executeUpdate(deleteProtectionsQuery.toString());
-                    statement.executeUpdate(deleteHistoryQuery.toString());
-                    deleteProtectionsQuery.setLength(0);
-                    deleteHistoryQuery.setLength(0);
+    public CompletableFuture<Integer> fastRemoveProtectionsAsync(CommandSender sender, String where, boolean shouldRemoveBlocks) {
+        return protectionRemover.remove(sender, where, shouldRemoveBlocks);
+    }
 
-                    sender.sendMessage(Colors.Green + "REMOVED " + (count + 1) + " / " + total);
-                }
+    /**
+     * Wait for a removal, unless this is the main thread: the removal needs the main thread to complete
+     *
+     * @param removal
+     * @return the amount of removed protections, or 0 if it was not waited for or failed
+     */
+    private int awaitRemoval(CompletableFuture<Integer> removal) {
+        if (Bukkit.isPrimaryThread()) {
+            return removal.getNow(0);
+        }
 
-                count++;
-                physicalDatabase.decrementProtectionCount();
-            }
-        } catch (SQLException ex) {
-            ex.printStackTrace();
+        try {
+            return removal.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return 0;
+        } catch (ExecutionException e) {
+            return 0;
         }
     }
 
     /**
-     * Remove a list of blocks from the world
+     * Remove a protected block from the world, along with its inventory and the other half of a double chest
      *
-     * @param sender
-     * @param blocks
+     * @param block
+     * @return true if the block was removed
      */
-    private void removeBlocks(CommandSender sender, List<Block> blocks) {
-        int count = 0;
-
-        for (Block block : blocks) {
-            if (block == null || !isProtectable(block)) {
-                continue;
-            }
+    public boolean removeProtectedBlock(Block block) {
+        if (block == null || !isProtectable(block)) {
+            return false;
+        }
 
-            // possibility of a double chest
-            if (DoubleChestMatcher.PROTECTABLES_CHESTS.contains(block.getType())) {
-                Block doubleChest = findAdjacentDoubleChest(block);
+        // possibility of a double chest
+        if (DoubleChestMatcher.PROTECTABLES_CHESTS.contains(block.getType())) {
+            Block doubleChest = findAdjacentDoubleChest(block);
 
-                if (doubleChest != null) {
-                    removeInventory(doubleChest);
-                    doubleChest.setType(Material.AIR);
-                }
+            if (doubleChest != null) {
+                removeInventory(doubleChest);
+                doubleChest.setType(Material.AIR);
             }
-
-            // remove the inventory from the block if it has one
-            removeInventory(block);
-
-            // and now remove the block
-            block.setType(Material.AIR);
-
-            count++;
         }
 
-        sender.sendMessage("Removed " + count + " blocks from the world");
+        // remove the inventory from the block if it has one
+        removeInventory(block);
+
+        // and now remove the block
+        block.setType(Material.AIR);
+        return true;
     }
 
     /**
@@ -1235,13 +1231,16 @@ public class LWC {
      * @return
      */
     public Protection findProtection(Location location) {
-        String cacheKey = protectionCache.cacheKey(location);
+        String world = location.getWorld().getName();
+        int x = location.getBlockX();
+        int y = location.getBlockY();
+        int z = location.getBlockZ();
 
-        if (protectionCache.isKnownNull(cacheKey)) {
+        if (protectionCache.isKnownNull(world, x, y, z)) {
             return null;
         }
 
-        Protection protection = protectionCache.getProtection(cacheKey);
+        Protection protection = protectionCache.getProtection(world, x, y, z);
 
         return protection != null ? protection : findProtection(location.getBlock());
     }
@@ -1253,7 +1252,7 @@ public class LWC {
      * @return
      */
     public Protection findProtection(Block block) {
-        return findProtection(block.getState());
+        return findProtection(block, null);
     }
 
     /**
@@ -1263,31 +1262,198 @@ public class LWC {
      * @return
      */
     public Protection findProtection(BlockState state) {
+        return findProtection(state.getBlock(), state);
+    }
+
+    /**
+     * Find a protection linked to the block
+     *
+     * @param block
+     * @param state a snapshot of the block, or null to not take one
+     * @return
+     */
+    private Protection findProtection(Block block, BlockState state) {
         // If the block type is AIR, then we have a problem .. but attempt to load a protection anyway
         // Note: this call stems from a very old bug in Bukkit that likely does not exist anymore at all
         //       but is kept just incase. At one point getBlock() in Bukkit would sometimes say a block
         //       is an eir block even though the client and server sees it differently (ie a chest).
         //       This was of course very problematic!
-        if (state.getType() == Material.AIR) {
+        if ((state != null ? state.getType() : block.getType()) == Material.AIR) {
             // We won't be able to match any other blocks anyway, so the least we can do is attempt to load a protection
-            return physicalDatabase.loadProtection(state.getWorld().getName(), state.getX(), state.getY(), state.getZ());
+            return physicalDatabase.loadProtection(block.getWorld().getName(), block.getX(), block.getY(), block.getZ());
         }
 
-        // Create a protection finder
-        ProtectionFinder finder = new ProtectionFinder(this);
+        // A cached protection is indexed by every block it is made of, as they are stored with it, so the block
+        // resolves with a single probe. The chunks around the block are loaded in the background for the next
+        // lookups; until they are, the finder looks up each block it matches on its own.
+        if (Bukkit.isPrimaryThread() && !(block instanceof EntityBlock)) {
+            loadRelatedChunks(block.getWorld().getName(), block.getX(), block.getZ());
 
-        // Search for a protection
-        boolean result = finder.matchBlocks(state);
+            Protection cached = protectionCache.getProtection(block.getWorld().getName(), block.getX(), block.getY(), block.getZ());
 
+            // protections whose blocks were never matched are matched below once, which stores them
+            if (cached != null && (cached.getProtectionFinder() != null || cached.getRelatedBlocks() != null)) {
+                return cached;
+            }
+        }
+
+        // Reuse the finder on the main thread, unless a search is already running
+        boolean reuse = !finderInUse && Bukkit.isPrimaryThread();
+        ProtectionFinder finder = reuse ? protectionFinder : new ProtectionFinder(this);
         Protection found = null;
 
-        // We're done, load the possibly loaded protection
-        if (result) {
-            found = finder.loadProtection();
+        if (reuse) {
+            finderInUse = true;
+        }
+
+        try {
+            // Search for a protection
+            boolean result = state != null ? finder.matchBlocks(state) : finder.matchBlocks(block);
+
+            // We're done, load the possibly loaded protection
+            if (result) {
+                found = finder.loadProtection();
+            }
+        } finally {
+            if (reuse) {
+                finder.clear();
+                finderInUse = false;
+            }
         }
 
         if (found == null) {
-            protectionCache.addKnownNull(protectionCache.cacheKey(state.getLocation()));
+            protectionCache.addKnownNull(block.getWorld().getName(), block.getX(), block.getY(), block.getZ());
+        }
+
+        return found;
+    }
+
+    /**
+     * Load the protections in every chunk a protection that includes the given block could be in, in the background.
+     * Chunks that are already cached or loading are skipped.
+     *
+     * @param world
+     * @param x
+     * @param z
+     */
+    private void loadRelatedChunks(String world, int x, int z) {
+        if (asyncProtectionLoader == null || physicalDatabase.hasAllProtectionsCached()) {
+            return;
+        }
+
+        asyncProtectionLoader.loadChunks(world, (x - RELATED_BLOCK_REACH) >> 4, (z - RELATED_BLOCK_REACH) >> 4,
+                (x + RELATED_BLOCK_REACH) >> 4, (z + RELATED_BLOCK_REACH) >> 4);
+    }
+
+    /**
+     * Find the protections linked to many blocks at once, e.g. the blocks destroyed by an explosion. The protections
+     * around the blocks are taken from the cache if every chunk around them is cached, otherwise they are read with
+     * one query for the whole area (and the chunks are loaded in the background for next time). Blocks the protections
+     * are known to be made of resolve straight from them; only the blocks close enough to a protection whose blocks
+     * were never matched are then matched.
+     *
+     * @param blocks blocks in the same world
+     * @return the protection of each block, in the same order; null for blocks that are not protected
+     */
+    public Protection[] findProtections(List<Block> blocks) {
+        Protection[] found = new Protection[blocks.size()];
+
+        if (blocks.isEmpty()) {
+            return found;
+        }
+
+        String world = blocks.get(0).getWorld().getName();
+        int minX = Integer.MAX_VALUE, minY = Integer.MAX_VALUE, minZ = Integer.MAX_VALUE;
+        int maxX = Integer.MIN_VALUE, maxY = Integer.MIN_VALUE, maxZ = Integer.MIN_VALUE;
+
+        for (Block block : blocks) {
+            minX = Math.min(minX, block.getX());
+            minY = Math.min(minY, block.getY());
+            minZ = Math.min(minZ, block.getZ());
+            maxX = Math.max(maxX, block.getX());
+            maxY = Math.max(maxY, block.getY());
+            maxZ = Math.max(maxZ, block.getZ());
+        }
+
+        int reach = RELATED_BLOCK_REACH;
+        List<Protection> nearby = protectionCache.getProtections(world, minX - reach, maxX + reach, minY - reach, maxY + reach,
+                minZ - reach, maxZ + reach, !physicalDatabase.hasAllProtectionsCached());
+
+        if (nearby == null) {
+            nearby = physicalDatabase.queryProtections(world, minX - reach, maxX + reach, minY - reach, maxY + reach, minZ - reach, maxZ + reach);
+
+            // cache them so matching the blocks below finds them without querying each block again
+            for (int i = 0; i < nearby.size(); i++) {
+                Protection cached = protectionCache.getProtectionById(nearby.get(i).getId());
+
+                if (cached != null) {
+                    nearby.set(i, cached);
+                } else {
+                    protectionCache.addProtection(nearby.get(i));
+                }
+            }
+
+            if (asyncProtectionLoader != null) {
+                asyncProtectionLoader.loadChunks(world, (minX - reach) >> 4, (minZ - reach) >> 4, (maxX + reach) >> 4, (maxZ + reach) >> 4);
+            }
+        }
+
+        if (nearby.isEmpty()) {
+            return found;
+        }
+
+        // index every block the protections are known to be made of, so each block resolves with a single probe
+        BlockMap<Protection> byBlock = new BlockMap<Protection>(nearby.size() * 2);
+
+        // and mark every block the others could be made of, as those still have to be matched
+        BlockMap<Boolean> candidates = null;
+
+        for (Protection protection : nearby) {
+            int[] related = protection.getRelatedBlocks();
+            long key = BlockKey.pack(protection.getX(), protection.getY(), protection.getZ());
+
+            if (key != BlockKey.INVALID) {
+                byBlock.put(0, key, protection);
+            }
+
+            if (related != null) {
+                for (int i = 0; i + 2 < related.length; i += 3) {
+                    key = BlockKey.pack(protection.getX() + related[i], protection.getY() + related[i + 1], protection.getZ() + related[i + 2]);
+
+                    if (key != BlockKey.INVALID) {
+                        byBlock.put(0, key, protection);
+                    }
+                }
+
+                continue;
+            }
+
+            if (candidates == null) {
+                candidates = new BlockMap<Boolean>(nearby.size() * 32);
+            }
+
+            for (int x = protection.getX() - reach; x <= protection.getX() + reach; x++) {
+                for (int y = protection.getY() - reach; y <= protection.getY() + reach; y++) {
+                    for (int z = protection.getZ() - reach; z <= protection.getZ() + reach; z++) {
+                        key = BlockKey.pack(x, y, z);
+
+                        if (key != BlockKey.INVALID) {
+                            candidates.put(0, key, Boolean.TRUE);
+                        }
+                    }
+                }
+            }
+        }
+
+        for (int i = 0; i < found.length; i++) {
+            Block block = blocks.get(i);
+            long key = BlockKey.pack(block.getX(), block.getY(), block.getZ());
+
+            found[i] = byBlock.get(0, key);
+
+            if (found[i] == null && candidates != null && candidates.containsKey(0, key)) {
+                found[i] = findProtection(block);
+            }
         }
 
         return found;
@@ -1310,6 +1476,39 @@ public class LWC {
         return findProtection(new Location(world, x, y, z));
     }
 
+    /**
+     * Find a protection linked to the block without blocking the main thread on the database. Must be called from
+     * the main thread; the future is completed on the main thread too, immediately if the protection is cached.
+     *
+     * @param block
+     * @return
+     */
+    public CompletableFuture<Protection> findProtectionAsync(Block block) {
+        return asyncProtectionLoader.findProtection(block);
+    }
+
+    /**
+     * Find a protection linked to the location without blocking the main thread on the database. Must be called
+     * from the main thread; the future is completed on the main thread too, immediately if the protection is cached.
+     *
+     * @param location
+     * @return
+     */
+    public CompletableFuture<Protection> findProtectionAsync(Location location) {
+        return asyncProtectionLoader.findProtection(location);
+    }
+
+    /**
+     * Load the protections at the given locations into the cache in the background, so looking them up later does
+     * not need to query the database. Must be called from the main thread.
+     *
+     * @param locations
+     * @return completes on the main thread once the locations are loaded
+     */
+    public CompletableFuture<Void> prewarm(Collection<Location> locations) {
+        return asyncProtectionLoader.prewarm(locations);
+    }
+
     /**
      * Check if a player has either access to lwc.admin or the specified node
      *
@@ -1399,18 +1598,9 @@ public class LWC {
     public boolean isProtectable(Block block) {
         if (block == null) {
             return false;
-        } else if (block instanceof EntityBlock) {
-            EntityType type = ((EntityBlock) block).getEntityType();
-            return type != null && Boolean.parseBoolean(resolveProtectionConfiguration(type, "enabled"));
-        }
-
-        Material material = block.getType();
-
-        if (material == null) {
-            return false;
         }
 
-        return Boolean.parseBoolean(resolveProtectionConfiguration(block, "enabled"));
+        return getProtectionConfiguration(block).isEnabled();
     }
 
     /**
@@ -1426,7 +1616,7 @@ public class LWC {
             return false;
         }
 
-        return Boolean.parseBoolean(resolveProtectionConfiguration(state, "enabled"));
+        return getProtectionConfiguration(state).isEnabled();
     }
 
     /**
@@ -1440,104 +1630,106 @@ public class LWC {
             return false;
         }
 
-        return Boolean.parseBoolean(resolveProtectionConfiguration(state, "enabled"));
+        return getProtectionConfiguration(state).isEnabled();
     }
 
     /**
-     * Get the appropriate config value for the entity (protections.entity.node)
+     * Resolve the protection configuration of every material and entity type again, e.g. after the configuration
+     * was reloaded
+     */
+    public synchronized void compileProtectionConfiguration() {
+        blockConfiguration = ResolvedBlockConfig.compileBlocks(configuration);
+        entityConfiguration = ResolvedBlockConfig.compileEntities(configuration);
+    }
+
+    /**
+     * Get the protection configuration of an entity (protections.entities.name)
      *
      * @param entity
-     * @param node
-     * @return
+     * @return the configuration; {@link ResolvedBlockConfig#NONE} if the entity type is null
      */
-    public String resolveProtectionConfiguration(EntityType entity, String node) {
+    public ResolvedBlockConfig getProtectionConfiguration(EntityType entity) {
         if (entity == null) {
-            return null;
-        }
-        String cacheKey = "ent-" + entity.toString() + "-" + node;
-        if (protectionConfigurationCache.containsKey(cacheKey)) {
-            return protectionConfigurationCache.get(cacheKey);
+            return ResolvedBlockConfig.NONE;
         }
 
-        List<String> names = new ArrayList<>();
-
-        String materialName = entity.toString().toLowerCase();
+        Map<EntityType, ResolvedBlockConfig> entities = entityConfiguration;
 
-        // add the name & the block id
-        names.add(materialName);
-        names.add(entity.getTypeId() + "");
-
-        // Add the wildcards last so it can be overriden
-        names.add("*");
+        if (entities == null) {
+            compileProtectionConfiguration();
+            entities = entityConfiguration;
+        }
 
-        // load default
-        String value = configuration.getString("protections." + node);
+        return entities.get(entity);
+    }
 
-        // look for this specific item's setting
-        for (String name : names) {
-            String temp = configuration.getString("protections.entities." + name + "." + node);
+    /**
+     * Get the protection configuration of a material (protections.blocks.name)
+     *
+     * @param material
+     * @return
+     */
+    public ResolvedBlockConfig getProtectionConfiguration(Material material) {
+        Map<Material, ResolvedBlockConfig> blocks = blockConfiguration;
 
-            if (temp != null && !temp.isEmpty()) {
-                value = temp;
-            }
+        if (blocks == null) {
+            compileProtectionConfiguration();
+            blocks = blockConfiguration;
         }
 
-        protectionConfigurationCache.put(cacheKey, value);
-        return value;
+        return blocks.get(material);
     }
 
     /**
-     * Get the appropriate config value for the block (protections.block.node)
+     * Get the protection configuration of a block (protections.blocks.name, or protections.entities.name for entities)
      *
      * @param block
-     * @param node
      * @return
      */
-    public String resolveProtectionConfiguration(Block block, String node) {
+    @SuppressWarnings("deprecation")
+    public ResolvedBlockConfig getProtectionConfiguration(Block block) {
         if (block instanceof EntityBlock) {
-            return resolveProtectionConfiguration(((EntityBlock) block).getEntityType(), node);
-        }
-
-        Material material = block.getType();
-        String cacheKey = block.getData() + "-" + material.toString() + "-" + node;
-        if (protectionConfigurationCache.containsKey(cacheKey)) {
-            return protectionConfigurationCache.get(cacheKey);
-        }
-
-        List<String> names = new ArrayList<String>();
-
-        String materialName = normalizeMaterialName(material);
-
-        // add the name & the block id
-        names.add(materialName);
-        names.add(material.getId() + "");
-        names.add(material.getId() + ":" + block.getData());
-        names.add(materialName + ":" + block.getData());
-
-        if (!materialName.equals(material.toString().toLowerCase())) {
-            names.add(material.toString().toLowerCase());
+            return getProtectionConfiguration(((EntityBlock) block).getEntityType());
         }
 
-        // Add the wildcards last so it can be overriden
-        names.add("*");
-        names.add(material.getId() + ":*");
-
-        if (materialName.contains("_")) { // Prefix wildcarding for shulker boxes & gates
-            names.add("*_" + materialName.substring(materialName.indexOf("_") + 1));
-        }
+        ResolvedBlockConfig config = getProtectionConfiguration(block.getType());
 
-        String value = configuration.getString("protections." + node);
+        // only look at the block data if the configuration depends on it
+        return config.isDataSensitive() ? config.forData(block.getData()) : config;
+    }
 
-        for (String name : names) {
-            String temp = configuration.getString("protections.blocks." + name + "." + node);
+    /**
+     * Get the protection configuration of a block (protections.blocks.name)
+     *
+     * @param state
+     * @return
+     */
+    @SuppressWarnings("deprecation")
+    public ResolvedBlockConfig getProtectionConfiguration(BlockState state) {
+        ResolvedBlockConfig config = getProtectionConfiguration(state.getType());
+        return config.isDataSensitive() ? config.forData(state.getRawData()) : config;
+    }
 
-            if (temp != null && !temp.isEmpty()) {
-                value = temp;
-            }
-        }
+    /**
+     * Get the appropriate config value for the entity (protections.entity.node)
+     *
+     * @param entity
+     * @param node
+     * @return
+     */
+    public String resolveProtectionConfiguration(EntityType entity, String node) {
+        return getProtectionConfiguration(entity).get(node);
+    }
 
-        protectionConfigurationCache.put(cacheKey, value);
-        return value;
+    /**
+     * Get the appropriate config value for the block (protections.block.node)
+     *
+     * @param block
+     * @param node
+     * @return
+     */
+    public String resolveProtectionConfiguration(Block block, String node) {
+        return getProtectionConfiguration(block).get(node);
     }
 
     /**
@@ -1548,45 +1740,7 @@ public class LWC {
      * @return
      */
     public String resolveProtectionConfiguration(BlockState state, String node) {
-        Material material = state.getType();
-        String cacheKey = state.getRawData() + "-" + material.toString() + "-" + node;
-        if (protectionConfigurationCache.containsKey(cacheKey)) {
-            return protectionConfigurationCache.get(cacheKey);
-        }
-
-        List<String> names = new ArrayList<String>();
-
-        String materialName = normalizeMaterialName(material);
-
-        // add the name & the block id
-        names.add(materialName);
-        names.add(material.getId() + "");
-        names.add(material.getId() + ":" + state.getRawData());
-        names.add(materialName + ":" + state.getRawData());
-
-        if (!materialName.equals(material.toString().toLowerCase())) {
-            names.add(material.toString().toLowerCase());
-        }
-
-        // Add the wildcards last so it can be overriden
-        names.add("*");
-        names.add(material.getId() + ":*");
-
-        if (materialName.contains("_")) { // Prefix wildcarding for shulker boxes & gates
-            names.add("*_" + materialName.substring(materialName.indexOf("_") + 1));
-        }
-        String value = configuration.getString("protections." + node);
-
-        for (String name : names) {
-            String temp = configuration.getString("protections.blocks." + name + "." + node);
-
-            if (temp != null && !temp.isEmpty()) {
-                value = temp;
-            }
-        }
-
-        protectionConfigurationCache.put(cacheKey, value);
-        return value;
+        return getProtectionConfiguration(state).get(node);
     }
 
     /**
@@ -1597,39 +1751,7 @@ public class LWC {
      * @return
      */
     public String resolveProtectionConfiguration(Material material, String node) {
-        String cacheKey = "00-" + material.toString() + "-" + node;
-        if (protectionConfigurationCache.containsKey(cacheKey)) {
-            return protectionConfigurationCache.get(cacheKey);
-        }
-
-        List<String> names = new ArrayList<String>();
-
-        String materialName = normalizeMaterialName(material);
-
-        // add the name & the block id
-        names.add(materialName);
-        names.add(material.getId() + "");
-
-        if (!materialName.equals(material.toString().toLowerCase())) {
-            names.add(material.toString().toLowerCase());
-        }
-
-        // Add the wildcards last so it can be overriden
-        names.add("*");
-        names.add(material.getId() + ":*");
-
-        String value = configuration.getString("protections." + node);
-
-        for (String name : names) {
-            String temp = configuration.getString("protections.blocks." + name + "." + node);
-
-            if (temp != null && !temp.isEmpty()) {
-                value = temp;
-            }
-        }
-
-        protectionConfigurationCache.put(cacheKey, value);
-        return value;
+        return getProtectionConfiguration(material).get(node);
     }
 
     /**
@@ -1675,6 +1797,9 @@ public class LWC {
             e.printStackTrace();
         }
 
+        // the database updates may have added blocks to the configuration
+        compileProtectionConfiguration();
+
         // check any major conversions
         new MySQLPost200().run();
         
@@ -1684,6 +1809,26 @@ public class LWC {
         // precache protections
         physicalDatabase.precache();
 
+        asyncProtectionLoader = new AsyncProtectionLoader(this);
+
+        // and the players that were resolved before
+        uuidResolver.load();
+
+        // carry on with removals the server stopped in the middle of
+        protectionRemover = new ProtectionRemover(this);
+        protectionRemover.resume();
+
+        // track the players that are already online, e.g. after a reload
+        for (Player player : Bukkit.getOnlinePlayers()) {
+            playerPositionIndex.update(player, player.getLocation());
+        }
+
+        // and everything in the chunks that are already loaded
+        if (configuration.getBoolean("core.prefetchChunks", true)) {
+            chunkPrefetcher = new ChunkPrefetcher(this);
+            chunkPrefetcher.prefetchLoadedChunks();
+        }
+
         // We are now done loading!
         moduleLoader.loadAll();
 
@@ -1887,7 +2032,7 @@ public class LWC {
      * @param protection
      * @param arguments
      */
-    public void processRightsModifications(CommandSender sender, Protection protection, String... arguments) {
+    public void processRightsModifications(final CommandSender sender, final Protection protection, final String... arguments) {
         // Does it match a protection type?
         try {
             Protection.Type protectionType = Protection.Type.matchType(arguments[0]);
@@ -1909,6 +2054,45 @@ public class LWC {
             // It's normal for this to be thrown if nothing was matched
         }
 
+        // resolve the players first so converting them to UUIDs does not have to wait
+        List<String> players = new ArrayList<String>();
+
+        for (String value : arguments) {
+            String lower = value.toLowerCase();
+
+            if (lower.startsWith("-")) {
+                lower = lower.substring(1);
+            }
+
+            if (lower.startsWith("@")) {
+                lower = lower.substring(1);
+            }
+
+            if (lower.startsWith("p:")) {
+                lower = lower.substring(2);
+            } else if (lower.startsWith("g:") || lower.startsWith("t:") || lower.startsWith("town:") || lower.startsWith("item:")
+                    || lower.startsWith("r:") || lower.startsWith("region:") || lower.startsWith("id:")) {
+                continue;
+            }
+
+            players.add(lower);
+        }
+
+        UUIDRegistry.whenResolved(players, new Runnable() {
+            public void run() {
+                applyRightsModifications(sender, protection, arguments);
+            }
+        });
+    }
+
+    /**
+     * Add or remove the rights inputted for a protection, once the players in them have been resolved
+     *
+     * @param sender
+     * @param protection
+     * @param arguments
+     */
+    private void applyRightsModifications(CommandSender sender, Protection protection, String... arguments) {
         for (String value : arguments) {
             boolean remove = false;
             boolean isAdmin = false;
@@ -2010,8 +2194,11 @@ public class LWC {
      */
     public void reload() {
         plugin.loadLocales();
-        protectionConfigurationCache.clear();
+        hopperDecisionCache.clear();
+        redstoneDecisionCache.clear();
         Configuration.reload();
+        moduleLoader.getProfiler().load();
+        compileProtectionConfiguration();
         fastHoppers = configuration.getBoolean("optional.fastHopperProtection", false);
         alternativeHoppers = configuration.getBoolean("optional.alternativeHopperProtection", false);
         moduleLoader.dispatchEvent(new LWCReloadEvent());
@@ -2140,6 +2327,48 @@ public class LWC {
         return protectionCache;
     }
 
+    /**
+     * @return the hopper decision cache
+     */
+    public HopperDecisionCache getHopperDecisionCache() {
+        return hopperDecisionCache;
+    }
+
+    /**
+     * @return the redstone decision cache
+     */
+    public RedstoneDecisionCache getRedstoneDecisionCache() {
+        return redstoneDecisionCache;
+    }
+
+    /**
+     * @return the block position of every online player
+     */
+    public PlayerPositionIndex getPlayerPositionIndex() {
+        return playerPositionIndex;
+    }
+
+    /**
+     * @return the protection count cache
+     */
+    public ProtectionCountCache getProtectionCountCache() {
+        return protectionCountCache;
+    }
+
+    /**
+     * @return the resolver for player names and UUIDs
+     */
+    public UUIDResolver getUUIDResolver() {
+        return uuidResolver;
+    }
+
+    /**
+     * @return the remover used for bulk protection removal
+     */
+    public ProtectionRemover getProtectionRemover() {
+        return protectionRemover;
+    }
+
     /**
      * @return the material cache
      */
@@ -2154,6 +2383,20 @@ public class LWC {
         return databaseThread;
     }
 
+    /**
+     * @return the loader used to look up protections off the main thread
+     */
+    public AsyncProtectionLoader getAsyncProtectionLoader() {
+        return asyncProtectionLoader;
+    }
+
+    /**
+     * @return the chunk prefetcher, or null if chunk prefetching is disabled
+     */
+    public ChunkPrefetcher getChunkPrefetcher() {
+        return chunkPrefetcher;
+    }
+
     /**
      * @return the plugin version
      */
@@ -60,6 +60,7 @@ public class DatabaseMigrator {
 
                 for (Protection protection : tmp) {
                     // sync it to the live database
+                    protection.markAllChanged();
                     protection.saveNow();
                 }
 
@@ -28,6 +28,7 @@
 
 package com.griefcraft.model;
 
+import com.griefcraft.cache.ExpiringIdSet;
 import com.griefcraft.lwc.LWC;
 import com.griefcraft.modules.history.HistoryModule;
 import org.bukkit.Server;
@@ -59,9 +60,9 @@ public class LWCPlayer implements CommandSender {
     private Player player;
 
     /**
-     * Cache of LWCPlayer objects
+     * Cache of LWCPlayer objects, by the UUID of the player. Players are removed when they quit.
      */
-    private final static Map<Player, LWCPlayer> playerCache = new HashMap<Player, LWCPlayer>();
+    private final static Map<UUID, LWCPlayer> playerCache = new HashMap<UUID, LWCPlayer>();
 
     /**
      * The map of actions the player has
@@ -74,9 +75,9 @@ public class LWCPlayer implements CommandSender {
     private final Set<Mode> modes = new HashSet<Mode>();
 
     /**
-     * The set of protections the player can access
+     * The ids of the protections the player can temporarily access, e.g. because they unlocked them
      */
-    private final Set<Protection> accessibleProtections = new HashSet<Protection>();
+    private final ExpiringIdSet accessibleProtections = new ExpiringIdSet();
 
     public LWCPlayer(LWC lwc, Player player) {
         this.lwc = lwc;
@@ -90,11 +91,18 @@ public class LWCPlayer implements CommandSender {
      * @return
      */
     public static LWCPlayer getPlayer(Player player) {
-        if (!playerCache.containsKey(player)) {
-            playerCache.put(player, new LWCPlayer(LWC.getInstance(), player));
+        UUID uuid = player.getUniqueId();
+        LWCPlayer lwcPlayer = playerCache.get(uuid);
+
+        if (lwcPlayer == null) {
+            lwcPlayer = new LWCPlayer(LWC.getInstance(), player);
+            playerCache.put(uuid, lwcPlayer);
+        } else if (lwcPlayer.player != player) {
+            // they logged in again without quitting being noticed
+            lwcPlayer.player = player;
         }
 
-        return playerCache.get(player);
+        return lwcPlayer;
     }
 
     /**
@@ -104,7 +112,7 @@ public class LWCPlayer implements CommandSender {
      */
     public static void removePlayer(Player player) {
         // uncache them
-        playerCache.remove(player);
+        playerCache.remove(player.getUniqueId());
     }
 
     /**
@@ -262,20 +270,56 @@ public class LWCPlayer implements CommandSender {
     }
 
     /**
+     * Get the protections the player can temporarily access. This loads every one of them, so use
+     * {@link #hasAccessibleProtection(int)} to check a single protection.
+     *
      * @return the set of protections the player can temporarily access
      */
     public Set<Protection> getAccessibleProtections() {
-        return new HashSet<Protection>(accessibleProtections);
+        Set<Protection> protections = new HashSet<Protection>();
+
+        for (int id : accessibleProtections.toArray(System.currentTimeMillis())) {
+            Protection protection = lwc.getPhysicalDatabase().loadProtection(id);
+
+            if (protection != null) {
+                protections.add(protection);
+            }
+        }
+
+        return protections;
+    }
+
+    /**
+     * Check if the player can temporarily access a protection
+     *
+     * @param protectionId
+     * @return
+     */
+    public boolean hasAccessibleProtection(int protectionId) {
+        return accessibleProtections.contains(protectionId, System.currentTimeMillis());
+    }
+
+    /**
+     * Check if the player can temporarily access a protection
+     *
+     * @param protection
+     * @return
+     */
+    public boolean hasAccessibleProtection(Protection protection) {
+        return hasAccessibleProtection(protection.getId());
     }
 
     /**
-     * Add an accessible protection for the player
+     * Add an accessible protection for the player. Access expires after core.unlockTimeout seconds, if set.
      *
      * @param protection
      * @return
      */
     public boolean addAccessibleProtection(Protection protection) {
-        return accessibleProtections.add(protection);
+        int timeout = lwc.getConfiguration().getInt("core.unlockTimeout", 0);
+        long expiry = timeout > 0 ? System.currentTimeMillis() + timeout * 1000L : ExpiringIdSet.NEVER;
+
+        return accessibleProtections.add(protection.getId(), expiry);
     }
 
     /**
@@ -285,7 +329,7 @@ public class LWCPlayer implements CommandSender {
      * @return
      */
     public boolean removeAccessibleProtection(Protection protection) {
-        return accessibleProtections.remove(protection);
+        return accessibleProtections.remove(protection.getId());
     }
 
     /**
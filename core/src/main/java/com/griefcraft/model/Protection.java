@@ -30,8 +30,10 @@ package com.griefcraft.model;
 
 import com.griefcraft.bukkit.EntityBlock;
 import com.griefcraft.cache.ProtectionCache;
+import com.griefcraft.cache.ProtectionCountCache;
 import com.griefcraft.lwc.LWC;
 import com.griefcraft.scripting.event.LWCProtectionRemovePostEvent;
+import com.griefcraft.sql.PhysDB;
 import com.griefcraft.util.*;
 
 import org.bukkit.Bukkit;
@@ -41,9 +43,12 @@ import org.bukkit.block.Block;
 import org.bukkit.entity.Player;
 import org.json.simple.JSONArray;
 import org.json.simple.JSONObject;
+import org.json.simple.parser.JSONParser;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.EnumSet;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
@@ -115,6 +120,51 @@ public class Protection {
 
     }
 
+    /**
+     * The columns a protection is stored in, used to only write the values that changed
+     */
+    public enum Column {
+
+        TYPE("type"),
+        BLOCK_ID("blockId"),
+        WORLD("world"),
+
+        /**
+         * The rights, flags and anything else stored in {@link Protection#getData()}
+         */
+        DATA("data"),
+
+        OWNER("owner"),
+        PASSWORD("password"),
+        X("x"),
+        Y("y"),
+        Z("z"),
+        DATE("date"),
+        LAST_ACCESSED("last_accessed"),
+
+        /**
+         * The other blocks the protection is made of, see {@link Protection#getRelatedBlocks()}
+         */
+        RELATED("related");
+
+        /**
+         * The name of the column in the protections table
+         */
+        private final String columnName;
+
+        Column(String columnName) {
+            this.columnName = columnName;
+        }
+
+        /**
+         * @return the name of the column in the protections table
+         */
+        public String getColumnName() {
+            return columnName;
+        }
+
+    }
+
     /**
      * All of the history items associated with this protection
      */
@@ -145,6 +195,28 @@ public class Protection {
      */
     private final JSONObject data = new JSONObject();
 
+    /**
+     * Parsers used to decode protection data, one per thread as they are not thread safe
+     */
+    private static final ThreadLocal<JSONParser> jsonParser = new ThreadLocal<JSONParser>() {
+        @Override
+        protected JSONParser initialValue() {
+            return new JSONParser();
+        }
+    };
+
+    /**
+     * True while the data column has not been decoded into the data, permissions and flags yet. It is decoded the
+     * first time any of them is used.
+     */
+    private volatile boolean dataPending = false;
+
+    /**
+     * The data column as it was loaded from the database while it has not been decoded yet. Guarded by
+     * {@link #data}.
+     */
+    private String encodedData;
+
     /**
      * Unique id (in sql)
      */
@@ -202,15 +274,21 @@ public class Protection {
     private boolean removing = false;
 
     /**
-     * True when the protection has been modified and should be saved
+     * The columns that changed since the protection was loaded or last saved. Guarded by itself.
      */
-    private boolean modified = false;
+    private final EnumSet<Column> changes = EnumSet.noneOf(Column.class);
 
     /**
      * The protection finder used to find this protection
      */
     private ProtectionFinder finder;
 
+    /**
+     * The other blocks the protection is made of as x, y, z offsets from its own block. Null if they are unknown.
+     * Replaced as a whole, never modified.
+     */
+    private volatile int[] relatedBlocks;
+
     /**
      * The block the protection is at. Saves world calls and allows better concurrency
      */
@@ -275,7 +353,7 @@ public class Protection {
 
                 if (uuid != null) {
                     permission.setName(uuid.toString());
-                    modified = true;
+                    markChanged(Column.DATA);
                     res = true;
                 }
             }
@@ -290,6 +368,8 @@ public class Protection {
      * @return true if the protection requires conversion
      */
     public boolean needsUUIDConversion() {
+        decodeData();
+
         if (!UUIDRegistry.isValidUUID(owner)) {
             return true;
         }
@@ -319,6 +399,14 @@ public class Protection {
      * @return
      */
     public void encodeRights() {
+        decodeData();
+        putRights();
+    }
+
+    /**
+     * Put the rights into the data as JSON
+     */
+    private void putRights() {
         // create the root
         JSONArray root = new JSONArray();
 
@@ -336,6 +424,14 @@ public class Protection {
      * Encode the protection flags to JSON
      */
     public void encodeFlags() {
+        decodeData();
+        putFlags();
+    }
+
+    /**
+     * Put the flags into the data as JSON
+     */
+    private void putFlags() {
         JSONArray root = new JSONArray();
 
         for (Flag flag : flags.values()) {
@@ -452,6 +548,17 @@ public class Protection {
      * @return
      */
     public boolean hasFlag(Flag.Type type) {
+        if (dataPending) {
+            String encoded = encodedData;
+
+            // every flag encoded as JSON has an id; without one there is no need to decode anything
+            if (encoded != null && !CompactData.isCompact(encoded) && !encoded.contains("\"id\"")) {
+                return false;
+            }
+
+            decodeData();
+        }
+
         return flags.containsKey(type);
     }
 
@@ -462,6 +569,7 @@ public class Protection {
      * @return
      */
     public Flag getFlag(Flag.Type type) {
+        decodeData();
         return flags.get(type);
     }
 	
@@ -471,6 +579,7 @@ public class Protection {
 	 * @return 
 	 */
 	public Map<Flag.Type, Flag> getFlags() {
+		decodeData();
 		return Collections.unmodifiableMap(flags);
 	}
 
@@ -481,13 +590,16 @@ public class Protection {
      * @return
      */
     public boolean addFlag(Flag flag) {
+        decodeData();
+
         if (removed || flag == null) {
             return false;
         }
 
         if (!flags.containsKey(flag.getType())) {
             flags.put(flag.getType(), flag);
-            modified = true;
+            markChanged(Column.DATA);
+            LWC.getInstance().getRedstoneDecisionCache().invalidate(id);
             return true;
         }
 
@@ -501,12 +613,15 @@ public class Protection {
      * @return
      */
     public void removeFlag(Flag flag) {
+        decodeData();
+
         if (removed) {
             return;
         }
 
         flags.remove(flag.getType());
-        this.modified = true;
+        markChanged(Column.DATA);
+        LWC.getInstance().getRedstoneDecisionCache().invalidate(id);
     }
 
     /**
@@ -517,6 +632,8 @@ public class Protection {
      * @return the permissions the player has
      */
     public Permission.Access getAccess(String name, Permission.Type type) {
+        decodeData();
+
         for (Permission permission : permissions) {
             if (permission.getType() == type && permission.getName().equalsIgnoreCase(name)) {
                 return permission.getAccess();
@@ -530,6 +647,7 @@ public class Protection {
      * @return the list of permissions
      */
     public List<Permission> getPermissions() {
+        decodeData();
         return Collections.unmodifiableList(new ArrayList<Permission>(permissions));
     }
 
@@ -537,6 +655,8 @@ public class Protection {
      * Remove temporary permissions rights from the protection
      */
     public void removeTemporaryPermissions() {
+        decodeData();
+
         Iterator<Permission> iter = permissions.iterator();
 
         while (iter.hasNext()) {
@@ -554,6 +674,8 @@ public class Protection {
      * @param permission
      */
     public void addPermission(Permission permission) {
+        decodeData();
+
         if (removed || permission == null) {
             return;
         }
@@ -563,7 +685,7 @@ public class Protection {
 
         // now we can safely add it
         permissions.add(permission);
-        modified = true;
+        markChanged(Column.DATA);
     }
 
     /**
@@ -573,6 +695,8 @@ public class Protection {
      * @param type
      */
     public void removePermissions(String name, Permission.Type type) {
+        decodeData();
+
         if (removed) {
             return;
         }
@@ -584,7 +708,7 @@ public class Protection {
 
             if ((permission.getName().equals(name) || name.equals("*")) && permission.getType() == type) {
                 iter.remove();
-                modified = true;
+                markChanged(Column.DATA);
             }
         }
     }
@@ -593,8 +717,10 @@ public class Protection {
      * Remove all of the permissions
      */
     public void removeAllPermissions() {
+        decodeData();
+
         permissions.clear();
-        modified = true;
+        markChanged(Column.DATA);
     }
 
     /**
@@ -611,10 +737,198 @@ public class Protection {
         return getBlockType() == block.getType();
     }
 
+    /**
+     * Checks if the protection was removed from the database
+     *
+     * @return
+     */
+    public boolean isRemoved() {
+        return removed;
+    }
+
     public JSONObject getData() {
+        decodeData();
         return data;
     }
 
+    /**
+     * Get the protection's data encoded for the data column. If the data was not changed since it was loaded, it is
+     * returned as it was loaded without being decoded.
+     *
+     * @return
+     */
+    public String getEncodedData() {
+        if (dataPending) {
+            synchronized (data) {
+                if (dataPending) {
+                    return encodedData;
+                }
+            }
+        }
+
+        PhysDB database = LWC.getInstance().getPhysicalDatabase();
+        return encodeData(database != null && database.isCompactData());
+    }
+
+    /**
+     * Encode the protection's data for the data column
+     *
+     * @param compact true to use the compact form (see {@link CompactData}), false for JSON
+     * @return
+     */
+    public String encodeData(boolean compact) {
+        decodeData();
+
+        if (compact) {
+            return CompactData.encode(permissions, flags.values(), data, LWC.getInstance().getPhysicalDatabase());
+        }
+
+        putRights();
+        putFlags();
+        return data.toJSONString();
+    }
+
+    /**
+     * Set the data column as it was loaded from the database. It is decoded the first time the protection's data,
+     * permissions or flags are used.
+     *
+     * @param encodedData
+     */
+    public void setEncodedData(String encodedData) {
+        synchronized (data) {
+            this.encodedData = encodedData;
+            this.dataPending = encodedData != null && !encodedData.trim().isEmpty();
+        }
+    }
+
+    /**
+     * Decode the data column if it has not been decoded yet
+     */
+    private void decodeData() {
+        if (!dataPending) {
+            return;
+        }
+
+        synchronized (data) {
+            if (!dataPending) {
+                return;
+            }
+
+            // only ever the column as it was read with the rest of the row, so decoding never queries the database
+            decodeData(encodedData);
+
+            encodedData = null;
+            dataPending = false;
+        }
+    }
+
+    /**
+     * Decode the data column into the data, permissions and flags
+     *
+     * @param encoded
+     */
+    private void decodeData(String encoded) {
+        if (CompactData.isCompact(encoded)) {
+            CompactData.Decoded decoded = CompactData.decode(encoded, LWC.getInstance().getPhysicalDatabase());
+
+            if (decoded == null) {
+                return;
+            }
+
+            data.putAll(decoded.data);
+
+            for (Permission permission : decoded.permissions) {
+                addDecodedPermission(permission);
+            }
+
+            for (Flag flag : decoded.flags) {
+                if (!flags.containsKey(flag.getType())) {
+                    flags.put(flag.getType(), flag);
+                }
+            }
+
+            // keep the data the same as if it had been loaded from JSON
+            putRights();
+            putFlags();
+            return;
+        }
+
+        // rev up them JSON parsers!
+        Object object;
+
+        try {
+            object = jsonParser.get().parse(encoded);
+        } catch (Exception e) {
+            return;
+        } catch (Error e) {
+            return;
+        }
+
+        if (!(object instanceof JSONObject)) {
+            return;
+        }
+
+        // obtain the root
+        JSONObject root = (JSONObject) object;
+        data.putAll(root);
+
+        // Attempt to parse rights
+        Object rights = root.get("rights");
+
+        if (rights instanceof JSONArray) {
+            for (Object node : (JSONArray) rights) {
+                // we only want to use the maps
+                if (!(node instanceof JSONObject)) {
+                    continue;
+                }
+
+                // decode the map
+                Permission permission = Permission.decodeJSON((JSONObject) node);
+
+                // bingo!
+                if (permission != null) {
+                    addDecodedPermission(permission);
+                }
+            }
+        }
+
+        // Attempt to parse flags
+        Object flags = root.get("flags");
+
+        if (flags instanceof JSONArray) {
+            for (Object node : (JSONArray) flags) {
+                if (!(node instanceof JSONObject)) {
+                    continue;
+                }
+
+                Flag flag = Flag.decodeJSON((JSONObject) node);
+
+                if (flag != null && !this.flags.containsKey(flag.getType())) {
+                    this.flags.put(flag.getType(), flag);
+                }
+            }
+        }
+    }
+
+    /**
+     * Add a decoded permission, replacing any permission with the same identity, without marking the data as changed
+     *
+     * @param permission
+     */
+    private void addDecodedPermission(Permission permission) {
+        Iterator<Permission> iter = permissions.iterator();
+
+        while (iter.hasNext()) {
+            Permission other = iter.next();
+
+            if (other.getName().equals(permission.getName()) && other.getType() == permission.getType()) {
+                iter.remove();
+            }
+        }
+
+        permissions.add(permission);
+    }
+
     public int getBlockId() {
         return blockId;
     }
@@ -668,8 +982,15 @@ public class Protection {
             return;
         }
 
+        // a protection that is being loaded has no owner yet
+        if (owner != null && this.blockId != blockId) {
+            ProtectionCountCache counts = LWC.getInstance().getProtectionCountCache();
+            counts.add(owner, this.blockId, -1);
+            counts.add(owner, blockId, 1);
+        }
+
         this.blockId = blockId;
-        this.modified = true;
+        markChanged(Column.BLOCK_ID);
     }
 
     public void setPassword(String password) {
@@ -678,7 +999,7 @@ public class Protection {
         }
 
         this.password = password;
-        this.modified = true;
+        markChanged(Column.PASSWORD);
     }
 
     public void setCreation(String creation) {
@@ -687,7 +1008,7 @@ public class Protection {
         }
 
         this.creation = creation;
-        this.modified = true;
+        markChanged(Column.DATE);
     }
 
     public void setId(int id) {
@@ -696,7 +1017,7 @@ public class Protection {
         }
 
         this.id = id;
-        this.modified = true;
+        markAllChanged();
     }
 
     public void setOwner(String owner) {
@@ -704,8 +1025,15 @@ public class Protection {
             return;
         }
 
+        // a protection that is being loaded has no owner yet
+        if (this.owner != null && !this.owner.equals(owner)) {
+            ProtectionCountCache counts = LWC.getInstance().getProtectionCountCache();
+            counts.add(this.owner, blockId, -1);
+            counts.add(owner, blockId, 1);
+        }
+
         this.owner = owner;
-        this.modified = true;
+        markChanged(Column.OWNER);
     }
 
     public void setType(Type type) {
@@ -714,7 +1042,7 @@ public class Protection {
         }
 
         this.type = type;
-        this.modified = true;
+        markChanged(Column.TYPE);
     }
 
     public void setWorld(String world) {
@@ -723,7 +1051,7 @@ public class Protection {
         }
 
         this.world = world;
-        this.modified = true;
+        markChanged(Column.WORLD);
     }
 
     public void setX(int x) {
@@ -732,7 +1060,7 @@ public class Protection {
         }
 
         this.x = x;
-        this.modified = true;
+        markChanged(Column.X);
     }
 
     public void setY(int y) {
@@ -741,7 +1069,7 @@ public class Protection {
         }
 
         this.y = y;
-        this.modified = true;
+        markChanged(Column.Y);
     }
 
     public void setZ(int z) {
@@ -750,7 +1078,7 @@ public class Protection {
         }
 
         this.z = z;
-        this.modified = true;
+        markChanged(Column.Z);
     }
 
     public void setLastAccessed(long lastAccessed) {
@@ -759,7 +1087,7 @@ public class Protection {
         }
 
         this.lastAccessed = lastAccessed;
-        this.modified = true;
+        markChanged(Column.LAST_ACCESSED);
     }
 
     /**
@@ -781,6 +1109,120 @@ public class Protection {
         return finder;
     }
 
+    /**
+     * Get the other blocks the protection is made of, e.g. the top half of a door, the other half of a double chest
+     * or the block a sign hangs on. They are matched when the protection is first found and stored with it, so a
+     * protection loaded from the database can be found from any of its blocks without matching them again.
+     *
+     * @return x, y, z offsets from the protection's block, or null if they were never matched. Must not be modified.
+     */
+    @Nullable
+    public int[] getRelatedBlocks() {
+        return relatedBlocks;
+    }
+
+    /**
+     * Take the related blocks from the blocks the protection finder matched
+     *
+     * @return true if they changed and the protection needs to be saved
+     */
+    public boolean updateRelatedBlocks() {
+        if (finder == null || removed) {
+            return false;
+        }
+
+        List<Block> matched = finder.getMatchedBlocks();
+        int[] offsets = new int[matched.size() * 3];
+        int length = 0;
+
+        for (Block block : matched) {
+            if (block.getX() == x && block.getY() == y && block.getZ() == z) {
+                continue;
+            }
+
+            offsets[length++] = block.getX() - x;
+            offsets[length++] = block.getY() - y;
+            offsets[length++] = block.getZ() - z;
+        }
+
+        if (length < offsets.length) {
+            int[] trimmed = new int[length];
+            System.arraycopy(offsets, 0, trimmed, 0, length);
+            offsets = trimmed;
+        }
+
+        if (Arrays.equals(offsets, relatedBlocks)) {
+            return false;
+        }
+
+        relatedBlocks = offsets;
+        markChanged(Column.RELATED);
+        return true;
+    }
+
+    /**
+     * @return the related blocks as they are stored in the database, e.g. "0:1:0,0:-1:0"; null if they are unknown
+     */
+    public String getEncodedRelatedBlocks() {
+        int[] offsets = relatedBlocks;
+
+        if (offsets == null) {
+            return null;
+        }
+
+        StringBuilder builder = new StringBuilder();
+
+        for (int i = 0; i < offsets.length; i += 3) {
+            if (i > 0) {
+                builder.append(',');
+            }
+
+            builder.append(offsets[i]).append(':').append(offsets[i + 1]).append(':').append(offsets[i + 2]);
+        }
+
+        return builder.toString();
+    }
+
+    /**
+     * Set the related blocks as they were loaded from the database
+     *
+     * @param encoded the related column; null or malformed if they are unknown
+     */
+    public void setEncodedRelatedBlocks(String encoded) {
+        if (encoded == null) {
+            relatedBlocks = null;
+            return;
+        }
+
+        if (encoded.isEmpty()) {
+            relatedBlocks = new int[0];
+            return;
+        }
+
+        String[] blocks = encoded.split(",");
+        int[] offsets = new int[blocks.length * 3];
+
+        try {
+            for (int i = 0; i < blocks.length; i++) {
+                String[] parts = blocks[i].split(":");
+
+                if (parts.length != 3) {
+                    relatedBlocks = null;
+                    return;
+                }
+
+                offsets[i * 3] = Integer.parseInt(parts[0]);
+                offsets[i * 3 + 1] = Integer.parseInt(parts[1]);
+                offsets[i * 3 + 2] = Integer.parseInt(parts[2]);
+            }
+        } catch (NumberFormatException e) {
+            relatedBlocks = null;
+            return;
+        }
+
+        relatedBlocks = offsets;
+    }
+
     /**
      * Remove the protection from the database
      */
@@ -793,7 +1235,7 @@ public class Protection {
         removeTemporaryPermissions();
 
         // we're removing it, so assume there are no changes
-        modified = false;
+        clearChanges();
         removing = true;
 
         // broadcast the removal event
@@ -814,6 +1256,7 @@ public class Protection {
 
         // make the protection immutable
         removed = true;
+        lwc.getProtectionCountCache().add(owner, blockId, -1);
 
         // and now finally remove it from the database
         lwc.getDatabaseThread().removeProtection(this);
@@ -827,6 +1270,7 @@ public class Protection {
     public void removeCache() {
         LWC lwc = LWC.getInstance();
         lwc.getProtectionCache().removeProtection(this);
+        lwc.getRedstoneDecisionCache().invalidate(id);
         radiusRemoveCache();
     }
 
@@ -835,18 +1279,17 @@ public class Protection {
      */
     public void radiusRemoveCache() {
         ProtectionCache cache = LWC.getInstance().getProtectionCache();
+        LWC.getInstance().getHopperDecisionCache().invalidate(world, this.x, this.y, this.z, 3);
 
         for (int x = -3; x <= 3; x++) {
             for (int y = -3; y <= 3; y++) {
                 for (int z = -3; z <= 3; z++) {
-                    String cacheKey = world + ":" + (this.x + x) + ":" + (this.y + y) + ":" + (this.z + z);
-
                     // get the protection for that entry
-                    Protection protection = cache.getProtection(cacheKey);
+                    Protection protection = cache.getProtection(world, this.x + x, this.y + y, this.z + z);
 
                     // the ifnull compensates for the block being in the null cache. It will remove it from that.
                     if ((protection != null && id == protection.getId()) || protection == null) {
-                        cache.remove(cacheKey);
+                        cache.remove(world, this.x + x, this.y + y, this.z + z);
                     }
                 }
             }
@@ -861,6 +1304,7 @@ public class Protection {
             return;
         }
 
+        invalidateHopperDecisions();
         LWC.getInstance().getDatabaseThread().addProtection(this);
     }
 
@@ -872,19 +1316,114 @@ public class Protection {
             return;
         }
 
-        // encode JSON objects
-        encodeRights();
-        encodeFlags();
+        invalidateHopperDecisions();
+
+        // only save the columns that were modified
+        Set<Column> columns = prepareSave();
 
-        // only save the protection if it was modified
-        if (modified && !removing) {
-            LWC.getInstance().getPhysicalDatabase().saveProtection(this);
+        if (!columns.isEmpty()) {
+            LWC.getInstance().getPhysicalDatabase().saveProtection(this, columns);
         }
 
         // check the cache for history updates
         checkAndSaveHistory();
     }
 
+    /**
+     * Forget the cached hopper decisions around the protection if a change could affect them, i.e. its owner,
+     * flags, type or block changed
+     */
+    private void invalidateHopperDecisions() {
+        boolean affected;
+
+        synchronized (changes) {
+            affected = changes.contains(Column.DATA) || changes.contains(Column.OWNER) || changes.contains(Column.TYPE)
+                    || changes.contains(Column.BLOCK_ID) || changes.contains(Column.WORLD)
+                    || changes.contains(Column.X) || changes.contains(Column.Y) || changes.contains(Column.Z);
+        }
+
+        if (affected) {
+            LWC.getInstance().getHopperDecisionCache().invalidate(world, x, y, z, 1);
+        }
+    }
+
+    /**
+     * Take the columns that changed since the protection was last saved so they can be written to the database.
+     * The protection's data is only encoded if it changed.
+     *
+     * @return the columns that need to be written; empty if the protection does not need to be saved
+     */
+    public Set<Column> prepareSave() {
+        if (removed || removing) {
+            return EnumSet.noneOf(Column.class);
+        }
+
+        EnumSet<Column> columns;
+
+        synchronized (changes) {
+            columns = EnumSet.copyOf(changes);
+            changes.clear();
+        }
+
+        // encode JSON objects
+        if (columns.contains(Column.DATA)) {
+            encodeRights();
+            encodeFlags();
+        }
+
+        return columns;
+    }
+
+    /**
+     * Mark a column as changed so it is written when the protection is saved
+     *
+     * @param column
+     */
+    public void markChanged(Column column) {
+        synchronized (changes) {
+            changes.add(column);
+        }
+    }
+
+    /**
+     * Mark the given columns as changed, e.g. to retry a save that failed
+     *
+     * @param columns
+     */
+    public void markChanged(Set<Column> columns) {
+        synchronized (changes) {
+            changes.addAll(columns);
+        }
+    }
+
+    /**
+     * Mark every column as changed so the whole protection is written when it is saved, e.g. when copying it to
+     * another database
+     */
+    public void markAllChanged() {
+        synchronized (changes) {
+            changes.addAll(EnumSet.allOf(Column.class));
+        }
+    }
+
+    /**
+     * Forget any changes, e.g. once the protection was loaded from the database
+     */
+    public void clearChanges() {
+        synchronized (changes) {
+            changes.clear();
+        }
+    }
+
+    /**
+     * @return true if the protection has changes that have not been saved yet
+     */
+    public boolean isModified() {
+        synchronized (changes) {
+            return !changes.isEmpty();
+        }
+    }
+
     /**
      * Saves any of the history items for the Protection that have been modified
      */
@@ -955,6 +1494,8 @@ public class Protection {
      */
     @Override
     public String toString() {
+        decodeData();
+
         // format the flags prettily
         String flagStr = "";
 
@@ -28,12 +28,13 @@
 
 package com.griefcraft.modules.admin;
 
+import com.griefcraft.cache.ProtectionCache;
 import com.griefcraft.lwc.LWC;
 import com.griefcraft.model.Protection;
 import com.griefcraft.scripting.JavaModule;
 import com.griefcraft.scripting.event.LWCCommandEvent;
-import com.griefcraft.sql.Database;
 import com.griefcraft.sql.PhysDB;
+import com.griefcraft.sql.PooledConnection;
 import com.griefcraft.util.Colors;
 import org.bukkit.Bukkit;
 import org.bukkit.block.Block;
@@ -44,6 +45,8 @@ import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Statement;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
@@ -57,6 +60,25 @@ public class AdminCleanup extends JavaModule {
      */
     private static int BATCH_SIZE = 250;
 
+    /**
+     * Orders protections by the world and chunk they are in
+     */
+    private static final Comparator<Protection> CHUNK_ORDER = new Comparator<Protection>() {
+        public int compare(Protection first, Protection second) {
+            int compare = first.getWorld().compareTo(second.getWorld());
+
+            if (compare == 0) {
+                compare = Integer.compare(first.getX() >> 4, second.getX() >> 4);
+            }
+
+            if (compare == 0) {
+                compare = Integer.compare(first.getZ() >> 4, second.getZ() >> 4);
+            }
+
+            return compare;
+        }
+    };
+
     @Override
     public void onCommand(LWCCommandEvent event) {
         if (event.isCancelled()) {
@@ -123,8 +145,9 @@ public class AdminCleanup extends JavaModule {
             // the database prefix
             String prefix = lwc.getPhysicalDatabase().getPrefix();
 
-            // create the statement to use
-            Statement statement = lwc.getPhysicalDatabase().getConnection().createStatement();
+            // create the statement to use, on a connection of our own since this runs in a separate thread
+            PooledConnection connection = lwc.getPhysicalDatabase().borrowConnection();
+            Statement statement = connection.getConnection().createStatement();
 
             while (iter.hasNext()) {
                 int protectionId = iter.next();
@@ -147,6 +170,10 @@ public class AdminCleanup extends JavaModule {
             }
 
             statement.close();
+            connection.close();
+
+            // the owners of the removed protections aren't known
+            lwc.getProtectionCountCache().clear();
         }
 
         public void run() {
@@ -167,20 +194,14 @@ public class AdminCleanup extends JavaModule {
                 // amount of protections
                 int totalProtections = lwc.getPhysicalDatabase().getProtectionCount();
 
-                // TODO separate stream logic to somewhere else :)
-                // Create a new database connection, we are just reading
-                PhysDB database = new PhysDB();
-                database.connect();
-                database.load();
-
-                Statement resultStatement = database.getConnection().createStatement(ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
-
-                if (lwc.getPhysicalDatabase().getType() == Database.Type.MySQL) {
-                    resultStatement.setFetchSize(Integer.MIN_VALUE);
-                }
+                // Read on a dedicated connection so the scan doesn't hold up anything else
+                PhysDB database = lwc.getPhysicalDatabase();
+                PooledConnection stream = database.openStreamingConnection();
+                Statement resultStatement = stream.createStreamingStatement();
 
                 String prefix = lwc.getPhysicalDatabase().getPrefix();
-                ResultSet result = resultStatement.executeQuery("SELECT id, owner, type, x, y, z, data, blockId, world, password, date, last_accessed FROM " + prefix + "protections");
+                // only the block is checked, so the data of each protection is never decoded
+                ResultSet result = resultStatement.executeQuery("SELECT " + PhysDB.PROTECTION_COLUMNS + " FROM " + prefix + "protections");
                 int checked = 0;
 
                 while (result.next()) {
@@ -195,6 +216,9 @@ public class AdminCleanup extends JavaModule {
                         }
                     }
 
+                    // visit the protections chunk by chunk so each chunk is only loaded once per batch
+                    Collections.sort(protections, CHUNK_ORDER);
+
                     // Get all of the blocks in the world
                     Future<Void> getBlocks = scheduler.callSyncMethod(lwc.getPlugin(), new Callable<Void>() {
                         public Void call() throws Exception {
@@ -240,10 +264,22 @@ public class AdminCleanup extends JavaModule {
                 // close the sql statements
                 result.close();
                 resultStatement.close();
+                stream.close();
 
                 // flush all of the queries
                 push(toRemove);
 
+                // and drop the removed protections from the cache so they can't be found by location anymore
+                ProtectionCache cache = lwc.getProtectionCache();
+
+                for (int protectionId : toRemove) {
+                    Protection protection = cache.getProtectionById(protectionId);
+
+                    if (protection != null) {
+                        cache.removeProtection(protection);
+                    }
+                }
+
                 sender.sendMessage("Cleanup completed. Removed " + removed + " protections out of " + checked + " checked protections.");
             } catch (Exception e) { // database.connect() throws Exception
                 System.out.println("Exception caught during cleanup: " + e.getMessage());
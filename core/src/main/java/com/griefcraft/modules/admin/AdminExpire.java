@@ -35,6 +35,8 @@ import com.griefcraft.util.StringUtil;
 import com.griefcraft.util.TimeUtil;
 import org.bukkit.command.CommandSender;
 
+import java.util.function.Consumer;
+
 public class AdminExpire extends JavaModule {
 
     @Override
@@ -47,8 +49,8 @@ public class AdminExpire extends JavaModule {
             return;
         }
 
-        LWC lwc = event.getLWC();
-        CommandSender sender = event.getSender();
+        final LWC lwc = event.getLWC();
+        final CommandSender sender = event.getSender();
         String[] args = event.getArgs();
 
         if (!args[0].equals("expire")) {
@@ -75,15 +77,16 @@ public class AdminExpire extends JavaModule {
         int threshold = (int) ((System.currentTimeMillis() / 1000L) - time);
 
         // remove the protections
-        int completed = lwc.fastRemoveProtections(sender, "last_accessed <= " + threshold + " AND last_accessed >= 0", shouldRemoveBlocks);
-
-        // reset the cache
-        if (completed > 0) {
-            LWC.getInstance().getPhysicalDatabase().precache();
-        }
-
-        lwc.sendLocale(sender, "protection.admin.expire.removed", "count", completed);
-
+        lwc.fastRemoveProtectionsAsync(sender, "last_accessed <= " + threshold + " AND last_accessed >= 0", shouldRemoveBlocks).thenAccept(new Consumer<Integer>() {
+            public void accept(Integer completed) {
+                // reset the cache
+                if (completed > 0) {
+                    LWC.getInstance().getPhysicalDatabase().precache();
+                }
+
+                lwc.sendLocale(sender, "protection.admin.expire.removed", "count", completed);
+            }
+        });
     }
 
 }
\ No newline at end of file
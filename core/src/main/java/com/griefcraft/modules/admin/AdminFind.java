@@ -32,8 +32,10 @@ import com.griefcraft.lwc.LWC;
 import com.griefcraft.model.Protection;
 import com.griefcraft.scripting.JavaModule;
 import com.griefcraft.scripting.event.LWCCommandEvent;
+import com.griefcraft.util.UUIDRegistry;
 import org.bukkit.command.CommandSender;
 
+import java.util.Collections;
 import java.util.List;
 
 public class AdminFind extends JavaModule {
@@ -48,8 +50,8 @@ public class AdminFind extends JavaModule {
             return;
         }
 
-        LWC lwc = event.getLWC();
-        CommandSender sender = event.getSender();
+        final LWC lwc = event.getLWC();
+        final CommandSender sender = event.getSender();
         String[] args = event.getArgs();
 
         if (!args[0].equals("find")) {
@@ -64,9 +66,7 @@ public class AdminFind extends JavaModule {
             return;
         }
 
-        final int perPage = 7; // listings per page
-
-        String player = args[1];
+        final String player = args[1];
         int page = 1;
 
         if (args.length > 2) {
@@ -78,6 +78,26 @@ public class AdminFind extends JavaModule {
             }
         }
 
+        final int finalPage = page;
+
+        // resolve the player first so looking up their UUID does not have to wait
+        UUIDRegistry.whenResolved(Collections.singletonList(player), new Runnable() {
+            public void run() {
+                find(lwc, sender, player, finalPage);
+            }
+        });
+    }
+
+    /**
+     * Show a page of the protections of the given player
+     *
+     * @param lwc
+     * @param sender
+     * @param player
+     * @param page
+     */
+    private void find(LWC lwc, CommandSender sender, String player, int page) {
+        final int perPage = 7; // listings per page
         int start = (page - 1) * perPage;
 
         List<Protection> protections = lwc.getPhysicalDatabase().loadProtectionsByPlayer(player, start, perPage);
@@ -40,6 +40,7 @@ import com.griefcraft.util.UUIDRegistry;
 import org.bukkit.command.CommandSender;
 import org.bukkit.entity.Player;
 
+import java.util.Collections;
 import java.util.UUID;
 
 public class AdminForceOwner extends JavaModule {
@@ -98,9 +99,9 @@ public class AdminForceOwner extends JavaModule {
             return;
         }
 
-        LWC lwc = event.getLWC();
-        CommandSender sender = event.getSender();
-        String[] args = event.getArgs();
+        final LWC lwc = event.getLWC();
+        final CommandSender sender = event.getSender();
+        final String[] args = event.getArgs();
 
         if (!args[0].equals("forceowner")) {
             return;
@@ -114,6 +115,22 @@ public class AdminForceOwner extends JavaModule {
             return;
         }
 
+        // resolve the new owner first so converting it to a UUID does not have to wait
+        UUIDRegistry.whenResolved(Collections.singletonList(args[1]), new Runnable() {
+            public void run() {
+                forceOwner(lwc, sender, args);
+            }
+        });
+    }
+
+    /**
+     * Change the owner of the given protection, or let the player click the one to change
+     *
+     * @param lwc
+     * @param sender
+     * @param args
+     */
+    private void forceOwner(LWC lwc, CommandSender sender, String[] args) {
         String newOwner = args[1];
 
         // did they provide an ID?
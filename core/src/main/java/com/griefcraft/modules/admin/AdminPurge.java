@@ -37,7 +37,12 @@ import com.griefcraft.util.UUIDRegistry;
 import org.bukkit.ChatColor;
 import org.bukkit.command.CommandSender;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Function;
 
 public class AdminPurge extends JavaModule {
 
@@ -51,8 +56,8 @@ public class AdminPurge extends JavaModule {
             return;
         }
 
-        LWC lwc = event.getLWC();
-        CommandSender sender = event.getSender();
+        final LWC lwc = event.getLWC();
+        final CommandSender sender = event.getSender();
         String[] args = event.getArgs();
 
         if (!args[0].equals("purge")) {
@@ -67,10 +72,29 @@ public class AdminPurge extends JavaModule {
             return;
         }
 
-        boolean shouldRemoveBlocks = args[1].endsWith("remove");
-        String players = StringUtil.join(args, shouldRemoveBlocks ? 2 : 1);
+        final boolean shouldRemoveBlocks = args[1].endsWith("remove");
+        final String[] players = StringUtil.join(args, shouldRemoveBlocks ? 2 : 1).split(" ");
 
-        for (String toRemoveName : players.split(" ")) {
+        // resolve the players first so looking up their UUIDs does not have to wait
+        UUIDRegistry.whenResolved(Arrays.asList(players), new Runnable() {
+            public void run() {
+                purge(lwc, sender, players, shouldRemoveBlocks);
+            }
+        });
+    }
+
+    /**
+     * Remove the protections of the given players
+     *
+     * @param lwc
+     * @param sender
+     * @param players
+     * @param shouldRemoveBlocks
+     */
+    private void purge(final LWC lwc, final CommandSender sender, String[] players, boolean shouldRemoveBlocks) {
+        List<CompletableFuture<Integer>> removals = new ArrayList<CompletableFuture<Integer>>();
+
+        for (final String toRemoveName : players) {
             if (toRemoveName.contains("'")) continue; // bad me
 
             UUID toRemoveUuid = UUIDRegistry.getUUID(toRemoveName); // This will return a UUID associated with a name, or a UUID object for a UUID string
@@ -82,12 +106,20 @@ public class AdminPurge extends JavaModule {
             String toRemoveUuidString = toRemoveUuid.toString();
 
             // Remove all of them
-            lwc.fastRemoveProtectionsByPlayer(sender, toRemoveUuidString, shouldRemoveBlocks);
-            lwc.sendLocale(sender, "protection.admin.purge.finalize", "player", toRemoveName);
+            removals.add(lwc.fastRemoveProtectionsByPlayerAsync(sender, toRemoveUuidString, shouldRemoveBlocks).thenApply(new Function<Integer, Integer>() {
+                public Integer apply(Integer removed) {
+                    lwc.sendLocale(sender, "protection.admin.purge.finalize", "player", toRemoveName);
+                    return removed;
+                }
+            }));
         }
 
-        // reload the cache!
-        LWC.getInstance().getPhysicalDatabase().precache();
+        // reload the cache once they are all removed!
+        CompletableFuture.allOf(removals.toArray(new CompletableFuture[removals.size()])).thenRun(new Runnable() {
+            public void run() {
+                LWC.getInstance().getPhysicalDatabase().precache();
+            }
+        });
     }
 
 }
\ No newline at end of file
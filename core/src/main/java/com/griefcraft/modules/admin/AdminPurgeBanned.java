@@ -41,6 +41,7 @@ import java.io.IOException;
 import java.io.InputStreamReader;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.function.Consumer;
 
 public class AdminPurgeBanned extends JavaModule {
 
@@ -54,8 +55,8 @@ public class AdminPurgeBanned extends JavaModule {
             return;
         }
 
-        LWC lwc = event.getLWC();
-        CommandSender sender = event.getSender();
+        final LWC lwc = event.getLWC();
+        final CommandSender sender = event.getSender();
         String[] args = event.getArgs();
 
         if (!args[0].equals("purgebanned")) {
@@ -68,9 +69,12 @@ public class AdminPurgeBanned extends JavaModule {
         boolean shouldRemoveBlocks = args.length > 1 && args[1].endsWith("remove");
         List<String> players = loadBannedPlayers();
 
-        for (String toRemove : players) {
-            lwc.fastRemoveProtectionsByPlayer(sender, toRemove, shouldRemoveBlocks);
-            lwc.sendLocale(sender, "protection.admin.purge.finalize", "player", toRemove);
+        for (final String toRemove : players) {
+            lwc.fastRemoveProtectionsByPlayerAsync(sender, toRemove, shouldRemoveBlocks).thenAccept(new Consumer<Integer>() {
+                public void accept(Integer removed) {
+                    lwc.sendLocale(sender, "protection.admin.purge.finalize", "player", toRemove);
+                }
+            });
         }
     }
 
@@ -72,6 +72,7 @@ public class AdminQuery extends JavaModule {
                 Statement statement = lwc.getPhysicalDatabase().getConnection().createStatement();
                 statement.executeUpdate(query);
                 statement.close();
+                lwc.getProtectionCountCache().clear();
                 sender.sendMessage(Colors.Green + "Done.");
             } catch (SQLException e) {
                 sender.sendMessage(Colors.Red + "Err: " + e.getMessage());
@@ -97,9 +98,11 @@ public class AdminQuery extends JavaModule {
                 // choose the statement
                 if (args[0].startsWith("update")) {
                     int affected = statement.executeUpdate("UPDATE " + database.getPrefix() + "protections " + where);
+                    lwc.getProtectionCountCache().clear();
                     sender.sendMessage(Colors.Green + "Affected rows: " + affected);
                 } else if (args[0].startsWith("delete")) {
                     int affected = statement.executeUpdate("DELETE FROM " + database.getPrefix() + "protections WHERE " + where);
+                    lwc.getProtectionCountCache().clear();
                     sender.sendMessage(Colors.Green + "Affected rows: " + affected);
                     database.precache();
                 } else if (args[0].startsWith("select")) {
@@ -28,11 +28,22 @@
 
 package com.griefcraft.modules.admin;
 
+import com.griefcraft.lwc.LWC;
 import com.griefcraft.scripting.JavaModule;
+import com.griefcraft.scripting.ModuleLoader;
+import com.griefcraft.scripting.ModuleProfiler;
 import com.griefcraft.scripting.event.LWCCommandEvent;
+import com.griefcraft.util.Colors;
 import com.griefcraft.util.Statistics;
 import org.bukkit.command.CommandSender;
 
+import java.io.File;
+import java.io.IOException;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+
 public class AdminReport extends JavaModule {
 
     @Override
@@ -54,7 +65,76 @@ public class AdminReport extends JavaModule {
 
         // we have the right command
         event.setCancelled(true);
+
+        if (args.length > 1 && args[1].equalsIgnoreCase("queries")) {
+            sendQueryPlans(event.getLWC(), sender);
+            return;
+        }
+
+        if (args.length > 1 && args[1].equalsIgnoreCase("profile")) {
+            sendProfile(event.getLWC(), sender, args.length > 2 ? args[2].toLowerCase() : "");
+            return;
+        }
+
         Statistics.sendReport(sender);
     }
 
+    /**
+     * Send, export or reset the module profile
+     *
+     * @param lwc
+     * @param sender
+     * @param action empty to send the profile, "csv" to export it or "reset" to clear it
+     */
+    private void sendProfile(LWC lwc, CommandSender sender, String action) {
+        ModuleProfiler profiler = lwc.getModuleLoader().getProfiler();
+
+        if (!profiler.isEnabled()) {
+            sender.sendMessage(Colors.Red + "Module profiling is disabled. Set core.profiler.enabled to true and reload LWC.");
+            return;
+        }
+
+        if (action.equals("reset")) {
+            profiler.reset();
+            sender.sendMessage(Colors.Green + "Module profile reset.");
+            return;
+        }
+
+        if (action.equals("csv")) {
+            File file = new File(ModuleLoader.ROOT_PATH + "profile-" + new SimpleDateFormat("yyyyMMdd-HHmmss").format(new Date()) + ".csv");
+
+            try {
+                profiler.exportCsv(file);
+                sender.sendMessage(Colors.Green + "Module profile written to " + file.getPath());
+            } catch (IOException e) {
+                sender.sendMessage(Colors.Red + "Could not write the module profile: " + e.getMessage());
+            }
+
+            return;
+        }
+
+        sender.sendMessage(" ");
+        sender.sendMessage(Colors.Red + "LWC Module Profile");
+        Statistics.sendModuleProfile(sender, profiler, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Send the query plans of the most used statements
+     *
+     * @param lwc
+     * @param sender
+     */
+    private void sendQueryPlans(LWC lwc, CommandSender sender) {
+        sender.sendMessage(" ");
+        sender.sendMessage(Colors.Red + "LWC Query Plans");
+
+        for (Map.Entry<String, List<String>> entry : lwc.getPhysicalDatabase().explainQueries().entrySet()) {
+            sender.sendMessage("  " + entry.getKey() + ":");
+
+            for (String line : entry.getValue()) {
+                sender.sendMessage("    " + Colors.Green + line);
+            }
+        }
+    }
+
 }
\ No newline at end of file
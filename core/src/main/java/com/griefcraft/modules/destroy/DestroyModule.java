@@ -62,7 +62,7 @@ public class DestroyModule extends JavaModule {
         boolean isOwner = protection.isOwner(player);
 
         if (isOwner) {
-            if (!lwc.isAdmin(player) && Boolean.parseBoolean(lwc.resolveProtectionConfiguration(protection.getBlock(), "readonly-remove"))) {
+            if (!lwc.isAdmin(player) && lwc.getProtectionConfiguration(protection.getBlock()).isReadonlyRemove()) {
                 lwc.sendLocale(player, "protection.accessdenied");
                 event.setCancelled(true);
                 return;
@@ -81,7 +81,7 @@ public class DestroyModule extends JavaModule {
 
             protection.remove();
 
-            if (!Boolean.parseBoolean(lwc.resolveProtectionConfiguration(protection.getBlock(), "quiet"))) {
+            if (!lwc.getProtectionConfiguration(protection.getBlock()).isQuiet()) {
                 lwc.sendLocale(player, "protection.unregistered", "block", LWC.materialToString(protection.getBlockId()));
             }
             return;
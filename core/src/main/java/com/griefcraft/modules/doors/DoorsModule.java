@@ -36,6 +36,8 @@ import org.bukkit.block.data.type.Door;
 import org.bukkit.entity.Player;
 import org.bukkit.inventory.EquipmentSlot;
 
+import java.util.function.Consumer;
+
 import com.griefcraft.lwc.LWC;
 import com.griefcraft.model.Flag;
 import com.griefcraft.model.Protection;
@@ -121,9 +123,9 @@ public class DoorsModule extends JavaModule {
             return;
         }
 
-        Protection protection = event.getProtection();
+        final Protection protection = event.getProtection();
         Block block = event.getEvent().getClickedBlock(); // The block they actually clicked :)
-        Player player = event.getPlayer();
+        final Player player = event.getPlayer();
 
         // Check if the block is even something that should be opened
         if (!isValid(block.getType())) {
@@ -137,56 +139,63 @@ public class DoorsModule extends JavaModule {
             block = block.getRelative(BlockFace.DOWN);
         }
 
-        // Should we look for double doors?
-        boolean doubleDoors = usingDoubleDoors();
+        // toggle the door open
+        // wooden doors and trapdoors open when you right click
+        boolean opensWhenClicked = event.getEvent().getAction() == org.bukkit.event.block.Action.RIGHT_CLICK_BLOCK &&
+                !block.getType().name().contains("IRON");
+        changeDoorStates(true, (opensWhenClicked ? null : block));
+        scheduleAutoClose(protection, block);
 
-        // The BOTTOM half of the other side of the double door
-        Block doubleDoorBlock = null;
+        // TODO Keep double doors in sync
 
         // Only waste CPU if we need the double door block
-        if (doubleDoors) {
-            doubleDoorBlock = getDoubleDoor(block);
+        if (usingDoubleDoors()) {
+            final Block doubleDoorBlock = getDoubleDoor(block);
 
             if (doubleDoorBlock != null) {
-                Protection other = lwc.findProtection(doubleDoorBlock.getLocation());
-                if (!lwc.canAccessProtection(player, other)) {
-                    doubleDoorBlock = null; // don't open the other door :-)
-                }
+                // The other side may not be cached yet, so don't hold up the server while it is looked up
+                lwc.findProtectionAsync(doubleDoorBlock).thenAccept(new Consumer<Protection>() {
+                    public void accept(Protection other) {
+                        if (!lwc.canAccessProtection(player, other)) {
+                            return; // don't open the other door :-)
+                        }
+
+                        // toggle the other side of the door open
+                        changeDoorStates(true, doubleDoorBlock);
+                        scheduleAutoClose(protection, doubleDoorBlock);
+                    }
+                });
             }
         }
 
-        // toggle the other side of the door open
-        // wooden doors and trapdoors open when you right click
-        boolean opensWhenClicked = event.getEvent().getAction() == org.bukkit.event.block.Action.RIGHT_CLICK_BLOCK &&
-                !block.getType().name().contains("IRON");
-        changeDoorStates(true, (opensWhenClicked ? null : block), doubleDoorBlock);
-
-        // TODO Keep double doors in sync
-
-        if (action == Action.OPEN_AND_CLOSE || protection.hasFlag(Flag.Type.AUTOCLOSE)) {
-            // Abuse the fact that we still use final variables inside the task
-            // The double door block object is initially only assigned if we need
-            // it, so we just create a second variable ^^
-            final Block finalBlock = block;
-            final Block finalDoubleDoorBlock = doubleDoorBlock;
+    }
 
-            // Calculate the wait time
-            // This is basically Interval * TICKS_PER_SECOND
-            int wait = getAutoCloseInterval() * TICKS_PER_SECOND;
+    /**
+     * Close a door again after the auto close interval if the protection or configuration asks for it
+     *
+     * @param protection
+     * @param door the bottom block of the door
+     */
+    private void scheduleAutoClose(Protection protection, final Block door) {
+        if (action != Action.OPEN_AND_CLOSE && !protection.hasFlag(Flag.Type.AUTOCLOSE)) {
+            return;
+        }
 
-            // Create the task
-            // If we are set to close the door after a set period, let's create a sync task for it
-            lwc.getPlugin().getServer().getScheduler().scheduleSyncDelayedTask(lwc.getPlugin(), new Runnable() {
-                public void run() {
+        // Calculate the wait time
+        // This is basically Interval * TICKS_PER_SECOND
+        int wait = getAutoCloseInterval() * TICKS_PER_SECOND;
 
-                    // Essentially all we need to do is reset the door states
-                    // But DO NOT open the door if it's closed !
-                    changeDoorStates(false, finalBlock, finalDoubleDoorBlock);
+        // Create the task
+        // If we are set to close the door after a set period, let's create a sync task for it
+        lwc.getPlugin().getServer().getScheduler().scheduleSyncDelayedTask(lwc.getPlugin(), new Runnable() {
+            public void run() {
 
-                }
-            }, wait);
-        }
+                // Essentially all we need to do is reset the door state
+                // But DO NOT open the door if it's closed !
+                changeDoorStates(false, door);
 
+            }
+        }, wait);
     }
 
     /**
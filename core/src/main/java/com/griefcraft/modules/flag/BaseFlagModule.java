@@ -94,6 +94,15 @@ public class BaseFlagModule extends JavaModule {
         }
 
         protection.save();
+
+        if (type == Flag.Type.MAGNET) {
+            MagnetModule magnets = (MagnetModule) lwc.getModuleLoader().getModule(MagnetModule.class);
+
+            if (magnets != null) {
+                magnets.update(protection);
+            }
+        }
+
         lwc.removeModes(player);
     }
 
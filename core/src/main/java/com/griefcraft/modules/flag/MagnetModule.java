@@ -28,25 +28,29 @@
 
 package com.griefcraft.modules.flag;
 
-import com.griefcraft.bukkit.EntityBlock;
+import com.griefcraft.cache.BlockKey;
 import com.griefcraft.lwc.LWC;
 import com.griefcraft.model.Flag;
 import com.griefcraft.model.Protection;
 import com.griefcraft.scripting.JavaModule;
+import com.griefcraft.scripting.event.LWCProtectionRemovePostEvent;
+import com.griefcraft.sql.PhysDB;
+import com.griefcraft.sql.PooledConnection;
 import com.griefcraft.util.config.Configuration;
 import com.narrowtux.showcase.Showcase;
 import org.bukkit.Bukkit;
 import org.bukkit.Location;
 import org.bukkit.Material;
-import org.bukkit.Server;
 import org.bukkit.World;
 import org.bukkit.block.Block;
 import org.bukkit.entity.Entity;
 import org.bukkit.entity.Item;
-import org.bukkit.event.block.BlockEvent;
 import org.bukkit.inventory.InventoryHolder;
 import org.bukkit.inventory.ItemStack;
 
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
 import java.util.*;
 
 public class MagnetModule extends JavaModule {
@@ -69,84 +73,95 @@ public class MagnetModule extends JavaModule {
     private int radius;
 
     /**
-     * How many items to check each time
+     * How many items to suck up each tick
      */
     private int perSweep;
 
     /**
-     * The current entity queue
+     * How many ticks to wait after a sweep before starting the next one
      */
-    private final Queue<MagnetNode> items = new LinkedList<MagnetNode>();
+    private int sweepInterval;
 
-    private class MagnetNode { Item item; Protection protection; }
+    /**
+     * The most time a sweep may take each tick, in nanoseconds
+     */
+    private long tickBudget;
 
-    // does all of the work
-    // searches the worlds for items and magnet chests nearby
-    private class MagnetTask implements Runnable {
-        public void run() {
-            Server server = Bukkit.getServer();
-            LWC lwc = LWC.getInstance();
+    /**
+     * The magnet protections in each world, indexed by the chunk they are in
+     */
+    private final Map<String, Map<Long, List<Magnet>>> magnets = new HashMap<String, Map<Long, List<Magnet>>>();
 
-            // Do we need to requeue?
-            if (items.size() == 0) {
-                for (World world : server.getWorlds()) {
-                    for (Entity entity : world.getEntities()) {
-                        if (!(entity instanceof Item)) {
-                            continue;
-                        }
+    /**
+     * The magnet protections by their protection id
+     */
+    private final Map<Integer, Magnet> magnetsById = new HashMap<Integer, Magnet>();
 
-                        Item item = (Item) entity;
-                        ItemStack stack = item.getItemStack();
+    /**
+     * The chunks the current sweep still has to look at
+     */
+    private final Queue<SweepChunk> chunks = new LinkedList<SweepChunk>();
 
-                        // check if it is in the blacklist
-                        if (itemBlacklist.contains(stack.getType())) {
-                            continue;
-                        }
+    /**
+     * The current entity queue
+     */
+    private final Queue<MagnetNode> items = new LinkedList<MagnetNode>();
 
-                        // check if the item is valid
-                        if (stack.getAmount() <= 0) {
-                            continue;
-                        }
+    /**
+     * Counts the sweeps so magnets are only checked once per sweep
+     */
+    private int sweep = 0;
 
-                        if (item.isDead()) {
-                            continue;
-                        }
+    /**
+     * The ticks left until the next sweep starts
+     */
+    private int ticksUntilSweep = 0;
 
-                        if (isShowcaseItem(item)) {
-                            // it's being used by the Showcase plugin ... ignore it
-                            continue;
-                        }
+    private class MagnetNode { Item item; Protection protection; }
 
-                        // has the item been living long enough?
-                        if (item.getPickupDelay() > item.getTicksLived()) {
-                            continue; // a player wouldn't have had a chance to pick it up yet
-                        }
+    /**
+     * A registered magnet protection
+     */
+    private static class Magnet {
+        int id;
+        String world;
+        int x, y, z;
+
+        /**
+         * The sweep the protection was last checked in, and the protection if it can suck up items
+         */
+        int checkedSweep = -1;
+        Protection protection;
+    }
 
-                        Location location = item.getLocation();
-                        int x = location.getBlockX();
-                        int y = location.getBlockY();
-                        int z = location.getBlockZ();
+    /**
+     * A loaded chunk near a magnet
+     */
+    private static class SweepChunk {
+        World world;
+        int x, z;
+    }
 
-                        List<Protection> protections = lwc.getPhysicalDatabase().loadProtections(world.getName(), x, y, z, radius);
+    // does all of the work
+    // looks for items in the chunks around magnet chests, a few chunks at a time
+    private class MagnetTask implements Runnable {
+        public void run() {
+            LWC lwc = LWC.getInstance();
 
-                        for (Protection protection : protections) {
-                            if (protection.hasFlag(Flag.Type.MAGNET)) {
-                                Block block = protection.getBlock();
+            // Do we need to start a new sweep?
+            if (chunks.isEmpty() && items.isEmpty()) {
+                if (--ticksUntilSweep > 0) {
+                    return;
+                }
 
-                                // we only want inventory blocks
-                                if (block == null || !(block.getState() instanceof InventoryHolder)) { // TODO: optimize, Block#getState is slow as it creates a new BlockState object on each call
-                                    continue;
-                                }
+                ticksUntilSweep = sweepInterval;
+                startSweep();
+            }
 
-                                MagnetNode node = new MagnetNode();
-                                node.item = item;
-                                node.protection = protection;
-                                items.offer(node);
-                                break;
-                            }
-                        }
-                    }
-                }
+            long deadline = System.nanoTime() + tickBudget;
+
+            while (!chunks.isEmpty() && System.nanoTime() < deadline) {
+                scan(lwc, chunks.poll());
             }
 
             // Throttle amount of items polled
@@ -210,6 +225,278 @@ public class MagnetModule extends JavaModule {
         }
     }
 
+    /**
+     * Queue every loaded chunk within reach of a magnet to be looked at
+     */
+    private void startSweep() {
+        sweep ++;
+
+        for (Map.Entry<String, Map<Long, List<Magnet>>> entry : magnets.entrySet()) {
+            World world = Bukkit.getServer().getWorld(entry.getKey());
+
+            if (world == null) {
+                continue;
+            }
+
+            Set<Long> queued = new HashSet<Long>();
+
+            for (List<Magnet> chunkMagnets : entry.getValue().values()) {
+                for (Magnet magnet : chunkMagnets) {
+                    for (int chunkX = (magnet.x - radius) >> 4; chunkX <= (magnet.x + radius) >> 4; chunkX++) {
+                        for (int chunkZ = (magnet.z - radius) >> 4; chunkZ <= (magnet.z + radius) >> 4; chunkZ++) {
+                            if (!world.isChunkLoaded(chunkX, chunkZ) || !queued.add(BlockKey.packChunk(chunkX, chunkZ))) {
+                                continue;
+                            }
+
+                            SweepChunk chunk = new SweepChunk();
+                            chunk.world = world;
+                            chunk.x = chunkX;
+                            chunk.z = chunkZ;
+                            chunks.offer(chunk);
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Queue the items in a chunk that are near a magnet
+     *
+     * @param lwc
+     * @param chunk
+     */
+    private void scan(LWC lwc, SweepChunk chunk) {
+        if (!chunk.world.isChunkLoaded(chunk.x, chunk.z)) {
+            return;
+        }
+
+        List<Magnet> stale = new ArrayList<Magnet>();
+
+        for (Entity entity : chunk.world.getChunkAt(chunk.x, chunk.z).getEntities()) {
+            if (!(entity instanceof Item)) {
+                continue;
+            }
+
+            Item item = (Item) entity;
+            ItemStack stack = item.getItemStack();
+
+            // check if it is in the blacklist
+            if (itemBlacklist.contains(stack.getType())) {
+                continue;
+            }
+
+            // check if the item is valid
+            if (stack.getAmount() <= 0) {
+                continue;
+            }
+
+            if (item.isDead()) {
+                continue;
+            }
+
+            if (isShowcaseItem(item)) {
+                // it's being used by the Showcase plugin ... ignore it
+                continue;
+            }
+
+            // has the item been living long enough?
+            if (item.getPickupDelay() > item.getTicksLived()) {
+                continue; // a player wouldn't have had a chance to pick it up yet
+            }
+
+            Location location = item.getLocation();
+            Protection protection = findMagnet(lwc, chunk.world.getName(), location.getBlockX(), location.getBlockY(), location.getBlockZ(), stale);
+
+            if (protection != null) {
+                MagnetNode node = new MagnetNode();
+                node.item = item;
+                node.protection = protection;
+                items.offer(node);
+            }
+        }
+
+        for (Magnet magnet : stale) {
+            unregister(magnet.id);
+        }
+    }
+
+    /**
+     * Find the first magnet that can suck up an item at the given location
+     *
+     * @param lwc
+     * @param world
+     * @param x
+     * @param y
+     * @param z
+     * @param stale magnets that no longer exist are added to this list
+     * @return the magnet protection, or null if there is none in range
+     */
+    private Protection findMagnet(LWC lwc, String world, int x, int y, int z, List<Magnet> stale) {
+        Map<Long, List<Magnet>> worldMagnets = magnets.get(world);
+
+        if (worldMagnets == null) {
+            return null;
+        }
+
+        for (int chunkX = (x - radius) >> 4; chunkX <= (x + radius) >> 4; chunkX++) {
+            for (int chunkZ = (z - radius) >> 4; chunkZ <= (z + radius) >> 4; chunkZ++) {
+                List<Magnet> chunkMagnets = worldMagnets.get(BlockKey.packChunk(chunkX, chunkZ));
+
+                if (chunkMagnets == null) {
+                    continue;
+                }
+
+                for (Magnet magnet : chunkMagnets) {
+                    if (Math.abs(magnet.x - x) > radius || Math.abs(magnet.y - y) > radius || Math.abs(magnet.z - z) > radius) {
+                        continue;
+                    }
+
+                    if (magnet.checkedSweep != sweep) {
+                        magnet.checkedSweep = sweep;
+                        magnet.protection = check(lwc, magnet, stale);
+                    }
+
+                    if (magnet.protection != null) {
+                        return magnet.protection;
+                    }
+                }
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * Check if a magnet can currently suck up items. This is done once per sweep for each magnet near an item.
+     *
+     * @param lwc
+     * @param magnet
+     * @param stale magnets that no longer exist are added to this list
+     * @return the magnet protection, or null if it can't suck up items
+     */
+    private Protection check(LWC lwc, Magnet magnet, List<Magnet> stale) {
+        Protection protection = lwc.getPhysicalDatabase().loadProtection(magnet.id);
+
+        if (protection == null || !protection.hasFlag(Flag.Type.MAGNET) || protection.getX() != magnet.x
+                || protection.getY() != magnet.y || protection.getZ() != magnet.z || !magnet.world.equals(protection.getWorld())) {
+            stale.add(magnet);
+            return null;
+        }
+
+        Block block = protection.getBlock();
+
+        // we only want inventory blocks
+        if (block == null || !(block.getState() instanceof InventoryHolder)) {
+            return null;
+        }
+
+        return protection;
+    }
+
+    /**
+     * Update the magnet registry after a protection's flags changed
+     *
+     * @param protection
+     */
+    public void update(Protection protection) {
+        unregister(protection.getId());
+
+        if (!protection.isRemoved() && protection.hasFlag(Flag.Type.MAGNET)) {
+            register(protection);
+        }
+    }
+
+    /**
+     * Add a magnet protection to the registry
+     *
+     * @param protection
+     */
+    private void register(Protection protection) {
+        if (magnetsById.containsKey(protection.getId())) {
+            return;
+        }
+
+        Magnet magnet = new Magnet();
+        magnet.id = protection.getId();
+        magnet.world = protection.getWorld();
+        magnet.x = protection.getX();
+        magnet.y = protection.getY();
+        magnet.z = protection.getZ();
+
+        Map<Long, List<Magnet>> worldMagnets = magnets.get(magnet.world);
+
+        if (worldMagnets == null) {
+            worldMagnets = new HashMap<Long, List<Magnet>>();
+            magnets.put(magnet.world, worldMagnets);
+        }
+
+        long key = BlockKey.packChunk(magnet.x >> 4, magnet.z >> 4);
+        List<Magnet> chunkMagnets = worldMagnets.get(key);
+
+        if (chunkMagnets == null) {
+            chunkMagnets = new ArrayList<Magnet>(1);
+            worldMagnets.put(key, chunkMagnets);
+        }
+
+        chunkMagnets.add(magnet);
+        magnetsById.put(magnet.id, magnet);
+    }
+
+    /**
+     * Remove a protection from the magnet registry
+     *
+     * @param protectionId
+     */
+    private void unregister(int protectionId) {
+        Magnet magnet = magnetsById.remove(protectionId);
+
+        if (magnet == null) {
+            return;
+        }
+
+        Map<Long, List<Magnet>> worldMagnets = magnets.get(magnet.world);
+        long key = BlockKey.packChunk(magnet.x >> 4, magnet.z >> 4);
+        List<Magnet> chunkMagnets = worldMagnets.get(key);
+        chunkMagnets.remove(magnet);
+
+        if (chunkMagnets.isEmpty()) {
+            worldMagnets.remove(key);
+        }
+
+        if (worldMagnets.isEmpty()) {
+            magnets.remove(magnet.world);
+        }
+    }
+
+    /**
+     * Load every magnet protection from the database. Runs in the background, as every protection with data has to
+     * be looked at once.
+     *
+     * @param lwc
+     * @return the magnet protections
+     */
+    private List<Protection> loadMagnets(LWC lwc) {
+        List<Protection> found = new ArrayList<Protection>();
+        PhysDB database = lwc.getPhysicalDatabase();
+
+        try (PooledConnection connection = database.openStreamingConnection();
+             Statement statement = connection.createStreamingStatement();
+             ResultSet set = statement.executeQuery("SELECT id, owner, type, x, y, z, data, blockId, world, password, date, last_accessed FROM " + database.getPrefix() + "protections WHERE data IS NOT NULL")) {
+            while (set.next()) {
+                Protection protection = database.resolveProtection(set);
+
+                if (protection != null && protection.hasFlag(Flag.Type.MAGNET)) {
+                    found.add(protection);
+                }
+            }
+        } catch (SQLException e) {
+            lwc.log("Failed to load the magnet protections: " + e.getMessage());
+        }
+
+        return found;
+    }
+
     /**
      * Check for the Showcase plugin and if it exists we also want to make sure the block doesn't have a showcase
      * on it.
@@ -233,11 +520,18 @@ public class MagnetModule extends JavaModule {
     }
 
     @Override
-    public void load(LWC lwc) {
+    public void onPostRemoval(LWCProtectionRemovePostEvent event) {
+        unregister(event.getProtection().getId());
+    }
+
+    @Override
+    public void load(final LWC lwc) {
         enabled = configuration.getBoolean("magnet.enabled", false);
         itemBlacklist = new HashSet<>();
         radius = configuration.getInt("magnet.radius", 3);
         perSweep = configuration.getInt("magnet.perSweep", 20);
+        sweepInterval = configuration.getInt("magnet.sweepInterval", 50);
+        tickBudget = configuration.getInt("magnet.tickBudget", 2) * 1000000L;
 
         if (!enabled) {
             return;
@@ -254,9 +548,24 @@ public class MagnetModule extends JavaModule {
             }
         }
 
+        // find the magnets in the background, and register them on the main thread
+        Bukkit.getScheduler().runTaskAsynchronously(lwc.getPlugin(), new Runnable() {
+            public void run() {
+                final List<Protection> found = loadMagnets(lwc);
+
+                Bukkit.getScheduler().runTask(lwc.getPlugin(), new Runnable() {
+                    public void run() {
+                        for (Protection protection : found) {
+                            register(protection);
+                        }
+                    }
+                });
+            }
+        });
+
         // register our search thread schedule
         MagnetTask searchThread = new MagnetTask();
-        lwc.getPlugin().getServer().getScheduler().scheduleSyncRepeatingTask(lwc.getPlugin(), searchThread, 50, 50);
+        lwc.getPlugin().getServer().getScheduler().scheduleSyncRepeatingTask(lwc.getPlugin(), searchThread, 50, 1);
     }
 
 }
@@ -141,15 +141,16 @@ public class LimitsModule extends JavaModule {
         }
 
         Type type = Type.resolve(resolveString(player, "type"));
+        String owner = player.getUniqueId().toString();
         int protections; // 0 = *
 
         switch (type) {
             case CUSTOM:
-                protections = lwc.getPhysicalDatabase().getProtectionCount(player.getName(), block.getType());
+                protections = lwc.getProtectionCountCache().getCount(owner, lwc.getPhysicalDatabase().getTypeId(block.getType()));
                 break;
 
             case DEFAULT:
-                protections = lwc.getPhysicalDatabase().getProtectionCount(player.getName());
+                protections = lwc.getProtectionCountCache().getCount(owner);
                 break;
 
             default:
@@ -408,6 +409,14 @@ public class LimitsModule extends JavaModule {
         Player player = event.getPlayer();
         Block block = event.getBlock();
 
+        // the limit can't be checked until the player's protection counts are loaded
+        if (configuration != null && mapProtectionLimit(player, block) != UNLIMITED
+                && !lwc.getProtectionCountCache().isLoaded(player.getUniqueId().toString())) {
+            lwc.sendLocale(player, "protection.limits.loading");
+            event.setCancelled(true);
+            return;
+        }
+
         if (hasReachedLimit(player, block)) {
             lwc.sendLocale(player, "protection.exceeded");
             event.setCancelled(true);
@@ -161,7 +161,7 @@ public class LimitsV2 extends JavaModule {
 
         @Override
         public int getProtectionCount(Player player) {
-            return LWC.getInstance().getPhysicalDatabase().getProtectionCount(player.getName());
+            return LWC.getInstance().getProtectionCountCache().getCount(player.getUniqueId().toString());
         }
 
         @Override
@@ -185,7 +185,8 @@ public class LimitsV2 extends JavaModule {
 
         @Override
         public int getProtectionCount(Player player) {
-            return LWC.getInstance().getPhysicalDatabase().getProtectionCount(player.getName(), material.getId());
+            LWC lwc = LWC.getInstance();
+            return lwc.getProtectionCountCache().getCount(player.getUniqueId().toString(), lwc.getPhysicalDatabase().getTypeId(material));
         }
 
         @Override
@@ -216,7 +217,7 @@ public class LimitsV2 extends JavaModule {
 
         @Override
         public int getProtectionCount(Player player) {
-            return LWC.getInstance().getPhysicalDatabase().getProtectionCount(player.getName(), EntityBlock.ENTITY_BLOCK_ID + entityType.getTypeId());
+            return LWC.getInstance().getProtectionCountCache().getCount(player.getUniqueId().toString(), EntityBlock.ENTITY_BLOCK_ID + entityType.getTypeId());
         }
 
         @Override
@@ -242,8 +243,9 @@ public class LimitsV2 extends JavaModule {
         @Override
         public int getProtectionCount(Player player) {
             LWC lwc = LWC.getInstance();
-            return lwc.getPhysicalDatabase().getProtectionCount(player.getName(), Material.SIGN)
-                    + lwc.getPhysicalDatabase().getProtectionCount(player.getName(), Material.WALL_SIGN);
+            String owner = player.getUniqueId().toString();
+            return lwc.getProtectionCountCache().getCount(owner, lwc.getPhysicalDatabase().getTypeId(Material.SIGN))
+                    + lwc.getProtectionCountCache().getCount(owner, lwc.getPhysicalDatabase().getTypeId(Material.WALL_SIGN));
         }
 
         @Override
@@ -289,6 +291,13 @@ public class LimitsV2 extends JavaModule {
             typeName = event.getBlock().getType().toString();
         }
 
+        // the limit can't be checked until the player's protection counts are loaded
+        if (getEffectiveLimit(player, typeName) != null && !lwc.getProtectionCountCache().isLoaded(player.getUniqueId().toString())) {
+            lwc.sendLocale(player, "protection.limits.loading");
+            event.setCancelled(true);
+            return;
+        }
+
         if (hasReachedLimit(player, typeName)) {
             lwc.sendLocale(player, "protection.exceeded");
             event.setCancelled(true);
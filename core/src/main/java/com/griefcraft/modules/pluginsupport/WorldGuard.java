@@ -53,6 +53,7 @@ import org.bukkit.plugin.Plugin;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.function.Consumer;
 
 public class WorldGuard extends JavaModule {
 
@@ -92,7 +93,7 @@ public class WorldGuard extends JavaModule {
         }
 
         LWC lwc = event.getLWC();
-        CommandSender sender = event.getSender();
+        final CommandSender sender = event.getSender();
         String[] args = event.getArgs();
 
         if (!args[0].equals("purgeregion") && !args[0].equals("protectregion")) {
@@ -121,13 +122,13 @@ public class WorldGuard extends JavaModule {
         }
 
         // the region
-        String regionName = args[1];
+        final String regionName = args[1];
 
         // the world the region is in
         String worldName = args.length > 2 ? args[2] : "";
 
         // get the world to use
-        World world;
+        final World world;
 
         if (!worldName.isEmpty()) {
             world = lwc.getPlugin().getServer().getWorld(worldName);
@@ -162,63 +163,87 @@ public class WorldGuard extends JavaModule {
         BlockVector3 maximum = region.getMaximumPoint();
 
         // Min values
-        int minBlockX = minimum.getBlockX();
-        int minBlockY = minimum.getBlockY();
-        int minBlockZ = minimum.getBlockZ();
+        final int minBlockX = minimum.getBlockX();
+        final int minBlockY = minimum.getBlockY();
+        final int minBlockZ = minimum.getBlockZ();
 
         // Max values
-        int maxBlockX = maximum.getBlockX();
-        int maxBlockY = maximum.getBlockY();
-        int maxBlockZ = maximum.getBlockZ();
+        final int maxBlockX = maximum.getBlockX();
+        final int maxBlockY = maximum.getBlockY();
+        final int maxBlockZ = maximum.getBlockZ();
 
         // Calculate the amount of the blocks in the region
         int numBlocks = (maxBlockX - minBlockX + 1) * (maxBlockY - minBlockY + 1) * (maxBlockZ - minBlockZ + 1);
 
         if (args[0].equals("purgeregion")) { // TODO: Entity support
-            // get all of the protections inside of the region
-            List<Protection> protections = lwc.getPhysicalDatabase().loadProtections(world.getName(), minBlockX, maxBlockX, minBlockY, maxBlockY, minBlockZ, maxBlockZ);
-
-            // remove all of them
-            for (Protection protection : protections) {
-                protection.remove();
-            }
+            // get all of the protections inside of the region, without holding up the server while they are loaded
+            lwc.getAsyncProtectionLoader().loadProtections(world.getName(), minBlockX, maxBlockX, minBlockY, maxBlockY, minBlockZ, maxBlockZ).thenAccept(new Consumer<List<Protection>>() {
+                public void accept(List<Protection> protections) {
+                    // remove all of them
+                    for (Protection protection : protections) {
+                        protection.remove();
+                    }
 
-            sender.sendMessage(Colors.Green + "Removed " + protections.size() + " protections from the region " + regionName);
+                    sender.sendMessage(Colors.Green + "Removed " + protections.size() + " protections from the region " + regionName);
+                }
+            });
         } else if (args[0].equals("protectregion")) { // TODO: Entity support
-            // The owner to assign to the protections
-            String ownerName = "LWCWorldGuard";
-
-            // the number of blocks that were registered
-            int registered = 0;
-
-            for (int x = minBlockX; x <= maxBlockX; x++) {
-                for (int y = minBlockY; y <= maxBlockY; y++) {
-                    for (int z = minBlockZ; z <= maxBlockZ; z++) {
-                        // Get the block at that location
-                        Block block = world.getBlockAt(x, y, z);
-
-                        // Ensure it's protectable
-                        if (!lwc.isProtectable(block)) {
-                            continue;
-                        }
-
-                        // Check if it's already protected
-                        if (lwc.findProtection(block.getLocation()) != null) {
-                            continue;
-                        }
-
-                        // Protect it!
-                        lwc.getPhysicalDatabase().registerProtection(block.getType(), Protection.Type.PRIVATE, world.getName(),
-                                ownerName, "", x, y, z);
-                        registered ++;
+            // cache the protections in and around the region first so checking each block does not query the database
+            lwc.getAsyncProtectionLoader().loadChunks(world.getName(), (minBlockX - 1) >> 4, (minBlockZ - 1) >> 4, (maxBlockX + 1) >> 4, (maxBlockZ + 1) >> 4).thenRun(new Runnable() {
+                public void run() {
+                    protectRegion(sender, world, regionName, minBlockX, minBlockY, minBlockZ, maxBlockX, maxBlockY, maxBlockZ);
+                }
+            });
+        }
+    }
+
+    /**
+     * Protect every protectable block in a region that is not protected yet
+     *
+     * @param sender
+     * @param world
+     * @param regionName
+     * @param minBlockX
+     * @param minBlockY
+     * @param minBlockZ
+     * @param maxBlockX
+     * @param maxBlockY
+     * @param maxBlockZ
+     */
+    private void protectRegion(CommandSender sender, World world, String regionName, int minBlockX, int minBlockY, int minBlockZ, int maxBlockX, int maxBlockY, int maxBlockZ) {
+        // The owner to assign to the protections
+        String ownerName = "LWCWorldGuard";
+
+        // the number of blocks that were registered
+        int registered = 0;
+
+        for (int x = minBlockX; x <= maxBlockX; x++) {
+            for (int y = minBlockY; y <= maxBlockY; y++) {
+                for (int z = minBlockZ; z <= maxBlockZ; z++) {
+                    // Get the block at that location
+                    Block block = world.getBlockAt(x, y, z);
+
+                    // Ensure it's protectable
+                    if (!lwc.isProtectable(block)) {
+                        continue;
+                    }
+
+                    // Check if it's already protected
+                    if (lwc.findProtection(block.getLocation()) != null) {
+                        continue;
                     }
+
+                    // Protect it!
+                    lwc.getPhysicalDatabase().registerProtection(block.getType(), Protection.Type.PRIVATE, world.getName(),
+                            ownerName, "", x, y, z);
+                    registered ++;
                 }
             }
-
-            sender.sendMessage("Registered " + registered + " blocks in the region " + regionName);
-            sender.sendMessage("Currently, the owner of these protections is \"" + ownerName + "\". To change this to someone else, run:");
-            sender.sendMessage("/lwc admin updateprotections set owner = 'NewOwner' where owner = '" + ownerName + "'");
         }
+
+        sender.sendMessage("Registered " + registered + " blocks in the region " + regionName);
+        sender.sendMessage("Currently, the owner of these protections is \"" + ownerName + "\". To change this to someone else, run:");
+        sender.sendMessage("/lwc admin updateprotections set owner = 'NewOwner' where owner = '" + ownerName + "'");
     }
 
 
@@ -28,6 +28,7 @@
 
 package com.griefcraft.modules.redstone;
 
+import com.griefcraft.cache.RedstoneDecisionCache;
 import com.griefcraft.lwc.LWC;
 import com.griefcraft.model.Flag;
 import com.griefcraft.model.Protection;
@@ -36,11 +37,27 @@ import com.griefcraft.scripting.event.LWCRedstoneEvent;
 import com.griefcraft.util.ProtectionFinder;
 import org.bukkit.Material;
 import org.bukkit.block.Block;
-import org.bukkit.block.BlockState;
 import org.bukkit.entity.Player;
 
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Set;
+
 public class RedstoneModule extends JavaModule {
 
+    /**
+     * Every kind of pressure plate
+     */
+    private static final Set<Material> PRESSURE_PLATES = EnumSet.noneOf(Material.class);
+
+    static {
+        for (Material material : Material.values()) {
+            if (material.name().contains("PRESSURE_PLATE")) {
+                PRESSURE_PLATES.add(material);
+            }
+        }
+    }
+
     @Override
     public void onRedstone(LWCRedstoneEvent event) {
         if (event.isCancelled()) {
@@ -49,27 +66,68 @@ public class RedstoneModule extends JavaModule {
 
         LWC lwc = event.getLWC();
         Protection protection = event.getProtection();
+        RedstoneDecisionCache decisions = lwc.getRedstoneDecisionCache();
+        RedstoneDecisionCache.Decision decision = decisions.get(protection);
+
+        if (decision == null) {
+            decision = decide(lwc, protection);
+            decisions.put(protection, decision);
+        }
 
         // check for a player using it
+        int[] plates = decision.getPressurePlates();
+
+        for (int i = 0; i < plates.length; i += 3) {
+            // find a player that is using it
+            int x = plates[i];
+            int y = plates[i + 1];
+            int z = plates[i + 2];
+            Player player = lwc.findPlayer(protection.getWorld(), x - 1, x + 1, y, y + 1, z - 1, z + 1);
+
+            if (player != null) {
+                if (!lwc.canAccessProtection(player, protection)) {
+                    event.setCancelled(true);
+                } else {
+                    // bypass the denyRedstone/REDSTONE flag check
+                    return;
+                }
+            }
+        }
+
+        if (decision.isDenied()) {
+            event.setCancelled(true);
+        }
+    }
+
+    /**
+     * Decide how redstone acting on a protection is handled
+     *
+     * @param lwc
+     * @param protection
+     * @return
+     */
+    private RedstoneDecisionCache.Decision decide(LWC lwc, Protection protection) {
         ProtectionFinder finder = protection.getProtectionFinder();
+        int[] plates = new int[0];
 
         if (finder != null) {
-            for (BlockState found : finder.getBlocks()) {
-                if (found.getType().name().contains("PRESSURE_PLATE")) {
-                    // find a player that is using it
-                    int x = found.getX();
-                    int y = found.getY();
-                    int z = found.getZ();
-                    Player player = lwc.findPlayer(x - 1, x + 1, y, y + 1, z - 1, z + 1);
-
-                    if (player != null) {
-                        if (!lwc.canAccessProtection(player, protection)) {
-                            event.setCancelled(true);
-                        } else {
-                            // bypass the denyRedstone/REDSTONE flag check
-                            return;
-                        }
-                    }
+            List<Block> blocks = finder.getMatchedBlocks();
+            int count = 0;
+
+            for (Block block : blocks) {
+                if (PRESSURE_PLATES.contains(block.getType())) {
+                    count++;
+                }
+            }
+
+            plates = new int[count * 3];
+            int index = 0;
+
+            for (Block block : blocks) {
+                if (index < plates.length && PRESSURE_PLATES.contains(block.getType())) {
+                    plates[index++] = block.getX();
+                    plates[index++] = block.getY();
+                    plates[index++] = block.getZ();
                 }
             }
         }
@@ -77,9 +135,7 @@ public class RedstoneModule extends JavaModule {
         boolean hasFlag = protection.hasFlag(Flag.Type.REDSTONE);
         boolean denyRedstone = lwc.getConfiguration().getBoolean("protections.denyRedstone", false);
 
-        if ((!hasFlag && denyRedstone) || (hasFlag && !denyRedstone)) {
-            event.setCancelled(true);
-        }
+        return new RedstoneDecisionCache.Decision(protection, plates, (!hasFlag && denyRedstone) || (hasFlag && !denyRedstone));
     }
 
 }
@@ -44,12 +44,14 @@ import com.griefcraft.scripting.event.LWCProtectionRemovePostEvent;
 import com.griefcraft.scripting.event.LWCRedstoneEvent;
 import com.griefcraft.scripting.event.LWCReloadEvent;
 import com.griefcraft.scripting.event.LWCSendLocaleEvent;
+import org.bukkit.event.Cancellable;
+import org.bukkit.event.EventPriority;
 import org.bukkit.plugin.Plugin;
 
 import java.lang.reflect.Method;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
-import java.util.HashMap;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
@@ -171,110 +173,195 @@ public class ModuleLoader {
     private final Map<Plugin, List<MetaData>> pluginModules = Collections.synchronizedMap(new LinkedHashMap<Plugin, List<MetaData>>());
 
     /**
-     * A cache used to get a list of modules for any given event. Reflection is used to find which events modules implement.
-     * This was mainly added for backwards compatibility reasons (vs events to be individually registered). This still
-     * achieves the same effect by using reflection.
+     * The handler of each event type, indexed by {@link Event#ordinal()}; null for events modules cannot handle
      */
-    private final Map<Event, List<Module>> fastModuleCache = new HashMap<Event, List<Module>>();
+    private static final Handler[] HANDLERS = new Handler[Event.values().length];
 
     /**
-     * Toasty caches for doesObjectOverrideMethod
+     * Listeners that never run
      */
-    private final Map<String, Boolean> overrideCache = new HashMap<String, Boolean>();
+    private static final Listener[] NO_LISTENERS = new Listener[0];
+
+    static {
+        handler(Event.ACCESS_REQUEST, "onAccessRequest", LWCAccessEvent.class, new Invoker() {
+            public void invoke(Module module, LWCEvent event) {
+                module.onAccessRequest((LWCAccessEvent) event);
+            }
+        });
+        handler(Event.INTERACT_BLOCK, "onBlockInteract", LWCBlockInteractEvent.class, new Invoker() {
+            public void invoke(Module module, LWCEvent event) {
+                module.onBlockInteract((LWCBlockInteractEvent) event);
+            }
+        });
+        handler(Event.COMMAND, "onCommand", LWCCommandEvent.class, new Invoker() {
+            public void invoke(Module module, LWCEvent event) {
+                module.onCommand((LWCCommandEvent) event);
+            }
+        });
+        handler(Event.DROP_ITEM, "onDropItem", LWCDropItemEvent.class, new Invoker() {
+            public void invoke(Module module, LWCEvent event) {
+                module.onDropItem((LWCDropItemEvent) event);
+            }
+        });
+        handler(Event.DESTROY_PROTECTION, "onDestroyProtection", LWCProtectionDestroyEvent.class, new Invoker() {
+            public void invoke(Module module, LWCEvent event) {
+                module.onDestroyProtection((LWCProtectionDestroyEvent) event);
+            }
+        });
+        handler(Event.INTERACT_PROTECTION, "onProtectionInteract", LWCProtectionInteractEvent.class, new Invoker() {
+            public void invoke(Module module, LWCEvent event) {
+                module.onProtectionInteract((LWCProtectionInteractEvent) event);
+            }
+        });
+        handler(Event.REGISTER_PROTECTION, "onRegisterProtection", LWCProtectionRegisterEvent.class, new Invoker() {
+            public void invoke(Module module, LWCEvent event) {
+                module.onRegisterProtection((LWCProtectionRegisterEvent) event);
+            }
+        });
+        handler(Event.POST_REMOVAL, "onPostRemoval", LWCProtectionRemovePostEvent.class, new Invoker() {
+            public void invoke(Module module, LWCEvent event) {
+                module.onPostRemoval((LWCProtectionRemovePostEvent) event);
+            }
+        });
+        handler(Event.POST_REGISTRATION, "onPostRegistration", LWCProtectionRegistrationPostEvent.class, new Invoker() {
+            public void invoke(Module module, LWCEvent event) {
+                module.onPostRegistration((LWCProtectionRegistrationPostEvent) event);
+            }
+        });
+        handler(Event.SEND_LOCALE, "onSendLocale", LWCSendLocaleEvent.class, new Invoker() {
+            public void invoke(Module module, LWCEvent event) {
+                module.onSendLocale((LWCSendLocaleEvent) event);
+            }
+        });
+        handler(Event.REDSTONE, "onRedstone", LWCRedstoneEvent.class, new Invoker() {
+            public void invoke(Module module, LWCEvent event) {
+                module.onRedstone((LWCRedstoneEvent) event);
+            }
+        });
+        handler(Event.RELOAD_EVENT, "onReload", LWCReloadEvent.class, new Invoker() {
+            public void invoke(Module module, LWCEvent event) {
+                module.onReload((LWCReloadEvent) event);
+            }
+        });
+    }
+
+    /**
+     * The modules listening to each event type, indexed by {@link Event#ordinal()} and sorted by priority. The arrays
+     * are replaced instead of modified, so events can be dispatched without locking.
+     */
+    private volatile Listener[][] listeners;
+
+    /**
+     * Records how long modules take to handle events
+     */
+    private final ModuleProfiler profiler;
 
     public ModuleLoader(LWC lwc) {
         this.lwc = lwc;
-        populateFastModuleCache();
+        this.profiler = new ModuleProfiler(lwc);
+        this.listeners = new Listener[Event.values().length][];
+        Arrays.fill(listeners, NO_LISTENERS);
     }
 
     /**
-     * Populate the fast module cache
+     * Register the handler of an event type
+     *
+     * @param event
+     * @param method the name of the module method that handles the event
+     * @param type the class of the event
+     * @param invoker
      */
-    private void populateFastModuleCache() {
-        for (Event event : Event.values()) {
-            fastModuleCache.put(event, new ArrayList<Module>(10));
-        }
+    private static void handler(Event event, String method, Class<? extends LWCEvent> type, Invoker invoker) {
+        HANDLERS[event.ordinal()] = new Handler(method, type, invoker);
     }
 
     /**
-     * Register a module into the fast cache
+     * Add a module to the listeners of every event it handles
+     *
      * @param module
      */
-    private void registerFastCache(Module module) {
-        // get all of the methods from the module's superclass
-        Class<?> superclass = module.getClass().getSuperclass();
+    private synchronized void registerListeners(Module module) {
+        Listener[][] updated = listeners.clone();
 
-        // Impossible
-        if (superclass == null) {
-            throw new IllegalArgumentException("Method cannot be its own superclass (?)");
-        }
-        if (superclass == Object.class) {
-            // then it implements the Module interface but doesn't extend any class
-            // also means getDeclaredMethods() below wouldn't show the interface methods when acting on Object.class
-            // modules would then fail to register if they just implement the Module interface instead of extending JavaModule
-            superclass = Module.class;// the easy way
-        }
-        // The methods that are possible to implement
-        Method[] methods = superclass.getDeclaredMethods();
+        for (Event event : Event.values()) {
+            Handler handler = HANDLERS[event.ordinal()];
 
-        // Now check each method to see if the module implements it
-        for (Method method : methods) {
-            boolean doesOverride = doesObjectOverrideMethod(module, method);
+            if (handler == null) {
+                continue;
+            }
 
-            // It does override it! Add it to the fast cache o/
-            if (doesOverride) {
-                // But adding it to the fast cache isn't so easy, we need the event object
-                Class<?>[] parameters = method.getParameterTypes();
+            Method method = getOverriddenMethod(module, handler.method, handler.type);
 
-                // If it's not 1 we have a method we do not want
-                if (parameters.length != 1) {
-                    continue;
-                }
+            if (method == null) {
+                continue;
+            }
 
-                // Start comparing on the parameter to find the event type
-                Event event = null;
-                Class<?> parameter = parameters[0];
-
-                if (parameter == LWCAccessEvent.class) {
-                    event = Event.ACCESS_REQUEST;
-                } else if (parameter == LWCBlockInteractEvent.class) {
-                    event = Event.INTERACT_BLOCK;
-                } else if (parameter == LWCCommandEvent.class) {
-                    event = Event.COMMAND;
-                } else if (parameter == LWCDropItemEvent.class) {
-                    event = Event.DROP_ITEM;
-                } else if (parameter == LWCProtectionDestroyEvent.class) {
-                    event = Event.DESTROY_PROTECTION;
-                } else if (parameter == LWCProtectionInteractEvent.class) {
-                    event = Event.INTERACT_PROTECTION;
-                } else if (parameter == LWCProtectionRegisterEvent.class) {
-                    event = Event.REGISTER_PROTECTION;
-                } else if (parameter == LWCProtectionRemovePostEvent.class) {
-                    event = Event.POST_REMOVAL;
-                } else if (parameter == LWCProtectionRegistrationPostEvent.class) {
-                    event = Event.POST_REGISTRATION;
-                } else if (parameter == LWCSendLocaleEvent.class) {
-                    event = Event.SEND_LOCALE;
-                } else if (parameter == LWCRedstoneEvent.class) {
-                    event = Event.REDSTONE;
-                } else if (parameter == LWCReloadEvent.class) {
-                    event = Event.RELOAD_EVENT;
-                }
+            ModuleEventHandler options = method.getAnnotation(ModuleEventHandler.class);
+            EventPriority priority = options != null ? options.priority() : EventPriority.NORMAL;
+            boolean ignoreCancelled = options != null && options.ignoreCancelled();
+            Listener listener = new Listener(module, handler.invoker, priority, ignoreCancelled, profiler.getStats(module, event));
+
+            // insert it after every listener with the same or a lower priority
+            Listener[] current = updated[event.ordinal()];
+            int index = 0;
+
+            while (index < current.length && current[index].priority.getSlot() <= priority.getSlot()) {
+                index++;
+            }
+
+            Listener[] modules = new Listener[current.length + 1];
+            System.arraycopy(current, 0, modules, 0, index);
+            modules[index] = listener;
+            System.arraycopy(current, index, modules, index + 1, current.length - index);
+            updated[event.ordinal()] = modules;
+        }
+
+        listeners = updated;
+    }
 
-                // ok!
-                if (event != null) {
-                    List<Module> modules = fastModuleCache.get(event);
-                    modules.add(module);
+    /**
+     * Remove modules from the listeners of every event
+     *
+     * @param modules
+     */
+    private synchronized void unregisterListeners(List<Module> modules) {
+        Listener[][] updated = listeners.clone();
+
+        for (int i = 0; i < updated.length; i++) {
+            List<Listener> remaining = new ArrayList<Listener>(updated[i].length);
+
+            for (Listener listener : updated[i]) {
+                if (!modules.contains(listener.module)) {
+                    remaining.add(listener);
                 }
             }
+
+            updated[i] = remaining.isEmpty() ? NO_LISTENERS : remaining.toArray(new Listener[remaining.size()]);
         }
+
+        listeners = updated;
     }
 
     /**
-     * Check if a method overrides a method using reflection. This method uses a cache for constant access after
-     * the caches are warm and toasty.
-     * <p/>
-     * This assumes the object is overriding JavaModule
+     * Get the method a module overrides to handle an event
+     *
+     * @param module
+     * @param name
+     * @param type
+     * @return the method, or null if the module only inherits the default (empty) handler
+     */
+    private Method getOverriddenMethod(Module module, String name, Class<?> type) {
+        try {
+            Method method = module.getClass().getMethod(name, type);
+            return method.getDeclaringClass() == JavaModule.class ? null : method;
+        } catch (NoSuchMethodException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Check if an object overrides a method of {@link JavaModule}, i.e. a method with the same name and parameters
+     * that is not the one declared by JavaModule itself.
      *
      * @param object
      * @param method
@@ -287,31 +374,23 @@ public class ModuleLoader {
         if (method == null) {
             throw new IllegalArgumentException("Method cannot be null");
         }
-        String methodName = method.getName();
-
-        String cacheKey = object.getClass().getSimpleName() + methodName;
-
-        // Check the cache
-        if (overrideCache.containsKey(cacheKey)) {
-            return overrideCache.get(cacheKey);
-        }
-
-        // The class to compare to; the assumed superclass
-        Class<?> compare = JavaModule.class;
-
-        // The result; does it actually override the method?
-        boolean result = false;
 
-        // Compare the methods the object declares
-        for (Method declaredMethod : object.getClass().getDeclaredMethods()) {
-            if (declaredMethod.getName().equals(methodName)) {
-                result = true;
-                break;
-            }
+        try {
+            Method found = object.getClass().getMethod(method.getName(), method.getParameterTypes());
+            return found.getDeclaringClass() != JavaModule.class;
+        } catch (NoSuchMethodException e) {
+            return false;
         }
+    }
 
-        overrideCache.put(cacheKey, result);
-        return result;
+    /**
+     * Check if any module listens to an event type. Callers can use this to skip creating an event nobody handles.
+     *
+     * @param event
+     * @return
+     */
+    public boolean hasListeners(Event event) {
+        return listeners[event.ordinal()].length > 0;
     }
 
     /**
@@ -324,34 +403,28 @@ public class ModuleLoader {
             return;
         }
 
+        Listener[] modules = listeners[event.getEventType().ordinal()];
+
+        if (modules.length == 0) {
+            return;
+        }
+
+        Cancellable cancellable = event instanceof Cancellable ? (Cancellable) event : null;
+        boolean profiling = profiler.isEnabled();
+
         try {
-            List<Module> modules = fastModuleCache.get(event.getEventType());
-            Event type = event.getEventType();
-            for (Module module : modules) {
-                if (type == Event.INTERACT_PROTECTION) {
-                    module.onProtectionInteract((LWCProtectionInteractEvent) event);
-                } else if (type == Event.INTERACT_BLOCK) {
-                    module.onBlockInteract((LWCBlockInteractEvent) event);
-                } else if (type == Event.SEND_LOCALE) {
-                    module.onSendLocale((LWCSendLocaleEvent) event);
-                } else if (type == Event.ACCESS_REQUEST) {
-                    module.onAccessRequest((LWCAccessEvent) event);
-                } else if (type == Event.COMMAND) {
-                    module.onCommand((LWCCommandEvent) event);
-                } else if (type == Event.DROP_ITEM) {
-                    module.onDropItem((LWCDropItemEvent) event);
-                } else if (type == Event.DESTROY_PROTECTION) {
-                    module.onDestroyProtection((LWCProtectionDestroyEvent) event);
-                }else if (type == Event.REGISTER_PROTECTION) {
-                    module.onRegisterProtection((LWCProtectionRegisterEvent) event);
-                } else if (type == Event.POST_REMOVAL) {
-                    module.onPostRemoval((LWCProtectionRemovePostEvent) event);
-                } else if (type == Event.POST_REGISTRATION) {
-                    module.onPostRegistration((LWCProtectionRegistrationPostEvent) event);
-                } else if (type == Event.REDSTONE) {
-                    module.onRedstone((LWCRedstoneEvent) event);
-                } else if (type == Event.RELOAD_EVENT) {
-                    module.onReload((LWCReloadEvent) event);
+            for (Listener listener : modules) {
+                if (listener.ignoreCancelled && cancellable != null && cancellable.isCancelled()) {
+                    continue;
+                }
+
+                if (profiling && profiler.sample(listener.stats)) {
+                    long allocated = profiler.getAllocatedBytes();
+                    long start = System.nanoTime();
+                    listener.invoker.invoke(listener.module, event);
+                    profiler.record(listener.stats, System.nanoTime() - start, allocated);
+                } else {
+                    listener.invoker.invoke(listener.module, event);
                 }
             }
         } catch (Throwable throwable) {
@@ -359,13 +432,21 @@ public class ModuleLoader {
         }
     }
 
+    /**
+     * @return the profiler that records how long modules take to handle events
+     */
+    public ModuleProfiler getProfiler() {
+        return profiler;
+    }
+
     /**
      * Shutdown the plugin loader
      *
      * @todo broadcast UNLOAD
      */
-    public void shutdown() {
+    public synchronized void shutdown() {
         pluginModules.clear();
+        Arrays.fill(listeners, NO_LISTENERS);
     }
 
     /**
@@ -463,8 +544,8 @@ public class ModuleLoader {
         modules.add(metaData);
         pluginModules.put(plugin, modules);
 
-        // Populate the fast cache
-        registerFastCache(module);
+        // Start sending it the events it handles
+        registerListeners(module);
     }
 
     /**
@@ -473,7 +554,64 @@ public class ModuleLoader {
      * @param plugin
      */
     public void removeModules(Plugin plugin) {
-        pluginModules.remove(plugin);
+        List<MetaData> removed = pluginModules.remove(plugin);
+
+        if (removed != null) {
+            List<Module> modules = new ArrayList<Module>(removed.size());
+
+            for (MetaData metaData : removed) {
+                modules.add(metaData.getModule());
+            }
+
+            unregisterListeners(modules);
+        }
+    }
+
+    /**
+     * Calls the method of a module that handles one event type
+     */
+    private interface Invoker {
+
+        void invoke(Module module, LWCEvent event);
+
+    }
+
+    /**
+     * How modules handle one event type
+     */
+    private static final class Handler {
+
+        final String method;
+        final Class<? extends LWCEvent> type;
+        final Invoker invoker;
+
+        Handler(String method, Class<? extends LWCEvent> type, Invoker invoker) {
+            this.method = method;
+            this.type = type;
+            this.invoker = invoker;
+        }
+
+    }
+
+    /**
+     * A module listening to an event type
+     */
+    private static final class Listener {
+
+        final Module module;
+        final Invoker invoker;
+        final EventPriority priority;
+        final boolean ignoreCancelled;
+        final ModuleProfiler.Stats stats;
+
+        Listener(Module module, Invoker invoker, EventPriority priority, boolean ignoreCancelled, ModuleProfiler.Stats stats) {
+            this.module = module;
+            this.invoker = invoker;
+            this.priority = priority;
+            this.ignoreCancelled = ignoreCancelled;
+            this.stats = stats;
+        }
+
     }
 
 }
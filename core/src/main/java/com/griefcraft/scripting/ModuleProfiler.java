@@ -0,0 +1,384 @@
+/*
+ * Copyright 2011 Tyler Blair. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are
+ * permitted provided that the following conditions are met:
+ *
+ *    1. Redistributions of source code must retain the above copyright notice, this list of
+ *       conditions and the following disclaimer.
+ *
+ *    2. Redistributions in binary form must reproduce the above copyright notice, this list
+ *       of conditions and the following disclaimer in the documentation and/or other materials
+ *       provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ''AS IS'' AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND
+ * FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE AUTHOR OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * The views and conclusions contained in the software and documentation are those of the
+ * authors and contributors and should not be interpreted as representing official policies,
+ * either expressed or implied, of anybody else.
+ */
+package com.griefcraft.scripting;
+
+import com.griefcraft.lwc.LWC;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Records how long each module spends handling each event type. Every call is counted, but only one in
+ * <code>core.profiler.sampleRate</code> calls is timed, so the profiler can stay enabled on a live server.
+ * <p/>
+ * Latency percentiles come from a log-scale histogram, so they are accurate to within about 25%.
+ */
+public class ModuleProfiler {
+
+    /**
+     * The number of histogram buckets; enough for any positive long
+     */
+    private static final int BUCKETS = 4 + 61 * 4;
+
+    /**
+     * The LWC instance
+     */
+    private final LWC lwc;
+
+    /**
+     * The stats of each module and event type, keyed by the module's class and the event
+     */
+    private final ConcurrentMap<String, Stats> stats = new ConcurrentHashMap<String, Stats>();
+
+    /**
+     * Reads the memory allocated by a thread; null if the JVM can't or allocations are not recorded
+     */
+    private volatile com.sun.management.ThreadMXBean allocations;
+
+    private volatile boolean enabled = false;
+    private volatile int sampleRate = 1;
+
+    public ModuleProfiler(LWC lwc) {
+        this.lwc = lwc;
+        load();
+    }
+
+    /**
+     * Load the profiler settings from the configuration
+     */
+    public void load() {
+        enabled = lwc.getConfiguration().getBoolean("core.profiler.enabled", false);
+        sampleRate = Math.max(1, lwc.getConfiguration().getInt("core.profiler.sampleRate", 10));
+        allocations = enabled && lwc.getConfiguration().getBoolean("core.profiler.allocations", true) ? getAllocationBean() : null;
+    }
+
+    /**
+     * @return true if module calls are being profiled
+     */
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * @return true if the allocated memory is recorded
+     */
+    public boolean isRecordingAllocations() {
+        return allocations != null;
+    }
+
+    /**
+     * @return one in how many calls is timed
+     */
+    public int getSampleRate() {
+        return sampleRate;
+    }
+
+    /**
+     * Get the stats for a module handling an event type, creating them if needed
+     *
+     * @param module
+     * @param event
+     * @return
+     */
+    public Stats getStats(Module module, ModuleLoader.Event event) {
+        String key = module.getClass().getName() + '#' + event.name();
+        Stats found = stats.get(key);
+
+        if (found == null) {
+            Stats existing = stats.putIfAbsent(key, found = new Stats(module.getClass().getSimpleName(), event));
+
+            if (existing != null) {
+                found = existing;
+            }
+        }
+
+        return found;
+    }
+
+    /**
+     * Count a call and check if it should be timed
+     *
+     * @param stats
+     * @return true if the call should be timed and then passed to {@link #record(Stats, long, long)}
+     */
+    public boolean sample(Stats stats) {
+        return stats.calls.incrementAndGet() % sampleRate == 0;
+    }
+
+    /**
+     * @return the bytes allocated by the current thread so far, or -1 if they are not recorded
+     */
+    public long getAllocatedBytes() {
+        com.sun.management.ThreadMXBean bean = allocations;
+        return bean != null ? bean.getThreadAllocatedBytes(Thread.currentThread().getId()) : -1;
+    }
+
+    /**
+     * Record a timed call
+     *
+     * @param stats
+     * @param nanos how long the call took
+     * @param allocatedBefore the result of {@link #getAllocatedBytes()} before the call
+     */
+    public void record(Stats stats, long nanos, long allocatedBefore) {
+        long allocated = allocatedBefore >= 0 ? getAllocatedBytes() - allocatedBefore : -1;
+        stats.record(nanos, allocated);
+    }
+
+    /**
+     * @return the stats of every module and event type that was called, the most expensive first
+     */
+    public List<Stats> getStats() {
+        List<Stats> result = new ArrayList<Stats>();
+
+        for (Stats entry : stats.values()) {
+            if (entry.getCalls() > 0) {
+                result.add(entry);
+            }
+        }
+
+        Collections.sort(result, new Comparator<Stats>() {
+            public int compare(Stats o1, Stats o2) {
+                return Long.compare(o2.getTotalNanos(), o1.getTotalNanos());
+            }
+        });
+
+        return result;
+    }
+
+    /**
+     * Forget everything recorded so far
+     */
+    public void reset() {
+        for (Stats entry : stats.values()) {
+            entry.reset();
+        }
+    }
+
+    /**
+     * Write the stats to a CSV file
+     *
+     * @param file
+     * @throws IOException
+     */
+    public void exportCsv(File file) throws IOException {
+        BufferedWriter writer = new BufferedWriter(new FileWriter(file));
+
+        try {
+            writer.write("module,event,calls,samples,total_ns,avg_ns,p50_ns,p99_ns,allocated_bytes_per_call");
+            writer.newLine();
+
+            for (Stats entry : getStats()) {
+                writer.write(entry.getModule() + "," + entry.getEvent() + "," + entry.getCalls() + "," + entry.getSamples()
+                        + "," + entry.getTotalNanos() + "," + entry.getAverageNanos() + "," + entry.getPercentile(0.5)
+                        + "," + entry.getPercentile(0.99) + "," + entry.getAllocatedBytesPerCall());
+                writer.newLine();
+            }
+        } finally {
+            writer.close();
+        }
+    }
+
+    /**
+     * @return the bean that reads thread allocations, or null if the JVM does not support it
+     */
+    private static com.sun.management.ThreadMXBean getAllocationBean() {
+        try {
+            java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+
+            if (!(bean instanceof com.sun.management.ThreadMXBean)) {
+                return null;
+            }
+
+            com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) bean;
+
+            if (!threads.isThreadAllocatedMemorySupported()) {
+                return null;
+            }
+
+            if (!threads.isThreadAllocatedMemoryEnabled()) {
+                threads.setThreadAllocatedMemoryEnabled(true);
+            }
+
+            return threads;
+        } catch (Throwable t) {
+            // not a JVM that ships com.sun.management
+            return null;
+        }
+    }
+
+    /**
+     * @param nanos
+     * @return the histogram bucket of a duration
+     */
+    private static int bucket(long nanos) {
+        if (nanos < 4) {
+            return (int) Math.max(0, nanos);
+        }
+
+        // 4 buckets per power of two
+        int exponent = 63 - Long.numberOfLeadingZeros(nanos);
+        int fraction = (int) (nanos >>> (exponent - 2)) & 3;
+        return 4 + (exponent - 2) * 4 + fraction;
+    }
+
+    /**
+     * @param bucket
+     * @return the highest duration in a histogram bucket
+     */
+    private static long bucketMax(int bucket) {
+        if (bucket < 4) {
+            return bucket;
+        }
+
+        int exponent = (bucket - 4) / 4 + 2;
+        int fraction = (bucket - 4) % 4;
+        return ((5L + fraction) << (exponent - 2)) - 1;
+    }
+
+    /**
+     * What was recorded for one module handling one event type
+     */
+    public static final class Stats {
+
+        private final String module;
+        private final ModuleLoader.Event event;
+
+        /**
+         * Every call, timed or not
+         */
+        private final AtomicLong calls = new AtomicLong();
+
+        private long samples;
+        private long sampledNanos;
+        private long allocatedSamples;
+        private long allocatedBytes;
+        private final long[] histogram = new long[BUCKETS];
+
+        Stats(String module, ModuleLoader.Event event) {
+            this.module = module;
+            this.event = event;
+        }
+
+        synchronized void record(long nanos, long allocated) {
+            samples++;
+            sampledNanos += nanos;
+            histogram[bucket(nanos)]++;
+
+            if (allocated >= 0) {
+                allocatedSamples++;
+                allocatedBytes += allocated;
+            }
+        }
+
+        synchronized void reset() {
+            calls.set(0);
+            samples = 0;
+            sampledNanos = 0;
+            allocatedSamples = 0;
+            allocatedBytes = 0;
+            Arrays.fill(histogram, 0);
+        }
+
+        /**
+         * @return the simple class name of the module
+         */
+        public String getModule() {
+            return module;
+        }
+
+        public ModuleLoader.Event getEvent() {
+            return event;
+        }
+
+        public long getCalls() {
+            return calls.get();
+        }
+
+        public synchronized long getSamples() {
+            return samples;
+        }
+
+        /**
+         * @return the estimated time spent in every call, timed or not
+         */
+        public synchronized long getTotalNanos() {
+            return samples == 0 ? 0 : (long) ((double) sampledNanos / samples * calls.get());
+        }
+
+        /**
+         * @return the average time of a call
+         */
+        public synchronized long getAverageNanos() {
+            return samples == 0 ? 0 : sampledNanos / samples;
+        }
+
+        /**
+         * @param percentile between 0 and 1
+         * @return the time the given share of the timed calls stayed under
+         */
+        public synchronized long getPercentile(double percentile) {
+            if (samples == 0) {
+                return 0;
+            }
+
+            long target = Math.max(1, (long) Math.ceil(percentile * samples));
+            long seen = 0;
+
+            for (int i = 0; i < histogram.length; i++) {
+                seen += histogram[i];
+
+                if (seen >= target) {
+                    return bucketMax(i);
+                }
+            }
+
+            return bucketMax(histogram.length - 1);
+        }
+
+        /**
+         * @return the average bytes allocated by a call, or -1 if they are not recorded
+         */
+        public synchronized long getAllocatedBytesPerCall() {
+            return allocatedSamples == 0 ? -1 : allocatedBytes / allocatedSamples;
+        }
+
+    }
+
+}
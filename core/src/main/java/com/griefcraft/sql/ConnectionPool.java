@@ -0,0 +1,280 @@
+/*
+ * Copyright 2011 Tyler Blair. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are
+ * permitted provided that the following conditions are met:
+ *
+ *    1. Redistributions of source code must retain the above copyright notice, this list of
+ *       conditions and the following disclaimer.
+ *
+ *    2. Redistributions in binary form must reproduce the above copyright notice, this list
+ *       of conditions and the following disclaimer in the documentation and/or other materials
+ *       provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ''AS IS'' AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND
+ * FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE AUTHOR OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * The views and conclusions contained in the software and documentation are those of the
+ * authors and contributors and should not be interpreted as representing official policies,
+ * either expressed or implied, of anybody else.
+ */
+
+package com.griefcraft.sql;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Iterator;
+
+/**
+ * A bounded pool of database connections. Connections are created when needed, validated when they were idle for a
+ * while and closed once they were idle for too long.
+ */
+public class ConnectionPool {
+
+    /**
+     * Creates new connections for the pool
+     */
+    public interface ConnectionFactory {
+
+        /**
+         * @return a new connection to the database
+         * @throws SQLException
+         */
+        Connection create() throws SQLException;
+
+    }
+
+    /**
+     * Connections idle for longer than this are checked before being handed out
+     */
+    private static final long VALIDATION_INTERVAL = 30000L;
+
+    /**
+     * How long to wait for a connection when every connection is in use
+     */
+    private static final long BORROW_TIMEOUT = 10000L;
+
+    private final ConnectionFactory factory;
+    private final Database.Type type;
+    private final int maxSize;
+    private final long idleTimeout;
+
+    /**
+     * Idle connections, the most recently used first so the others idle out when the pool is quiet
+     */
+    private final Deque<PooledConnection> idle = new ArrayDeque<PooledConnection>();
+
+    /**
+     * The number of open connections, borrowed or idle
+     */
+    private int size = 0;
+
+    /**
+     * The number of connections that were created
+     */
+    private long created = 0;
+
+    private boolean closed = false;
+
+    /**
+     * @param factory
+     * @param type
+     * @param maxSize the max number of open connections
+     * @param idleTimeout milliseconds after which an idle connection is closed
+     */
+    public ConnectionPool(ConnectionFactory factory, Database.Type type, int maxSize, long idleTimeout) {
+        this.factory = factory;
+        this.type = type;
+        this.maxSize = Math.max(1, maxSize);
+        this.idleTimeout = idleTimeout;
+    }
+
+    /**
+     * Borrow a connection, waiting for one to be returned if the pool is exhausted. It must be closed to return it.
+     *
+     * @return
+     * @throws SQLException if no connection could be created or the wait timed out
+     */
+    public PooledConnection borrow() throws SQLException {
+        long deadline = System.currentTimeMillis() + BORROW_TIMEOUT;
+
+        while (true) {
+            PooledConnection connection = null;
+
+            synchronized (this) {
+                while (connection == null) {
+                    if (closed) {
+                        throw new SQLException("The connection pool is closed");
+                    }
+
+                    evictIdle();
+                    connection = idle.pollFirst();
+
+                    if (connection != null) {
+                        break;
+                    }
+
+                    if (size < maxSize) {
+                        size++;
+                        break;
+                    }
+
+                    long remaining = deadline - System.currentTimeMillis();
+
+                    if (remaining <= 0) {
+                        throw new SQLException("Timed out waiting for a database connection (" + maxSize + " in use)");
+                    }
+
+                    try {
+                        wait(remaining);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new SQLException("Interrupted while waiting for a database connection");
+                    }
+                }
+            }
+
+            if (connection == null) {
+                // a new connection was reserved
+                break;
+            }
+
+            // validate outside of the lock, it is a round trip to the database
+            if (System.currentTimeMillis() - connection.lastUsed < VALIDATION_INTERVAL || connection.validate()) {
+                return connection;
+            }
+
+            // broken, e.g. the server closed it
+            connection.closeConnection();
+
+            synchronized (this) {
+                size--;
+                notifyAll();
+            }
+        }
+
+        // connect outside of the lock, connecting may take a while
+        try {
+            PooledConnection connection = new PooledConnection(this, type, factory.create());
+
+            synchronized (this) {
+                created++;
+            }
+
+            return connection;
+        } catch (SQLException e) {
+            synchronized (this) {
+                size--;
+                notifyAll();
+            }
+
+            throw e;
+        }
+    }
+
+    /**
+     * Return a borrowed connection
+     *
+     * @param connection
+     */
+    void release(PooledConnection connection) {
+        boolean reusable = true;
+
+        try {
+            // leave no transaction behind for the next borrower
+            Connection jdbc = connection.getConnection();
+
+            if (!jdbc.getAutoCommit()) {
+                jdbc.rollback();
+                jdbc.setAutoCommit(true);
+            }
+        } catch (SQLException e) {
+            reusable = false;
+        }
+
+        synchronized (this) {
+            if (closed || !reusable) {
+                connection.closeConnection();
+                size--;
+            } else {
+                connection.lastUsed = System.currentTimeMillis();
+                idle.addFirst(connection);
+            }
+
+            notifyAll();
+        }
+    }
+
+    /**
+     * Close the connections that were idle for longer than the idle timeout
+     */
+    public synchronized void evictIdle() {
+        long now = System.currentTimeMillis();
+        Iterator<PooledConnection> iterator = idle.descendingIterator();
+
+        while (iterator.hasNext()) {
+            PooledConnection connection = iterator.next();
+
+            if (now - connection.lastUsed < idleTimeout) {
+                break;
+            }
+
+            iterator.remove();
+            connection.closeConnection();
+            size--;
+        }
+    }
+
+    /**
+     * Close the pool and its idle connections. Borrowed connections are closed when they are returned.
+     */
+    public synchronized void close() {
+        closed = true;
+
+        for (PooledConnection connection : idle) {
+            connection.closeConnection();
+            size--;
+        }
+
+        idle.clear();
+        notifyAll();
+    }
+
+    /**
+     * @return the number of open connections, borrowed or idle
+     */
+    public synchronized int getSize() {
+        return size;
+    }
+
+    /**
+     * @return the number of idle connections
+     */
+    public synchronized int getIdle() {
+        return idle.size();
+    }
+
+    /**
+     * @return the max number of open connections
+     */
+    public int getMaxSize() {
+        return maxSize;
+    }
+
+    /**
+     * @return the number of connections that were created
+     */
+    public synchronized long getCreated() {
+        return created;
+    }
+
+}
@@ -29,22 +29,20 @@
 package com.griefcraft.sql;
 
 
+import java.io.File;
 import java.sql.Connection;
 import java.sql.Driver;
 import java.sql.PreparedStatement;
+import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Statement;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.Properties;
-import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import org.bukkit.Bukkit;
 
-import com.google.common.cache.Cache;
-import com.google.common.cache.CacheBuilder;
-import com.google.common.cache.RemovalListener;
-import com.google.common.cache.RemovalNotification;
 import com.griefcraft.lwc.LWC;
 import com.griefcraft.scripting.ModuleException;
 import com.griefcraft.util.Statistics;
@@ -91,29 +89,52 @@ public abstract class Database {
     public Type currentType;
 
     /**
-     * Store cached prepared statements.
-     * <p/>
-     * Since SQLite JDBC doesn't cache them.. we do it ourselves :S
+     * The primary connection to the database, used by the server thread. It also caches our prepared statements
+     * since SQLite JDBC doesn't cache them.. we do it ourselves :S
      */
-    private Cache<String, PreparedStatement> statementCache = CacheBuilder
-            .newBuilder()
-            .expireAfterWrite(5, TimeUnit.MINUTES)
-            .removalListener(notif -> closeQuietly((PreparedStatement) notif.getValue()))
-            .build();
-
-    private void closeQuietly(AutoCloseable closeable) {
-        try {
-            if (closeable != null) {
-                closeable.close();
-            }
-        } catch (Exception ignored) { }
-    }
+    private PooledConnection primary = null;
 
     /**
-     * The connection to the database
+     * The primary connection to the database
      */
     protected Connection connection = null;
 
+    /**
+     * Connections used by other threads, see {@link #borrowConnection()}
+     */
+    private ConnectionPool pool = null;
+
+    /**
+     * The connection borrowed by the current thread, if any. Statements prepared on this thread use it instead of
+     * the primary connection
+     */
+    private final ThreadLocal<PooledConnection> borrowed = new ThreadLocal<PooledConnection>();
+
+    /**
+     * If a task is already scheduled to close the statements the primary connection evicted from its cache
+     */
+    private final AtomicBoolean retiredCleanupScheduled = new AtomicBoolean(false);
+
+    /**
+     * The driver and properties used to open new connections
+     */
+    private Driver driver;
+    private Properties properties;
+
+    /**
+     * If SQLite is using a write-ahead log, see {@link #configureSQLite(Connection)}
+     */
+    private volatile boolean writeAheadLogging = false;
+
+    /**
+     * WAL checkpoint statistics
+     */
+    private volatile long checkpoints = 0;
+    private volatile long lastCheckpoint = 0;
+    private volatile long lastCheckpointTime = 0;
+    private volatile int lastCheckpointFrames = 0;
+    private volatile int lastCheckpointedFrames = 0;
+
     /**
      * The default database engine being used. This is set via config
      *
@@ -165,6 +186,11 @@ public abstract class Database {
             log("Keepalive packet (ping) failed!");
             ex.printStackTrace();
         }
+
+        // pooled connections are validated when they are borrowed, just close the ones nobody needed for a while
+        if (pool != null) {
+            pool.evictIdle();
+        }
     }
 
     /**
@@ -231,10 +257,10 @@ public abstract class Database {
         }
 
         // Load the driver class
-        Driver driver = (Driver) classLoader.loadClass(className).newInstance();
+        driver = (Driver) classLoader.loadClass(className).newInstance();
 
         // Create the properties to pass to the driver
-        Properties properties = new Properties();
+        properties = new Properties();
 
         // if we're using mysql, append the database info
         if (currentType == Type.MySQL) {
@@ -246,7 +272,19 @@ public abstract class Database {
 
         // Connect to the database
         try {
-            connection = driver.connect("jdbc:" + currentType.toString().toLowerCase() + ":" + getDatabasePath(), properties);
+            connection = openConnection();
+            primary = new PooledConnection(null, currentType, connection);
+
+            Configuration configuration = LWC.getInstance().getConfiguration();
+            int maxSize = configuration.getInt("database.pool.maxSize", 4);
+            long idleTimeout = configuration.getInt("database.pool.idleTimeout", 300) * 1000L;
+
+            pool = new ConnectionPool(new ConnectionPool.ConnectionFactory() {
+                public Connection create() throws SQLException {
+                    return openConnection();
+                }
+            }, currentType, maxSize, idleTimeout);
+
             connected = true;
             return true;
         } catch (SQLException e) {
@@ -259,25 +297,229 @@ public abstract class Database {
         }
     }
 
-    public void dispose() {
-        statementCache.invalidateAll();
+    /**
+     * Open a new connection to the database
+     *
+     * @return
+     * @throws SQLException
+     */
+    private Connection openConnection() throws SQLException {
+        Connection connection = driver.connect("jdbc:" + currentType.toString().toLowerCase() + ":" + getDatabasePath(), properties);
 
-        try {
-            if (connection != null) {
-                connection.close();
+        if (connection == null) {
+            throw new SQLException("The driver refused the database url");
+        }
+
+        if (currentType == Type.SQLite) {
+            configureSQLite(connection);
+        }
+
+        return connection;
+    }
+
+    /**
+     * Apply the SQLite performance settings to a new connection. With a write-ahead log readers no longer wait for
+     * the database thread's write transactions, and synchronous=NORMAL only syncs the log on checkpoints.
+     *
+     * @param connection
+     * @throws SQLException
+     */
+    private void configureSQLite(Connection connection) throws SQLException {
+        Configuration configuration = LWC.getInstance().getConfiguration();
+
+        try (Statement statement = connection.createStatement()) {
+            if (configuration.getBoolean("database.sqlite.wal", true)) {
+                String mode;
+
+                try (ResultSet set = statement.executeQuery("PRAGMA journal_mode = WAL")) {
+                    mode = set.next() ? set.getString(1) : null;
+                }
+
+                boolean enabled = "wal".equalsIgnoreCase(mode);
+
+                // only complain once, when opening the primary connection
+                if (!enabled && this.connection == null) {
+                    log("Could not enable the SQLite write-ahead log, using journal mode " + mode);
+                }
+
+                writeAheadLogging = enabled;
             }
+
+            String synchronous = configuration.getString("database.sqlite.synchronous", "NORMAL").toUpperCase();
+
+            if (!synchronous.equals("OFF") && !synchronous.equals("NORMAL") && !synchronous.equals("FULL") && !synchronous.equals("EXTRA")) {
+                synchronous = "NORMAL";
+            }
+
+            statement.execute("PRAGMA synchronous = " + synchronous);
+
+            // negative cache sizes are in KiB rather than pages
+            statement.execute("PRAGMA cache_size = " + (-1024L * Math.max(1, configuration.getInt("database.sqlite.cacheSize", 16))));
+            statement.execute("PRAGMA mmap_size = " + (1024L * 1024L * Math.max(0, configuration.getInt("database.sqlite.mmapSize", 64))));
+            statement.execute("PRAGMA busy_timeout = " + Math.max(0, configuration.getInt("database.sqlite.busyTimeout", 5000)));
+        }
+    }
+
+    /**
+     * Copy the write-ahead log back into the database without waiting for readers or writers. Called periodically
+     * by the database thread so the log doesn't keep growing while there are always readers.
+     */
+    public synchronized void checkpoint() {
+        if (!writeAheadLogging) {
+            return;
+        }
+
+        long start = System.nanoTime();
+
+        try (Statement statement = getConnection().createStatement();
+             ResultSet set = statement.executeQuery("PRAGMA wal_checkpoint(PASSIVE)")) {
+            if (set.next()) {
+                lastCheckpointFrames = set.getInt(2);
+                lastCheckpointedFrames = set.getInt(3);
+            }
+
+            checkpoints++;
+            lastCheckpoint = System.currentTimeMillis();
+            lastCheckpointTime = System.nanoTime() - start;
         } catch (SQLException e) {
-            e.printStackTrace();
+            log("WAL checkpoint failed: " + e.getMessage());
+        }
+    }
+
+    /**
+     * @return true if SQLite is using a write-ahead log
+     */
+    public boolean isWriteAheadLogging() {
+        return writeAheadLogging;
+    }
+
+    /**
+     * @return the size of the write-ahead log file in bytes
+     */
+    public long getWriteAheadLogSize() {
+        return new File(getDatabasePath() + "-wal").length();
+    }
+
+    /**
+     * @return the number of WAL checkpoints that were run
+     */
+    public long getCheckpoints() {
+        return checkpoints;
+    }
+
+    /**
+     * @return when the last WAL checkpoint was run, or 0 if none was
+     */
+    public long getLastCheckpoint() {
+        return lastCheckpoint;
+    }
+
+    /**
+     * @return how long the last WAL checkpoint took in nanoseconds
+     */
+    public long getLastCheckpointTime() {
+        return lastCheckpointTime;
+    }
+
+    /**
+     * @return the number of frames in the write-ahead log at the last checkpoint
+     */
+    public int getLastCheckpointFrames() {
+        return lastCheckpointFrames;
+    }
+
+    /**
+     * @return the number of frames the last checkpoint copied back into the database
+     */
+    public int getLastCheckpointedFrames() {
+        return lastCheckpointedFrames;
+    }
+
+    public void dispose() {
+        if (pool != null) {
+            pool.close();
+            pool = null;
+        }
+
+        if (primary != null) {
+            primary.closeConnection();
+            primary = null;
         }
 
         connection = null;
     }
 
     /**
-     * @return the connection to the database
+     * @return the connection to the database; the connection borrowed by the current thread if there is one
      */
     public Connection getConnection() {
-        return connection;
+        PooledConnection current = borrowed.get();
+        return current != null ? current.getConnection() : connection;
+    }
+
+    /**
+     * Borrow a pooled connection for the current thread. Until it is closed, every statement this thread prepares
+     * through this database (including {@link #getConnection()}) uses the borrowed connection, so background tasks
+     * never share a connection or cached statement with the server thread.
+     * <pre>
+     * try (PooledConnection ignored = database.borrowConnection()) {
+     *     ...
+     * }
+     * </pre>
+     *
+     * @return
+     * @throws SQLException if the database is not connected or no connection became available
+     */
+    public PooledConnection borrowConnection() throws SQLException {
+        if (pool == null) {
+            throw new SQLException("Not connected to the database");
+        }
+
+        PooledConnection pooled = pool.borrow();
+        pooled.previous = borrowed.get();
+        pooled.boundTo = this;
+        borrowed.set(pooled);
+        return pooled;
+    }
+
+    /**
+     * Restore the connection the thread used before the given connection was borrowed
+     *
+     * @param pooled
+     */
+    void unbind(PooledConnection pooled) {
+        if (borrowed.get() == pooled) {
+            if (pooled.previous != null) {
+                borrowed.set(pooled.previous);
+            } else {
+                borrowed.remove();
+            }
+        }
+
+        pooled.previous = null;
+        pooled.boundTo = null;
+    }
+
+    /**
+     * Open a dedicated connection for reading large result sets, e.g. a full table scan. It is not pooled and it is
+     * closed when the returned connection is closed.
+     *
+     * @return
+     * @throws SQLException
+     */
+    public PooledConnection openStreamingConnection() throws SQLException {
+        if (driver == null) {
+            throw new SQLException("Not connected to the database");
+        }
+
+        return new PooledConnection(null, currentType, openConnection());
+    }
+
+    /**
+     * @return the pool of connections used by other threads, or null if not connected
+     */
+    public ConnectionPool getConnectionPool() {
+        return pool;
     }
 
     /**
@@ -332,38 +574,89 @@ public abstract class Database {
      * @return
      */
     public PreparedStatement prepare(String sql, boolean returnGeneratedKeys) {
-        if (connection == null) {
+        PooledConnection current = borrowed.get();
+
+        if (current == null) {
+            current = primary;
+        }
+
+        if (current == null) {
             return null;
         }
 
-        try {
-            if (useStatementCache) {
-                Statistics.addQuery();
-                final PreparedStatement p = statementCache.getIfPresent(sql);
-                if(p != null) return p;
-            }
+        PreparedStatement statement;
 
-            return prepareInternal(sql, returnGeneratedKeys);
+        try {
+            statement = current.prepare(sql, returnGeneratedKeys, useStatementCache);
         } catch (Throwable ex) {
             throw new RuntimeException("Failed to prepare statement " + sql, ex);
         }
+
+        if (current == primary && current.hasRetiredStatements()) {
+            scheduleRetiredCleanup(current);
+        }
+
+        return statement;
     }
 
-    private PreparedStatement prepareInternal(String sql, boolean returnGeneratedKeys) throws SQLException {
-        PreparedStatement preparedStatement;
+    /**
+     * The primary connection is never returned, so the statements it evicts from its cache are closed on the next
+     * server tick instead, when whatever prepared them is done with them
+     *
+     * @param connection
+     */
+    private void scheduleRetiredCleanup(final PooledConnection connection) {
+        LWC lwc = LWC.getInstance();
 
-        if (returnGeneratedKeys) {
-            preparedStatement = connection.prepareStatement(sql, Statement.RETURN_GENERATED_KEYS);
-        } else {
-            preparedStatement = connection.prepareStatement(sql);
+        if (!lwc.getPlugin().isEnabled() || !retiredCleanupScheduled.compareAndSet(false, true)) {
+            return;
         }
 
-        if (useStatementCache) {
-            statementCache.put(sql, preparedStatement);
-        }
+        Bukkit.getScheduler().runTask(lwc.getPlugin(), new Runnable() {
+            public void run() {
+                retiredCleanupScheduled.set(false);
 
+                if (connection == primary) {
+                    connection.closeRetiredStatements();
+                }
+            }
+        });
+    }
+
+    /**
+     * Execute a query, counting it in the statistics
+     *
+     * @param statement
+     * @return
+     * @throws SQLException
+     */
+    public ResultSet executeQuery(PreparedStatement statement) throws SQLException {
+        Statistics.addQuery();
+        return statement.executeQuery();
+    }
+
+    /**
+     * Execute an update, counting it in the statistics
+     *
+     * @param statement
+     * @return the amount of rows affected
+     * @throws SQLException
+     */
+    public int executeUpdate(PreparedStatement statement) throws SQLException {
+        Statistics.addQuery();
+        return statement.executeUpdate();
+    }
+
+    /**
+     * Execute a batch, counting it in the statistics as one query
+     *
+     * @param statement
+     * @return the amount of rows affected by each statement in the batch
+     * @throws SQLException
+     */
+    public int[] executeBatch(Statement statement) throws SQLException {
         Statistics.addQuery();
-        return preparedStatement;
+        return statement.executeBatch();
     }
 
     /**
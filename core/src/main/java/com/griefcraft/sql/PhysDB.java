@@ -30,11 +30,16 @@ package com.griefcraft.sql;
 
 import java.sql.*;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Date;
 import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
 
 import com.griefcraft.cache.LRUCache;
 import com.griefcraft.cache.ProtectionCache;
@@ -45,23 +50,23 @@ import com.griefcraft.model.Permission;
 import com.griefcraft.model.Protection;
 import com.griefcraft.modules.limits.LimitsModule;
 import com.griefcraft.scripting.Module;
+import com.griefcraft.util.AsyncProtectionLoader;
+import com.griefcraft.util.CompactData;
 import com.griefcraft.util.LegacyMaterials;
 import com.griefcraft.util.UUIDRegistry;
+import com.griefcraft.util.UUIDResolver;
 import com.griefcraft.util.config.Configuration;
 
 import org.bukkit.Bukkit;
 import org.bukkit.Material;
 import org.bukkit.entity.Player;
-import org.json.simple.JSONArray;
-import org.json.simple.JSONObject;
-import org.json.simple.parser.JSONParser;
 
-public class PhysDB extends Database {
+public class PhysDB extends Database implements CompactData.Dictionary {
 
     /**
-     * The JSON Parser object
+     * Every protection column, as selected by the protection queries
      */
-    private final JSONParser jsonParser = new JSONParser();
+    public static final String PROTECTION_COLUMNS = "id, owner, type, x, y, z, data, blockId, world, password, date, last_accessed, related";
 
     /**
      * The database version
@@ -73,6 +78,17 @@ public class PhysDB extends Database {
      */
     private int protectionCount = 0;
 
+    /**
+     * If protection data is stored in the compact form. See {@link CompactData}
+     */
+    private boolean compactData = false;
+
+    /**
+     * The uuids table, cached in both directions
+     */
+    private final Map<String, Integer> uuidIds = new ConcurrentHashMap<String, Integer>();
+    private final Map<Integer, String> uuids = new ConcurrentHashMap<Integer, String>();
+
     public PhysDB() {
         super();
     }
@@ -88,6 +104,15 @@ public class PhysDB extends Database {
         protectionCount --;
     }
 
+    /**
+     * Decrement the known protection counter by the given amount
+     *
+     * @param amount
+     */
+    public void decrementProtectionCount(int amount) {
+        protectionCount -= amount;
+    }
+
     /**
      * Check if the protection cache has all of the known protections cached
      *
@@ -116,7 +141,7 @@ public class PhysDB extends Database {
                 index++;
             }
 
-            ResultSet set = statement.executeQuery();
+            ResultSet set = executeQuery(statement);
 
             if (set.next()) {
                 Object object = set.getObject(column);
@@ -157,21 +182,33 @@ public class PhysDB extends Database {
     }
 
     /**
-     * Get the amount of protections a player has
+     * Get the owner a player's protections are stored with: their UUID, or the name itself for players without a UUID
+     * (protections registered before UUIDs were used). The UUID of a name that is not known yet is looked up, so
+     * resolve it first (see {@link UUIDRegistry#whenResolved}) to not block the server thread.
+     *
+     * @param player a player name or UUID
+     * @return
+     */
+    private String resolveOwner(String player) {
+        UUID uuid = UUIDRegistry.getUUID(player);
+        return uuid != null ? uuid.toString() : player;
+    }
+
+    /**
+     * Get the amount of protections a player has. The UUID of a name should be resolved first, see
+     * {@link #resolveOwner(String)}.
      *
      * @param player
      * @return the amount of protections they have
      */
     public int getProtectionCount(String player) {
         int count = 0;
-        
-        UUID uuid = UUIDRegistry.getUUID(player);
 
         try {
             PreparedStatement statement = prepare("SELECT COUNT(*) as count FROM " + prefix + "protections WHERE owner = ?");
-            statement.setString(1, uuid != null ? uuid.toString() : player);
+            statement.setString(1, resolveOwner(player));
 
-            ResultSet set = statement.executeQuery();
+            ResultSet set = executeQuery(statement);
 
             if (set.next()) {
                 count = set.getInt("count");
@@ -195,10 +232,10 @@ public class PhysDB extends Database {
         int count = 0;
 
         try {
-            PreparedStatement statement = prepare("SELECT COUNT(*) AS count FROM " + prefix + "history WHERE LOWER(player) = LOWER(?)");
-            statement.setString(1, player);
+            PreparedStatement statement = prepare("SELECT COUNT(*) AS count FROM " + prefix + "history WHERE player_lower = ?");
+            statement.setString(1, player.toLowerCase());
 
-            ResultSet set = statement.executeQuery();
+            ResultSet set = executeQuery(statement);
 
             if (set.next()) {
                 count = set.getInt("count");
@@ -212,6 +249,36 @@ public class PhysDB extends Database {
         return count;
     }
 
+    /**
+     * Count the protections an owner has of each block id. Uses the connection of the current thread, so it may be
+     * called from another thread that borrowed a connection (see {@link #borrowConnection()}).
+     *
+     * @param owner the owner as it is stored in the database
+     * @return the amount of protections by block id, or null if they could not be counted
+     */
+    public Map<Integer, Integer> loadProtectionCounts(String owner) {
+        Map<Integer, Integer> counts = new HashMap<Integer, Integer>();
+
+        if (connection == null) {
+            return null;
+        }
+
+        try (PreparedStatement statement = getConnection().prepareStatement("SELECT blockId, COUNT(*) AS count FROM " + prefix + "protections WHERE owner = ? GROUP BY blockId")) {
+            statement.setString(1, owner);
+
+            try (ResultSet set = executeQuery(statement)) {
+                while (set.next()) {
+                    counts.put(set.getInt("blockId"), set.getInt("count"));
+                }
+            }
+        } catch (SQLException e) {
+            printException(e);
+            return null;
+        }
+
+        return counts;
+    }
+
     public int getProtectionCount(String player, Material blockType) {
         return getProtectionCount(player, getTypeId(blockType));
     }
@@ -231,7 +298,7 @@ public class PhysDB extends Database {
             statement.setString(1, player);
             statement.setInt(2, blockId);
 
-            ResultSet set = statement.executeQuery();
+            ResultSet set = executeQuery(statement);
 
             if (set.next()) {
                 count = set.getInt("count");
@@ -333,6 +400,10 @@ public class PhysDB extends Database {
             column = new Column("last_accessed");
             column.setType("INTEGER");
             protections.add(column);
+
+            column = new Column("related");
+            column.setType("TEXT");
+            protections.add(column);
         }
 
         Table types = new Table(this, "types");
@@ -348,6 +419,19 @@ public class PhysDB extends Database {
             types.add(column);
         }
 
+        Table uuids = new Table(this, "uuids");
+        {
+            column = new Column("id");
+            column.setType("INTEGER");
+            column.setPrimary(true);
+            uuids.add(column);
+
+            column = new Column("uuid");
+            column.setType("VARCHAR(36)");
+            column.setUnique(true);
+            uuids.add(column);
+        }
+
         Table history = new Table(this, "history");
         {
             column = new Column("id");
@@ -390,6 +474,10 @@ public class PhysDB extends Database {
             column = new Column("timestamp");
             column.setType("long");
             history.add(column);
+
+            column = new Column("player_lower");
+            column.setType("VARCHAR(255)");
+            history.add(column);
         }
 
         Table internal = new Table(this, "internal");
@@ -405,14 +493,69 @@ public class PhysDB extends Database {
             internal.add(column);
         }
 
+        Table names = new Table(this, "names");
+        {
+            column = new Column("name");
+            column.setType("VARCHAR(40)");
+            column.setPrimary(true);
+            column.setAutoIncrement(false);
+            names.add(column);
+
+            column = new Column("uuid");
+            column.setType("VARCHAR(36)");
+            names.add(column);
+
+            column = new Column("player");
+            column.setType("VARCHAR(40)");
+            names.add(column);
+
+            column = new Column("updated");
+            column.setType("INTEGER");
+            names.add(column);
+        }
+
+        Table removals = new Table(this, "removals");
+        {
+            column = new Column("id");
+            column.setType("INTEGER");
+            column.setPrimary(true);
+            removals.add(column);
+
+            column = new Column("conditions");
+            column.setType("TEXT");
+            removals.add(column);
+
+            column = new Column("removeBlocks");
+            column.setType("INTEGER");
+            removals.add(column);
+
+            column = new Column("lastId");
+            column.setType("INTEGER");
+            removals.add(column);
+
+            column = new Column("removed");
+            column.setType("INTEGER");
+            removals.add(column);
+
+            column = new Column("started");
+            column.setType("INTEGER");
+            removals.add(column);
+        }
+
         protections.execute();
         types.execute();
+        uuids.execute();
         history.execute();
         internal.execute();
+        names.execute();
+        removals.execute();
 
         // Load the database version
         loadDatabaseVersion();
 
+        // Load the uuid dictionary used by compact protection data
+        loadUUIDs();
+
         // perform database upgrades
         performDatabaseUpdates();
 
@@ -560,6 +703,128 @@ public class PhysDB extends Database {
             incrementDatabaseVersion();
         }
 
+        if (databaseVersion == 7) {
+            log("Creating composite indexes (One time, may take a while!)");
+            createIndex("protections", "protections_location", "world, x, z, y");
+            createIndex("protections", "protections_owner", "owner, blockId");
+            createIndex("protections", "protections_last_accessed", "last_accessed");
+
+            // covered by the new indexes
+            dropIndex("protections", "protections_main");
+            dropIndex("protections", "protections_utility");
+
+            // history is looked up by player case insensitively, which can't use an index on the player itself
+            addColumn(prefix + "history", "player_lower", "VARCHAR(255)");
+            executeUpdateNoException("UPDATE " + prefix + "history SET player_lower = LOWER(player)");
+            createIndex("history", "history_player", "player_lower");
+            dropIndex("history", "history_utility");
+
+            incrementDatabaseVersion();
+        }
+
+        if (databaseVersion == 8) {
+            // the blocks each protection is made of, filled in as protections are found
+            addColumn(prefix + "protections", "related", "TEXT");
+            incrementDatabaseVersion();
+        }
+
+        // Not tied to the database version: converted whenever the configured encoding changes
+        compactData = lwc.getConfiguration().getBoolean("core.compactData", false);
+
+        if (compactData != Boolean.parseBoolean(getInternal("compactData"))) {
+            convertProtectionData(compactData);
+            setInternal("compactData", Boolean.toString(compactData));
+        }
+    }
+
+    /**
+     * Check if protection data is stored in the compact form
+     *
+     * @return
+     */
+    public boolean isCompactData() {
+        return compactData;
+    }
+
+    /**
+     * Rewrite the data column of every protection in the compact or JSON form
+     *
+     * @param compact
+     */
+    private void convertProtectionData(boolean compact) {
+        if (connection == null) {
+            return;
+        }
+
+        log("Converting protection data to " + (compact ? "the compact form" : "JSON") + " (One time, may take a while!)");
+
+        int lastId = 0;
+        int converted = 0;
+        boolean autoCommit = true;
+
+        try {
+            autoCommit = connection.getAutoCommit();
+            connection.setAutoCommit(false);
+
+            try (PreparedStatement select = connection.prepareStatement("SELECT id, data FROM " + prefix + "protections WHERE id > ? ORDER BY id LIMIT 1000");
+                 PreparedStatement update = connection.prepareStatement("UPDATE " + prefix + "protections SET data = ? WHERE id = ?")) {
+                int read;
+
+                do {
+                    List<Protection> page = new ArrayList<Protection>();
+                    read = 0;
+                    select.setInt(1, lastId);
+
+                    try (ResultSet set = select.executeQuery()) {
+                        while (set.next()) {
+                            read++;
+                            lastId = set.getInt("id");
+                            String data = set.getString("data");
+
+                            if (data == null || data.trim().isEmpty() || CompactData.isCompact(data) == compact) {
+                                continue;
+                            }
+
+                            Protection protection = new Protection();
+                            protection.setId(lastId);
+                            protection.setEncodedData(data);
+                            page.add(protection);
+                        }
+                    }
+
+                    if (page.isEmpty()) {
+                        continue;
+                    }
+
+                    for (Protection protection : page) {
+                        update.setString(1, protection.encodeData(compact));
+                        update.setInt(2, protection.getId());
+                        update.addBatch();
+                    }
+
+                    update.executeBatch();
+                    connection.commit();
+                    converted += page.size();
+                    log(converted + " protections converted...");
+                } while (read == 1000);
+            }
+
+            connection.commit();
+        } catch (SQLException e) {
+            try {
+                connection.rollback();
+            } catch (SQLException ex) {
+            }
+
+            printException(e);
+        } finally {
+            try {
+                connection.setAutoCommit(autoCommit);
+            } catch (SQLException e) {
+            }
+        }
+
+        log("Converted " + converted + " protections");
     }
 
     /**
@@ -585,7 +850,7 @@ public class PhysDB extends Database {
             statement.setString(2, "version");
 
             // ok
-            statement.executeUpdate();
+            executeUpdate(statement);
         } catch (SQLException e) { }
     }
 
@@ -600,7 +865,7 @@ public class PhysDB extends Database {
             PreparedStatement statement = prepare("SELECT value FROM " + prefix + "internal WHERE name = ?");
             statement.setString(1, key);
 
-            ResultSet set = statement.executeQuery();
+            ResultSet set = executeQuery(statement);
             if (set.next()) {
                 String value = set.getString("value");
                 set.close();
@@ -626,7 +891,7 @@ public class PhysDB extends Database {
             statement.setString(1, key);
             statement.setString(2, value);
 
-            statement.executeUpdate();
+            executeUpdate(statement);
         } catch (SQLException e) {
             // Already exists
             try {
@@ -634,7 +899,7 @@ public class PhysDB extends Database {
                 statement.setString(1, value) ;
                 statement.setString(2, key);
 
-                statement.executeUpdate();
+                executeUpdate(statement);
             } catch (SQLException ex) {
                 // Something bad went wrong
                 printException(ex);
@@ -653,7 +918,7 @@ public class PhysDB extends Database {
             statement.setString(1, "version");
 
             // Execute it
-            ResultSet set = statement.executeQuery();
+            ResultSet set = executeQuery(statement);
 
             // load the version
             if (set.next()) {
@@ -672,7 +937,7 @@ public class PhysDB extends Database {
                 statement.setInt(2, databaseVersion);
 
                 // ok
-                statement.executeUpdate();
+                executeUpdate(statement);
             } catch (SQLException ex) { }
         }
 
@@ -696,7 +961,7 @@ public class PhysDB extends Database {
         }
 
         try {
-            PreparedStatement statement = prepare("SELECT id, owner, type, x, y, z, data, blockId, world, password, date, last_accessed FROM " + prefix + "protections WHERE id = ?");
+            PreparedStatement statement = prepare("SELECT " + PROTECTION_COLUMNS + " FROM " + prefix + "protections WHERE id = ?");
             statement.setInt(1, id);
 
             Protection protection = resolveProtection(statement);
@@ -720,7 +985,7 @@ public class PhysDB extends Database {
      */
     public List<Protection> loadProtectionsUsingType(Protection.Type type) {
         try {
-            PreparedStatement statement = prepare("SELECT id, owner, type, x, y, z, data, blockId, world, password, date, last_accessed FROM " + prefix + "protections WHERE type = ?");
+            PreparedStatement statement = prepare("SELECT " + PROTECTION_COLUMNS + " FROM " + prefix + "protections WHERE type = ?");
             statement.setInt(1, type.ordinal());
 
             return resolveProtections(statement);
@@ -738,6 +1003,17 @@ public class PhysDB extends Database {
      * @return
      */
     public Protection resolveProtection(ResultSet set) {
+        return resolveProtection(set, false);
+    }
+
+    /**
+     * Resolve one protection from a ResultSet. The data column is not decoded until it is used.
+     *
+     * @param set
+     * @param withRelated if the related column was selected
+     * @return
+     */
+    private Protection resolveProtection(ResultSet set, boolean withRelated) {
         try {
             Protection protection = new Protection();
 
@@ -765,76 +1041,15 @@ public class PhysDB extends Database {
             protection.setCreation(date);
             protection.setLastAccessed(lastAccessed);
 
-            // check for oh so beautiful data!
-            String data = set.getString("data");
-
-            if (data == null || data.trim().isEmpty()) {
-                return protection;
-            }
-
-            // rev up them JSON parsers!
-            Object object = null;
-
-            try {
-                object = jsonParser.parse(data);
-            } catch (Exception e) {
-                return protection;
-            } catch (Error e) {
-                return protection;
-            }
+            // check for oh so beautiful data! it is decoded when it is first used
+            protection.setEncodedData(set.getString("data"));
 
-            if (!(object instanceof JSONObject)) {
-                return protection;
-            }
-
-            // obtain the root
-            JSONObject root = (JSONObject) object;
-            protection.getData().putAll(root);
-
-            // Attempt to parse rights
-            Object rights = root.get("rights");
-
-            if (rights != null && (rights instanceof JSONArray)) {
-                JSONArray array = (JSONArray) rights;
-
-                for (Object node : array) {
-                    // we only want to use the maps
-                    if (!(node instanceof JSONObject)) {
-                        continue;
-                    }
-
-                    JSONObject map = (JSONObject) node;
-
-                    // decode the map
-                    Permission permission = Permission.decodeJSON(map);
-
-                    // bingo!
-                    if (permission != null) {
-                        protection.addPermission(permission);
-                    }
-                }
-            }
-
-            // Attempt to parse flags
-            Object flags = root.get("flags");
-            if (flags != null && (rights instanceof JSONArray)) {
-                JSONArray array = (JSONArray) flags;
-
-                for (Object node : array) {
-                    if (!(node instanceof JSONObject)) {
-                        continue;
-                    }
-
-                    JSONObject map = (JSONObject) node;
-
-                    Flag flag = Flag.decodeJSON(map);
-
-                    if (flag != null) {
-                        protection.addFlag(flag);
-                    }
-                }
+            if (withRelated) {
+                protection.setEncodedRelatedBlocks(set.getString("related"));
             }
 
+            // nothing changed since it was loaded
+            protection.clearChanges();
             return protection;
         } catch (SQLException e) {
             printException(e);
@@ -852,8 +1067,11 @@ public class PhysDB extends Database {
         List<Protection> protections = new ArrayList<Protection>();
 
         try {
+            // old updates select every column before the related column exists
+            boolean withRelated = hasColumn(set, "related");
+
             while (set.next()) {
-                Protection protection = resolveProtection(set);
+                Protection protection = resolveProtection(set, withRelated);
 
                 if (protection != null) {
                     protections.add(protection);
@@ -866,6 +1084,25 @@ public class PhysDB extends Database {
         return protections;
     }
 
+    /**
+     * Check if a result set has the given column
+     *
+     * @param set
+     * @param column
+     * @return
+     */
+    private boolean hasColumn(ResultSet set, String column) throws SQLException {
+        ResultSetMetaData metaData = set.getMetaData();
+
+        for (int i = 1; i <= metaData.getColumnCount(); i++) {
+            if (column.equalsIgnoreCase(metaData.getColumnLabel(i))) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
     /**
      * Resolve a list of protections from a statement
      *
@@ -877,7 +1114,7 @@ public class PhysDB extends Database {
         ResultSet set = null;
 
         try {
-            set = statement.executeQuery();
+            set = executeQuery(statement);
             protections = resolveProtections(set);
         } catch (SQLException e) {
             printException(e);
@@ -927,7 +1164,7 @@ public class PhysDB extends Database {
         }
 
         try {
-            PreparedStatement statement = prepare("SELECT id, owner, type, x, y, z, data, blockId, world, password, date, last_accessed FROM " + prefix + "protections ORDER BY id DESC LIMIT ?");
+            PreparedStatement statement = prepare("SELECT " + PROTECTION_COLUMNS + " FROM " + prefix + "protections ORDER BY id DESC LIMIT ?");
             statement.setInt(1, precacheSize);
             statement.setFetchSize(10);
 
@@ -965,14 +1202,11 @@ public class PhysDB extends Database {
      * @return the Protection object
      */
     private Protection loadProtection(String worldName, int x, int y, int z, boolean ignoreProtectionCount) {
-        // the unique key to use in the cache
-        String cacheKey = worldName + ":" + x + ":" + y + ":" + z;
-
         // the protection cache
         ProtectionCache cache = LWC.getInstance().getProtectionCache();
 
         // check if the protection is already cached
-        Protection cached = cache.getProtection(cacheKey);
+        Protection cached = cache.getProtection(worldName, x, y, z);
         if (cached != null) {
             // System.out.println("loadProtection() => CACHE HIT");
             return cached;
@@ -983,10 +1217,15 @@ public class PhysDB extends Database {
             // System.out.println("loadProtection() => HAS_ALL_PROTECTIONS_CACHED");
             return null; // nothing was in the cache, nothing assumed to be in the database
         }
+
+        // every protection in the chunk was already loaded
+        if (!ignoreProtectionCount && cache.isChunkComplete(worldName, x >> 4, z >> 4)) {
+            return null;
+        }
         // System.out.println("loadProtection() => QUERYING");
 
         try {
-            PreparedStatement statement = prepare("SELECT id, owner, type, x, y, z, data, blockId, world, password, date, last_accessed FROM " + prefix + "protections WHERE x = ? AND y = ? AND z = ? AND world = ?");
+            PreparedStatement statement = prepare("SELECT " + PROTECTION_COLUMNS + " FROM " + prefix + "protections WHERE x = ? AND y = ? AND z = ? AND world = ?");
             statement.setInt(1, x);
             statement.setInt(2, y);
             statement.setInt(3, z);
@@ -1007,6 +1246,75 @@ public class PhysDB extends Database {
         return null;
     }
 
+    /**
+     * Load every protection in a chunk. This does not touch the protection cache, so unlike the other load methods it
+     * is safe to call from another thread that borrowed a connection (see {@link #borrowConnection()}).
+     *
+     * @param world
+     * @param chunkX
+     * @param chunkZ
+     * @return the protections, or null if they could not be loaded
+     */
+    public List<Protection> loadProtectionsInChunk(String world, int chunkX, int chunkZ) {
+        List<Protection> protections = new ArrayList<Protection>();
+
+        if (connection == null) {
+            return null;
+        }
+
+        int x = chunkX << 4;
+        int z = chunkZ << 4;
+
+        try (PreparedStatement statement = getConnection().prepareStatement("SELECT " + PROTECTION_COLUMNS + " FROM " + prefix + "protections WHERE world = ? AND x >= ? AND x <= ? AND z >= ? AND z <= ?")) {
+            statement.setString(1, world);
+            statement.setInt(2, x);
+            statement.setInt(3, x + 15);
+            statement.setInt(4, z);
+            statement.setInt(5, z + 15);
+
+            try (ResultSet set = executeQuery(statement)) {
+                while (set.next()) {
+                    Protection protection = resolveProtection(set, true);
+
+                    if (protection != null) {
+                        protections.add(protection);
+                    }
+                }
+            }
+        } catch (SQLException e) {
+            printException(e);
+            return null;
+        }
+
+        return protections;
+    }
+
+    /**
+     * Cache every protection in a chunk
+     *
+     * @param world
+     * @param chunkX
+     * @param chunkZ
+     * @return the protections in the chunk, or null if the chunk is already being loaded or could not be loaded
+     */
+    public List<Protection> cacheChunk(String world, int chunkX, int chunkZ) {
+        ProtectionCache cache = LWC.getInstance().getProtectionCache();
+
+        if (!cache.beginChunkLoad(world, chunkX, chunkZ)) {
+            return null;
+        }
+
+        List<Protection> protections = loadProtectionsInChunk(world, chunkX, chunkZ);
+
+        if (protections == null) {
+            cache.cancelChunkLoad(world, chunkX, chunkZ);
+            return null;
+        }
+
+        cache.completeChunkLoad(world, chunkX, chunkZ, protections);
+        return protections;
+    }
+
     /**
      * Load all protections (use sparingly !!)
      *
@@ -1014,7 +1322,7 @@ public class PhysDB extends Database {
      */
     public List<Protection> loadProtections() {
         try {
-            PreparedStatement statement = prepare("SELECT id, owner, type, x, y, z, data, blockId, world, password, date, last_accessed FROM " + prefix + "protections");
+            PreparedStatement statement = prepare("SELECT " + PROTECTION_COLUMNS + " FROM " + prefix + "protections");
 
             return resolveProtections(statement);
         } catch (Exception e) {
@@ -1035,54 +1343,7 @@ public class PhysDB extends Database {
      * @return list of Protection objects found
      */
     public List<Protection> loadProtections(String world, int baseX, int baseY, int baseZ, int radius) {
-        if (hasAllProtectionsCached()) {
-            ProtectionCache cache = LWC.getInstance().getProtectionCache();
-            List<Protection> protections = new ArrayList<Protection>();
-
-            if (cache.size() < 1000) {
-                for (Protection protection : cache.getReferences().keySet()) {
-                    int x = protection.getX();
-                    int y = protection.getY();
-                    int z = protection.getZ();
-
-                    if (x >= baseX - radius && x <= baseX + radius && y >= baseY - radius && y <= baseY + radius && z >= baseZ - radius && z <= baseZ + radius) {
-                        protections.add(protection);
-                    }
-                }
-            } else {
-                for (int x = baseX - radius; x < baseX + radius; x++) {
-                    for (int y = baseY - radius; y < baseY + radius; y++) {
-                        for (int z = baseZ - radius; z < baseZ + radius; z++) {
-                            Protection protection = cache.getProtection(world + ":" + x + ":" + y + ":" + z);
-
-                            if (protection != null) {
-                                protections.add(protection);
-                            }
-                        }
-                    }
-                }
-            }
-
-            return protections;
-        }
-
-        try {
-            PreparedStatement statement = prepare("SELECT id, owner, type, x, y, z, data, blockId, world, password, date, last_accessed FROM " + prefix + "protections WHERE world = ? AND x >= ? AND x <= ? AND y >= ? AND y <= ? AND z >= ? AND z <= ?");
-
-            statement.setString(1, world);
-            statement.setInt(2, baseX - radius);
-            statement.setInt(3, baseX + radius);
-            statement.setInt(4, baseY - radius);
-            statement.setInt(5, baseY + radius);
-            statement.setInt(6, baseZ - radius);
-            statement.setInt(7, baseZ + radius);
-
-            return resolveProtections(statement);
-        } catch (Exception e) {
-            printException(e);
-        }
-
-        return new ArrayList<Protection>();
+        return loadProtections(world, baseX - radius, baseX + radius, baseY - radius, baseY + radius, baseZ - radius, baseZ + radius);
     }
 
     /**
@@ -1115,9 +1376,46 @@ public class PhysDB extends Database {
      * @return list of Protection objects found
      */
     public List<Protection> loadProtections(String world, int x1, int x2, int y1, int y2, int z1, int z2) {
-        try {
-            PreparedStatement statement = prepare("SELECT id, owner, type, x, y, z, data, blockId, world, password, date, last_accessed FROM " + prefix + "protections WHERE world = ? AND x >= ? AND x <= ? AND y >= ? AND y <= ? AND z >= ? AND z <= ?");
+        ProtectionCache cache = LWC.getInstance().getProtectionCache();
+        List<Protection> protections = cache.getProtections(world, x1, x2, y1, y2, z1, z2, !hasAllProtectionsCached());
+
+        if (protections != null) {
+            return protections;
+        }
+
+        if (connection == null) {
+            return new ArrayList<Protection>();
+        }
+
+        // small boxes are loaded into the cache in the background, so the next query around them is answered from it
+        AsyncProtectionLoader loader = LWC.getInstance().getAsyncProtectionLoader();
+
+        if (loader != null && Bukkit.isPrimaryThread()) {
+            loader.loadBoxChunks(world, x1, x2, z1, z2);
+        }
 
+        return queryProtections(world, x1, x2, y1, y2, z1, z2);
+    }
+
+    /**
+     * Load all protections in the coordinate ranges with a single query, without looking at the cache first
+     *
+     * @param world
+     * @param x1
+     * @param x2
+     * @param y1
+     * @param y2
+     * @param z1
+     * @param z2
+     * @return list of Protection objects found
+     */
+    public List<Protection> queryProtections(String world, int x1, int x2, int y1, int y2, int z1, int z2) {
+        if (connection == null) {
+            return new ArrayList<Protection>();
+        }
+
+        // may also be used from the database executor, on its borrowed connection
+        try (PreparedStatement statement = getConnection().prepareStatement("SELECT " + PROTECTION_COLUMNS + " FROM " + prefix + "protections WHERE world = ? AND x >= ? AND x <= ? AND y >= ? AND y <= ? AND z >= ? AND z <= ?")) {
             statement.setString(1, world);
             statement.setInt(2, x1);
             statement.setInt(3, x2);
@@ -1144,7 +1442,7 @@ public class PhysDB extends Database {
         List<Protection> protections = new ArrayList<Protection>();
 
         try {
-            PreparedStatement statement = prepare("SELECT id, owner, type, x, y, z, data, blockId, world, password, date, last_accessed FROM " + prefix + "protections WHERE owner = ?");
+            PreparedStatement statement = prepare("SELECT " + PROTECTION_COLUMNS + " FROM " + prefix + "protections WHERE owner = ?");
             statement.setString(1, player);
 
             return resolveProtections(statement);
@@ -1156,7 +1454,7 @@ public class PhysDB extends Database {
     }
 
     /**
-     * Load protections by a player
+     * Load protections by a player. The UUID of a name should be resolved first, see {@link #resolveOwner(String)}.
      *
      * @param player
      * @param start
@@ -1166,11 +1464,9 @@ public class PhysDB extends Database {
     public List<Protection> loadProtectionsByPlayer(String player, int start, int count) {
         List<Protection> protections = new ArrayList<Protection>();
 
-        UUID uuid = UUIDRegistry.getUUID(player);
-
         try {
-            PreparedStatement statement = prepare("SELECT id, owner, type, x, y, z, data, blockId, world, password, date, last_accessed FROM " + prefix + "protections WHERE owner = ? ORDER BY id DESC limit ?,?");
-            statement.setString(1, uuid != null ? uuid.toString() : player);
+            PreparedStatement statement = prepare("SELECT " + PROTECTION_COLUMNS + " FROM " + prefix + "protections WHERE owner = ? ORDER BY id DESC limit ?,?");
+            statement.setString(1, resolveOwner(player));
             statement.setInt(2, start);
             statement.setInt(3, count);
 
@@ -1204,7 +1500,7 @@ public class PhysDB extends Database {
             statement.setString(9, new Timestamp(new Date().getTime()).toString());
             statement.setLong(10, System.currentTimeMillis() / 1000L);
 
-            statement.executeUpdate();
+            executeUpdate(statement);
 
             // We need to create the initial transaction for this protection
             // this transaction is viewable and modifiable during POST_REGISTRATION
@@ -1230,6 +1526,7 @@ public class PhysDB extends Database {
             if (protection != null) {
                 cache.addProtection(protection);
                 protectionCount ++;
+                LWC.getInstance().getProtectionCountCache().add(player, blockId, 1);
             }
 
             // return the newly created protection
@@ -1253,7 +1550,7 @@ public class PhysDB extends Database {
             statement.setInt(1, id);
             statement.setString(2, type);
 
-            statement.executeUpdate();
+            executeUpdate(statement);
         } catch (SQLException e) {
             // Already exists
             try {
@@ -1261,7 +1558,7 @@ public class PhysDB extends Database {
                 statement.setInt(1, id);
                 statement.setString(2, type);
 
-                statement.executeUpdate();
+                executeUpdate(statement);
             } catch (SQLException ex) {
                 // Something bad went wrong
                 printException(ex);
@@ -1281,7 +1578,7 @@ public class PhysDB extends Database {
             PreparedStatement statement = prepare("INSERT INTO " + prefix +"types (name) VALUES (?)", true);
             statement.setString(1, type.name());
 
-            statement.executeUpdate();
+            executeUpdate(statement);
             ResultSet set = statement.getGeneratedKeys();
             int id = -1;
             if (set.next()) {
@@ -1311,7 +1608,7 @@ public class PhysDB extends Database {
             PreparedStatement statement = prepare("SELECT id FROM " + prefix + "types WHERE name = ?");
             statement.setString(1, type.name());
 
-            ResultSet set = statement.executeQuery();
+            ResultSet set = executeQuery(statement);
 
             if (set.next()) {
                 id = set.getInt("id");
@@ -1344,7 +1641,7 @@ public class PhysDB extends Database {
             PreparedStatement statement = prepare("SELECT name FROM " + prefix + "types WHERE id = ?");
             statement.setInt(1, id);
 
-            ResultSet set = statement.executeQuery();
+            ResultSet set = executeQuery(statement);
 
             if (set.next()) {
                 type = Material.getMaterial(set.getString("name"));
@@ -1360,6 +1657,179 @@ public class PhysDB extends Database {
         return type;
     }
 
+    /**
+     * Store a resolved player name. Uses the connection of the current thread, so it may be called from another
+     * thread that borrowed a connection (see {@link #borrowConnection()}).
+     *
+     * @param name the name with its exact casing
+     * @param uuid the UUID, or null if there is no player with the name
+     */
+    public void savePlayerName(String name, UUID uuid) {
+        if (connection == null) {
+            return;
+        }
+
+        try (PreparedStatement statement = getConnection().prepareStatement("REPLACE INTO " + prefix + "names (name, uuid, player, updated) VALUES (?, ?, ?, ?)")) {
+            statement.setString(1, name.toLowerCase());
+            statement.setString(2, uuid != null ? uuid.toString() : null);
+            statement.setString(3, name);
+            statement.setLong(4, System.currentTimeMillis() / 1000L);
+            executeUpdate(statement);
+        } catch (SQLException e) {
+            printException(e);
+        }
+    }
+
+    /**
+     * Load the most recently resolved player names. Uses the connection of the current thread, so it may be called
+     * from another thread that borrowed a connection (see {@link #borrowConnection()}).
+     *
+     * @param since only load players resolved after this time, in seconds
+     * @param negativeSince only load names without a player resolved after this time, in seconds
+     * @param limit the max amount of names to load
+     * @return the players, with the time they were resolved (in seconds) as their expiry
+     */
+    public List<UUIDResolver.CachedPlayer> loadPlayerNames(long since, long negativeSince, int limit) {
+        List<UUIDResolver.CachedPlayer> players = new ArrayList<UUIDResolver.CachedPlayer>();
+
+        if (connection == null) {
+            return players;
+        }
+
+        try (PreparedStatement statement = getConnection().prepareStatement("SELECT uuid, player, updated FROM " + prefix + "names WHERE (uuid IS NOT NULL AND updated > ?) OR (uuid IS NULL AND updated > ?) ORDER BY updated DESC")) {
+            statement.setLong(1, since);
+            statement.setLong(2, negativeSince);
+            statement.setMaxRows(limit);
+
+            try (ResultSet set = executeQuery(statement)) {
+                while (set.next()) {
+                    String uuid = set.getString("uuid");
+                    UUID parsed = null;
+
+                    if (uuid != null) {
+                        try {
+                            parsed = UUID.fromString(uuid);
+                        } catch (IllegalArgumentException e) {
+                            continue;
+                        }
+                    }
+
+                    players.add(new UUIDResolver.CachedPlayer(parsed, set.getString("player"), set.getLong("updated")));
+                }
+            }
+        } catch (SQLException e) {
+            printException(e);
+        }
+
+        return players;
+    }
+
+    /**
+     * Load the uuids table into memory
+     */
+    private void loadUUIDs() {
+        if (connection == null) {
+            return;
+        }
+
+        try (PreparedStatement statement = getConnection().prepareStatement("SELECT id, uuid FROM " + prefix + "uuids");
+             ResultSet set = executeQuery(statement)) {
+            while (set.next()) {
+                int id = set.getInt("id");
+                String uuid = set.getString("uuid");
+
+                uuidIds.put(uuid, id);
+                uuids.put(id, uuid);
+            }
+        } catch (SQLException e) {
+            printException(e);
+        }
+    }
+
+    /**
+     * Get the id of a UUID in the uuids table, adding it if it is not in there yet
+     *
+     * @param uuid
+     * @return
+     */
+    public int getUUIDId(String uuid) {
+        Integer id = uuidIds.get(uuid);
+
+        if (id != null) {
+            return id;
+        }
+
+        synchronized (uuidIds) {
+            id = uuidIds.get(uuid);
+
+            if (id != null) {
+                return id;
+            }
+
+            try (PreparedStatement statement = getConnection().prepareStatement("INSERT INTO " + prefix + "uuids (uuid) VALUES (?)", Statement.RETURN_GENERATED_KEYS)) {
+                statement.setString(1, uuid);
+                executeUpdate(statement);
+
+                try (ResultSet set = statement.getGeneratedKeys()) {
+                    if (set.next()) {
+                        id = set.getInt(1);
+                    }
+                }
+            } catch (SQLException e) {
+                // Already exists
+                try (PreparedStatement statement = getConnection().prepareStatement("SELECT id FROM " + prefix + "uuids WHERE uuid = ?")) {
+                    statement.setString(1, uuid);
+
+                    try (ResultSet set = executeQuery(statement)) {
+                        if (set.next()) {
+                            id = set.getInt("id");
+                        }
+                    }
+                } catch (SQLException ex) {
+                    printException(ex);
+                }
+            }
+
+            if (id == null) {
+                throw new IllegalStateException("Could not add " + uuid + " to the uuids table");
+            }
+
+            uuidIds.put(uuid, id);
+            uuids.put(id, uuid);
+            return id;
+        }
+    }
+
+    /**
+     * Get the UUID with the given id in the uuids table
+     *
+     * @param id
+     * @return the UUID, or null if none exists
+     */
+    public String getUUID(int id) {
+        String uuid = uuids.get(id);
+
+        if (uuid != null || connection == null) {
+            return uuid;
+        }
+
+        try (PreparedStatement statement = getConnection().prepareStatement("SELECT uuid FROM " + prefix + "uuids WHERE id = ?")) {
+            statement.setInt(1, id);
+
+            try (ResultSet set = executeQuery(statement)) {
+                if (set.next()) {
+                    uuid = set.getString("uuid");
+                    uuidIds.put(uuid, id);
+                    uuids.put(id, uuid);
+                }
+            }
+        } catch (SQLException e) {
+            printException(e);
+        }
+
+        return uuid;
+    }
+
     /**
      * Sync a History object to the database or save a newly created one
      *
@@ -1370,9 +1840,9 @@ public class PhysDB extends Database {
             PreparedStatement statement;
 
             if (history.doesExist()) {
-                statement = prepare("UPDATE " + prefix + "history SET protectionId = ?, player = ?, x = ?, y = ?, z = ?, type = ?, status = ?, metadata = ?, timestamp = ? WHERE id = ?");
+                statement = prepare("UPDATE " + prefix + "history SET protectionId = ?, player = ?, x = ?, y = ?, z = ?, type = ?, status = ?, metadata = ?, timestamp = ?, player_lower = ? WHERE id = ?");
             } else {
-                statement = prepare("INSERT INTO " + prefix + "history (protectionId, player, x, y, z, type, status, metadata, timestamp) VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?)", true);
+                statement = prepare("INSERT INTO " + prefix + "history (protectionId, player, x, y, z, type, status, metadata, timestamp, player_lower) VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?)", true);
                 history.setTimestamp(System.currentTimeMillis() / 1000L);
             }
 
@@ -1385,12 +1855,13 @@ public class PhysDB extends Database {
             statement.setInt(7, history.getStatus().ordinal());
             statement.setString(8, history.getSafeMetaData());
             statement.setLong(9, history.getTimestamp());
+            statement.setString(10, history.getPlayer() == null ? null : history.getPlayer().toLowerCase());
 
             if (history.doesExist()) {
-                statement.setInt(10, history.getId());
+                statement.setInt(11, history.getId());
             }
 
-            int affectedRows = statement.executeUpdate();
+            int affectedRows = executeUpdate(statement);
 
             // set the history id if inserting
             if (!history.doesExist()) {
@@ -1417,10 +1888,10 @@ public class PhysDB extends Database {
      */
     public void invalidateHistory(String player) {
         try {
-           PreparedStatement statement = prepare("UPDATE " + prefix + "history SET status = ? WHERE Lower(player) = Lower(?)");
+           PreparedStatement statement = prepare("UPDATE " + prefix + "history SET status = ? WHERE player_lower = ?");
            statement.setInt(1, History.Status.INACTIVE.ordinal());
-           statement.setString(2, player);
-           statement.executeUpdate();
+           statement.setString(2, player.toLowerCase());
+           executeUpdate(statement);
        } catch (SQLException e) {
            printException(e);
        }
@@ -1481,7 +1952,7 @@ public class PhysDB extends Database {
             PreparedStatement statement = prepare("SELECT * FROM " + prefix + "history WHERE protectionId = ? ORDER BY id DESC");
             statement.setInt(1, protection.getId());
 
-            ResultSet set = statement.executeQuery();
+            ResultSet set = executeQuery(statement);
 
             while (set.next()) {
                 History history = resolveHistory(protection.createHistoryObject(), set);
@@ -1524,10 +1995,10 @@ public class PhysDB extends Database {
         }
 
         try {
-            PreparedStatement statement = prepare("SELECT * FROM " + prefix + "history WHERE LOWER(player) = LOWER(?) ORDER BY id DESC");
-            statement.setString(1, player);
+            PreparedStatement statement = prepare("SELECT * FROM " + prefix + "history WHERE player_lower = ? ORDER BY id DESC");
+            statement.setString(1, player.toLowerCase());
 
-            ResultSet set = statement.executeQuery();
+            ResultSet set = executeQuery(statement);
 
             while (set.next()) {
                 History history = resolveHistory(new History(), set);
@@ -1561,7 +2032,7 @@ public class PhysDB extends Database {
             PreparedStatement statement = prepare("SELECT * FROM " + prefix + "history WHERE id = ?");
             statement.setInt(1, historyId);
 
-            ResultSet set = statement.executeQuery();
+            ResultSet set = executeQuery(statement);
 
             if (set.next()) {
                 History history = resolveHistory(new History(), set);
@@ -1606,12 +2077,12 @@ public class PhysDB extends Database {
         }
 
         try {
-            PreparedStatement statement = prepare("SELECT * FROM " + prefix + "history WHERE LOWER(player) = LOWER(?) ORDER BY id DESC LIMIT ?,?");
-            statement.setString(1, player);
+            PreparedStatement statement = prepare("SELECT * FROM " + prefix + "history WHERE player_lower = ? ORDER BY id DESC LIMIT ?,?");
+            statement.setString(1, player.toLowerCase());
             statement.setInt(2, start);
             statement.setInt(3, count);
 
-            ResultSet set = statement.executeQuery();
+            ResultSet set = executeQuery(statement);
 
             while (set.next()) {
                 History history = resolveHistory(new History(), set);
@@ -1644,7 +2115,7 @@ public class PhysDB extends Database {
 
         try {
             PreparedStatement statement = prepare("SELECT * FROM " + prefix + "history ORDER BY id DESC");
-            ResultSet set = statement.executeQuery();
+            ResultSet set = executeQuery(statement);
 
             while (set.next()) {
                 History history = resolveHistory(new History(), set);
@@ -1678,7 +2149,7 @@ public class PhysDB extends Database {
         try {
             PreparedStatement statement = prepare("SELECT * FROM " + prefix + "history WHERE status = ? ORDER BY id DESC");
             statement.setInt(1, status.ordinal());
-            ResultSet set = statement.executeQuery();
+            ResultSet set = executeQuery(statement);
 
             while (set.next()) {
                 History history = resolveHistory(new History(), set);
@@ -1718,7 +2189,7 @@ public class PhysDB extends Database {
             statement.setInt(2, y);
             statement.setInt(3, z);
 
-            ResultSet set = statement.executeQuery();
+            ResultSet set = executeQuery(statement);
 
             while (set.next()) {
                 History history = resolveHistory(new History(), set);
@@ -1754,13 +2225,13 @@ public class PhysDB extends Database {
         }
 
         try {
-            PreparedStatement statement = prepare("SELECT * FROM " + prefix + "history WHERE LOWER(player) = LOWER(?) AND x = ? AND y = ? AND z = ?");
-            statement.setString(1, player);
+            PreparedStatement statement = prepare("SELECT * FROM " + prefix + "history WHERE player_lower = ? AND x = ? AND y = ? AND z = ?");
+            statement.setString(1, player.toLowerCase());
             statement.setInt(2, x);
             statement.setInt(3, y);
             statement.setInt(4, z);
 
-            ResultSet set = statement.executeQuery();
+            ResultSet set = executeQuery(statement);
 
             while (set.next()) {
                 History history = resolveHistory(new History(), set);
@@ -1796,7 +2267,7 @@ public class PhysDB extends Database {
             statement.setInt(1, start);
             statement.setInt(2, count);
 
-            ResultSet set = statement.executeQuery();
+            ResultSet set = executeQuery(statement);
 
             while (set.next()) {
                 History history = resolveHistory(new History(), set);
@@ -1822,27 +2293,239 @@ public class PhysDB extends Database {
      */
     public void saveProtection(Protection protection) {
         try {
-            PreparedStatement statement = prepare("REPLACE INTO " + prefix + "protections (id, type, blockId, world, data, owner, password, x, y, z, date, last_accessed) VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?)");
+            PreparedStatement statement = prepare("REPLACE INTO " + prefix + "protections (id, type, blockId, world, data, owner, password, x, y, z, date, last_accessed, related) VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?)");
 
-            statement.setInt(1, protection.getId());
-            statement.setInt(2, protection.getType().ordinal());
-            statement.setInt(3, protection.getBlockId());
-            statement.setString(4, protection.getWorld());
-            statement.setString(5, protection.getData().toJSONString());
-            statement.setString(6, protection.getOwner());
-            statement.setString(7, protection.getPassword());
-            statement.setInt(8, protection.getX());
-            statement.setInt(9, protection.getY());
-            statement.setInt(10, protection.getZ());
-            statement.setString(11, protection.getCreation());
-            statement.setLong(12, protection.getLastAccessed());
-
-            statement.executeUpdate();
+            bindProtection(statement, protection);
+            executeUpdate(statement);
         } catch (SQLException e) {
             printException(e);
         }
     }
 
+    /**
+     * Save the given columns of a protection to the database. If the protection is not in the database yet, or every
+     * column changed, the whole protection is written instead.
+     *
+     * @param protection
+     * @param columns
+     */
+    public void saveProtection(Protection protection, Set<Protection.Column> columns) {
+        if (columns.size() == Protection.Column.values().length) {
+            saveProtection(protection);
+            return;
+        }
+
+        try {
+            PreparedStatement statement = prepare(updateStatement(columns));
+
+            bindColumns(statement, protection, columns);
+
+            if (executeUpdate(statement) == 0) {
+                saveProtection(protection);
+            }
+        } catch (SQLException e) {
+            printException(e);
+        }
+    }
+
+    /**
+     * Save protections to the database in a single transaction. Protections are grouped by the columns that changed,
+     * and each group is sent as batched UPDATE statements of the given size; protections that are not in the
+     * database yet are written in full afterwards. If any batch fails the whole transaction is rolled back and the
+     * exception is thrown, so the caller can save the protections again.
+     *
+     * @param changes the protections to save, grouped by the columns that changed
+     * @param batchSize
+     * @return the number of batches that were sent
+     * @throws SQLException if the protections could not be saved; nothing was written
+     */
+    public int saveProtections(Map<Set<Protection.Column>, List<Protection>> changes, int batchSize) throws SQLException {
+        if (changes.isEmpty() || connection == null) {
+            return 0;
+        }
+
+        // the database thread's borrowed connection, so the transaction never spans the server thread's statements
+        Connection connection = getConnection();
+        int batches = 0;
+        boolean autoCommit = true;
+
+        try {
+            autoCommit = connection.getAutoCommit();
+            connection.setAutoCommit(false);
+
+            // protections that need to be written in full
+            List<Protection> missing = new ArrayList<Protection>();
+
+            for (Map.Entry<Set<Protection.Column>, List<Protection>> entry : changes.entrySet()) {
+                Set<Protection.Column> columns = entry.getKey();
+                List<Protection> protections = entry.getValue();
+
+                if (columns.size() == Protection.Column.values().length) {
+                    missing.addAll(protections);
+                    continue;
+                }
+
+                try (PreparedStatement statement = connection.prepareStatement(updateStatement(columns))) {
+                    for (int start = 0; start < protections.size(); start += batchSize) {
+                        List<Protection> batch = protections.subList(start, Math.min(start + batchSize, protections.size()));
+
+                        for (Protection protection : batch) {
+                            bindColumns(statement, protection, columns);
+                            statement.addBatch();
+                        }
+
+                        int[] counts = executeBatch(statement);
+                        batches++;
+
+                        for (int i = 0; i < counts.length && i < batch.size(); i++) {
+                            if (counts[i] == 0) {
+                                missing.add(batch.get(i));
+                            }
+                        }
+                    }
+                }
+            }
+
+            if (!missing.isEmpty()) {
+                try (PreparedStatement statement = connection.prepareStatement("REPLACE INTO " + prefix + "protections (id, type, blockId, world, data, owner, password, x, y, z, date, last_accessed, related) VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?)")) {
+                    int pending = 0;
+
+                    for (Protection protection : missing) {
+                        bindProtection(statement, protection);
+                        statement.addBatch();
+
+                        if (++pending >= batchSize) {
+                            executeBatch(statement);
+                            batches++;
+                            pending = 0;
+                        }
+                    }
+
+                    if (pending > 0) {
+                        executeBatch(statement);
+                        batches++;
+                    }
+                }
+            }
+
+            connection.commit();
+        } catch (SQLException e) {
+            try {
+                connection.rollback();
+            } catch (SQLException ex) {
+            }
+
+            throw e;
+        } finally {
+            try {
+                connection.setAutoCommit(autoCommit);
+            } catch (SQLException e) {
+            }
+        }
+
+        return batches;
+    }
+
+    /**
+     * Build an UPDATE statement that writes the given columns of a protection
+     *
+     * @param columns
+     * @return
+     */
+    private String updateStatement(Set<Protection.Column> columns) {
+        StringBuilder builder = new StringBuilder("UPDATE ").append(prefix).append("protections SET ");
+        boolean first = true;
+
+        for (Protection.Column column : columns) {
+            if (!first) {
+                builder.append(", ");
+            }
+
+            builder.append(column.getColumnName()).append(" = ?");
+            first = false;
+        }
+
+        return builder.append(" WHERE id = ?").toString();
+    }
+
+    /**
+     * Bind a protection to a statement created by {@link #updateStatement(Set)}
+     *
+     * @param statement
+     * @param protection
+     * @param columns
+     */
+    private void bindColumns(PreparedStatement statement, Protection protection, Set<Protection.Column> columns) throws SQLException {
+        int index = 1;
+
+        for (Protection.Column column : columns) {
+            switch (column) {
+                case TYPE:
+                    statement.setInt(index, protection.getType().ordinal());
+                    break;
+                case BLOCK_ID:
+                    statement.setInt(index, protection.getBlockId());
+                    break;
+                case WORLD:
+                    statement.setString(index, protection.getWorld());
+                    break;
+                case DATA:
+                    statement.setString(index, protection.getEncodedData());
+                    break;
+                case OWNER:
+                    statement.setString(index, protection.getOwner());
+                    break;
+                case PASSWORD:
+                    statement.setString(index, protection.getPassword());
+                    break;
+                case X:
+                    statement.setInt(index, protection.getX());
+                    break;
+                case Y:
+                    statement.setInt(index, protection.getY());
+                    break;
+                case Z:
+                    statement.setInt(index, protection.getZ());
+                    break;
+                case DATE:
+                    statement.setString(index, protection.getCreation());
+                    break;
+                case LAST_ACCESSED:
+                    statement.setLong(index, protection.getLastAccessed());
+                    break;
+                case RELATED:
+                    statement.setString(index, protection.getEncodedRelatedBlocks());
+                    break;
+            }
+
+            index++;
+        }
+
+        statement.setInt(index, protection.getId());
+    }
+
+    /**
+     * Bind a protection to a REPLACE INTO statement
+     *
+     * @param statement
+     * @param protection
+     */
+    private void bindProtection(PreparedStatement statement, Protection protection) throws SQLException {
+        statement.setInt(1, protection.getId());
+        statement.setInt(2, protection.getType().ordinal());
+        statement.setInt(3, protection.getBlockId());
+        statement.setString(4, protection.getWorld());
+        statement.setString(5, protection.getEncodedData());
+        statement.setString(6, protection.getOwner());
+        statement.setString(7, protection.getPassword());
+        statement.setInt(8, protection.getX());
+        statement.setInt(9, protection.getY());
+        statement.setInt(10, protection.getZ());
+        statement.setString(11, protection.getCreation());
+        statement.setLong(12, protection.getLastAccessed());
+        statement.setString(13, protection.getEncodedRelatedBlocks());
+    }
+
     /**
      * Free a chest from protection
      *
@@ -1853,7 +2536,7 @@ public class PhysDB extends Database {
             PreparedStatement statement = prepare("DELETE FROM " + prefix + "protections WHERE id = ?");
             statement.setInt(1, protectionId);
 
-            int affected = statement.executeUpdate();
+            int affected = executeUpdate(statement);
 
             if (affected >= 1) {
                 protectionCount -= affected;
@@ -1870,7 +2553,7 @@ public class PhysDB extends Database {
             PreparedStatement statement = prepare("DELETE FROM " + prefix + "history WHERE protectionId = ?");
             statement.setInt(1, protectionId);
 
-            statement.executeUpdate();
+            executeUpdate(statement);
         } catch (SQLException e) {
             printException(e);
         }
@@ -1881,7 +2564,7 @@ public class PhysDB extends Database {
             PreparedStatement statement = prepare("DELETE FROM " + prefix + "history WHERE id = ?");
             statement.setInt(1, historyId);
 
-            statement.executeUpdate();
+            executeUpdate(statement);
         } catch (SQLException e) {
             printException(e);
         }
@@ -1894,6 +2577,7 @@ public class PhysDB extends Database {
         try {
             Statement statement = connection.createStatement();
             statement.executeUpdate("DELETE FROM " + prefix + "protections");
+            LWC.getInstance().getProtectionCountCache().clear();
             protectionCount = 0;
             statement.close();
         } catch (SQLException e) {
@@ -1901,6 +2585,60 @@ public class PhysDB extends Database {
         }
     }
 
+    /**
+     * Get the query plans the database uses for the statements LWC runs most often, to check that they use an index
+     *
+     * @return the plan of each statement, by a short description of the statement
+     */
+    public Map<String, List<String>> explainQueries() {
+        Map<String, String> queries = new LinkedHashMap<String, String>();
+        queries.put("Protection at a block", "SELECT id FROM " + prefix + "protections WHERE x = 0 AND y = 64 AND z = 0 AND world = 'world'");
+        queries.put("Protections in a chunk", "SELECT id FROM " + prefix + "protections WHERE world = 'world' AND x >= 0 AND x <= 15 AND z >= 0 AND z <= 15");
+        queries.put("Protections by owner", "SELECT id FROM " + prefix + "protections WHERE owner = 'owner'");
+        queries.put("Protection limits", "SELECT COUNT(*) FROM " + prefix + "protections WHERE owner = 'owner' AND blockId = 54");
+        queries.put("Expired protections", "SELECT id FROM " + prefix + "protections WHERE last_accessed <= 0 AND last_accessed >= 0");
+        queries.put("History by player", "SELECT id FROM " + prefix + "history WHERE player_lower = 'player'");
+
+        Map<String, List<String>> plans = new LinkedHashMap<String, List<String>>();
+
+        try (PooledConnection ignored = borrowConnection()) {
+            for (Map.Entry<String, String> entry : queries.entrySet()) {
+                plans.put(entry.getKey(), explainQuery(entry.getValue()));
+            }
+        } catch (SQLException e) {
+            for (String description : queries.keySet()) {
+                plans.put(description, Collections.singletonList("Could not be explained: " + e.getMessage()));
+            }
+        }
+
+        return plans;
+    }
+
+    /**
+     * Get the query plan of a statement, using the connection borrowed by the current thread
+     *
+     * @param query
+     * @return
+     */
+    private List<String> explainQuery(String query) {
+        List<String> plan = new ArrayList<String>();
+
+        try (Statement statement = getConnection().createStatement();
+             ResultSet set = statement.executeQuery((currentType == Type.SQLite ? "EXPLAIN QUERY PLAN " : "EXPLAIN ") + query)) {
+            while (set.next()) {
+                if (currentType == Type.SQLite) {
+                    plan.add(set.getString("detail"));
+                } else {
+                    plan.add(set.getString("table") + ": " + set.getString("type") + " using " + set.getString("key") + ", " + set.getString("rows") + " rows");
+                }
+            }
+        } catch (SQLException e) {
+            plan.add("Could not be explained: " + e.getMessage());
+        }
+
+        return plan;
+    }
+
     /**
      * Attempt to create an index on the table
      *
@@ -1979,7 +2717,7 @@ public class PhysDB extends Database {
         // start going through the database
         PreparedStatement statement = prepare("SELECT * FROM limits");
         try {
-            ResultSet result = statement.executeQuery();
+            ResultSet result = executeQuery(statement);
 
             while (result.next()) {
                 int type = result.getInt("type");
@@ -0,0 +1,240 @@
+/*
+ * Copyright 2011 Tyler Blair. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are
+ * permitted provided that the following conditions are met:
+ *
+ *    1. Redistributions of source code must retain the above copyright notice, this list of
+ *       conditions and the following disclaimer.
+ *
+ *    2. Redistributions in binary form must reproduce the above copyright notice, this list
+ *       of conditions and the following disclaimer in the documentation and/or other materials
+ *       provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ''AS IS'' AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND
+ * FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE AUTHOR OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * The views and conclusions contained in the software and documentation are those of the
+ * authors and contributors and should not be interpreted as representing official policies,
+ * either expressed or implied, of anybody else.
+ */
+
+package com.griefcraft.sql;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A database connection with its own prepared statement cache. Only one thread may use it at a time.
+ * <p/>
+ * Connections borrowed from a {@link ConnectionPool} are returned to it when closed; dedicated connections (such as
+ * the primary connection or a streaming connection) are closed for real.
+ */
+public class PooledConnection implements AutoCloseable {
+
+    /**
+     * The max number of prepared statements cached per connection
+     */
+    private static final int STATEMENT_CACHE_SIZE = 100;
+
+    /**
+     * The pool the connection belongs to, or null if it is a dedicated connection
+     */
+    private final ConnectionPool pool;
+
+    /**
+     * The database engine, used to tune streaming statements
+     */
+    private final Database.Type type;
+
+    /**
+     * The JDBC connection
+     */
+    private final Connection connection;
+
+    /**
+     * Prepared statements by their SQL, least recently used first
+     */
+    private final Map<String, PreparedStatement> statements = new LinkedHashMap<String, PreparedStatement>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, PreparedStatement> eldest) {
+            if (size() > STATEMENT_CACHE_SIZE) {
+                // the caller that prepared it may still be using it, so it is only closed once that is over
+                retired.add(eldest.getValue());
+                return true;
+            }
+
+            return false;
+        }
+    };
+
+    /**
+     * Statements evicted from the cache that have not been closed yet, see {@link #closeRetiredStatements()}
+     */
+    private final List<PreparedStatement> retired = new ArrayList<PreparedStatement>();
+
+    /**
+     * When the connection was last returned to its pool
+     */
+    long lastUsed = System.currentTimeMillis();
+
+    /**
+     * The connection that was bound to the borrowing thread before this one, see {@link Database#borrowConnection()}
+     */
+    PooledConnection previous;
+
+    /**
+     * The database this connection is bound to while it is borrowed
+     */
+    Database boundTo;
+
+    PooledConnection(ConnectionPool pool, Database.Type type, Connection connection) {
+        this.pool = pool;
+        this.type = type;
+        this.connection = connection;
+    }
+
+    /**
+     * @return the JDBC connection
+     */
+    public Connection getConnection() {
+        return connection;
+    }
+
+    /**
+     * Prepare a statement unless it's already cached (and if so, just return it). Cached statements must not be
+     * closed by the caller.
+     *
+     * @param sql
+     * @param returnGeneratedKeys
+     * @param useCache false to always prepare a new statement that is not cached
+     * @return
+     * @throws SQLException
+     */
+    public PreparedStatement prepare(String sql, boolean returnGeneratedKeys, boolean useCache) throws SQLException {
+        String key = returnGeneratedKeys ? "#" + sql : sql;
+
+        if (useCache) {
+            PreparedStatement statement = statements.get(key);
+
+            if (statement != null) {
+                return statement;
+            }
+        }
+
+        PreparedStatement statement;
+
+        if (returnGeneratedKeys) {
+            statement = connection.prepareStatement(sql, Statement.RETURN_GENERATED_KEYS);
+        } else {
+            statement = connection.prepareStatement(sql);
+        }
+
+        if (useCache) {
+            statements.put(key, statement);
+        }
+
+        return statement;
+    }
+
+    /**
+     * Create a statement for reading a large result set row by row instead of loading it all into memory
+     *
+     * @return
+     * @throws SQLException
+     */
+    public Statement createStreamingStatement() throws SQLException {
+        Statement statement = connection.createStatement(ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+
+        if (type == Database.Type.MySQL) {
+            statement.setFetchSize(Integer.MIN_VALUE);
+        }
+
+        return statement;
+    }
+
+    /**
+     * Check if the connection still works
+     *
+     * @return
+     */
+    boolean validate() {
+        try (Statement statement = connection.createStatement()) {
+            statement.executeQuery("SELECT 1").close();
+            return true;
+        } catch (SQLException e) {
+            return false;
+        }
+    }
+
+    /**
+     * @return true if statements were evicted from the cache but not closed yet
+     */
+    boolean hasRetiredStatements() {
+        return !retired.isEmpty();
+    }
+
+    /**
+     * Close the statements evicted from the cache. Only call this when nothing can still be using them, i.e. when the
+     * connection is returned or, for the primary connection, on a later server tick
+     */
+    void closeRetiredStatements() {
+        for (PreparedStatement statement : retired) {
+            closeQuietly(statement);
+        }
+
+        retired.clear();
+    }
+
+    /**
+     * Close the cached statements and the connection itself
+     */
+    void closeConnection() {
+        for (PreparedStatement statement : statements.values()) {
+            closeQuietly(statement);
+        }
+
+        statements.clear();
+        closeRetiredStatements();
+        closeQuietly(connection);
+    }
+
+    /**
+     * Return the connection to its pool, or close it if it is a dedicated connection
+     */
+    public void close() {
+        if (boundTo != null) {
+            boundTo.unbind(this);
+        }
+
+        if (pool != null) {
+            closeRetiredStatements();
+            pool.release(this);
+        } else {
+            closeConnection();
+        }
+    }
+
+    private static void closeQuietly(AutoCloseable closeable) {
+        try {
+            if (closeable != null) {
+                closeable.close();
+            }
+        } catch (Exception ignored) { }
+    }
+
+}
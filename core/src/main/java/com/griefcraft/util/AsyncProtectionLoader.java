@@ -0,0 +1,454 @@
+/*
+ * Copyright 2011 Tyler Blair. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are
+ * permitted provided that the following conditions are met:
+ *
+ *    1. Redistributions of source code must retain the above copyright notice, this list of
+ *       conditions and the following disclaimer.
+ *
+ *    2. Redistributions in binary form must reproduce the above copyright notice, this list
+ *       of conditions and the following disclaimer in the documentation and/or other materials
+ *       provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ''AS IS'' AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND
+ * FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE AUTHOR OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * The views and conclusions contained in the software and documentation are those of the
+ * authors and contributors and should not be interpreted as representing official policies,
+ * either expressed or implied, of anybody else.
+ */
+
+package com.griefcraft.util;
+
+import com.griefcraft.cache.ProtectionCache;
+import com.griefcraft.lwc.LWC;
+import com.griefcraft.model.Protection;
+import com.griefcraft.sql.PhysDB;
+import com.griefcraft.sql.PooledConnection;
+import org.bukkit.Location;
+import org.bukkit.block.Block;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
+
+/**
+ * Looks up protections without blocking the main thread. Queries run on a dedicated database thread and the returned
+ * futures are always completed on the main thread, so callbacks may use the Bukkit API freely.
+ * <p/>
+ * Block lookups work by loading every protection in the block's chunk into the protection cache first (see
+ * {@link ProtectionCache#isChunkComplete(String, int, int)}), after which the regular synchronous lookup is answered
+ * from the cache. Every method must be called from the main thread.
+ */
+public class AsyncProtectionLoader {
+
+    /**
+     * The most chunks an area query will load into the cache instead of querying the area directly
+     */
+    private static final int MAX_BOX_CHUNKS = 4;
+
+    /**
+     * The LWC object
+     */
+    private final LWC lwc;
+
+    /**
+     * Runs the queries, one at a time so the database connection is not flooded when many chunks load at once
+     */
+    private final ExecutorService executor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "LWC Database Executor");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    /**
+     * Chunk loads that are in progress, by world and chunk. Only used on the main thread.
+     */
+    private final Map<String, CompletableFuture<Void>> loadingChunks = new HashMap<String, CompletableFuture<Void>>();
+
+    public AsyncProtectionLoader(LWC lwc) {
+        this.lwc = lwc;
+    }
+
+    /**
+     * Find the protection on a block. Completes immediately if the protection is already cached.
+     *
+     * @param block
+     * @return the protection, or null if the block is not protected
+     */
+    public CompletableFuture<Protection> findProtection(final Block block) {
+        ProtectionCache cache = lwc.getProtectionCache();
+        String world = block.getWorld().getName();
+        int x = block.getX();
+        int y = block.getY();
+        int z = block.getZ();
+
+        if (cache.isKnownNull(world, x, y, z)) {
+            return CompletableFuture.completedFuture(null);
+        }
+
+        Protection cached = cache.getProtection(world, x, y, z);
+
+        if (cached != null) {
+            return CompletableFuture.completedFuture(cached);
+        }
+
+        return loadChunksAround(world, x, z).thenApply(new Function<Void, Protection>() {
+            public Protection apply(Void ignored) {
+                return lwc.findProtection(block);
+            }
+        });
+    }
+
+    /**
+     * Find the protection at a location. Completes immediately if the protection is already cached.
+     *
+     * @param location
+     * @return the protection, or null if the location is not protected
+     */
+    public CompletableFuture<Protection> findProtection(Location location) {
+        return findProtection(location.getBlock());
+    }
+
+    /**
+     * Load the protections at and around the given locations into the cache so later lookups there do not need to
+     * query the database
+     *
+     * @param locations
+     * @return completes once every location has been loaded
+     */
+    public CompletableFuture<Void> prewarm(Collection<Location> locations) {
+        List<CompletableFuture<Void>> futures = new ArrayList<CompletableFuture<Void>>();
+
+        for (Location location : locations) {
+            futures.add(loadChunksAround(location.getWorld().getName(), location.getBlockX(), location.getBlockZ()));
+        }
+
+        return CompletableFuture.allOf(futures.toArray(new CompletableFuture[futures.size()]));
+    }
+
+    /**
+     * Load every protection in the given area. Completes immediately if every protection in the area is already
+     * cached. Small areas are loaded into the cache chunk by chunk and answered from it, so the next query around
+     * them does not need the database; larger areas are queried directly. Protections that are already cached are
+     * returned as the cached instance.
+     *
+     * @param world
+     * @param x1
+     * @param x2
+     * @param y1
+     * @param y2
+     * @param z1
+     * @param z2
+     * @return
+     */
+    public CompletableFuture<List<Protection>> loadProtections(final String world, final int x1, final int x2, final int y1, final int y2, final int z1, final int z2) {
+        final ProtectionCache cache = lwc.getProtectionCache();
+        List<Protection> cached = cache.getProtections(world, x1, x2, y1, y2, z1, z2, !lwc.getPhysicalDatabase().hasAllProtectionsCached());
+
+        if (cached != null) {
+            return CompletableFuture.completedFuture(cached);
+        }
+
+        CompletableFuture<Void> chunks = loadBoxChunks(world, x1, x2, z1, z2);
+
+        if (chunks == null) {
+            return queryProtections(world, x1, x2, y1, y2, z1, z2);
+        }
+
+        return chunks.thenCompose(new Function<Void, CompletionStage<List<Protection>>>() {
+            public CompletionStage<List<Protection>> apply(Void ignored) {
+                List<Protection> loaded = cache.getProtections(world, x1, x2, y1, y2, z1, z2, true);
+
+                // a chunk could not be loaded or was evicted again right away
+                if (loaded == null) {
+                    return queryProtections(world, x1, x2, y1, y2, z1, z2);
+                }
+
+                return CompletableFuture.completedFuture(loaded);
+            }
+        });
+    }
+
+    /**
+     * Load the chunks a small area covers into the cache
+     *
+     * @param world
+     * @param x1
+     * @param x2
+     * @param z1
+     * @param z2
+     * @return completes once every chunk is loaded, or null if the area covers too many chunks to be worth caching
+     */
+    public CompletableFuture<Void> loadBoxChunks(String world, int x1, int x2, int z1, int z2) {
+        int chunks = ((x2 >> 4) - (x1 >> 4) + 1) * ((z2 >> 4) - (z1 >> 4) + 1);
+
+        if (chunks > MAX_BOX_CHUNKS) {
+            return null;
+        }
+
+        return loadChunks(world, x1 >> 4, z1 >> 4, x2 >> 4, z2 >> 4);
+    }
+
+    /**
+     * Query every protection in the given area with a single query
+     *
+     * @param world
+     * @param x1
+     * @param x2
+     * @param y1
+     * @param y2
+     * @param z1
+     * @param z2
+     * @return completes on the main thread; protections that are already cached are the cached instance
+     */
+    private CompletableFuture<List<Protection>> queryProtections(final String world, final int x1, final int x2, final int y1, final int y2, final int z1, final int z2) {
+        final PhysDB database = lwc.getPhysicalDatabase();
+
+        return submit(new Callable<List<Protection>>() {
+            public List<Protection> call() {
+                return database.queryProtections(world, x1, x2, y1, y2, z1, z2);
+            }
+        }).thenApply(new Function<List<Protection>, List<Protection>>() {
+            public List<Protection> apply(List<Protection> protections) {
+                ProtectionCache cache = lwc.getProtectionCache();
+                List<Protection> result = new ArrayList<Protection>(protections.size());
+
+                for (Protection protection : protections) {
+                    // the cached instance may have changes that have not been saved yet
+                    Protection cached = cache.getProtectionById(protection.getId());
+                    result.add(cached != null ? cached : protection);
+                }
+
+                return result;
+            }
+        });
+    }
+
+    /**
+     * Load every protection in a rectangle of chunks into the cache
+     *
+     * @param world
+     * @param minChunkX
+     * @param minChunkZ
+     * @param maxChunkX
+     * @param maxChunkZ
+     * @return completes once every chunk is loaded
+     */
+    public CompletableFuture<Void> loadChunks(String world, int minChunkX, int minChunkZ, int maxChunkX, int maxChunkZ) {
+        List<CompletableFuture<Void>> futures = new ArrayList<CompletableFuture<Void>>();
+
+        for (int chunkX = minChunkX; chunkX <= maxChunkX; chunkX++) {
+            for (int chunkZ = minChunkZ; chunkZ <= maxChunkZ; chunkZ++) {
+                futures.add(loadChunk(world, chunkX, chunkZ));
+            }
+        }
+
+        return CompletableFuture.allOf(futures.toArray(new CompletableFuture[futures.size()]));
+    }
+
+    /**
+     * Load every protection in a chunk into the cache
+     *
+     * @param world
+     * @param chunkX
+     * @param chunkZ
+     * @return completes once the chunk is loaded, or if it could not be loaded. The future never fails.
+     */
+    public CompletableFuture<Void> loadChunk(final String world, final int chunkX, final int chunkZ) {
+        final ProtectionCache cache = lwc.getProtectionCache();
+
+        if (cache.isChunkComplete(world, chunkX, chunkZ)) {
+            return CompletableFuture.completedFuture(null);
+        }
+
+        final String key = world + ":" + chunkX + ":" + chunkZ;
+        CompletableFuture<Void> loading = loadingChunks.get(key);
+
+        // a load that was cancelled by the chunk unloading may still be running, but its result will be discarded
+        if (loading != null && cache.isChunkLoading(world, chunkX, chunkZ)) {
+            return loading;
+        }
+
+        if (!cache.beginChunkLoad(world, chunkX, chunkZ)) {
+            return CompletableFuture.completedFuture(null);
+        }
+
+        final PhysDB database = lwc.getPhysicalDatabase();
+        final CompletableFuture<Void> future = new CompletableFuture<Void>();
+        loadingChunks.put(key, future);
+
+        submit(new Callable<List<Protection>>() {
+            public List<Protection> call() {
+                return database.loadProtectionsInChunk(world, chunkX, chunkZ);
+            }
+        }).whenComplete(new BiConsumer<List<Protection>, Throwable>() {
+            public void accept(List<Protection> protections, Throwable error) {
+                loadingChunks.remove(key, future);
+
+                if (protections != null) {
+                    cache.completeChunkLoad(world, chunkX, chunkZ, protections);
+                } else {
+                    // the chunk stays incomplete and is simply looked up the old way
+                    cache.cancelChunkLoad(world, chunkX, chunkZ);
+                }
+
+                future.complete(null);
+            }
+        });
+
+        return future;
+    }
+
+    /**
+     * Run a task on the database thread
+     *
+     * @param task
+     * @return completes on the main thread with the task's result. Results that arrive after LWC was disabled are
+     *         dropped.
+     */
+    public <T> CompletableFuture<T> submit(Callable<T> task) {
+        return submit(task, true);
+    }
+
+    /**
+     * Run a task on the database thread. Unlike {@link #submit(Callable)}, the returned future is completed on the
+     * database thread itself, so it may be waited on from any thread but the main thread. Can be called from any
+     * thread.
+     *
+     * @param task
+     * @return completes on the database thread with the task's result
+     */
+    public <T> CompletableFuture<T> submitAsync(Callable<T> task) {
+        return submit(task, false);
+    }
+
+    /**
+     * Run a task on the database thread
+     *
+     * @param task
+     * @param sync if the future is completed on the main thread
+     * @return
+     */
+    private <T> CompletableFuture<T> submit(final Callable<T> task, final boolean sync) {
+        final CompletableFuture<T> future = new CompletableFuture<T>();
+
+        try {
+            executor.execute(new Runnable() {
+                public void run() {
+                    T result = null;
+                    Exception error = null;
+
+                    // tasks prepare statements like the server thread does, on a connection of their own
+                    try (PooledConnection ignored = lwc.getPhysicalDatabase().borrowConnection()) {
+                        result = task.call();
+                    } catch (Exception e) {
+                        error = e;
+                    }
+
+                    if (sync) {
+                        completeSync(future, result, error);
+                    } else if (error != null) {
+                        future.completeExceptionally(error);
+                    } else {
+                        future.complete(result);
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            // stopped, LWC is being disabled
+            if (!sync) {
+                future.completeExceptionally(e);
+            }
+        }
+
+        return future;
+    }
+
+    /**
+     * Stop the database thread. Queries that have not started yet are dropped.
+     */
+    public void stop() {
+        executor.shutdownNow();
+    }
+
+    /**
+     * Complete a future on the main thread
+     *
+     * @param future
+     * @param result
+     * @param error
+     */
+    private <T> void completeSync(final CompletableFuture<T> future, final T result, final Exception error) {
+        if (!lwc.getPlugin().isEnabled()) {
+            return;
+        }
+
+        lwc.getPlugin().getServer().getScheduler().scheduleSyncDelayedTask(lwc.getPlugin(), new Runnable() {
+            public void run() {
+                if (error != null) {
+                    future.completeExceptionally(error);
+                } else {
+                    future.complete(result);
+                }
+            }
+        });
+    }
+
+    /**
+     * Load the chunk a block is in, and the neighbouring chunk(s) if the block is on a chunk border as a protection
+     * there may span both chunks (e.g. a double chest)
+     *
+     * @param world
+     * @param x
+     * @param z
+     * @return
+     */
+    private CompletableFuture<Void> loadChunksAround(String world, int x, int z) {
+        if (lwc.getPhysicalDatabase().hasAllProtectionsCached()) {
+            return CompletableFuture.completedFuture(null);
+        }
+
+        Map<String, CompletableFuture<Void>> futures = new LinkedHashMap<String, CompletableFuture<Void>>(4);
+        int[][] offsets = { { 0, 0 }, { -1, 0 }, { 1, 0 }, { 0, -1 }, { 0, 1 } };
+
+        for (int[] offset : offsets) {
+            int chunkX = (x + offset[0]) >> 4;
+            int chunkZ = (z + offset[1]) >> 4;
+            String key = chunkX + ":" + chunkZ;
+
+            if (!futures.containsKey(key)) {
+                futures.put(key, loadChunk(world, chunkX, chunkZ));
+            }
+        }
+
+        if (futures.size() == 1) {
+            return futures.values().iterator().next();
+        }
+
+        return CompletableFuture.allOf(futures.values().toArray(new CompletableFuture[futures.size()]));
+    }
+
+}
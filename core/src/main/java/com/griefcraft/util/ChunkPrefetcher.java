@@ -0,0 +1,100 @@
+/*
+ * Copyright 2011 Tyler Blair. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are
+ * permitted provided that the following conditions are met:
+ *
+ *    1. Redistributions of source code must retain the above copyright notice, this list of
+ *       conditions and the following disclaimer.
+ *
+ *    2. Redistributions in binary form must reproduce the above copyright notice, this list
+ *       of conditions and the following disclaimer in the documentation and/or other materials
+ *       provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ''AS IS'' AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND
+ * FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE AUTHOR OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * The views and conclusions contained in the software and documentation are those of the
+ * authors and contributors and should not be interpreted as representing official policies,
+ * either expressed or implied, of anybody else.
+ */
+
+package com.griefcraft.util;
+
+import com.griefcraft.cache.ProtectionCache;
+import com.griefcraft.lwc.LWC;
+import com.griefcraft.model.Protection;
+import org.bukkit.Chunk;
+import org.bukkit.World;
+
+/**
+ * Loads every protection in a chunk into the protection cache when the chunk is loaded. Once a chunk has been
+ * prefetched, lookups in it that miss the cache no longer need to query the database.
+ */
+public class ChunkPrefetcher {
+
+    /**
+     * The LWC object
+     */
+    private final LWC lwc;
+
+    public ChunkPrefetcher(LWC lwc) {
+        this.lwc = lwc;
+    }
+
+    /**
+     * Prefetch the protections in every chunk that is currently loaded
+     */
+    public void prefetchLoadedChunks() {
+        for (World world : lwc.getPlugin().getServer().getWorlds()) {
+            for (Chunk chunk : world.getLoadedChunks()) {
+                prefetch(chunk);
+            }
+        }
+    }
+
+    /**
+     * Load the protections in a chunk into the cache. The query runs asynchronously; the protections are cached on
+     * the main thread once it completes. Must be called from the main thread.
+     *
+     * @param chunk
+     */
+    public void prefetch(Chunk chunk) {
+        prefetch(chunk.getWorld().getName(), chunk.getX(), chunk.getZ());
+    }
+
+    /**
+     * Load the protections in a chunk into the cache. The query runs asynchronously; the protections are cached on
+     * the main thread once it completes. Must be called from the main thread.
+     *
+     * @param world
+     * @param chunkX
+     * @param chunkZ
+     */
+    public void prefetch(String world, int chunkX, int chunkZ) {
+        lwc.getAsyncProtectionLoader().loadChunk(world, chunkX, chunkZ);
+    }
+
+    /**
+     * Evict the protections in a chunk from the cache. Protections with changes that have not been saved yet are kept.
+     *
+     * @param chunk
+     */
+    public void evict(Chunk chunk) {
+        final DatabaseThread databaseThread = lwc.getDatabaseThread();
+
+        lwc.getProtectionCache().removeChunk(chunk.getWorld().getName(), chunk.getX(), chunk.getZ(), new ProtectionCache.ProtectionFilter() {
+            public boolean matches(Protection protection) {
+                return protection.isModified() || (databaseThread != null && databaseThread.isQueued(protection));
+            }
+        });
+    }
+
+}
@@ -0,0 +1,359 @@
+/*
+ * Copyright 2011 Tyler Blair. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are
+ * permitted provided that the following conditions are met:
+ *
+ *    1. Redistributions of source code must retain the above copyright notice, this list of
+ *       conditions and the following disclaimer.
+ *
+ *    2. Redistributions in binary form must reproduce the above copyright notice, this list
+ *       of conditions and the following disclaimer in the documentation and/or other materials
+ *       provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ''AS IS'' AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND
+ * FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE AUTHOR OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * The views and conclusions contained in the software and documentation are those of the
+ * authors and contributors and should not be interpreted as representing official policies,
+ * either expressed or implied, of anybody else.
+ */
+
+package com.griefcraft.util;
+
+import com.griefcraft.model.Flag;
+import com.griefcraft.model.Permission;
+import org.json.simple.JSONObject;
+import org.json.simple.parser.JSONParser;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * A compact binary encoding for the rights and flags in a protection's data column, used instead of JSON when
+ * {@code core.compactData} is enabled.
+ * <p/>
+ * Encoded data starts with {@link #PREFIX}, which JSON never does, followed by base64 of:
+ * <pre>
+ * version
+ * rights: count, then for each: type, access, uuid id (0 if the name is not a uuid, followed by the name)
+ * flags: count, then for each: type, any other flag data as JSON
+ * any other protection data as JSON
+ * </pre>
+ * Numbers are unsigned varints, strings are a varint length followed by UTF-8 and empty JSON is written as an empty
+ * string. Player UUIDs are replaced by their id in a {@link Dictionary} shared by every protection.
+ */
+public final class CompactData {
+
+    /**
+     * Marks data encoded by this class
+     */
+    public static final char PREFIX = '~';
+
+    /**
+     * The current version of the encoding
+     */
+    private static final int VERSION = 1;
+
+    /**
+     * Assigns small ids to UUIDs so they only need to be stored once
+     */
+    public interface Dictionary {
+
+        /**
+         * Get the id of a UUID, assigning a new id if it has none yet
+         *
+         * @param uuid a UUID in its canonical (lower case) form
+         * @return the id, which is always greater than 0
+         */
+        int getUUIDId(String uuid);
+
+        /**
+         * Get the UUID with the given id
+         *
+         * @param id
+         * @return the UUID, or null if the id is unknown
+         */
+        String getUUID(int id);
+
+    }
+
+    /**
+     * Protection data decoded by {@link #decode(String, Dictionary)}
+     */
+    public static final class Decoded {
+
+        /**
+         * The protection's rights
+         */
+        public final List<Permission> permissions = new ArrayList<Permission>();
+
+        /**
+         * The protection's flags
+         */
+        public final List<Flag> flags = new ArrayList<Flag>();
+
+        /**
+         * Any other protection data
+         */
+        public final JSONObject data = new JSONObject();
+
+    }
+
+    private CompactData() {
+    }
+
+    /**
+     * Check if the data column holds compact data
+     *
+     * @param encoded
+     * @return
+     */
+    public static boolean isCompact(String encoded) {
+        return encoded != null && !encoded.isEmpty() && encoded.charAt(0) == PREFIX;
+    }
+
+    /**
+     * Encode rights, flags and other data
+     *
+     * @param permissions
+     * @param flags
+     * @param data any other protection data. The rights and flags keys are ignored.
+     * @param dictionary
+     * @return
+     */
+    public static String encode(Collection<Permission> permissions, Collection<Flag> flags, Map<?, ?> data, Dictionary dictionary) {
+        Writer out = new Writer();
+        out.writeVarInt(VERSION);
+
+        out.writeVarInt(permissions.size());
+
+        for (Permission permission : permissions) {
+            String name = permission.getName();
+            out.writeVarInt(permission.getType().ordinal());
+            out.writeVarInt(permission.getAccess().ordinal());
+
+            if (isCanonicalUUID(name)) {
+                out.writeVarInt(dictionary.getUUIDId(name));
+            } else {
+                out.writeVarInt(0);
+                out.writeString(name == null ? "" : name);
+            }
+        }
+
+        out.writeVarInt(flags.size());
+
+        for (Flag flag : flags) {
+            out.writeVarInt(flag.getType().ordinal());
+            out.writeJSON(flag.getData(), "id");
+        }
+
+        out.writeJSON(data, "rights", "flags");
+
+        return PREFIX + Base64.getEncoder().encodeToString(out.toByteArray());
+    }
+
+    /**
+     * Decode compact data
+     *
+     * @param encoded
+     * @param dictionary
+     * @return the decoded data, or null if it is not valid compact data
+     */
+    public static Decoded decode(String encoded, Dictionary dictionary) {
+        if (!isCompact(encoded)) {
+            return null;
+        }
+
+        try {
+            Reader in = new Reader(Base64.getDecoder().decode(encoded.substring(1)));
+
+            if (in.readVarInt() != VERSION) {
+                return null;
+            }
+
+            Decoded decoded = new Decoded();
+            Permission.Type[] types = Permission.Type.values();
+            Permission.Access[] accesses = Permission.Access.values();
+
+            int rights = in.readVarInt();
+
+            for (int i = 0; i < rights; i++) {
+                int type = in.readVarInt();
+                int access = in.readVarInt();
+                int uuidId = in.readVarInt();
+                String name = uuidId == 0 ? in.readString() : dictionary.getUUID(uuidId);
+
+                if (name == null || type >= types.length || access >= accesses.length) {
+                    continue;
+                }
+
+                // mirrors Permission.decodeJSON
+                Permission.Access rightsAccess = access == 0 ? Permission.Access.PLAYER : accesses[access];
+                decoded.permissions.add(new Permission(name, types[type], rightsAccess));
+            }
+
+            Flag.Type[] flagTypes = Flag.Type.values();
+            int flags = in.readVarInt();
+
+            for (int i = 0; i < flags; i++) {
+                int type = in.readVarInt();
+                JSONObject data = in.readJSON();
+
+                if (type >= flagTypes.length) {
+                    continue;
+                }
+
+                Flag flag = new Flag(flagTypes[type]);
+
+                if (data != null) {
+                    data.remove("id");
+                    flag.getData().putAll(data);
+                }
+
+                decoded.flags.add(flag);
+            }
+
+            JSONObject data = in.readJSON();
+
+            if (data != null) {
+                decoded.data.putAll(data);
+            }
+
+            return decoded;
+        } catch (IllegalArgumentException e) {
+            return null;
+        } catch (IndexOutOfBoundsException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Check if a name is a UUID exactly as {@link UUID#toString()} would print it
+     *
+     * @param name
+     * @return
+     */
+    private static boolean isCanonicalUUID(String name) {
+        if (name == null || name.length() != 36) {
+            return false;
+        }
+
+        try {
+            return UUID.fromString(name).toString().equals(name);
+        } catch (IllegalArgumentException e) {
+            return false;
+        }
+    }
+
+    private static final class Writer extends ByteArrayOutputStream {
+
+        private Writer() {
+            super(64);
+        }
+
+        private void writeVarInt(int value) {
+            while ((value & ~0x7F) != 0) {
+                write((value & 0x7F) | 0x80);
+                value >>>= 7;
+            }
+
+            write(value);
+        }
+
+        private void writeString(String value) {
+            byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+            writeVarInt(bytes.length);
+            write(bytes, 0, bytes.length);
+        }
+
+        /**
+         * Write a JSON object without the given keys, or an empty string if nothing is left
+         */
+        @SuppressWarnings("unchecked")
+        private void writeJSON(Map<?, ?> data, String... ignored) {
+            JSONObject object = new JSONObject();
+
+            if (data != null) {
+                object.putAll(data);
+            }
+
+            for (String key : ignored) {
+                object.remove(key);
+            }
+
+            writeString(object.isEmpty() ? "" : object.toJSONString());
+        }
+
+    }
+
+    private static final class Reader {
+
+        private final byte[] bytes;
+        private int position = 0;
+
+        private Reader(byte[] bytes) {
+            this.bytes = bytes;
+        }
+
+        private int readVarInt() {
+            int value = 0;
+
+            for (int shift = 0; shift < 35; shift += 7) {
+                byte b = bytes[position++];
+                value |= (b & 0x7F) << shift;
+
+                if ((b & 0x80) == 0) {
+                    return value;
+                }
+            }
+
+            throw new IllegalArgumentException("varint too long");
+        }
+
+        private String readString() {
+            int length = readVarInt();
+
+            if (length < 0 || length > bytes.length - position) {
+                throw new IllegalArgumentException("string too long");
+            }
+
+            String value = new String(bytes, position, length, StandardCharsets.UTF_8);
+            position += length;
+            return value;
+        }
+
+        /**
+         * @return the JSON object, or null if it was empty or malformed
+         */
+        private JSONObject readJSON() {
+            String json = readString();
+
+            if (json.isEmpty()) {
+                return null;
+            }
+
+            try {
+                Object object = new JSONParser().parse(json);
+                return object instanceof JSONObject ? (JSONObject) object : null;
+            } catch (Exception e) {
+                return null;
+            }
+        }
+
+    }
+
+}
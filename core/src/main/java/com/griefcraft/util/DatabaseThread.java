@@ -31,11 +31,23 @@ package com.griefcraft.util;
 import com.griefcraft.lwc.LWC;
 import com.griefcraft.model.Protection;
 import com.griefcraft.sql.Database;
+import com.griefcraft.sql.PooledConnection;
+import org.bukkit.Bukkit;
 
-import java.util.Iterator;
-import java.util.Queue;
-import java.util.concurrent.ConcurrentLinkedQueue;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
+/**
+ * Writes protection changes to the database in the background. A protection that is saved again while it is still
+ * queued is only written once, and the queue is written in batches inside a single transaction. The queue is flushed
+ * every {@code core.flushInterval} seconds, or as soon as {@code core.flushQueueSize} protections are waiting.
+ */
 public class DatabaseThread implements Runnable {
 
     /**
@@ -44,19 +56,29 @@ public class DatabaseThread implements Runnable {
     private final LWC lwc;
 
     /**
-     * The protections waiting to be updated in the database
+     * The protections waiting to be updated in the database, by protection id. Guarded by itself.
+     */
+    private final Map<Integer, Protection> updateQueue = new LinkedHashMap<Integer, Protection>();
+
+    /**
+     * Held while protections are taken from the queue and written, see {@link #removeProtections(int[])}
      */
-    private final Queue<Protection> updateQueue = new ConcurrentLinkedQueue<Protection>();
+    private final Object writeLock = new Object();
 
     /**
      * The thread we are running in
      */
-    private final Thread thread = new Thread(this);
+    private final Thread thread = new Thread(this, "LWC Database Thread");
 
     /**
      * If the database thread is active and running
      */
-    private boolean running = false;
+    private volatile boolean running = false;
+
+    /**
+     * If a flush was requested before the flush interval elapsed. Guarded by updateQueue.
+     */
+    private boolean flushRequested = false;
 
     /**
      * The last time the queue was flushed to the database
@@ -73,21 +95,98 @@ public class DatabaseThread implements Runnable {
      */
     private int pingInterval = 0;
 
+    /**
+     * The time the next SQLite WAL checkpoint will be run at
+     */
+    private long nextCheckpoint = 0;
+
+    /**
+     * Interval between SQLite WAL checkpoints
+     */
+    private final int checkpointInterval;
+
+    /**
+     * The amount of queued protections that triggers a flush before the flush interval elapsed
+     */
+    private final int flushQueueSize;
+
+    /**
+     * The amount of queued protections at which saving a protection waits for the queue to be flushed
+     */
+    private final int maxQueueSize;
+
+    /**
+     * The amount of protections sent to the database in one batch
+     */
+    private final int batchSize;
+
+    /**
+     * The amount of saves that were merged into a save that was already queued
+     */
+    private volatile long coalesced = 0;
+
+    /**
+     * The amount of protections written to the database
+     */
+    private volatile long written = 0;
+
+    /**
+     * The amount of batches sent to the database
+     */
+    private volatile long batches = 0;
+
     public DatabaseThread(LWC lwc) {
         this.lwc = lwc;
         this.running = true;
         this.lastFlush = System.currentTimeMillis();
-        this.thread.start();
         pingInterval = lwc.getConfiguration().getInt("database.ping_interval", 300);
+        checkpointInterval = Math.max(1, lwc.getConfiguration().getInt("database.sqlite.checkpointInterval", 60));
+        nextCheckpoint = System.currentTimeMillis() + (checkpointInterval * 1000L);
+        flushQueueSize = Math.max(1, lwc.getConfiguration().getInt("core.flushQueueSize", 500));
+        maxQueueSize = Math.max(flushQueueSize, lwc.getConfiguration().getInt("core.maxQueueSize", 10000));
+        batchSize = Math.max(1, lwc.getConfiguration().getInt("core.flushBatchSize", 100));
+        this.thread.start();
     }
 
     /**
-     * Adds a protection to the update queue so that it is flushed to the database asap
+     * Adds a protection to the update queue so that it is flushed to the database asap. If the protection is already
+     * queued it will still only be written once.
+     * <p/>
+     * If the queue is full, a caller that is not the server thread waits (for at most a second) until the database
+     * thread has caught up. The server thread never waits; the flush was already requested.
      *
      * @param protection
      */
     public void addProtection(Protection protection) {
-        updateQueue.offer(protection);
+        synchronized (updateQueue) {
+            Protection queued = updateQueue.put(protection.getId(), protection);
+
+            if (queued != null) {
+                coalesced++;
+                return;
+            }
+
+            int size = updateQueue.size();
+
+            if (size >= flushQueueSize) {
+                flushRequested = true;
+                updateQueue.notifyAll();
+            }
+
+            if (size >= maxQueueSize && running && Thread.currentThread() != thread && !Bukkit.isPrimaryThread()) {
+                long deadline = System.currentTimeMillis() + 1000L;
+                long remaining;
+
+                while (updateQueue.size() >= maxQueueSize && running && (remaining = deadline - System.currentTimeMillis()) > 0) {
+                    try {
+                        updateQueue.wait(remaining);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        return;
+                    }
+                }
+            }
+        }
     }
 
     /**
@@ -96,7 +195,37 @@ public class DatabaseThread implements Runnable {
      * @param protection
      */
     public void removeProtection(Protection protection) {
-        updateQueue.remove(protection);
+        synchronized (updateQueue) {
+            updateQueue.remove(protection.getId());
+        }
+    }
+
+    /**
+     * Drop the queued updates of protections that are about to be deleted from the database. Waits for a write in
+     * progress first, since it may contain them and would write them back.
+     *
+     * @param ids
+     */
+    public void removeProtections(int[] ids) {
+        synchronized (writeLock) {
+            synchronized (updateQueue) {
+                for (int id : ids) {
+                    updateQueue.remove(id);
+                }
+            }
+        }
+    }
+
+    /**
+     * Checks if a protection is waiting to be updated in the database
+     *
+     * @param protection
+     * @return
+     */
+    public boolean isQueued(Protection protection) {
+        synchronized (updateQueue) {
+            return updateQueue.get(protection.getId()) == protection;
+        }
     }
 
     /**
@@ -105,7 +234,30 @@ public class DatabaseThread implements Runnable {
      * @return the amount of protections queued to be updated
      */
     public int size() {
-        return updateQueue.size();
+        synchronized (updateQueue) {
+            return updateQueue.size();
+        }
+    }
+
+    /**
+     * @return the amount of saves that were merged into a save that was already queued
+     */
+    public long getCoalesced() {
+        return coalesced;
+    }
+
+    /**
+     * @return the amount of protections written to the database
+     */
+    public long getWritten() {
+        return written;
+    }
+
+    /**
+     * @return the amount of batches sent to the database
+     */
+    public long getBatches() {
+        return batches;
     }
 
     /**
@@ -118,6 +270,13 @@ public class DatabaseThread implements Runnable {
             thread.interrupt();
         }
 
+        // wait for a flush that is already in progress so it does not run at the same time as ours
+        try {
+            thread.join(5000L);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
         // Flush the rest of the entries
         flushDatabase();
     }
@@ -126,29 +285,40 @@ public class DatabaseThread implements Runnable {
      * Recommend a flush as soon as possible. This does not guarantee the database will be flushed immediately.
      */
     public void flush() {
-        lastFlush = System.currentTimeMillis() - 9999999L;
+        synchronized (updateQueue) {
+            flushRequested = true;
+            updateQueue.notifyAll();
+        }
     }
 
     /**
      * Flush the protections to the database
      */
     private void flushDatabase() {
-        if (!updateQueue.isEmpty()) {
-            Database database = lwc.getPhysicalDatabase();
-            database.setAutoCommit(false);
-            database.setUseStatementCache(false);
-
-            // Begin iterating through the queue
-            Iterator<Protection> iter = updateQueue.iterator();
-            while (iter.hasNext()) {
-                Protection protection = iter.next();
-                iter.remove();
-                protection.saveNow();
+        // nothing may drop protections from the queue while they are being written, see removeProtections
+        synchronized (writeLock) {
+            List<Protection> protections;
+
+            synchronized (updateQueue) {
+                protections = new ArrayList<Protection>(updateQueue.values());
+                updateQueue.clear();
+                flushRequested = false;
+
+                // wake anything waiting for room in the queue
+                updateQueue.notifyAll();
             }
 
-            // Commit the changes to the database
-            database.setUseStatementCache(true);
-            database.setAutoCommit(true);
+            if (!protections.isEmpty()) {
+                // write on a connection of our own so we never share statements with the server thread
+                try (PooledConnection ignored = lwc.getPhysicalDatabase().borrowConnection()) {
+                    writeProtections(protections);
+                } catch (Exception e) {
+                    // keep them queued so they are written on the next flush
+                    requeue(protections);
+                    lwc.log("Failed to flush " + protections.size() + " protection updates, they will be retried");
+                    e.printStackTrace();
+                }
+            }
         }
 
         // update the time we last flushed at
@@ -158,6 +328,85 @@ public class DatabaseThread implements Runnable {
             nextKeepalivePacket = System.currentTimeMillis() + (pingInterval * 1000);
             lwc.getPhysicalDatabase().pingDatabase();
         }
+
+        Database database = lwc.getPhysicalDatabase();
+
+        if (System.currentTimeMillis() > nextCheckpoint && database.isWriteAheadLogging()) {
+            nextCheckpoint = System.currentTimeMillis() + (checkpointInterval * 1000L);
+
+            try (PooledConnection ignored = database.borrowConnection()) {
+                database.checkpoint();
+            } catch (SQLException e) {
+                lwc.log("Failed to borrow a connection for the WAL checkpoint: " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Put protections that could not be written back in the queue. A protection that was saved again in the meantime
+     * is already queued and is left as it is.
+     *
+     * @param protections
+     */
+    private void requeue(Collection<Protection> protections) {
+        synchronized (updateQueue) {
+            for (Protection protection : protections) {
+                if (!protection.isRemoved() && !updateQueue.containsKey(protection.getId())) {
+                    updateQueue.put(protection.getId(), protection);
+                }
+            }
+        }
+    }
+
+    /**
+     * Write the given protections and their history to the database. If they can't be written, their changes are
+     * kept and they are put back in the queue.
+     *
+     * @param protections
+     */
+    private void writeProtections(Collection<Protection> protections) {
+        // group the protections by the columns that changed so each group can share one statement
+        Map<Set<Protection.Column>, List<Protection>> changes = new HashMap<Set<Protection.Column>, List<Protection>>();
+        int modified = 0;
+
+        for (Protection protection : protections) {
+            Set<Protection.Column> columns = protection.prepareSave();
+
+            if (columns.isEmpty()) {
+                continue;
+            }
+
+            List<Protection> group = changes.get(columns);
+
+            if (group == null) {
+                group = new ArrayList<Protection>();
+                changes.put(columns, group);
+            }
+
+            group.add(protection);
+            modified++;
+        }
+
+        try {
+            batches += lwc.getPhysicalDatabase().saveProtections(changes, batchSize);
+        } catch (SQLException | RuntimeException e) {
+            // keep the changes and queue the protections again so they are written on the next flush
+            for (Map.Entry<Set<Protection.Column>, List<Protection>> entry : changes.entrySet()) {
+                for (Protection protection : entry.getValue()) {
+                    protection.markChanged(entry.getKey());
+                }
+            }
+
+            requeue(protections);
+            lwc.log("Failed to save " + modified + " protection updates, they will be retried: " + e.getMessage());
+            return;
+        }
+
+        written += modified;
+
+        for (Protection protection : protections) {
+            protection.checkAndSaveHistory();
+        }
     }
 
     public void run() {
@@ -169,18 +418,22 @@ public class DatabaseThread implements Runnable {
                 interval = 120;
             }
 
-            long currentTime = System.currentTimeMillis();
             long intervalMilliseconds = interval * 1000L;
 
-            // compare the current time to the last flush
-            if (currentTime - lastFlush > intervalMilliseconds) {
-                flushDatabase();
+            synchronized (updateQueue) {
+                long remaining;
+
+                while (running && !flushRequested && (remaining = lastFlush + intervalMilliseconds - System.currentTimeMillis()) > 0) {
+                    try {
+                        updateQueue.wait(remaining);
+                    } catch (InterruptedException e) {
+                        running = false;
+                    }
+                }
             }
 
-            try {
-                Thread.sleep(1000L);
-            } catch (InterruptedException e) {
-                running = false;
+            if (running) {
+                flushDatabase();
             }
         }
     }
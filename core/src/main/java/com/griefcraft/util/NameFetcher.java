@@ -19,18 +19,24 @@ import java.util.UUID;
 import java.util.concurrent.Callable;
 
 public class NameFetcher implements Callable<Map<UUID, String>> {
-    private static final String PROFILE_URL = "https://sessionserver.mojang.com/session/minecraft/profile/";
+    public static final String PROFILE_URL = "https://sessionserver.mojang.com/session/minecraft/profile/";
     private final JSONParser jsonParser = new JSONParser();
     private final List<UUID> uuids;
+    private final String profileUrl;
 
-    public NameFetcher(List<UUID> uuids) {
+    public NameFetcher(List<UUID> uuids, String profileUrl) {
         this.uuids = ImmutableList.copyOf(uuids);
+        this.profileUrl = profileUrl;
+    }
+
+    public NameFetcher(List<UUID> uuids) {
+        this(uuids, PROFILE_URL);
     }
 
     public Map<UUID, String> call() throws Exception {
         Map<UUID, String> uuidStringMap = new HashMap<UUID, String>();
         for (UUID uuid : uuids) {
-            HttpURLConnection connection = (HttpURLConnection) new URL(PROFILE_URL + uuid.toString().replace("-", "")).openConnection();
+            HttpURLConnection connection = (HttpURLConnection) new URL(profileUrl + uuid.toString().replace("-", "")).openConnection();
             JSONObject response = (JSONObject) jsonParser.parse(new InputStreamReader(connection.getInputStream()));
             String name = (String) response.get("name");
             if (name == null) {
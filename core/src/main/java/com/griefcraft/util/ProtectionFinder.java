@@ -39,23 +39,71 @@ import org.bukkit.Material;
 import org.bukkit.block.Block;
 import org.bukkit.block.BlockState;
 
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
-import java.util.Iterator;
-import java.util.LinkedList;
+import java.util.EnumMap;
 import java.util.List;
+import java.util.Map;
 
 /**
  * Searches for blocks that can potentially be a protection
  */
 public class ProtectionFinder {
 
+    /**
+     * The matchers used for each material. Matchers are stateless so the same instances are shared by every finder.
+     */
+    private static final Map<Material, Matcher[]> MATCHERS = new EnumMap<Material, Matcher[]>(Material.class);
+
+    /**
+     * Used for blocks that are matched on their own
+     */
+    private static final Matcher[] NO_MATCHERS = new Matcher[0];
+
+    static {
+        Matcher doors = new DoorMatcher();
+        Matcher gravity = new GravityMatcher();
+        Matcher walls = new WallMatcher();
+        Matcher[] doubleChests = new Matcher[] { new DoubleChestMatcher() };
+        Matcher[] posts = new Matcher[] { gravity };
+        Matcher[] doorsOnly = new Matcher[] { doors };
+        Matcher[] anything = new Matcher[] { doors, gravity, walls };
+
+        for (Material material : Material.values()) {
+            if (material == Material.HOPPER) {
+                MATCHERS.put(material, NO_MATCHERS);
+            } else if (DoubleChestMatcher.PROTECTABLES_CHESTS.contains(material)) {
+                MATCHERS.put(material, doubleChests);
+            } else if (GravityMatcher.PROTECTABLES_POSTS.contains(material)) {
+                MATCHERS.put(material, posts);
+            } else if (DoorMatcher.DOORS.contains(material)) {
+                MATCHERS.put(material, doorsOnly);
+            } else {
+                MATCHERS.put(material, anything);
+            }
+        }
+    }
+
     /**
      * The LWC object to work with
      */
     private LWC lwc;
 
     /**
-     * The base block to match off of
+     * If this finder is reused for other searches, in which case protections get a copy of it
+     */
+    private final boolean reusable;
+
+    /**
+     * The base block to match off of, and its type
+     */
+    private Block base = null;
+    private Material baseType = null;
+
+    /**
+     * A snapshot of the base block, if it was given or asked for
      */
     private BlockState baseBlock = null;
 
@@ -70,17 +118,27 @@ public class ProtectionFinder {
     private boolean searched = false;
 
     /**
-     * All of the matched blocks
+     * All of the matched blocks, the base block first. Only the first {@link #size} are used.
      */
-    private final List<BlockState> blocks = new LinkedList<BlockState>();
+    private Block[] blocks = new Block[8];
+    private int size = 0;
 
     /**
-     * All of the blocks that are protectables
+     * Snapshots of the matched blocks, only taken if {@link #getBlocks()} is used
      */
-    private final List<BlockState> protectables = new LinkedList<BlockState>();
+    private List<BlockState> states = null;
 
     public ProtectionFinder(LWC lwc) {
+        this(lwc, false);
+    }
+
+    /**
+     * @param lwc
+     * @param reusable if the finder is {@link #clear() cleared} and used for other searches afterwards
+     */
+    public ProtectionFinder(LWC lwc, boolean reusable) {
         this.lwc = lwc;
+        this.reusable = reusable;
     }
 
     /**
@@ -90,7 +148,7 @@ public class ProtectionFinder {
      * @return TRUE if a set of blocks was found
      */
     public boolean matchBlocks(Block baseBlock) {
-        return matchBlocks(baseBlock.getState());
+        return matchBlocks(baseBlock, null);
     }
 
     /**
@@ -100,6 +158,17 @@ public class ProtectionFinder {
      * @return TRUE if a set of blocks was found
      */
     public boolean matchBlocks(BlockState baseBlock) {
+        return matchBlocks(baseBlock.getBlock(), baseBlock);
+    }
+
+    /**
+     * Try and match blocks using the given base block
+     *
+     * @param base
+     * @param baseBlock a snapshot of the base block, or null to not take one
+     * @return TRUE if a set of blocks was found
+     */
+    private boolean matchBlocks(Block base, BlockState baseBlock) {
         // Did we already find a protection?
         if (matchedProtection != null) {
             return true;
@@ -107,14 +176,16 @@ public class ProtectionFinder {
 
         // First, reset
         reset();
+        this.base = base;
+        this.baseType = baseBlock != null ? baseBlock.getType() : base.getType();
         this.baseBlock = baseBlock;
 
         // Add the base block
-        addBlock(baseBlock);
+        addBlock(base);
 
         // Check the base-block
         Result result;
-        if ((result = tryLoadProtection(baseBlock, false)) != Result.E_NOT_FOUND) {
+        if ((result = tryLoadProtection(base, false)) != Result.E_NOT_FOUND) {
             return result == Result.E_FOUND;
         }
 
@@ -137,12 +208,11 @@ public class ProtectionFinder {
      * Do a full sweeping match of all the blocks for a given protection
      */
     public void fullMatchBlocks() {
-
         // Reset the blocks
-        blocks.clear();
+        clearBlocks();
 
         // Add the base block
-        blocks.add(baseBlock);
+        addBlock(base);
 
         // Go through each matcher and execute it
         for (Matcher matcher : getProtectionMatchers()) {
@@ -154,47 +224,14 @@ public class ProtectionFinder {
     }
 
     /**
-     * Get the possible protection matchers that can match the protection
+     * Get the possible protection matchers that can match the protection. The returned array is shared and must not
+     * be modified.
      *
      * @return
      */
     public Matcher[] getProtectionMatchers() {
-        Material material = baseBlock.getType();
-
-        if (material == Material.HOPPER) {
-            return new Matcher[0];
-        }
-
-        // Double chests
-        if (DoubleChestMatcher.PROTECTABLES_CHESTS.contains(material)) {
-            return new Matcher[] {
-                    new DoubleChestMatcher()
-            };
-        }
-
-        // Gravity
-        else if (GravityMatcher.PROTECTABLES_POSTS.contains(material)) {
-            return new Matcher[] {
-                    new GravityMatcher()
-            };
-        }
-
-        // Doors
-        else if (DoorMatcher.DOORS.contains(material)) {
-            return new Matcher[] {
-                    new DoorMatcher()
-            };
-        }
-
-        // Anything else
-        else {
-            return new Matcher[] {
-                    new DoorMatcher(),
-                    new GravityMatcher(),
-                    new WallMatcher()
-            };
-        }
-
+        Matcher[] matchers = baseType != null ? MATCHERS.get(baseType) : null;
+        return matchers != null ? matchers : NO_MATCHERS;
     }
 
     /**
@@ -203,7 +240,25 @@ public class ProtectionFinder {
      * @param block
      */
     public void addBlock(Block block) {
-        addBlock(block.getState());
+        int x = block.getX();
+        int y = block.getY();
+        int z = block.getZ();
+
+        // only a handful of blocks are ever matched
+        for (int i = 0; i < size; i++) {
+            Block existing = blocks[i];
+
+            if (existing.getX() == x && existing.getY() == y && existing.getZ() == z) {
+                return;
+            }
+        }
+
+        if (size == blocks.length) {
+            blocks = Arrays.copyOf(blocks, size << 1);
+        }
+
+        blocks[size++] = block;
+        states = null;
     }
 
     /**
@@ -212,9 +267,7 @@ public class ProtectionFinder {
      * @param block
      */
     public void addBlock(BlockState block) {
-        if (!blocks.contains(block)) {
-            blocks.add(block);
-        }
+        addBlock(block.getBlock());
     }
 
     /**
@@ -240,12 +293,13 @@ public class ProtectionFinder {
             return matchedProtection;
         }
 
-        // Calculate the protectables
-        calculateProtectables();
         searched = true;
 
-        for (BlockState block : protectables) {
-            if (tryLoadProtection(block, noAutoCache) == Result.E_FOUND) {
+        // the base block was already checked, so check the other blocks that are protectable
+        for (int index = 1; index < size; index++) {
+            Block block = blocks[index];
+
+            if (lwc.isProtectable(block) && tryLoadProtection(block, noAutoCache) == Result.E_FOUND) {
                 return matchedProtection;
             }
         }
@@ -261,6 +315,17 @@ public class ProtectionFinder {
      * @return
      */
     protected Result tryLoadProtection(BlockState block, boolean noAutoCache) {
+        return tryLoadProtection(block.getBlock(), noAutoCache);
+    }
+
+    /**
+     * Try and load a protection for a given block. If succeded, cache it locally
+     *
+     * @param block
+     * @param noAutoCache if a match is found, don't cache it to be the protection we use
+     * @return
+     */
+    protected Result tryLoadProtection(Block block, boolean noAutoCache) {
         if (matchedProtection != null) {
             return Result.E_FOUND;
         }
@@ -273,14 +338,22 @@ public class ProtectionFinder {
             searched = true;
             if (matchedProtection.getProtectionFinder() == null) {
                 fullMatchBlocks();
-                matchedProtection.setProtectionFinder(this);
+                matchedProtection.setProtectionFinder(attachable());
+
+                // store the blocks it is made of, so it is found from any of them once it is loaded again
+                if (matchedProtection.updateRelatedBlocks()) {
+                    matchedProtection.save();
+                }
+
                 cache.addProtection(matchedProtection);
             }
             return Result.E_FOUND;
         }
 
+        Material type = block.getType();
+
         // Manual intervention is required
-        if (block.getType() == Material.REDSTONE_WIRE || block.getType() == Material.REDSTONE_TORCH) {
+        if (type == Material.REDSTONE_WIRE || type == Material.REDSTONE_TORCH) {
             return Result.E_ABORT;
         }
 
@@ -299,8 +372,13 @@ public class ProtectionFinder {
 
         if (protection != null) {
             if (protection.getProtectionFinder() == null) {
-                protection.setProtectionFinder(this);
                 fullMatchBlocks();
+                protection.setProtectionFinder(attachable());
+
+                if (protection.updateRelatedBlocks()) {
+                    protection.save();
+                }
+
                 cache.addProtection(matchedProtection);
             }
 
@@ -330,16 +408,62 @@ public class ProtectionFinder {
      * @return
      */
     public BlockState getBaseBlock() {
+        if (baseBlock == null && base != null) {
+            baseBlock = base.getState();
+        }
+
         return baseBlock;
     }
 
+    /**
+     * Get the finder's base block without taking a snapshot of it
+     *
+     * @return
+     */
+    public Block getBase() {
+        return base;
+    }
+
+    /**
+     * Get an immutable list of the matched blocks. Unlike {@link #getBlocks()} this does not snapshot them.
+     *
+     * @return
+     */
+    public List<Block> getMatchedBlocks() {
+        return new AbstractList<Block>() {
+            @Override
+            public Block get(int index) {
+                if (index < 0 || index >= size) {
+                    throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size);
+                }
+
+                return blocks[index];
+            }
+
+            @Override
+            public int size() {
+                return size;
+            }
+        };
+    }
+
     /**
      * Get an immutable set of the matched blocks
      *
      * @return
      */
     public List<BlockState> getBlocks() {
-        return Collections.unmodifiableList(blocks);
+        if (states == null) {
+            List<BlockState> snapshot = new ArrayList<BlockState>(size);
+
+            for (int i = 0; i < size; i++) {
+                snapshot.add(blocks[i] == base ? getBaseBlock() : blocks[i].getState());
+            }
+
+            states = Collections.unmodifiableList(snapshot);
+        }
+
+        return states;
     }
 
     /**
@@ -348,47 +472,77 @@ public class ProtectionFinder {
      * @param block
      */
     public void removeBlock(BlockState block) {
-        Iterator<BlockState> iter = blocks.iterator();
+        removeBlock(block.getBlock());
+    }
+
+    /**
+     * Remove a block from the finder
+     *
+     * @param block
+     */
+    public void removeBlock(Block block) {
+        int count = 0;
 
-        while (iter.hasNext()) {
-            if (lwc.blockEquals(block, iter.next())) {
-                iter.remove();
+        for (int i = 0; i < size; i++) {
+            Block existing = blocks[i];
+
+            if (existing.getX() != block.getX() || existing.getY() != block.getY() || existing.getZ() != block.getZ()) {
+                blocks[count++] = existing;
             }
         }
+
+        Arrays.fill(blocks, count, size, null);
+        size = count;
+        states = null;
+    }
+
+    /**
+     * Clear the finder, including the protection it found, so it can be used for another search
+     */
+    public void clear() {
+        reset();
+        matchedProtection = null;
     }
 
     /**
      * Reset the matcher state
      */
     private void reset() {
-        blocks.clear();
-        protectables.clear();
+        clearBlocks();
+        base = null;
+        baseType = null;
         baseBlock = null;
         searched = false;
     }
 
     /**
-     * From the matched blocks calculate and store the blocks that are protectable
+     * Remove every matched block
      */
-    private void calculateProtectables() {
-        // reset the matched protectables
-        protectables.clear();
-        searched = false;
+    private void clearBlocks() {
+        Arrays.fill(blocks, 0, size, null);
+        size = 0;
+        states = null;
+    }
 
-        // if there's only 1 block it was already checked (the base block)
-        int size = blocks.size();
-        if (size == 1) {
-            return;
+    /**
+     * Get the finder to attach to a protection it found. A reusable finder is copied as it will be cleared.
+     *
+     * @return
+     */
+    private ProtectionFinder attachable() {
+        if (!reusable) {
+            return this;
         }
 
-        // go through the blocks
-        for (int index = 1; index < size; index++) {
-            BlockState state = blocks.get(index);
-
-            if (lwc.isProtectable(state)) {
-                protectables.add(state);
-            }
-        }
+        ProtectionFinder copy = new ProtectionFinder(lwc);
+        copy.base = base;
+        copy.baseType = baseType;
+        copy.baseBlock = baseBlock;
+        copy.matchedProtection = matchedProtection;
+        copy.searched = searched;
+        copy.blocks = Arrays.copyOf(blocks, Math.max(size, 1));
+        copy.size = size;
+        return copy;
     }
 
     /**
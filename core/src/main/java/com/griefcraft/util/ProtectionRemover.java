@@ -0,0 +1,606 @@
+/*
+ * Copyright 2011 Tyler Blair. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are
+ * permitted provided that the following conditions are met:
+ *
+ *    1. Redistributions of source code must retain the above copyright notice, this list of
+ *       conditions and the following disclaimer.
+ *
+ *    2. Redistributions in binary form must reproduce the above copyright notice, this list
+ *       of conditions and the following disclaimer in the documentation and/or other materials
+ *       provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ''AS IS'' AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND
+ * FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE AUTHOR OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * The views and conclusions contained in the software and documentation are those of the
+ * authors and contributors and should not be interpreted as representing official policies,
+ * either expressed or implied, of anybody else.
+ */
+
+package com.griefcraft.util;
+
+import com.griefcraft.cache.ProtectionCache;
+import com.griefcraft.cache.WorldIds;
+import com.griefcraft.lwc.LWC;
+import com.griefcraft.model.Flag;
+import com.griefcraft.model.History;
+import com.griefcraft.model.Protection;
+import com.griefcraft.sql.PhysDB;
+import com.griefcraft.sql.PooledConnection;
+import com.griefcraft.util.config.Configuration;
+import org.bukkit.Bukkit;
+import org.bukkit.World;
+import org.bukkit.command.CommandSender;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Removes large amounts of protections without holding them all in memory or stalling the server. Matching
+ * protections are read a page at a time on a background thread and deleted in parameterized batches, while their
+ * blocks (if they are removed too) are cleared on the main thread a few at a time each tick, grouped by chunk.
+ * <p/>
+ * Every job is recorded in the removals table along with the last protection id it got to, so a job that was running
+ * when the server stopped carries on where it left off the next time LWC loads. Jobs run one at a time in the order
+ * they were started.
+ */
+public class ProtectionRemover {
+
+    /**
+     * How often progress is reported, in milliseconds
+     */
+    private static final long PROGRESS_INTERVAL = 5000L;
+
+    /**
+     * The LWC object
+     */
+    private final LWC lwc;
+
+    /**
+     * The max amount of protections read and deleted at once
+     */
+    private final int batchSize;
+
+    /**
+     * How long block removal may take per tick, in nanoseconds
+     */
+    private final long tickBudget;
+
+    /**
+     * Runs the jobs
+     */
+    private final ExecutorService executor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "LWC Protection Remover");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    public ProtectionRemover(LWC lwc) {
+        Configuration configuration = lwc.getConfiguration();
+        this.lwc = lwc;
+        this.batchSize = Math.max(1, Math.min(configuration.getInt("core.bulkRemoval.batchSize", 1000), 100000));
+        this.tickBudget = configuration.getInt("core.bulkRemoval.tickBudget", 10) * 1000000L;
+    }
+
+    /**
+     * A removal in progress
+     */
+    private class Job {
+
+        /**
+         * The id of the job in the removals table
+         */
+        private int id;
+
+        /**
+         * The conditions the protections to remove match, may be empty
+         */
+        private final String where;
+
+        /**
+         * If the blocks of the protections are removed from the world too
+         */
+        private final boolean removeBlocks;
+
+        /**
+         * Who to send progress to
+         */
+        private final CommandSender sender;
+
+        /**
+         * Completes with the amount of removed protections
+         */
+        private final CompletableFuture<Integer> future = new CompletableFuture<Integer>();
+
+        /**
+         * The worlds that are loaded and the block ids that are never removed, taken on the main thread
+         */
+        private final Set<String> worlds;
+        private final Set<Integer> exemptedBlocks;
+
+        /**
+         * The id of the last protection that was checked
+         */
+        private int lastId;
+
+        /**
+         * The amount of removed protections
+         */
+        private int removed;
+
+        private Job(int id, String where, boolean removeBlocks, CommandSender sender, int lastId, int removed, Set<String> worlds, Set<Integer> exemptedBlocks) {
+            this.id = id;
+            this.where = where == null ? "" : where.trim();
+            this.removeBlocks = removeBlocks;
+            this.sender = sender;
+            this.lastId = lastId;
+            this.removed = removed;
+            this.worlds = worlds;
+            this.exemptedBlocks = exemptedBlocks;
+        }
+
+    }
+
+    /**
+     * Remove every protection matching the given conditions. Must be called from the main thread.
+     *
+     * @param sender who to send progress to
+     * @param where raw SQL conditions, or null to remove every protection
+     * @param removeBlocks if the blocks of the protections are removed from the world too
+     * @return completes on the main thread with the amount of removed protections
+     */
+    public CompletableFuture<Integer> remove(CommandSender sender, String where, boolean removeBlocks) {
+        // flush all changes to the database before working on the live database
+        lwc.getDatabaseThread().flush();
+
+        Job job = new Job(0, where, removeBlocks, sender, 0, 0, loadedWorlds(), exemptedBlocks());
+        submit(job);
+        return job.future;
+    }
+
+    /**
+     * Continue the jobs that were still running when the server stopped. Must be called from the main thread; the
+     * jobs are read on the remover thread.
+     */
+    public void resume() {
+        final Set<String> worlds = loadedWorlds();
+        final Set<Integer> exemptedBlocks = exemptedBlocks();
+
+        try {
+            executor.execute(new Runnable() {
+                public void run() {
+                    PhysDB database = lwc.getPhysicalDatabase();
+                    List<Job> jobs = new ArrayList<Job>();
+
+                    try (PooledConnection ignored = database.borrowConnection();
+                         PreparedStatement statement = database.getConnection().prepareStatement("SELECT id, conditions, removeBlocks, lastId, removed FROM " + database.getPrefix() + "removals ORDER BY id");
+                         ResultSet set = database.executeQuery(statement)) {
+                        while (set.next()) {
+                            jobs.add(new Job(set.getInt("id"), set.getString("conditions"), set.getInt("removeBlocks") == 1, Bukkit.getConsoleSender(), set.getInt("lastId"), set.getInt("removed"), worlds, exemptedBlocks));
+                        }
+                    } catch (SQLException e) {
+                        e.printStackTrace();
+                    }
+
+                    for (Job job : jobs) {
+                        lwc.log("Resuming protection removal #" + job.id + " (" + job.removed + " removed so far)");
+                        submit(job);
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            // stopped
+        }
+    }
+
+    /**
+     * Stop removing protections. Unfinished jobs are resumed the next time LWC loads.
+     */
+    public void stop() {
+        executor.shutdownNow();
+    }
+
+    /**
+     * @return the names of the loaded worlds, taken on the main thread
+     */
+    private Set<String> loadedWorlds() {
+        Set<String> worlds = new HashSet<String>();
+
+        for (World world : Bukkit.getWorlds()) {
+            worlds.add(world.getName());
+        }
+
+        return worlds;
+    }
+
+    /**
+     * @return the block ids that are never removed
+     */
+    private Set<Integer> exemptedBlocks() {
+        return new HashSet<Integer>(lwc.getConfiguration().getIntList("optional.exemptBlocks", new ArrayList<Integer>()));
+    }
+
+    /**
+     * Queue a job to be ran
+     *
+     * @param job
+     */
+    private void submit(final Job job) {
+        try {
+            executor.execute(new Runnable() {
+                public void run() {
+                    try (PooledConnection ignored = lwc.getPhysicalDatabase().borrowConnection()) {
+                        run(job);
+                    } catch (InterruptedException e) {
+                        // stopped; the job is resumed next time
+                    } catch (Exception e) {
+                        e.printStackTrace();
+                        message(job.sender, Colors.Red + "Protection removal failed after removing " + job.removed + " protections: " + e.getMessage());
+                        finish(job);
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            job.future.complete(0);
+        }
+    }
+
+    /**
+     * Run a job until every matching protection has been removed
+     *
+     * @param job
+     */
+    private void run(Job job) throws Exception {
+        PhysDB database = lwc.getPhysicalDatabase();
+        Connection connection = database.getConnection();
+        String prefix = database.getPrefix();
+
+        if (job.id == 0) {
+            job.id = createJob(job);
+        }
+
+        int[] ids = new int[batchSize];
+        int[] xs = new int[batchSize];
+        int[] ys = new int[batchSize];
+        int[] zs = new int[batchSize];
+        String[] worlds = new String[batchSize];
+
+        String query = "SELECT id, owner, type, x, y, z, data, blockId, world, password, date, last_accessed FROM " + prefix
+                + "protections WHERE id > ?" + (job.where.isEmpty() ? "" : " AND (" + job.where + ")") + " ORDER BY id LIMIT " + batchSize;
+
+        long started = System.currentTimeMillis();
+        long lastProgress = started;
+        int removedAtStart = job.removed;
+        boolean more = true;
+
+        message(job.sender, "Removing protections in batches of " + batchSize);
+
+        while (more) {
+            int count = 0;
+            int rows = 0;
+
+            // read the next page; short queries so the removals below never wait on a long running read
+            try (PreparedStatement statement = connection.prepareStatement(query)) {
+                statement.setInt(1, job.lastId);
+
+                try (ResultSet set = database.executeQuery(statement)) {
+                    while (set.next()) {
+                        rows ++;
+                        Protection protection = database.resolveProtection(set);
+                        job.lastId = set.getInt("id");
+
+                        // check if the protection is exempt from being removed
+                        if (protection == null || protection.hasFlag(Flag.Type.EXEMPTION) || job.exemptedBlocks.contains(protection.getBlockId())
+                                || !job.worlds.contains(protection.getWorld())) {
+                            continue;
+                        }
+
+                        ids[count] = protection.getId();
+                        xs[count] = protection.getX();
+                        ys[count] = protection.getY();
+                        zs[count] = protection.getZ();
+                        worlds[count] = protection.getWorld();
+                        count ++;
+                    }
+                }
+            }
+
+            more = rows == batchSize;
+
+            // the blocks go first, so if the server stops before the protections are deleted they are simply
+            // found again when the job resumes
+            if (job.removeBlocks && count > 0) {
+                try {
+                    removeBlocks(worlds, xs, ys, zs, count).get();
+                } catch (ExecutionException e) {
+                    throw e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+                }
+            }
+
+            if (count > 0) {
+                int[] batch = Arrays.copyOf(ids, count);
+
+                // nothing may save these protections again once they are deleted, or REPLACE would write them back
+                try {
+                    removeCached(batch).get();
+                } catch (ExecutionException e) {
+                    throw e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+                }
+
+                lwc.getDatabaseThread().removeProtections(batch);
+            }
+
+            deleteBatch(connection, prefix, job, ids, count);
+
+            if (count > 0) {
+                decrementProtectionCount(count);
+            }
+
+            long now = System.currentTimeMillis();
+
+            if (now - lastProgress >= PROGRESS_INTERVAL || !more) {
+                long elapsed = Math.max(1L, now - started);
+                int removed = job.removed - removedAtStart;
+                message(job.sender, Colors.Green + "REMOVED " + job.removed + Colors.White + " protections (" + (removed * 1000L / elapsed) + " / second)");
+                lastProgress = now;
+            }
+        }
+
+        // the job is done
+        try (PreparedStatement statement = connection.prepareStatement("DELETE FROM " + prefix + "removals WHERE id = ?")) {
+            statement.setInt(1, job.id);
+            database.executeUpdate(statement);
+        }
+
+        finish(job);
+    }
+
+    /**
+     * Record a new job
+     *
+     * @param job
+     * @return the id of the job
+     */
+    private int createJob(Job job) throws SQLException {
+        PhysDB database = lwc.getPhysicalDatabase();
+
+        try (PreparedStatement statement = database.getConnection().prepareStatement("INSERT INTO " + database.getPrefix() + "removals (conditions, removeBlocks, lastId, removed, started) VALUES (?, ?, ?, ?, ?)", PreparedStatement.RETURN_GENERATED_KEYS)) {
+            statement.setString(1, job.where);
+            statement.setInt(2, job.removeBlocks ? 1 : 0);
+            statement.setInt(3, 0);
+            statement.setInt(4, 0);
+            statement.setLong(5, System.currentTimeMillis() / 1000L);
+            database.executeUpdate(statement);
+
+            try (ResultSet set = statement.getGeneratedKeys()) {
+                if (set.next()) {
+                    return set.getInt(1);
+                }
+            }
+        }
+
+        throw new SQLException("Could not record the protection removal");
+    }
+
+    /**
+     * Delete a batch of protections and record how far the job got, in one transaction
+     *
+     * @param connection
+     * @param prefix
+     * @param job
+     * @param ids
+     * @param count the amount of ids to use
+     */
+    private void deleteBatch(Connection connection, String prefix, Job job, int[] ids, int count) throws SQLException {
+        PhysDB database = lwc.getPhysicalDatabase();
+        boolean autoCommit = connection.getAutoCommit();
+        connection.setAutoCommit(false);
+
+        try {
+            if (count > 0) {
+                try (PreparedStatement protections = connection.prepareStatement("DELETE FROM " + prefix + "protections WHERE id = ?");
+                     PreparedStatement history = connection.prepareStatement("UPDATE " + prefix + "history SET status = ? WHERE protectionId = ?")) {
+                    for (int i = 0; i < count; i ++) {
+                        protections.setInt(1, ids[i]);
+                        protections.addBatch();
+
+                        history.setInt(1, History.Status.INACTIVE.ordinal());
+                        history.setInt(2, ids[i]);
+                        history.addBatch();
+                    }
+
+                    database.executeBatch(protections);
+                    database.executeBatch(history);
+                }
+            }
+
+            try (PreparedStatement statement = connection.prepareStatement("UPDATE " + prefix + "removals SET lastId = ?, removed = ? WHERE id = ?")) {
+                statement.setInt(1, job.lastId);
+                statement.setInt(2, job.removed + count);
+                statement.setInt(3, job.id);
+                database.executeUpdate(statement);
+            }
+
+            connection.commit();
+            job.removed += count;
+        } catch (SQLException e) {
+            try {
+                connection.rollback();
+            } catch (SQLException ex) {
+            }
+
+            throw e;
+        } finally {
+            try {
+                connection.setAutoCommit(autoCommit);
+            } catch (SQLException e) {
+            }
+        }
+    }
+
+    /**
+     * Remove blocks from the world on the main thread, a chunk at a time and only as many as fit in the tick budget
+     * each tick
+     *
+     * @param worlds
+     * @param xs
+     * @param ys
+     * @param zs
+     * @param count the amount of blocks to use
+     * @return completes once every block has been removed
+     */
+    private CompletableFuture<Void> removeBlocks(final String[] worlds, final int[] xs, final int[] ys, final int[] zs, final int count) {
+        final CompletableFuture<Void> future = new CompletableFuture<Void>();
+        final long[] order = new long[count];
+
+        // sort by world and chunk, keeping the index in the low bits (far apart chunks may share a key, which only
+        // interleaves them)
+        for (int i = 0; i < count; i ++) {
+            int worldId = WorldIds.intern(worlds[i]);
+            order[i] = ((long) (worldId & 0xFF) << 56) | ((long) ((xs[i] >> 4) & 0x3FFFF) << 38) | ((long) ((zs[i] >> 4) & 0x3FFFF) << 20) | i;
+        }
+
+        Arrays.sort(order);
+
+        Bukkit.getScheduler().runTask(lwc.getPlugin(), new Runnable() {
+            private int next = 0;
+
+            public void run() {
+                long deadline = System.nanoTime() + tickBudget;
+
+                try {
+                    while (next < count && System.nanoTime() < deadline) {
+                        int i = (int) (order[next ++] & 0xFFFFF);
+                        World world = Bukkit.getWorld(worlds[i]);
+
+                        if (world != null) {
+                            lwc.removeProtectedBlock(world.getBlockAt(xs[i], ys[i], zs[i]));
+                        }
+                    }
+                } catch (RuntimeException e) {
+                    future.completeExceptionally(e);
+                    return;
+                }
+
+                if (next < count) {
+                    Bukkit.getScheduler().runTask(lwc.getPlugin(), this);
+                } else {
+                    future.complete(null);
+                }
+            }
+        });
+
+        return future;
+    }
+
+    /**
+     * Drop protections that are about to be removed from the cache on the main thread
+     *
+     * @param ids
+     * @return completes once they have been dropped
+     */
+    private CompletableFuture<Void> removeCached(final int[] ids) {
+        final CompletableFuture<Void> future = new CompletableFuture<Void>();
+
+        runSync(new Runnable() {
+            public void run() {
+                ProtectionCache cache = lwc.getProtectionCache();
+
+                try {
+                    for (int id : ids) {
+                        Protection protection = cache.getProtectionById(id);
+
+                        if (protection != null) {
+                            protection.removeCache();
+                        }
+                    }
+                } catch (RuntimeException e) {
+                    future.completeExceptionally(e);
+                    return;
+                }
+
+                future.complete(null);
+            }
+        });
+
+        return future;
+    }
+
+    /**
+     * Lower the protection count on the main thread once protections were deleted
+     *
+     * @param count
+     */
+    private void decrementProtectionCount(final int count) {
+        runSync(new Runnable() {
+            public void run() {
+                lwc.getPhysicalDatabase().decrementProtectionCount(count);
+            }
+        });
+    }
+
+    /**
+     * Complete a job on the main thread
+     *
+     * @param job
+     */
+    private void finish(final Job job) {
+        runSync(new Runnable() {
+            public void run() {
+                // the owners of the removed protections aren't known
+                lwc.getProtectionCountCache().clear();
+                job.future.complete(job.removed);
+            }
+        });
+    }
+
+    /**
+     * Send a message on the main thread
+     *
+     * @param sender
+     * @param message
+     */
+    private void message(final CommandSender sender, final String message) {
+        runSync(new Runnable() {
+            public void run() {
+                sender.sendMessage(message);
+            }
+        });
+    }
+
+    /**
+     * Run a task on the main thread
+     *
+     * @param task
+     */
+    private void runSync(Runnable task) {
+        if (lwc.getPlugin().isEnabled()) {
+            Bukkit.getScheduler().runTask(lwc.getPlugin(), task);
+        }
+    }
+
+}
@@ -28,11 +28,15 @@
 
 package com.griefcraft.util;
 
+import com.griefcraft.cache.HopperDecisionCache;
+import com.griefcraft.cache.RedstoneDecisionCache;
 import com.griefcraft.cache.MethodCounter;
 import com.griefcraft.cache.ProtectionCache;
 import com.griefcraft.lwc.LWC;
 import com.griefcraft.lwc.LWCInfo;
 import com.griefcraft.scripting.MetaData;
+import com.griefcraft.scripting.ModuleProfiler;
+import com.griefcraft.sql.ConnectionPool;
 import com.griefcraft.sql.Database;
 import org.bukkit.Bukkit;
 import org.bukkit.World;
@@ -127,10 +131,40 @@ public class Statistics {
         }
         sender.sendMessage(" ");
 
+        ModuleProfiler profiler = lwc.getModuleLoader().getProfiler();
+
+        if (profiler.isEnabled()) {
+            sender.sendMessage(Colors.Red + " ==== Module Profile ====");
+            sendModuleProfile(sender, profiler, 10);
+            sender.sendMessage(" ");
+        }
+
         sender.sendMessage(Colors.Red + " ==== Database ====");
         sender.sendMessage("  Engine: " + Colors.Green + Database.DefaultType);
         sender.sendMessage("  Protections: " + Colors.Green + formatNumber(lwc.getPhysicalDatabase().getProtectionCount()));
         sender.sendMessage("  Queries: " + Colors.Green + formatNumber(queries) + " | " + String.format("%.2f", getAverage(queries)) + " / second");
+
+        DatabaseThread databaseThread = lwc.getDatabaseThread();
+
+        if (databaseThread != null) {
+            sender.sendMessage("  Update queue: " + Colors.Green + formatNumber(databaseThread.size()) + Colors.White + " (" + formatNumber(databaseThread.getWritten()) + " written in " + formatNumber(databaseThread.getBatches()) + " batches, " + formatNumber(databaseThread.getCoalesced()) + " coalesced)");
+        }
+
+        ConnectionPool pool = lwc.getPhysicalDatabase().getConnectionPool();
+
+        if (pool != null) {
+            sender.sendMessage("  Connection pool: " + Colors.Green + pool.getSize() + "/" + pool.getMaxSize() + Colors.White + " (" + pool.getIdle() + " idle, " + formatNumber(pool.getCreated()) + " opened)");
+        }
+
+        Database database = lwc.getPhysicalDatabase();
+
+        if (database.isWriteAheadLogging()) {
+            sender.sendMessage("  WAL: " + Colors.Green + formatNumber(database.getWriteAheadLogSize() / 1024) + " KB" + Colors.White + " (" + formatNumber(database.getCheckpoints()) + " checkpoints)");
+
+            if (database.getLastCheckpoint() > 0) {
+                sender.sendMessage("  Last checkpoint: " + Colors.Green + TimeUtil.timeToString((System.currentTimeMillis() - database.getLastCheckpoint()) / 1000L) + " ago" + Colors.White + " (" + database.getLastCheckpointedFrames() + "/" + database.getLastCheckpointFrames() + " frames in " + String.format("%.2f", database.getLastCheckpointTime() / 1000000D) + " ms)");
+            }
+        }
         sender.sendMessage(" ");
 
         sender.sendMessage(Colors.Red + " ==== Cache ==== ");
@@ -149,12 +183,39 @@ public class Statistics {
         }
 
         sender.sendMessage("  Usage: " + cacheColour + String.format("%.2f", cachePercentFilled) + "% " + Colors.White + " ( " + cache.size() + "/" + cache.totalCapacity() + " [" + cache.capacity() + "+" + cache.adaptiveCapacity() + "] )");
+        HopperDecisionCache hopperCache = lwc.getHopperDecisionCache();
+        sender.sendMessage("  Hopper decisions: " + Colors.Green + formatNumber(hopperCache.size()) + Colors.White + " containers (" + formatNumber(hopperCache.getHits()) + " hits, " + formatNumber(hopperCache.getMisses()) + " misses)");
+        RedstoneDecisionCache redstoneCache = lwc.getRedstoneDecisionCache();
+        sender.sendMessage("  Redstone decisions: " + Colors.Green + formatNumber(redstoneCache.size()) + Colors.White + " protections (" + formatNumber(redstoneCache.getHits()) + " hits, " + formatNumber(redstoneCache.getMisses()) + " misses)");
+        sender.sendMessage("  Protection counts: " + Colors.Green + formatNumber(lwc.getProtectionCountCache().size()) + Colors.White + " owners");
+        sender.sendMessage("  Player names: " + Colors.Green + formatNumber(lwc.getUUIDResolver().size()) + Colors.White + " cached (" + formatNumber(lwc.getUUIDResolver().getRequests()) + " lookups)");
         sender.sendMessage("  Profile: ");
         sendMethodCounter(sender, cache.getMethodCounter());
         // sender.sendMessage("  Reads: " + formatNumber(cache.getReads()) + " | " + String.format("%.2f", getAverage(cache.getReads())) + " / second");
         // sender.sendMessage("  Writes: " + formatNumber(cache.getWrites()) + " | " + String.format("%.2f", getAverage(cache.getWrites())) + " / second");
     }
 
+    /**
+     * Send the modules that spent the most time handling events
+     *
+     * @param sender
+     * @param profiler
+     * @param limit the max number of entries to send
+     */
+    public static void sendModuleProfile(CommandSender sender, ModuleProfiler profiler, int limit) {
+        List<ModuleProfiler.Stats> stats = profiler.getStats();
+
+        sender.sendMessage("  Sampling: " + Colors.Green + "1/" + profiler.getSampleRate() + Colors.White + " calls" + (profiler.isRecordingAllocations() ? " (recording allocations)" : ""));
+
+        for (int i = 0; i < stats.size() && i < limit; i++) {
+            ModuleProfiler.Stats entry = stats.get(i);
+            String allocated = entry.getAllocatedBytesPerCall() >= 0 ? ", " + formatNumber(entry.getAllocatedBytesPerCall()) + " B/call" : "";
+
+            sender.sendMessage("    " + entry.getModule() + "." + entry.getEvent() + ": " + Colors.Green + String.format("%.2f", entry.getTotalNanos() / 1000000D) + " ms" + Colors.White
+                    + " (" + formatNumber(entry.getCalls()) + " calls, p50 " + formatNumber(entry.getPercentile(0.5) / 1000) + " us, p99 " + formatNumber(entry.getPercentile(0.99) / 1000) + " us" + allocated + ")");
+        }
+    }
+
     private static void sendMethodCounter(CommandSender sender, MethodCounter counter) {
         Map<String, Integer> sorted = counter.sortByValue();
 
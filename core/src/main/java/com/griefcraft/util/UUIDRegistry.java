@@ -1,40 +1,23 @@
 package com.griefcraft.util;
 
+import com.griefcraft.lwc.LWC;
 import org.bukkit.Bukkit;
-import org.bukkit.OfflinePlayer;
 import org.bukkit.entity.Player;
 
-import java.util.Arrays;
-import java.util.HashMap;
-import java.util.Map;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
 import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
 
 public class UUIDRegistry {
 
     /**
-     * Temporal caches
+     * How long {@link #getUUID(String)} and {@link #getName(UUID)} wait for a lookup, in seconds
      */
-    private static final Map<String, PlayerInfo> nameToUUIDCache = new HashMap<String, PlayerInfo>();
-    private static final Map<UUID, PlayerInfo> UUIDToNameCache = new HashMap<UUID, PlayerInfo>();
-
-    static class PlayerInfo {
-
-        private UUID uuid;
-        private String name;
-
-        public PlayerInfo(UUID uuid, String name) {
-            this.uuid = uuid;
-            this.name = name;
-        }
-
-        public UUID getUUID() {
-            return uuid;
-        }
-
-        public String getName() {
-            return name;
-        }
-    }
+    private static final long LOOKUP_TIMEOUT = 10L;
 
     /**
      * Update the cache with a new UUID/name pair
@@ -43,9 +26,11 @@ public class UUIDRegistry {
      * @param name
      */
     public static void updateCache(UUID uuid, String name) {
-        PlayerInfo playerInfo = new PlayerInfo(uuid, name);
-        nameToUUIDCache.put(name.toLowerCase(), playerInfo);
-        UUIDToNameCache.put(uuid, playerInfo);
+        UUIDResolver resolver = getResolver();
+
+        if (resolver != null) {
+            resolver.update(uuid, name);
+        }
     }
 
     /**
@@ -59,102 +44,158 @@ public class UUIDRegistry {
     }
 
     /**
-     * Get the name for the given UUID. If it is not already known, it will be retrieved from the account servers.
+     * Get the name for the given UUID. If it is not already known, it will be retrieved from the account servers,
+     * waiting for at most {@link #LOOKUP_TIMEOUT} seconds. Use {@link #getNameAsync(UUID)} to not block.
      *
      * @param uuid
      * @return
      */
     public static String getName(UUID uuid) {
-        if (uuid == null) {
-            return null;
+        return await(getNameAsync(uuid));
+    }
+
+    /**
+     * Get the name for the given UUID without blocking. If it is not already known, it will be retrieved from the
+     * account servers.
+     *
+     * @param uuid
+     * @return completes with the name, or null if it is unknown. It may complete on any thread.
+     */
+    public static CompletableFuture<String> getNameAsync(UUID uuid) {
+        UUIDResolver resolver = getResolver();
+
+        if (uuid == null || resolver == null) {
+            return CompletableFuture.completedFuture(null);
         }
 
-        if (UUIDToNameCache.containsKey(uuid)) {
-            return UUIDToNameCache.get(uuid).getName();
+        return resolver.resolveName(uuid);
+    }
+
+    /**
+     * Get the UUID for the given name. If it is not already known, it will be retrieved from the account servers,
+     * waiting for at most {@link #LOOKUP_TIMEOUT} seconds. Use {@link #getUUIDAsync(String)} or
+     * {@link #whenResolved(Collection, Runnable)} to not block.
+     *
+     * @param name
+     * @return
+     */
+    public static UUID getUUID(String name) {
+        return await(getUUIDAsync(name));
+    }
+
+    /**
+     * Get the UUID for the given name without blocking. If it is not already known, it will be retrieved from the
+     * account servers.
+     *
+     * @param name
+     * @return completes with the UUID, or null if it is unknown. It may complete on any thread.
+     */
+    public static CompletableFuture<UUID> getUUIDAsync(String name) {
+        if (isValidUUID(name)) {
+            return CompletableFuture.completedFuture(UUID.fromString(name));
         }
 
-        // First way: if they're on the server already
-        Player player = Bukkit.getPlayer(uuid);
+        UUIDResolver resolver = getResolver();
 
-        if (player != null) {
-            updateCache(uuid, player.getName());
-            return player.getName();
+        if (resolver == null) {
+            return CompletableFuture.completedFuture(null);
         }
 
-        // Second way: if they have been on the server before
-        OfflinePlayer offlinePlayer = Bukkit.getOfflinePlayer(uuid);
+        UUIDResolver.CachedPlayer cached = resolver.getCached(name);
 
-        if (offlinePlayer != null && offlinePlayer.getName() != null) {
-            updateCache(uuid, offlinePlayer.getName());
-            return offlinePlayer.getName();
+        if (cached != null) {
+            return CompletableFuture.completedFuture(cached.getUUID());
         }
 
-        // Third way: use the web API
-        try {
-            Map<UUID, String> results = new NameFetcher(Arrays.asList(uuid)).call();
+        // online players are always known
+        Player player = Bukkit.getPlayerExact(name);
 
-            if (results.containsKey(uuid)) {
-                return results.get(uuid);
-            } else {
-                return null;
-            }
-        } catch (Exception e) {
-            return null;
+        if (player != null) {
+            resolver.update(player.getUniqueId(), player.getName());
+            return CompletableFuture.completedFuture(player.getUniqueId());
         }
+
+        return resolver.resolveUUID(name);
     }
 
     /**
-     * Get the UUID for the given name. If it is not already known, it will be retrieved from the account servers.
+     * Resolve the given names and then run the task on the server thread. The task runs right away if every name is
+     * already known, so {@link #getUUID(String)} does not have to wait for the account servers inside of it.
      *
-     * @param name
-     * @return
-     * @throws Exception
+     * @param names player names; UUIDs are skipped
+     * @param task
      */
-    public static UUID getUUID(String name) {
-        String nameLower = name.toLowerCase();
-
-        try {
-            if (nameToUUIDCache.containsKey(nameLower)) {
-                return nameToUUIDCache.get(nameLower).getUUID();
-            }
+    public static void whenResolved(Collection<String> names, final Runnable task) {
+        UUIDResolver resolver = getResolver();
+        List<CompletableFuture<UUID>> pending = new ArrayList<CompletableFuture<UUID>>();
+
+        if (resolver != null) {
+            for (String name : names) {
+                if (name == null || name.isEmpty() || isResolved(name)) {
+                    continue;
+                }
 
-            if (isValidUUID(name)) {
-                return UUID.fromString(name);
+                pending.add(resolver.resolveUUID(name));
             }
+        }
 
-            if (Bukkit.getOnlineMode()) {
-                Map<String, UUID> results = new UUIDFetcher(Arrays.asList(nameLower)).call();
-
-                // The returned name is the exact casing; so we need to look for it
-                // in the case-insensitive version
-                for (String key : results.keySet()) {
-                    if (key.equalsIgnoreCase(name)) {
-                        UUID uuid = results.get(key);
-                        updateCache(uuid, key);
-                        return uuid;
-                    }
-                }
-            } else {
-                OfflinePlayer offlinePlayer = Bukkit.getOfflinePlayer(name);
+        if (pending.isEmpty()) {
+            task.run();
+            return;
+        }
 
-                if (offlinePlayer != null && offlinePlayer.getUniqueId() != null) {
-                    if (offlinePlayer.getName() != null) {
-                        name = offlinePlayer.getName();
-                    }
+        CompletableFuture.allOf(pending.toArray(new CompletableFuture[pending.size()])).whenComplete(new BiConsumer<Void, Throwable>() {
+            public void accept(Void result, Throwable throwable) {
+                LWC lwc = LWC.getInstance();
 
-                    updateCache(offlinePlayer.getUniqueId(), name);
-                    return offlinePlayer.getUniqueId();
+                if (lwc != null && lwc.getPlugin().isEnabled()) {
+                    Bukkit.getScheduler().runTask(lwc.getPlugin(), task);
                 }
             }
+        });
+    }
+
+    /**
+     * Check if the UUID of a name is known, so {@link #getUUID(String)} returns it right away even on the server thread
+     *
+     * @param name
+     * @return true if the name is a UUID, the player is online or the name was resolved (even if the player does not
+     *         exist)
+     */
+    public static boolean isResolved(String name) {
+        if (isValidUUID(name) || Bukkit.getPlayerExact(name) != null) {
+            return true;
+        }
+
+        UUIDResolver resolver = getResolver();
+        return resolver != null && resolver.getCached(name) != null;
+    }
 
-            nameToUUIDCache.put(nameLower, null);
+    /**
+     * Wait for a lookup for at most {@link #LOOKUP_TIMEOUT} seconds
+     *
+     * @param future
+     * @return the result, or null if the lookup timed out
+     */
+    private static <T> T await(CompletableFuture<T> future) {
+        try {
+            return future.get(LOOKUP_TIMEOUT, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
             return null;
         } catch (Exception e) {
-            nameToUUIDCache.put(nameLower, null);
             return null;
         }
     }
 
+    /**
+     * @return the resolver, or null if LWC is not loaded
+     */
+    private static UUIDResolver getResolver() {
+        LWC lwc = LWC.getInstance();
+        return lwc != null ? lwc.getUUIDResolver() : null;
+    }
+
     /**
      * Attempts to format a player's name, which can be a name or a UUID. If the owner is a UUID and then
      * UUID is unknown, then "Unknown (uuid)" will be returned.
@@ -0,0 +1,534 @@
+/*
+ * Copyright 2011 Tyler Blair. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are
+ * permitted provided that the following conditions are met:
+ *
+ *    1. Redistributions of source code must retain the above copyright notice, this list of
+ *       conditions and the following disclaimer.
+ *
+ *    2. Redistributions in binary form must reproduce the above copyright notice, this list
+ *       of conditions and the following disclaimer in the documentation and/or other materials
+ *       provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ''AS IS'' AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND
+ * FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE AUTHOR OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * The views and conclusions contained in the software and documentation are those of the
+ * authors and contributors and should not be interpreted as representing official policies,
+ * either expressed or implied, of anybody else.
+ */
+
+package com.griefcraft.util;
+
+import com.griefcraft.cache.ConcurrentLRUCache;
+import com.griefcraft.lwc.LWC;
+import com.griefcraft.sql.PooledConnection;
+import com.griefcraft.util.config.Configuration;
+import org.bukkit.Bukkit;
+import org.bukkit.OfflinePlayer;
+import org.bukkit.entity.Player;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Resolves player names to UUIDs and back without blocking the server. Lookups for the same player share one request
+ * and names are sent to the profile API in batches of up to 100. Results are kept in a bounded cache, including
+ * players that do not exist for a shorter time, and are stored in the database so the cache stays warm across
+ * restarts.
+ */
+public class UUIDResolver {
+
+    /**
+     * The max amount of names sent to the profile API at once
+     */
+    private static final int BATCH_SIZE = 100;
+
+    /**
+     * How long to wait for more names before sending a batch, in milliseconds
+     */
+    private static final long BATCH_DELAY = 50L;
+
+    /**
+     * The LWC instance
+     */
+    private final LWC lwc;
+
+    /**
+     * The API that resolves names to UUIDs (see {@link UUIDFetcher})
+     */
+    private final String profileUrl;
+
+    /**
+     * The API that resolves a UUID to a name (see {@link NameFetcher})
+     */
+    private final String nameUrl;
+
+    /**
+     * How long a resolved player is cached, and how long a player that does not exist is, in milliseconds
+     */
+    private final long ttl;
+    private final long negativeTtl;
+
+    /**
+     * Cached players by their lower case name and by their UUID
+     */
+    private final ConcurrentLRUCache<String, CachedPlayer> byName;
+    private final ConcurrentLRUCache<UUID, CachedPlayer> byUUID;
+
+    /**
+     * Lookups in progress, by lower case name and by UUID
+     */
+    private final Map<String, CompletableFuture<UUID>> pendingNames = new ConcurrentHashMap<String, CompletableFuture<UUID>>();
+    private final Map<UUID, CompletableFuture<String>> pendingUUIDs = new ConcurrentHashMap<UUID, CompletableFuture<String>>();
+
+    /**
+     * Lower case names waiting to be sent to the profile API
+     */
+    private final Queue<String> queuedNames = new ConcurrentLinkedQueue<String>();
+
+    /**
+     * If a batch is scheduled to be sent
+     */
+    private final AtomicBoolean batchScheduled = new AtomicBoolean(false);
+
+    /**
+     * The number of requests made to the APIs
+     */
+    private volatile long requests = 0;
+
+    /**
+     * Runs the web requests and stores the results in the database
+     */
+    private final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "LWC UUID Resolver");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    public UUIDResolver(LWC lwc) {
+        Configuration configuration = lwc.getConfiguration();
+        this.lwc = lwc;
+        this.profileUrl = configuration.getString("core.uuidCache.profileUrl", UUIDFetcher.PROFILE_URL);
+        this.nameUrl = configuration.getString("core.uuidCache.nameUrl", NameFetcher.PROFILE_URL);
+        this.ttl = configuration.getInt("core.uuidCache.ttl", 86400) * 1000L;
+        this.negativeTtl = configuration.getInt("core.uuidCache.negativeTtl", 3600) * 1000L;
+
+        int size = configuration.getInt("core.uuidCache.size", 10000);
+        this.byName = new ConcurrentLRUCache<String, CachedPlayer>(size);
+        this.byUUID = new ConcurrentLRUCache<UUID, CachedPlayer>(size);
+    }
+
+    /**
+     * A cached player. Either the UUID or the name is null if the player does not exist.
+     */
+    public static class CachedPlayer {
+
+        private final UUID uuid;
+        private final String name;
+        private final long expires;
+
+        public CachedPlayer(UUID uuid, String name, long expires) {
+            this.uuid = uuid;
+            this.name = name;
+            this.expires = expires;
+        }
+
+        public UUID getUUID() {
+            return uuid;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public long getExpires() {
+            return expires;
+        }
+
+    }
+
+    /**
+     * Get a cached player by their name
+     *
+     * @param name
+     * @return the player, or null if the name is not cached. If the player does not exist the UUID is null.
+     */
+    public CachedPlayer getCached(String name) {
+        String key = name.toLowerCase();
+        CachedPlayer cached = byName.get(key);
+
+        if (cached != null && cached.getExpires() < System.currentTimeMillis()) {
+            byName.remove(key);
+            return null;
+        }
+
+        return cached;
+    }
+
+    /**
+     * Get a cached player by their UUID
+     *
+     * @param uuid
+     * @return the player, or null if the UUID is not cached. If the player does not exist the name is null.
+     */
+    public CachedPlayer getCached(UUID uuid) {
+        CachedPlayer cached = byUUID.get(uuid);
+
+        if (cached != null && cached.getExpires() < System.currentTimeMillis()) {
+            byUUID.remove(uuid);
+            return null;
+        }
+
+        return cached;
+    }
+
+    /**
+     * Cache a name and UUID that are known to belong together, e.g. of a player that joined
+     *
+     * @param uuid
+     * @param name
+     */
+    public void update(UUID uuid, String name) {
+        CachedPlayer previous = getCached(uuid);
+        cache(uuid, name, System.currentTimeMillis() + ttl);
+
+        // only store it again if something changed or it is about to expire
+        if (previous == null || !name.equals(previous.getName()) || previous.getExpires() - System.currentTimeMillis() < ttl / 2) {
+            store(name, uuid);
+        }
+    }
+
+    /**
+     * Resolve the UUID of a player
+     *
+     * @param name
+     * @return completes (on any thread) with the UUID, or null if the player does not exist or could not be looked up
+     */
+    public CompletableFuture<UUID> resolveUUID(final String name) {
+        CachedPlayer cached = getCached(name);
+
+        if (cached != null) {
+            return CompletableFuture.completedFuture(cached.getUUID());
+        }
+
+        String key = name.toLowerCase();
+        CompletableFuture<UUID> future = new CompletableFuture<UUID>();
+        CompletableFuture<UUID> existing = pendingNames.putIfAbsent(key, future);
+
+        if (existing != null) {
+            return existing;
+        }
+
+        if (Bukkit.getOnlineMode()) {
+            queuedNames.offer(key);
+
+            if (batchScheduled.compareAndSet(false, true)) {
+                execute(new Runnable() {
+                    public void run() {
+                        sendBatches();
+                    }
+                }, BATCH_DELAY);
+            }
+        } else {
+            execute(new Runnable() {
+                public void run() {
+                    OfflinePlayer offlinePlayer = Bukkit.getOfflinePlayer(name);
+
+                    if (offlinePlayer != null && offlinePlayer.getUniqueId() != null) {
+                        String exactName = offlinePlayer.getName() != null ? offlinePlayer.getName() : name;
+                        resolved(name.toLowerCase(), offlinePlayer.getUniqueId(), exactName);
+                    } else {
+                        resolved(name.toLowerCase(), null, null);
+                    }
+                }
+            }, 0);
+        }
+
+        return future;
+    }
+
+    /**
+     * Resolve the name of a player
+     *
+     * @param uuid
+     * @return completes (on any thread) with the name, or null if the player does not exist or could not be looked up
+     */
+    public CompletableFuture<String> resolveName(final UUID uuid) {
+        CachedPlayer cached = getCached(uuid);
+
+        if (cached != null) {
+            return CompletableFuture.completedFuture(cached.getName());
+        }
+
+        // players that have been on the server are known locally
+        Player player = Bukkit.getPlayer(uuid);
+        String localName = player != null ? player.getName() : Bukkit.getOfflinePlayer(uuid).getName();
+
+        if (localName != null) {
+            update(uuid, localName);
+            return CompletableFuture.completedFuture(localName);
+        }
+
+        CompletableFuture<String> future = new CompletableFuture<String>();
+        CompletableFuture<String> existing = pendingUUIDs.putIfAbsent(uuid, future);
+
+        if (existing != null) {
+            return existing;
+        }
+
+        execute(new Runnable() {
+            public void run() {
+                String name = null;
+                boolean found = false;
+
+                try {
+                    requests++;
+                    name = new NameFetcher(Collections.singletonList(uuid), nameUrl).call().get(uuid);
+                    found = true;
+                } catch (Exception e) {
+                    // not cached, so it is tried again next time
+                }
+
+                if (name != null) {
+                    cache(uuid, name, System.currentTimeMillis() + ttl);
+                    store(name, uuid);
+                } else if (found) {
+                    byUUID.put(uuid, new CachedPlayer(uuid, null, System.currentTimeMillis() + negativeTtl));
+                }
+
+                CompletableFuture<String> pending = pendingUUIDs.remove(uuid);
+
+                if (pending != null) {
+                    pending.complete(name);
+                }
+            }
+        }, 0);
+
+        return future;
+    }
+
+    /**
+     * Warm the cache with the players stored in the database
+     */
+    public void load() {
+        execute(new Runnable() {
+            public void run() {
+                long now = System.currentTimeMillis();
+                List<CachedPlayer> players;
+
+                try (PooledConnection ignored = lwc.getPhysicalDatabase().borrowConnection()) {
+                    players = lwc.getPhysicalDatabase().loadPlayerNames((now - ttl) / 1000L, (now - negativeTtl) / 1000L, byName.getMaxCapacity());
+                } catch (Exception e) {
+                    return;
+                }
+
+                for (CachedPlayer player : players) {
+                    // stored with the time they were resolved, which is turned into when they expire
+                    long resolved = player.getExpires() * 1000L;
+
+                    if (player.getUUID() == null) {
+                        byName.put(player.getName().toLowerCase(), new CachedPlayer(null, player.getName(), resolved + negativeTtl));
+                    } else if (byName.get(player.getName().toLowerCase()) == null) {
+                        cache(player.getUUID(), player.getName(), resolved + ttl);
+                    }
+                }
+            }
+        }, 0);
+    }
+
+    /**
+     * Stop resolving players. Lookups that have not finished yet complete with null.
+     */
+    public void stop() {
+        executor.shutdownNow();
+        completePending();
+    }
+
+    /**
+     * @return the amount of cached players
+     */
+    public int size() {
+        return byName.size();
+    }
+
+    /**
+     * @return the amount of requests made to the APIs
+     */
+    public long getRequests() {
+        return requests;
+    }
+
+    /**
+     * Send the queued names to the profile API, up to {@link #BATCH_SIZE} at a time
+     */
+    private void sendBatches() {
+        batchScheduled.set(false);
+        boolean first = true;
+
+        while (!queuedNames.isEmpty()) {
+            // the same rate limiting the fetcher uses between its own requests
+            if (!first) {
+                try {
+                    Thread.sleep(100L);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+
+            first = false;
+            List<String> names = new ArrayList<String>(BATCH_SIZE);
+            String name;
+
+            while (names.size() < BATCH_SIZE && (name = queuedNames.poll()) != null) {
+                names.add(name);
+            }
+
+            Map<String, UUID> results;
+
+            try {
+                requests++;
+                results = new UUIDFetcher(names, false, profileUrl).call();
+            } catch (Exception e) {
+                // not cached, so they are tried again next time
+                for (String failed : names) {
+                    CompletableFuture<UUID> pending = pendingNames.remove(failed);
+
+                    if (pending != null) {
+                        pending.complete(null);
+                    }
+                }
+
+                continue;
+            }
+
+            // the returned names have the exact casing
+            for (Map.Entry<String, UUID> result : results.entrySet()) {
+                names.remove(result.getKey().toLowerCase());
+                resolved(result.getKey().toLowerCase(), result.getValue(), result.getKey());
+            }
+
+            for (String missing : names) {
+                resolved(missing, null, missing);
+            }
+        }
+    }
+
+    /**
+     * Cache and store the result of a name lookup and complete it
+     *
+     * @param key the lower case name
+     * @param uuid the UUID, or null if the player does not exist
+     * @param name the name with its exact casing
+     */
+    private void resolved(String key, UUID uuid, String name) {
+        if (uuid != null) {
+            cache(uuid, name, System.currentTimeMillis() + ttl);
+        } else {
+            byName.put(key, new CachedPlayer(null, name, System.currentTimeMillis() + negativeTtl));
+        }
+
+        if (name != null) {
+            store(name, uuid);
+        }
+
+        CompletableFuture<UUID> pending = pendingNames.remove(key);
+
+        if (pending != null) {
+            pending.complete(uuid);
+        }
+    }
+
+    /**
+     * Cache a player by both their name and UUID
+     *
+     * @param uuid
+     * @param name
+     * @param expires
+     */
+    private void cache(UUID uuid, String name, long expires) {
+        CachedPlayer player = new CachedPlayer(uuid, name, expires);
+        byName.put(name.toLowerCase(), player);
+        byUUID.put(uuid, player);
+    }
+
+    /**
+     * Store a player in the database
+     *
+     * @param name
+     * @param uuid the UUID, or null if the player does not exist
+     */
+    private void store(final String name, final UUID uuid) {
+        execute(new Runnable() {
+            public void run() {
+                try (PooledConnection ignored = lwc.getPhysicalDatabase().borrowConnection()) {
+                    lwc.getPhysicalDatabase().savePlayerName(name, uuid);
+                } catch (Exception e) {
+                    // only a cache
+                }
+            }
+        }, 0);
+    }
+
+    /**
+     * Complete every lookup that is in progress with null, so nothing waits for lookups that will never finish
+     */
+    private void completePending() {
+        for (String key : new ArrayList<String>(pendingNames.keySet())) {
+            CompletableFuture<UUID> pending = pendingNames.remove(key);
+
+            if (pending != null) {
+                pending.complete(null);
+            }
+        }
+
+        for (UUID uuid : new ArrayList<UUID>(pendingUUIDs.keySet())) {
+            CompletableFuture<String> pending = pendingUUIDs.remove(uuid);
+
+            if (pending != null) {
+                pending.complete(null);
+            }
+        }
+
+        queuedNames.clear();
+    }
+
+    /**
+     * Run a task on the resolver thread
+     *
+     * @param task
+     * @param delay in milliseconds
+     */
+    private void execute(Runnable task, long delay) {
+        try {
+            executor.schedule(task, delay, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            // stopped, LWC is being disabled: nothing will complete the lookups
+            completePending();
+        }
+    }
+
+}
@@ -0,0 +1,389 @@
+/*
+ * Copyright 2011 Tyler Blair. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are
+ * permitted provided that the following conditions are met:
+ *
+ *    1. Redistributions of source code must retain the above copyright notice, this list of
+ *       conditions and the following disclaimer.
+ *
+ *    2. Redistributions in binary form must reproduce the above copyright notice, this list
+ *       of conditions and the following disclaimer in the documentation and/or other materials
+ *       provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ''AS IS'' AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND
+ * FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE AUTHOR OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * The views and conclusions contained in the software and documentation are those of the
+ * authors and contributors and should not be interpreted as representing official policies,
+ * either expressed or implied, of anybody else.
+ */
+
+package com.griefcraft.util.config;
+
+import com.griefcraft.lwc.LWC;
+import org.bukkit.Material;
+import org.bukkit.entity.EntityType;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The protection configuration of a block or entity type (protections.blocks.name.node and
+ * protections.entities.name.node), resolved once when the configuration is loaded so event handlers can read it
+ * without building any config paths.
+ */
+public final class ResolvedBlockConfig {
+
+    /**
+     * The configuration of something that can't be configured, e.g. an unknown entity. Nothing is set.
+     */
+    public static final ResolvedBlockConfig NONE = new ResolvedBlockConfig(Collections.<String, String>emptyMap());
+
+    /**
+     * Every node set for this type, including the defaults from protections.node
+     */
+    private final Map<String, String> values;
+
+    /**
+     * The configuration for each block data value, for blocks configured per data value (e.g. 54:2), otherwise null
+     */
+    private ResolvedBlockConfig[] byData;
+
+    private final boolean enabled;
+    private final String autoRegister;
+    private final boolean denyHoppers;
+    private final boolean ignoreExplosions;
+    private final boolean ignoreBlockDestruction;
+    private final boolean ignoreLeftClick;
+    private final boolean ignoreRightClick;
+    private final boolean quiet;
+    private final boolean readonlyModify;
+    private final boolean readonlyRemove;
+    private final boolean allowEntityInteract;
+    private final boolean allowEntityBreakDoor;
+
+    private ResolvedBlockConfig(Map<String, String> values) {
+        this.values = values;
+        enabled = Boolean.parseBoolean(values.get("enabled"));
+        autoRegister = values.get("autoRegister");
+        denyHoppers = Boolean.parseBoolean(values.get("denyHoppers"));
+        ignoreExplosions = Boolean.parseBoolean(values.get("ignoreExplosions"));
+        ignoreBlockDestruction = Boolean.parseBoolean(values.get("ignoreBlockDestruction"));
+        ignoreLeftClick = Boolean.parseBoolean(values.get("ignoreLeftClick"));
+        ignoreRightClick = Boolean.parseBoolean(values.get("ignoreRightClick"));
+        quiet = Boolean.parseBoolean(values.get("quiet"));
+        readonlyModify = Boolean.parseBoolean(values.get("readonly-modify"));
+        readonlyRemove = Boolean.parseBoolean(values.get("readonly-remove"));
+        allowEntityInteract = Boolean.parseBoolean(values.get("allowEntityInteract"));
+        allowEntityBreakDoor = Boolean.parseBoolean(values.get("allowEntityBreakDoor"));
+    }
+
+    /**
+     * Get the value of a node
+     *
+     * @param node
+     * @return the value, or null if the node isn't set for this type nor in protections.node
+     */
+    public String get(String node) {
+        return values.get(node);
+    }
+
+    /**
+     * Get the configuration for a block data value
+     *
+     * @param data
+     * @return
+     */
+    public ResolvedBlockConfig forData(int data) {
+        if (byData == null || data < 0 || data >= byData.length) {
+            return this;
+        }
+
+        return byData[data];
+    }
+
+    /**
+     * @return true if the configuration differs between block data values
+     */
+    public boolean isDataSensitive() {
+        return byData != null;
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    public String getAutoRegister() {
+        return autoRegister;
+    }
+
+    public boolean isDenyHoppers() {
+        return denyHoppers;
+    }
+
+    public boolean isIgnoreExplosions() {
+        return ignoreExplosions;
+    }
+
+    public boolean isIgnoreBlockDestruction() {
+        return ignoreBlockDestruction;
+    }
+
+    public boolean isIgnoreLeftClick() {
+        return ignoreLeftClick;
+    }
+
+    public boolean isIgnoreRightClick() {
+        return ignoreRightClick;
+    }
+
+    public boolean isQuiet() {
+        return quiet;
+    }
+
+    public boolean isReadonlyModify() {
+        return readonlyModify;
+    }
+
+    public boolean isReadonlyRemove() {
+        return readonlyRemove;
+    }
+
+    public boolean isAllowEntityInteract() {
+        return allowEntityInteract;
+    }
+
+    public boolean isAllowEntityBreakDoor() {
+        return allowEntityBreakDoor;
+    }
+
+    /**
+     * Resolve the configuration of every material
+     *
+     * @param configuration
+     * @return
+     */
+    public static Map<Material, ResolvedBlockConfig> compileBlocks(ConfigurationNode configuration) {
+        Compiler compiler = new Compiler(configuration, "protections.blocks.");
+        Map<Material, ResolvedBlockConfig> blocks = new EnumMap<Material, ResolvedBlockConfig>(Material.class);
+
+        // the names that are configured per data value, e.g. chest:2 -> chest
+        Set<String> dataNames = new HashSet<String>();
+
+        for (String name : compiler.names) {
+            int index = name.indexOf(':');
+
+            if (index > 0 && !name.endsWith(":*")) {
+                dataNames.add(name.substring(0, index));
+            }
+        }
+
+        for (Material material : Material.values()) {
+            String materialName = LWC.normalizeMaterialName(material);
+            String id = null;
+
+            try {
+                id = Integer.toString(material.getId());
+            } catch (IllegalArgumentException e) {
+                // modern materials don't have an id
+            }
+
+            ResolvedBlockConfig config = compiler.resolve(blockNames(material, materialName, id, -1));
+
+            if (dataNames.contains(materialName) || (id != null && dataNames.contains(id))) {
+                // a new instance, shared ones can't be given per-data configurations
+                config = new ResolvedBlockConfig(config.values);
+                config.byData = new ResolvedBlockConfig[16];
+
+                for (int data = 0; data < config.byData.length; data++) {
+                    config.byData[data] = compiler.resolve(blockNames(material, materialName, id, data));
+                }
+            }
+
+            blocks.put(material, config);
+        }
+
+        return blocks;
+    }
+
+    /**
+     * Resolve the configuration of every entity type
+     *
+     * @param configuration
+     * @return
+     */
+    @SuppressWarnings("deprecation")
+    public static Map<EntityType, ResolvedBlockConfig> compileEntities(ConfigurationNode configuration) {
+        Compiler compiler = new Compiler(configuration, "protections.entities.");
+        Map<EntityType, ResolvedBlockConfig> entities = new EnumMap<EntityType, ResolvedBlockConfig>(EntityType.class);
+
+        for (EntityType type : EntityType.values()) {
+            List<String> names = new ArrayList<String>();
+            names.add(type.toString().toLowerCase());
+            names.add(type.getTypeId() + "");
+
+            // Add the wildcards last so it can be overriden
+            names.add("*");
+
+            entities.put(type, compiler.resolve(names));
+        }
+
+        return entities;
+    }
+
+    /**
+     * Get the names a block may be configured under, in the order they are applied
+     *
+     * @param material
+     * @param materialName the normalized name of the material
+     * @param id the legacy id of the material, or null if it has none
+     * @param data the block data value, or -1 to ignore data values
+     * @return
+     */
+    private static List<String> blockNames(Material material, String materialName, String id, int data) {
+        List<String> names = new ArrayList<String>();
+
+        // add the name & the block id
+        names.add(materialName);
+
+        if (id != null) {
+            names.add(id);
+        }
+
+        if (data >= 0) {
+            if (id != null) {
+                names.add(id + ":" + data);
+            }
+
+            names.add(materialName + ":" + data);
+        }
+
+        if (!materialName.equals(material.toString().toLowerCase())) {
+            names.add(material.toString().toLowerCase());
+        }
+
+        // Add the wildcards last so it can be overriden
+        names.add("*");
+
+        if (id != null) {
+            names.add(id + ":*");
+        }
+
+        if (materialName.contains("_")) { // Prefix wildcarding for shulker boxes & gates
+            names.add("*_" + materialName.substring(materialName.indexOf("_") + 1));
+        }
+
+        return names;
+    }
+
+    /**
+     * Resolves the configuration of the names configured under a node, sharing the result between types that
+     * match the same names
+     */
+    private static final class Compiler {
+
+        private final ConfigurationNode configuration;
+        private final String path;
+
+        /**
+         * The configured names
+         */
+        private final Set<String> names = new HashSet<String>();
+
+        /**
+         * The nodes that may be set
+         */
+        private final Set<String> nodes = new HashSet<String>();
+
+        /**
+         * Resolved configurations by the configured names they matched
+         */
+        private final Map<List<String>, ResolvedBlockConfig> resolved = new HashMap<List<String>, ResolvedBlockConfig>();
+
+        Compiler(ConfigurationNode configuration, String path) {
+            this.configuration = configuration;
+            this.path = path;
+
+            // keys such as 54 are read as numbers, so the raw maps are used
+            Object configured = configuration.getProperty(path.substring(0, path.length() - 1));
+
+            if (configured instanceof Map) {
+                for (Map.Entry<?, ?> entry : ((Map<?, ?>) configured).entrySet()) {
+                    names.add(String.valueOf(entry.getKey()));
+
+                    if (entry.getValue() instanceof Map) {
+                        for (Object node : ((Map<?, ?>) entry.getValue()).keySet()) {
+                            nodes.add(String.valueOf(node));
+                        }
+                    }
+                }
+            }
+
+            // the defaults in protections.node
+            Object defaults = configuration.getProperty("protections");
+
+            if (defaults instanceof Map) {
+                for (Map.Entry<?, ?> entry : ((Map<?, ?>) defaults).entrySet()) {
+                    if (!(entry.getValue() instanceof Map)) {
+                        nodes.add(String.valueOf(entry.getKey()));
+                    }
+                }
+            }
+        }
+
+        ResolvedBlockConfig resolve(List<String> candidates) {
+            List<String> matched = new ArrayList<String>();
+
+            for (String name : candidates) {
+                if (names.contains(name)) {
+                    matched.add(name);
+                }
+            }
+
+            ResolvedBlockConfig config = resolved.get(matched);
+
+            if (config != null) {
+                return config;
+            }
+
+            Map<String, String> values = new HashMap<String, String>();
+
+            for (String node : nodes) {
+                String value = configuration.getString("protections." + node);
+
+                // look for this specific item's setting
+                for (String name : matched) {
+                    String temp = configuration.getString(path + name + "." + node);
+
+                    if (temp != null && !temp.isEmpty()) {
+                        value = temp;
+                    }
+                }
+
+                if (value != null) {
+                    values.put(node, value);
+                }
+            }
+
+            config = new ResolvedBlockConfig(Collections.unmodifiableMap(values));
+            resolved.put(matched, config);
+            return config;
+        }
+
+    }
+
+}
@@ -34,7 +34,6 @@ import java.util.Set;
 import org.bukkit.Material;
 import org.bukkit.block.Block;
 import org.bukkit.block.BlockFace;
-import org.bukkit.block.BlockState;
 
 import com.griefcraft.lwc.LWC;
 import com.griefcraft.util.ProtectionFinder;
@@ -75,8 +74,8 @@ public class DoorMatcher implements ProtectionFinder.Matcher {
     };
 
     public boolean matches(ProtectionFinder finder) {
-        BlockState baseBlockState = finder.getBaseBlock();
-        Block block = baseBlockState.getBlock();
+        Block block = finder.getBase();
+        Material baseType = block.getType();
 
         // Get the block above the base block
         Block aboveBaseBlock = block.getRelative(BlockFace.UP);
@@ -85,8 +84,8 @@ public class DoorMatcher implements ProtectionFinder.Matcher {
         Block aboveAboveBaseBlock = aboveBaseBlock.getRelative(BlockFace.UP);
 
         // look for door if they're clicking a pressure plate
-        if (PRESSURE_PLATES.contains(baseBlockState.getType()) || PRESSURE_PLATES.contains(aboveBaseBlock.getType())) {
-            Block pressurePlate = PRESSURE_PLATES.contains(baseBlockState.getType()) ? block : aboveBaseBlock;
+        if (PRESSURE_PLATES.contains(baseType) || PRESSURE_PLATES.contains(aboveBaseBlock.getType())) {
+            Block pressurePlate = PRESSURE_PLATES.contains(baseType) ? block : aboveBaseBlock;
 
             for (BlockFace face : faces) {
                 Block relative = pressurePlate.getRelative(face);
@@ -102,7 +101,7 @@ public class DoorMatcher implements ProtectionFinder.Matcher {
                 // attempt to match the door
                 if (doorFinder.matchBlocks(relative)) {
                     // add the blocks it matched
-                    for (BlockState found : doorFinder.getBlocks()) {
+                    for (Block found : doorFinder.getMatchedBlocks()) {
                         finder.addBlock(found);
                     }
 
@@ -130,7 +129,7 @@ public class DoorMatcher implements ProtectionFinder.Matcher {
         }
 
         // Match the top half of the door
-        else if (DOORS.contains(baseBlockState.getType())) {
+        else if (DOORS.contains(baseType)) {
             Block bottomHalf = block.getRelative(BlockFace.DOWN);
 
             finder.addBlock(bottomHalf);
@@ -49,7 +49,7 @@ public class GravityMatcher implements ProtectionFinder.Matcher {
             Material.POWERED_RAIL, Material.DETECTOR_RAIL, Material.LEVER);
 
     public boolean matches(ProtectionFinder finder) {
-        Block block = finder.getBaseBlock().getBlock();
+        Block block = finder.getBase();
 
         // Easy to match, just try to match the block above the base block :P
         Block up = block.getRelative(BlockFace.UP);
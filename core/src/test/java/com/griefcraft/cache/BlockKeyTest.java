@@ -0,0 +1,106 @@
+/*
+ * Copyright 2011 Tyler Blair. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are
+ * permitted provided that the following conditions are met:
+ *
+ *    1. Redistributions of source code must retain the above copyright notice, this list of
+ *       conditions and the following disclaimer.
+ *
+ *    2. Redistributions in binary form must reproduce the above copyright notice, this list
+ *       of conditions and the following disclaimer in the documentation and/or other materials
+ *       provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ''AS IS'' AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND
+ * FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE AUTHOR OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * The views and conclusions contained in the software and documentation are those of the
+ * authors and contributors and should not be interpreted as representing official policies,
+ * either expressed or implied, of anybody else.
+ */
+
+package com.griefcraft.cache;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+
+public class BlockKeyTest {
+
+    @Test
+    public void packRoundTrip() {
+        int[][] positions = {
+                {0, 0, 0},
+                {1, 64, 1},
+                {-1, -1, -1},
+                {-30000000, 0, 30000000},
+                {30000000, 255, -30000000},
+                {-(1 << 25), -2047, (1 << 25) - 1},
+                {(1 << 25) - 1, 2047, -(1 << 25)},
+                {12345, -64, -54321}
+        };
+
+        for (int[] position : positions) {
+            long key = BlockKey.pack(position[0], position[1], position[2]);
+
+            assertNotEquals(BlockKey.INVALID, key);
+            assertEquals(position[0], BlockKey.getX(key));
+            assertEquals(position[1], BlockKey.getY(key));
+            assertEquals(position[2], BlockKey.getZ(key));
+        }
+    }
+
+    @Test
+    public void negativeCoordinatesDoNotCollide() {
+        long key = BlockKey.pack(-1, 64, -1);
+
+        assertNotEquals(BlockKey.pack(1, 64, 1), key);
+        assertNotEquals(BlockKey.pack(-1, 64, 1), key);
+        assertNotEquals(BlockKey.pack(1, 64, -1), key);
+        assertNotEquals(BlockKey.pack(-1, -64, -1), key);
+    }
+
+    @Test
+    public void entityHashRoundTrip() {
+        int[] hashes = {Integer.MAX_VALUE, Integer.MIN_VALUE, 1 << 25, -(1 << 25) - 1, 2048, -2048, 123456789};
+
+        for (int hash : hashes) {
+            long key = BlockKey.pack(hash, hash, hash);
+
+            assertNotEquals(BlockKey.INVALID, key);
+            assertEquals(hash, BlockKey.getX(key));
+            assertEquals(hash, BlockKey.getY(key));
+            assertEquals(hash, BlockKey.getZ(key));
+        }
+    }
+
+    @Test
+    public void entityHashesDoNotCollideWithBlocks() {
+        // the lowest y value is reserved to mark entity hashes
+        assertEquals(BlockKey.INVALID, BlockKey.pack(0, -2048, 0));
+        assertNotEquals(BlockKey.pack(2048, 2048, 2048), BlockKey.pack(0, 0, 0));
+    }
+
+    @Test
+    public void outOfRangeIsInvalid() {
+        assertEquals(BlockKey.INVALID, BlockKey.pack(1 << 25, 0, 0));
+        assertEquals(BlockKey.INVALID, BlockKey.pack(0, 0, -(1 << 25) - 1));
+        assertEquals(BlockKey.INVALID, BlockKey.pack(0, 2048, 0));
+    }
+
+    @Test
+    public void packChunk() {
+        assertNotEquals(BlockKey.packChunk(-1, 0), BlockKey.packChunk(0, -1));
+        assertNotEquals(BlockKey.packChunk(1, -1), BlockKey.packChunk(-1, 1));
+        assertEquals(BlockKey.packChunk(-5, 7), BlockKey.packChunk(-5, 7));
+    }
+
+}
@@ -0,0 +1,173 @@
+/*
+ * Copyright 2011 Tyler Blair. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are
+ * permitted provided that the following conditions are met:
+ *
+ *    1. Redistributions of source code must retain the above copyright notice, this list of
+ *       conditions and the following disclaimer.
+ *
+ *    2. Redistributions in binary form must reproduce the above copyright notice, this list
+ *       of conditions and the following disclaimer in the documentation and/or other materials
+ *       provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ''AS IS'' AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND
+ * FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE AUTHOR OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * The views and conclusions contained in the software and documentation are those of the
+ * authors and contributors and should not be interpreted as representing official policies,
+ * either expressed or implied, of anybody else.
+ */
+
+package com.griefcraft.cache;
+
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class BlockMapTest {
+
+    @Test
+    public void putGetRemove() {
+        BlockMap<String> map = new BlockMap<String>(4);
+        long key = BlockKey.pack(-10, 64, 20);
+
+        assertNull(map.put(0, key, "a"));
+        assertEquals("a", map.put(0, key, "b"));
+        assertEquals("b", map.get(0, key));
+        assertEquals(1, map.size());
+
+        assertEquals("b", map.remove(0, key));
+        assertNull(map.get(0, key));
+        assertTrue(map.isEmpty());
+    }
+
+    @Test
+    public void worldsAreSeparate() {
+        BlockMap<String> map = new BlockMap<String>(4);
+        long key = BlockKey.pack(1, 2, 3);
+
+        map.put(0, key, "world");
+        map.put(1, key, "nether");
+
+        assertEquals("world", map.get(0, key));
+        assertEquals("nether", map.get(1, key));
+        assertNull(map.get(2, key));
+        assertEquals(2, map.size());
+    }
+
+    @Test
+    public void removeOnlyMatchingValue() {
+        BlockMap<String> map = new BlockMap<String>(4);
+        long key = BlockKey.pack(0, 0, 0);
+        map.put(0, key, "a");
+
+        assertFalse(map.remove(0, key, "b"));
+        assertTrue(map.remove(0, key, "a"));
+        assertFalse(map.containsKey(0, key));
+    }
+
+    @Test
+    public void growAndRehash() {
+        BlockMap<Integer> map = new BlockMap<Integer>(1);
+
+        for (int i = 0; i < 10000; i++) {
+            map.put(0, BlockKey.pack(i - 5000, i % 256, 5000 - i), i);
+        }
+
+        assertEquals(10000, map.size());
+
+        for (int i = 0; i < 10000; i++) {
+            assertEquals(Integer.valueOf(i), map.get(0, BlockKey.pack(i - 5000, i % 256, 5000 - i)));
+        }
+    }
+
+    @Test
+    public void deleteWithWrapAround() {
+        Random random = new Random(7);
+
+        // a half full minimal table, so many probe sequences wrap around its end
+        for (int trial = 0; trial < 1000; trial++) {
+            BlockMap<Long> map = new BlockMap<Long>(1);
+            long[] keys = new long[8];
+
+            for (int i = 0; i < keys.length; i++) {
+                keys[i] = BlockKey.pack(random.nextInt(1000) - 500, random.nextInt(256), random.nextInt(1000) - 500);
+                map.put(0, keys[i], keys[i]);
+            }
+
+            for (int removed = 0; removed < keys.length; removed++) {
+                assertEquals(Long.valueOf(keys[removed]), map.remove(0, keys[removed]));
+
+                for (int i = 0; i < keys.length; i++) {
+                    assertEquals(i > removed ? Long.valueOf(keys[i]) : null, map.get(0, keys[i]));
+                }
+            }
+
+            assertTrue(map.isEmpty());
+        }
+    }
+
+    @Test
+    public void matchesHashMap() {
+        Random random = new Random(42);
+        BlockMap<Integer> map = new BlockMap<Integer>(16);
+        Map<String, Integer> expected = new HashMap<String, Integer>();
+
+        for (int i = 0; i < 100000; i++) {
+            // a small area so keys are reused, removed and added again
+            int world = random.nextInt(2);
+            long key = BlockKey.pack(random.nextInt(40) - 20, random.nextInt(8) - 4, random.nextInt(40) - 20);
+
+            if (random.nextInt(3) == 0) {
+                assertEquals(expected.remove(world + ":" + key), map.remove(world, key));
+            } else {
+                assertEquals(expected.put(world + ":" + key, i), map.put(world, key, i));
+            }
+
+            assertEquals(expected.size(), map.size());
+        }
+
+        for (int world = 0; world < 2; world++) {
+            for (int x = -20; x < 20; x++) {
+                for (int y = -4; y < 4; y++) {
+                    for (int z = -20; z < 20; z++) {
+                        long key = BlockKey.pack(x, y, z);
+                        assertEquals(expected.get(world + ":" + key), map.get(world, key));
+                    }
+                }
+            }
+        }
+    }
+
+    @Test
+    public void clear() {
+        BlockMap<String> map = new BlockMap<String>(4);
+        map.put(0, BlockKey.pack(1, 1, 1), "a");
+        map.put(0, BlockKey.pack(2, 2, 2), "b");
+        map.clear();
+
+        assertTrue(map.isEmpty());
+        assertNull(map.get(0, BlockKey.pack(1, 1, 1)));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void nullValuesAreRejected() {
+        new BlockMap<String>(4).put(0, 0L, null);
+    }
+
+}
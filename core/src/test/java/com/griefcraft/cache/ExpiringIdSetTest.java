@@ -0,0 +1,162 @@
+/*
+ * Copyright 2011 Tyler Blair. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are
+ * permitted provided that the following conditions are met:
+ *
+ *    1. Redistributions of source code must retain the above copyright notice, this list of
+ *       conditions and the following disclaimer.
+ *
+ *    2. Redistributions in binary form must reproduce the above copyright notice, this list
+ *       of conditions and the following disclaimer in the documentation and/or other materials
+ *       provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ''AS IS'' AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND
+ * FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE AUTHOR OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * The views and conclusions contained in the software and documentation are those of the
+ * authors and contributors and should not be interpreted as representing official policies,
+ * either expressed or implied, of anybody else.
+ */
+
+package com.griefcraft.cache;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class ExpiringIdSetTest {
+
+    @Test
+    public void addContainsRemove() {
+        ExpiringIdSet set = new ExpiringIdSet();
+
+        assertTrue(set.add(5, ExpiringIdSet.NEVER));
+        assertFalse(set.add(5, ExpiringIdSet.NEVER));
+        assertTrue(set.contains(5, 0L));
+        assertFalse(set.contains(6, 0L));
+
+        assertTrue(set.remove(5));
+        assertFalse(set.remove(5));
+        assertFalse(set.contains(5, 0L));
+        assertEquals(0, set.size());
+    }
+
+    @Test
+    public void idsExpire() {
+        ExpiringIdSet set = new ExpiringIdSet();
+        set.add(1, 1000L);
+        set.add(2, ExpiringIdSet.NEVER);
+
+        assertTrue(set.contains(1, 999L));
+        assertFalse(set.contains(1, 1000L));
+        assertTrue(set.contains(2, Long.MAX_VALUE - 1));
+
+        // expired ids are dropped once looked up
+        assertEquals(1, set.size());
+    }
+
+    @Test
+    public void addingAgainExtendsExpiry() {
+        ExpiringIdSet set = new ExpiringIdSet();
+        set.add(1, 1000L);
+        set.add(1, 2000L);
+
+        assertTrue(set.contains(1, 1500L));
+        assertEquals(1, set.size());
+    }
+
+    @Test
+    public void purgeDropsExpiredIds() {
+        ExpiringIdSet set = new ExpiringIdSet();
+
+        for (int id = 0; id < 100; id++) {
+            set.add(id, id % 2 == 0 ? 1000L : ExpiringIdSet.NEVER);
+        }
+
+        set.purge(1000L);
+        assertEquals(50, set.size());
+
+        for (int id = 0; id < 100; id++) {
+            assertEquals(id % 2 != 0, set.contains(id, 1000L));
+        }
+    }
+
+    @Test
+    public void toArraySkipsExpiredIds() {
+        ExpiringIdSet set = new ExpiringIdSet();
+        set.add(-3, ExpiringIdSet.NEVER);
+        set.add(7, 1000L);
+        set.add(9, 5000L);
+
+        int[] ids = set.toArray(2000L);
+        Arrays.sort(ids);
+
+        assertArrayEquals(new int[] { -3, 9 }, ids);
+    }
+
+    @Test
+    public void matchesHashMap() {
+        Random random = new Random(42);
+        ExpiringIdSet set = new ExpiringIdSet();
+        Map<Integer, Long> expected = new HashMap<Integer, Long>();
+        // the set also drops expired ids by the clock when it grows, so stay ahead of it
+        long now = System.currentTimeMillis();
+
+        for (int i = 0; i < 100000; i++) {
+            int id = random.nextInt(200) - 100;
+            now += random.nextInt(3);
+
+            switch (random.nextInt(4)) {
+                case 0:
+                    expected.remove(id);
+                    set.remove(id);
+                    assertFalse(set.contains(id, now));
+                    break;
+
+                case 1:
+                    Long expiry = expected.get(id);
+                    assertEquals(expiry != null && expiry > now, set.contains(id, now));
+                    break;
+
+                default:
+                    expiry = now + 1 + random.nextInt(100);
+                    set.add(id, expiry);
+                    expected.put(id, expiry);
+                    break;
+            }
+        }
+
+        for (int id = -100; id < 100; id++) {
+            Long expiry = expected.get(id);
+            assertEquals(expiry != null && expiry > now, set.contains(id, now));
+        }
+    }
+
+    @Test
+    public void clear() {
+        ExpiringIdSet set = new ExpiringIdSet();
+        set.add(1, ExpiringIdSet.NEVER);
+        set.add(2, ExpiringIdSet.NEVER);
+        set.clear();
+
+        assertEquals(0, set.size());
+        assertFalse(set.contains(1, 0L));
+    }
+
+}
@@ -0,0 +1,271 @@
+/*
+ * Copyright 2011 Tyler Blair. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are
+ * permitted provided that the following conditions are met:
+ *
+ *    1. Redistributions of source code must retain the above copyright notice, this list of
+ *       conditions and the following disclaimer.
+ *
+ *    2. Redistributions in binary form must reproduce the above copyright notice, this list
+ *       of conditions and the following disclaimer in the documentation and/or other materials
+ *       provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ''AS IS'' AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND
+ * FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE AUTHOR OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * The views and conclusions contained in the software and documentation are those of the
+ * authors and contributors and should not be interpreted as representing official policies,
+ * either expressed or implied, of anybody else.
+ */
+
+package com.griefcraft.sql;
+
+import org.junit.Test;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class ConnectionPoolTest {
+
+    /**
+     * A JDBC object that only remembers if it was closed
+     */
+    private static class Fake implements InvocationHandler {
+
+        boolean closed = false;
+        boolean autoCommit = true;
+        final List<Fake> statements = new ArrayList<Fake>();
+
+        public Object invoke(Object proxy, Method method, Object[] args) {
+            String name = method.getName();
+
+            if (name.equals("close")) {
+                closed = true;
+            } else if (name.equals("isClosed")) {
+                return closed;
+            } else if (name.equals("getAutoCommit")) {
+                return autoCommit;
+            } else if (name.equals("setAutoCommit")) {
+                autoCommit = (Boolean) args[0];
+            } else if (name.equals("prepareStatement")) {
+                Fake statement = new Fake();
+                statements.add(statement);
+                return statement.proxy(PreparedStatement.class);
+            } else if (name.equals("hashCode")) {
+                return System.identityHashCode(proxy);
+            } else if (name.equals("equals")) {
+                return proxy == args[0];
+            }
+
+            return null;
+        }
+
+        <T> T proxy(Class<T> type) {
+            return type.cast(Proxy.newProxyInstance(getClass().getClassLoader(), new Class<?>[] { type }, this));
+        }
+
+    }
+
+    /**
+     * Creates fake connections and keeps track of them
+     */
+    private static class FakeFactory implements ConnectionPool.ConnectionFactory {
+
+        final List<Fake> connections = new ArrayList<Fake>();
+
+        public synchronized Connection create() {
+            Fake connection = new Fake();
+            connections.add(connection);
+            return connection.proxy(Connection.class);
+        }
+
+    }
+
+    @Test
+    public void reusesReturnedConnections() throws SQLException {
+        FakeFactory factory = new FakeFactory();
+        ConnectionPool pool = new ConnectionPool(factory, Database.Type.SQLite, 2, 60000L);
+
+        PooledConnection first = pool.borrow();
+        first.close();
+        PooledConnection second = pool.borrow();
+
+        assertSame(first, second);
+        assertEquals(1, pool.getCreated());
+        assertEquals(1, pool.getSize());
+        assertEquals(0, pool.getIdle());
+
+        second.close();
+        assertEquals(1, pool.getIdle());
+        assertFalse(factory.connections.get(0).closed);
+    }
+
+    @Test
+    public void opensUpToMaxSize() throws SQLException {
+        ConnectionPool pool = new ConnectionPool(new FakeFactory(), Database.Type.SQLite, 2, 60000L);
+
+        PooledConnection first = pool.borrow();
+        PooledConnection second = pool.borrow();
+
+        assertNotSame(first, second);
+        assertEquals(2, pool.getSize());
+        assertEquals(2, pool.getCreated());
+        assertEquals(2, pool.getMaxSize());
+    }
+
+    @Test
+    public void waitsForReturnedConnection() throws Exception {
+        final ConnectionPool pool = new ConnectionPool(new FakeFactory(), Database.Type.SQLite, 1, 60000L);
+        final PooledConnection borrowed = pool.borrow();
+
+        Thread returner = new Thread(new Runnable() {
+            public void run() {
+                try {
+                    Thread.sleep(100L);
+                } catch (InterruptedException e) {
+                    return;
+                }
+
+                borrowed.close();
+            }
+        });
+        returner.start();
+
+        assertSame(borrowed, pool.borrow());
+        returner.join();
+        assertEquals(1, pool.getCreated());
+    }
+
+    @Test
+    public void rollsBackLeftoverTransactions() throws SQLException {
+        FakeFactory factory = new FakeFactory();
+        ConnectionPool pool = new ConnectionPool(factory, Database.Type.SQLite, 1, 60000L);
+
+        PooledConnection connection = pool.borrow();
+        connection.getConnection().setAutoCommit(false);
+        connection.close();
+
+        assertTrue(factory.connections.get(0).autoCommit);
+    }
+
+    @Test
+    public void evictsIdleConnections() throws Exception {
+        FakeFactory factory = new FakeFactory();
+        ConnectionPool pool = new ConnectionPool(factory, Database.Type.SQLite, 2, 50L);
+
+        pool.borrow().close();
+        assertEquals(1, pool.getIdle());
+
+        Thread.sleep(100L);
+        pool.evictIdle();
+
+        assertEquals(0, pool.getIdle());
+        assertEquals(0, pool.getSize());
+        assertTrue(factory.connections.get(0).closed);
+    }
+
+    @Test
+    public void closeClosesIdleAndReturnedConnections() throws SQLException {
+        FakeFactory factory = new FakeFactory();
+        ConnectionPool pool = new ConnectionPool(factory, Database.Type.SQLite, 2, 60000L);
+
+        PooledConnection idle = pool.borrow();
+        PooledConnection borrowed = pool.borrow();
+        idle.close();
+        pool.close();
+
+        assertTrue(factory.connections.get(0).closed);
+        assertFalse(factory.connections.get(1).closed);
+
+        borrowed.close();
+        assertTrue(factory.connections.get(1).closed);
+        assertEquals(0, pool.getSize());
+
+        try {
+            pool.borrow();
+            fail("borrowed from a closed pool");
+        } catch (SQLException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void failedConnectsFreeTheirSlot() throws SQLException {
+        final AtomicInteger attempts = new AtomicInteger();
+        ConnectionPool pool = new ConnectionPool(new ConnectionPool.ConnectionFactory() {
+            public Connection create() throws SQLException {
+                attempts.incrementAndGet();
+                throw new SQLException("unreachable");
+            }
+        }, Database.Type.SQLite, 1, 60000L);
+
+        for (int i = 0; i < 2; i++) {
+            try {
+                pool.borrow();
+                fail("borrowed a connection that could not be created");
+            } catch (SQLException e) {
+                // expected
+            }
+        }
+
+        assertEquals(2, attempts.get());
+        assertEquals(0, pool.getSize());
+    }
+
+    @Test
+    public void cachesStatements() throws SQLException {
+        FakeFactory factory = new FakeFactory();
+        ConnectionPool pool = new ConnectionPool(factory, Database.Type.SQLite, 1, 60000L);
+        PooledConnection connection = pool.borrow();
+
+        PreparedStatement statement = connection.prepare("SELECT 1", false, true);
+
+        assertSame(statement, connection.prepare("SELECT 1", false, true));
+        assertNotSame(statement, connection.prepare("SELECT 1", true, true));
+        assertNotSame(statement, connection.prepare("SELECT 1", false, false));
+    }
+
+    @Test
+    public void evictedStatementsCloseWhenReturned() throws SQLException {
+        FakeFactory factory = new FakeFactory();
+        ConnectionPool pool = new ConnectionPool(factory, Database.Type.SQLite, 1, 60000L);
+        PooledConnection connection = pool.borrow();
+
+        // fill the statement cache until the first statement is evicted
+        for (int i = 0; i <= 100; i++) {
+            connection.prepare("SELECT " + i, false, true);
+        }
+
+        Fake evicted = factory.connections.get(0).statements.get(0);
+
+        // whoever prepared it may still be using it
+        assertFalse(evicted.closed);
+
+        connection.close();
+        assertTrue(evicted.closed);
+        assertFalse(factory.connections.get(0).statements.get(1).closed);
+    }
+
+}
@@ -0,0 +1,198 @@
+/*
+ * Copyright 2011 Tyler Blair. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are
+ * permitted provided that the following conditions are met:
+ *
+ *    1. Redistributions of source code must retain the above copyright notice, this list of
+ *       conditions and the following disclaimer.
+ *
+ *    2. Redistributions in binary form must reproduce the above copyright notice, this list
+ *       of conditions and the following disclaimer in the documentation and/or other materials
+ *       provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ''AS IS'' AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND
+ * FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE AUTHOR OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * The views and conclusions contained in the software and documentation are those of the
+ * authors and contributors and should not be interpreted as representing official policies,
+ * either expressed or implied, of anybody else.
+ */
+
+package com.griefcraft.util;
+
+import com.griefcraft.model.Flag;
+import com.griefcraft.model.Permission;
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+import org.json.simple.parser.JSONParser;
+import org.json.simple.parser.ParseException;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class CompactDataTest {
+
+    /**
+     * A dictionary backed by a map, like the uuids table
+     */
+    private static class MapDictionary implements CompactData.Dictionary {
+
+        private final Map<String, Integer> ids = new HashMap<String, Integer>();
+        private final List<String> uuids = new ArrayList<String>();
+
+        public int getUUIDId(String uuid) {
+            Integer id = ids.get(uuid);
+
+            if (id == null) {
+                uuids.add(uuid);
+                id = uuids.size();
+                ids.put(uuid, id);
+            }
+
+            return id;
+        }
+
+        public String getUUID(int id) {
+            return id > 0 && id <= uuids.size() ? uuids.get(id - 1) : null;
+        }
+
+    }
+
+    @Test
+    public void roundTripMatchesJSON() throws ParseException {
+        MapDictionary dictionary = new MapDictionary();
+
+        List<Permission> permissions = new ArrayList<Permission>();
+        permissions.add(new Permission(UUID.randomUUID().toString(), Permission.Type.PLAYER, Permission.Access.PLAYER));
+        permissions.add(new Permission(UUID.randomUUID().toString(), Permission.Type.PLAYER, Permission.Access.ADMIN));
+        permissions.add(new Permission("Notch", Permission.Type.PLAYER, Permission.Access.PLAYER));
+        permissions.add(new Permission("admins", Permission.Type.GROUP, Permission.Access.ADMIN));
+        permissions.add(new Permission("276", Permission.Type.ITEM, Permission.Access.PLAYER));
+
+        List<Flag> flags = new ArrayList<Flag>();
+        flags.add(new Flag(Flag.Type.REDSTONE));
+        Flag autoclose = new Flag(Flag.Type.AUTOCLOSE);
+        autoclose.getData().put("delay", "5");
+        flags.add(autoclose);
+
+        JSONObject data = new JSONObject();
+        data.put("owner", "someone");
+        data.put("uses", 3L);
+
+        String encoded = CompactData.encode(permissions, flags, data, dictionary);
+        assertTrue(CompactData.isCompact(encoded));
+
+        CompactData.Decoded decoded = CompactData.decode(encoded, dictionary);
+        assertNotNull(decoded);
+
+        assertEquals(encodeRights(permissions), encodeRights(decoded.permissions));
+        assertEquals(encodeFlags(flags), encodeFlags(decoded.flags));
+        assertEquals(new JSONParser().parse(data.toJSONString()), decoded.data);
+    }
+
+    @Test
+    public void uuidsAreStoredOnce() {
+        MapDictionary dictionary = new MapDictionary();
+        String uuid = UUID.randomUUID().toString();
+
+        List<Permission> permissions = new ArrayList<Permission>();
+        permissions.add(new Permission(uuid, Permission.Type.PLAYER, Permission.Access.PLAYER));
+
+        String encoded = CompactData.encode(permissions, new ArrayList<Flag>(), new JSONObject(), dictionary);
+        CompactData.encode(permissions, new ArrayList<Flag>(), new JSONObject(), dictionary);
+
+        assertEquals(1, dictionary.uuids.size());
+        assertFalse(encoded.contains(uuid));
+        assertEquals(uuid, CompactData.decode(encoded, dictionary).permissions.get(0).getName());
+    }
+
+    @Test
+    public void nonCanonicalUUIDsAreKeptAsNames() {
+        MapDictionary dictionary = new MapDictionary();
+        String uuid = UUID.randomUUID().toString().toUpperCase();
+
+        List<Permission> permissions = new ArrayList<Permission>();
+        permissions.add(new Permission(uuid, Permission.Type.PLAYER, Permission.Access.PLAYER));
+
+        String encoded = CompactData.encode(permissions, new ArrayList<Flag>(), new JSONObject(), dictionary);
+
+        assertTrue(dictionary.uuids.isEmpty());
+        assertEquals(uuid, CompactData.decode(encoded, dictionary).permissions.get(0).getName());
+    }
+
+    @Test
+    public void emptyRoundTrip() {
+        String encoded = CompactData.encode(new ArrayList<Permission>(), new ArrayList<Flag>(), new JSONObject(), new MapDictionary());
+        CompactData.Decoded decoded = CompactData.decode(encoded, new MapDictionary());
+
+        assertNotNull(decoded);
+        assertTrue(decoded.permissions.isEmpty());
+        assertTrue(decoded.flags.isEmpty());
+        assertTrue(decoded.data.isEmpty());
+    }
+
+    @Test
+    public void invalidDataIsRejected() {
+        MapDictionary dictionary = new MapDictionary();
+
+        assertFalse(CompactData.isCompact(null));
+        assertFalse(CompactData.isCompact(""));
+        assertFalse(CompactData.isCompact("{\"rights\":[]}"));
+        assertNull(CompactData.decode("{\"rights\":[]}", dictionary));
+        assertNull(CompactData.decode(CompactData.PREFIX + "not base64!", dictionary));
+
+        String encoded = CompactData.encode(new ArrayList<Permission>(), new ArrayList<Flag>(), new JSONObject(), dictionary);
+        assertNull(CompactData.decode(encoded.substring(0, 2), dictionary));
+    }
+
+    /**
+     * Encode rights the way the JSON data column does, parsed back so numbers compare equal
+     *
+     * @param permissions
+     * @return
+     */
+    private static Object encodeRights(List<Permission> permissions) throws ParseException {
+        JSONArray rights = new JSONArray();
+
+        for (Permission permission : permissions) {
+            rights.add(permission.encodeToJSON());
+        }
+
+        return new JSONParser().parse(rights.toJSONString());
+    }
+
+    /**
+     * Encode flags the way the JSON data column does, parsed back so numbers compare equal
+     *
+     * @param flags
+     * @return
+     */
+    private static Object encodeFlags(List<Flag> flags) throws ParseException {
+        JSONArray array = new JSONArray();
+
+        for (Flag flag : flags) {
+            array.add(flag.getData());
+        }
+
+        return new JSONParser().parse(array.toJSONString());
+    }
+
+}